@@ -114,17 +114,20 @@ public class ParseField {
         // Now try to match against one of the deprecated names. Note that if
         // the parse field is entirely deprecated (allReplacedWith != null) all
         // fields will be in the deprecatedNames array
-        String msg;
         for (String depName : deprecatedNames) {
             if (fieldName.equals(depName)) {
-                msg = "Deprecated field [" + fieldName + "] used, expected [" + name + "] instead";
-                if (allReplacedWith != null) {
-                    // If the field is entirely deprecated then there is no
-                    // preferred name so instead use the `allReplaceWith`
-                    // message to indicate what should be used instead
-                    msg = "Deprecated field [" + fieldName + "] used, replaced by [" + allReplacedWith + "]";
+                if (DeprecationLogger.isEnabled()) {
+                    if (allReplacedWith != null) {
+                        // If the field is entirely deprecated then there is no
+                        // preferred name so instead use the `allReplaceWith`
+                        // message to indicate what should be used instead
+                        DEPRECATION_LOGGER.deprecatedAndMaybeLog(depName, "Deprecated field [{}] used, replaced by [{}]", fieldName,
+                                allReplacedWith);
+                    } else {
+                        DEPRECATION_LOGGER.deprecatedAndMaybeLog(depName, "Deprecated field [{}] used, expected [{}] instead", fieldName,
+                                name);
+                    }
                 }
-                DEPRECATION_LOGGER.deprecated(msg);
                 return true;
             }
         }
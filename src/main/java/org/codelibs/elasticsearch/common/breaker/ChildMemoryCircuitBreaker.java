@@ -0,0 +1,172 @@
+package org.codelibs.elasticsearch.common.breaker;
+
+import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {CircuitBreaker} of a {HierarchyCircuitBreaker}: bytes are reserved against its own limit first, then against
+ * the limit of its parent, so that the breaker trips as soon as either limit would be exceeded.
+ * <p>
+ * Reservations are lock-free, and the bytes added and released with the same label are accounted for separately
+ * to tell what uses the memory of the breaker.
+ */
+public final class ChildMemoryCircuitBreaker implements CircuitBreaker {
+    private final String name;
+
+    private final long limit;
+
+    private final double overhead;
+
+    private final HierarchyCircuitBreaker parent;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong trippedCount = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Label> labels = new ConcurrentHashMap<>();
+
+    // callers mostly use the same constant label, which saves the lookup
+    private volatile Label lastLabel;
+
+    ChildMemoryCircuitBreaker(String name, long limit, double overhead, HierarchyCircuitBreaker parent) {
+        if (overhead < 0) {
+            throw new IllegalArgumentException("[overhead] must not be negative: " + overhead);
+        }
+        this.name = name;
+        this.limit = limit;
+        this.overhead = overhead;
+        this.parent = parent;
+    }
+
+    @Override
+    public void circuitBreak(String fieldName, long bytesNeeded) {
+        trippedCount.incrementAndGet();
+        label(fieldName).tripped.increment();
+        final String message = "[" + name + "] Data too large, data for [" + fieldName + "] would be [" + bytesNeeded + "/"
+                + new ByteSizeValue(bytesNeeded) + "], which is larger than the limit of [" + limit + "/" + new ByteSizeValue(limit) + "]";
+        throw new CircuitBreakingException(message, bytesNeeded, limit);
+    }
+
+    @Override
+    public double addEstimateBytesAndMaybeBreak(long bytes, String label) throws CircuitBreakingException {
+        if (bytes <= 0 || limit < 0) {
+            // releases and unlimited breakers only count, the parent still checks its own limit
+            final long newUsed = used.addAndGet(bytes);
+            reserveFromParent(bytes, label);
+            return newUsed;
+        }
+        long current;
+        long newUsed;
+        do {
+            current = used.get();
+            newUsed = current + bytes;
+            final long newUsedWithOverhead = (long) (newUsed * overhead);
+            if (newUsedWithOverhead > limit) {
+                circuitBreak(label, newUsedWithOverhead);
+            }
+        } while (used.compareAndSet(current, newUsed) == false);
+        reserveFromParent(bytes, label);
+        return newUsed;
+    }
+
+    private void reserveFromParent(long bytes, String label) {
+        try {
+            parent.reserve(bytes, label);
+        } catch (CircuitBreakingException e) {
+            used.addAndGet(-bytes);
+            trippedCount.incrementAndGet();
+            label(label).tripped.increment();
+            throw e;
+        }
+        label(label).used.add(bytes);
+    }
+
+    @Override
+    public long addWithoutBreaking(long bytes) {
+        final long newUsed = used.addAndGet(bytes);
+        parent.addWithoutBreaking(bytes);
+        assert newUsed >= 0 : "Used bytes: [" + newUsed + "] must be >= 0";
+        return newUsed;
+    }
+
+    @Override
+    public long addWithoutBreaking(long bytes, String label) {
+        final long newUsed = addWithoutBreaking(bytes);
+        label(label).used.add(bytes);
+        return newUsed;
+    }
+
+    private Label label(String label) {
+        Label stats = lastLabel;
+        if (stats == null || stats.name != label) {
+            stats = labels.computeIfAbsent(label, Label::new);
+            lastLabel = stats;
+        }
+        return stats;
+    }
+
+    @Override
+    public long getUsed() {
+        return used.get();
+    }
+
+    @Override
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public double getOverhead() {
+        return overhead;
+    }
+
+    @Override
+    public long getTrippedCount() {
+        return trippedCount.get();
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the bytes currently used per label, that is the bytes added minus the bytes released with the label.
+     */
+    public Map<String, Long> getUsedByLabel() {
+        final Map<String, Long> usedByLabel = new HashMap<>();
+        labels.forEach((label, stats) -> usedByLabel.put(label, stats.used.sum()));
+        return Collections.unmodifiableMap(usedByLabel);
+    }
+
+    /**
+     * Returns the number of times the breaker tripped per label.
+     */
+    public Map<String, Long> getTrippedCountByLabel() {
+        final Map<String, Long> trippedByLabel = new HashMap<>();
+        labels.forEach((label, stats) -> trippedByLabel.put(label, stats.tripped.sum()));
+        return Collections.unmodifiableMap(trippedByLabel);
+    }
+
+    @Override
+    public String toString() {
+        return "[" + name + ",limit=" + limit + "/" + new ByteSizeValue(limit) + ",estimated=" + used.get() + "/"
+                + new ByteSizeValue(used.get()) + ",overhead=" + overhead + ",tripped=" + trippedCount.get() + "]";
+    }
+
+    private static final class Label {
+        final String name;
+        final LongAdder used = new LongAdder();
+        final LongAdder tripped = new LongAdder();
+
+        Label(String name) {
+            this.name = name;
+        }
+    }
+}
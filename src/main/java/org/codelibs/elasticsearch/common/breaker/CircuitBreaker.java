@@ -75,6 +75,16 @@ public interface CircuitBreaker {
      */
     long addWithoutBreaking(long bytes);
 
+    /**
+     * Adjust the circuit breaker without tripping, on behalf of the given label
+     * @param bytes number of bytes to add, negative to release bytes added with the same label
+     * @param label string label describing the bytes being added or released
+     * @return the number of "used" bytes for the circuit breaker
+     */
+    default long addWithoutBreaking(long bytes, String label) {
+        return addWithoutBreaking(bytes);
+    }
+
     /**
      * @return the currently used bytes the breaker is tracking
      */
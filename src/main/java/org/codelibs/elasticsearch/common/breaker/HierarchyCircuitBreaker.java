@@ -0,0 +1,181 @@
+package org.codelibs.elasticsearch.common.breaker;
+
+import org.codelibs.elasticsearch.common.settings.Setting;
+import org.codelibs.elasticsearch.common.settings.Setting.Property;
+import org.codelibs.elasticsearch.common.settings.Settings;
+import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The parent {CircuitBreaker} of a hierarchy of {ChildMemoryCircuitBreaker}s: every byte a child reserves is also
+ * reserved against the limit of the parent, so that the children together cannot use more than the parent limit
+ * even though each of them is within its own limit.
+ * <pre>
+ * HierarchyCircuitBreaker breakers = HierarchyCircuitBreaker.parent(settings);
+ * BigArrays bigArrays = new BigArrays(recycler, breakers.getBreaker(CircuitBreaker.REQUEST), true);
+ * </pre>
+ * Reservations are lock-free: a child and its parent are each updated with a compare-and-set, and the bytes a child
+ * reserved are given back when its parent trips.
+ */
+public final class HierarchyCircuitBreaker implements CircuitBreaker {
+    public static final Setting<ByteSizeValue> TOTAL_CIRCUIT_BREAKER_LIMIT_SETTING =
+        Setting.memorySizeSetting("indices.breaker.total.limit", "70%", Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING =
+        Setting.memorySizeSetting("indices.breaker.request.limit", "60%", Property.NodeScope);
+    public static final Setting<Double> REQUEST_CIRCUIT_BREAKER_OVERHEAD_SETTING =
+        Setting.doubleSetting("indices.breaker.request.overhead", 1.0d, 0.0d, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> FIELDDATA_CIRCUIT_BREAKER_LIMIT_SETTING =
+        Setting.memorySizeSetting("indices.breaker.fielddata.limit", "60%", Property.NodeScope);
+    public static final Setting<Double> FIELDDATA_CIRCUIT_BREAKER_OVERHEAD_SETTING =
+        Setting.doubleSetting("indices.breaker.fielddata.overhead", 1.03d, 0.0d, Property.NodeScope);
+
+    public static final Setting<ByteSizeValue> IN_FLIGHT_REQUESTS_CIRCUIT_BREAKER_LIMIT_SETTING =
+        Setting.memorySizeSetting("network.breaker.inflight_requests.limit", "100%", Property.NodeScope);
+    public static final Setting<Double> IN_FLIGHT_REQUESTS_CIRCUIT_BREAKER_OVERHEAD_SETTING =
+        Setting.doubleSetting("network.breaker.inflight_requests.overhead", 1.0d, 0.0d, Property.NodeScope);
+
+    private final long limit;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong trippedCount = new AtomicLong();
+
+    private final ConcurrentHashMap<String, ChildMemoryCircuitBreaker> children = new ConcurrentHashMap<>();
+
+    private HierarchyCircuitBreaker(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Returns a parent breaker with the given limit in bytes, <tt>-1</tt> for no limit, and no children.
+     */
+    public static HierarchyCircuitBreaker parent(long limit) {
+        if (limit < -1) {
+            throw new IllegalArgumentException("[limit] must be -1 or greater: " + limit);
+        }
+        return new HierarchyCircuitBreaker(limit);
+    }
+
+    /**
+     * Returns a parent breaker limited by <code>indices.breaker.total.limit</code> with the <tt>request</tt>,
+     * <tt>fielddata</tt> and <tt>in_flight_requests</tt> children limited by their settings.
+     */
+    public static HierarchyCircuitBreaker parent(Settings settings) {
+        final HierarchyCircuitBreaker parent = parent(TOTAL_CIRCUIT_BREAKER_LIMIT_SETTING.get(settings).getBytes());
+        parent.child(REQUEST, REQUEST_CIRCUIT_BREAKER_LIMIT_SETTING.get(settings).getBytes(),
+                REQUEST_CIRCUIT_BREAKER_OVERHEAD_SETTING.get(settings));
+        parent.child(FIELDDATA, FIELDDATA_CIRCUIT_BREAKER_LIMIT_SETTING.get(settings).getBytes(),
+                FIELDDATA_CIRCUIT_BREAKER_OVERHEAD_SETTING.get(settings));
+        parent.child(IN_FLIGHT_REQUESTS, IN_FLIGHT_REQUESTS_CIRCUIT_BREAKER_LIMIT_SETTING.get(settings).getBytes(),
+                IN_FLIGHT_REQUESTS_CIRCUIT_BREAKER_OVERHEAD_SETTING.get(settings));
+        return parent;
+    }
+
+    /**
+     * Adds a child breaker with the given limit in bytes, <tt>-1</tt> for no limit of its own, and the given
+     * overhead its used bytes are multiplied by before they are checked against its limit.
+     */
+    public ChildMemoryCircuitBreaker child(String name, long limit, double overhead) {
+        if (name == null || PARENT.equals(name)) {
+            throw new IllegalArgumentException("Invalid name for a child breaker: " + name);
+        }
+        if (limit < -1) {
+            throw new IllegalArgumentException("[limit] must be -1 or greater: " + limit);
+        }
+        final ChildMemoryCircuitBreaker child = new ChildMemoryCircuitBreaker(name, limit, overhead, this);
+        if (children.putIfAbsent(name, child) != null) {
+            throw new IllegalArgumentException("Child breaker [" + name + "] already exists");
+        }
+        return child;
+    }
+
+    /**
+     * Returns the child breaker with the given name.
+     */
+    public ChildMemoryCircuitBreaker getBreaker(String name) {
+        final ChildMemoryCircuitBreaker child = children.get(name);
+        if (child == null) {
+            throw new IllegalArgumentException("No CircuitBreaker with name: " + name);
+        }
+        return child;
+    }
+
+    /**
+     * Returns the child breakers.
+     */
+    public Collection<ChildMemoryCircuitBreaker> getBreakers() {
+        return Collections.unmodifiableCollection(children.values());
+    }
+
+    void reserve(long bytes, String label) {
+        if (bytes <= 0 || limit < 0) {
+            used.addAndGet(bytes);
+            return;
+        }
+        long current;
+        long newUsed;
+        do {
+            current = used.get();
+            newUsed = current + bytes;
+            if (newUsed > limit) {
+                circuitBreak(label, newUsed);
+            }
+        } while (used.compareAndSet(current, newUsed) == false);
+    }
+
+    @Override
+    public void circuitBreak(String fieldName, long bytesNeeded) {
+        trippedCount.incrementAndGet();
+        final String message = "[" + PARENT + "] Data too large, data for [" + fieldName + "] would be [" + bytesNeeded + "/"
+                + new ByteSizeValue(bytesNeeded) + "], which is larger than the limit of [" + limit + "/" + new ByteSizeValue(limit) + "]";
+        throw new CircuitBreakingException(message, bytesNeeded, limit);
+    }
+
+    @Override
+    public double addEstimateBytesAndMaybeBreak(long bytes, String label) throws CircuitBreakingException {
+        reserve(bytes, label);
+        return used.get();
+    }
+
+    @Override
+    public long addWithoutBreaking(long bytes) {
+        return used.addAndGet(bytes);
+    }
+
+    @Override
+    public long getUsed() {
+        return used.get();
+    }
+
+    @Override
+    public long getLimit() {
+        return limit;
+    }
+
+    @Override
+    public double getOverhead() {
+        return 1.0;
+    }
+
+    @Override
+    public long getTrippedCount() {
+        return trippedCount.get();
+    }
+
+    @Override
+    public String getName() {
+        return PARENT;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + PARENT + ",limit=" + limit + "/" + new ByteSizeValue(limit) + ",estimated=" + used.get() + "/"
+                + new ByteSizeValue(used.get()) + ",tripped=" + trippedCount.get() + "]";
+    }
+}
@@ -46,7 +46,8 @@ import java.util.stream.Stream;
  * not supported.
  *
  * This structure might need to perform several object creations per write so
- * it is better suited for work-loads that are not too write-intensive.
+ * it is better suited for work-loads that are not too write-intensive. Batches
+ * of writes should go through a {Builder}, which only copies every node once.
  *
  * @see <a href="http://en.wikipedia.org/wiki/Hash_array_mapped_trie">the wikipedia page</a>
  */
@@ -68,15 +69,49 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
             final CopyOnWriteHashMap<K, V> cowMap = (CopyOnWriteHashMap<K, V>) map;
             return cowMap;
         } else {
-            return new CopyOnWriteHashMap<K, V>().copyAndPutAll(map);
+            final MutableValueInt size = new MutableValueInt();
+            final InnerNode<K, V> root = bulkBuild(null, map, size);
+            return new CopyOnWriteHashMap<>(root, size.value);
         }
     }
 
+    /**
+     * Return a builder that starts from an empty map.
+     */
+    public static <K, V> Builder<K, V> builder() {
+        return new Builder<>(new CopyOnWriteHashMap<>());
+    }
+
+    /**
+     * Return a builder that starts from the content of <code>map</code>, which is not modified.
+     */
+    public static <K, V> Builder<K, V> builder(CopyOnWriteHashMap<K, V> map) {
+        return new Builder<>(map);
+    }
+
     /**
      * Abstraction of a node, implemented by both inner and leaf nodes.
+     *
+     * Every node records the <code>edit</code> token of the {Builder} that
+     * created it. Writes that carry the same token update the node in place
+     * since it is not reachable from any published map yet, other writes
+     * copy it. Writes of the persistent API use a <tt>null</tt> token.
      */
     private abstract static class Node<K, V> {
 
+        final Object edit;
+
+        Node(Object edit) {
+            this.edit = edit;
+        }
+
+        /**
+         * Whether this node may be modified in place by a write with the given token.
+         */
+        final boolean ownedBy(Object edit) {
+            return edit != null && edit == this.edit;
+        }
+
         /**
          * Recursively get the key with the given hash.
          */
@@ -89,12 +124,13 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
          * node needs to be created since it means that a collision occurred
          * on the 32 bits of the hash.
          */
-        abstract Node<K, V> put(K key, int hash, int hashBits, V value, MutableValueInt newValue);
+        abstract Node<K, V> put(Object edit, K key, int hash, int hashBits, V value, MutableValueInt newValue);
 
         /**
-         * Recursively remove an entry from this node.
+         * Recursively remove an entry from this node. <code>removed</code> is
+         * set to <tt>1</tt> if the entry existed.
          */
-        abstract Node<K, V> remove(Object key, int hash);
+        abstract Node<K, V> remove(Object edit, Object key, int hash, MutableValueInt removed);
 
         /**
          * For the current node only, append entries that are stored on this
@@ -114,17 +150,18 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
      */
     private static class Leaf<K, V> extends Node<K, V> {
 
-        private final K[] keys;
-        private final V[] values;
+        private K[] keys;
+        private V[] values;
 
-        Leaf(K[] keys, V[] values) {
+        Leaf(Object edit, K[] keys, V[] values) {
+            super(edit);
             this.keys = keys;
             this.values = values;
         }
 
         @SuppressWarnings("unchecked")
-        Leaf() {
-            this((K[]) EMPTY_ARRAY, (V[]) EMPTY_ARRAY);
+        Leaf(Object edit) {
+            this(edit, (K[]) EMPTY_ARRAY, (V[]) EMPTY_ARRAY);
         }
 
         @Override
@@ -157,7 +194,7 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
         }
 
         @Override
-        Leaf<K, V> put(K key, int hash, int hashBits, V value, MutableValueInt newValue) {
+        Leaf<K, V> put(Object edit, K key, int hash, int hashBits, V value, MutableValueInt newValue) {
             assert hashBits <= 0 : hashBits;
             int slot = -1;
             for (int i = 0; i < keys.length; i++) {
@@ -174,16 +211,25 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
                 keys2 = appendElement(keys, key);
                 values2 = appendElement(values, value);
                 newValue.value = 1;
+            } else if (ownedBy(edit)) {
+                keys[slot] = key;
+                values[slot] = value;
+                return this;
             } else {
                 keys2 = replace(keys, slot, key);
                 values2 = replace(values, slot, value);
             }
 
-            return new Leaf<>(keys2, values2);
+            if (ownedBy(edit)) {
+                keys = keys2;
+                values = values2;
+                return this;
+            }
+            return new Leaf<>(edit, keys2, values2);
         }
 
         @Override
-        Leaf<K, V> remove(Object key, int hash) {
+        Leaf<K, V> remove(Object edit, Object key, int hash, MutableValueInt removed) {
             int slot = -1;
             for (int i = 0; i < keys.length; i++) {
                 if (key.equals(keys[i])) {
@@ -194,9 +240,15 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
             if (slot < 0) {
                 return this;
             }
+            removed.value = 1;
             final K[] keys2 = removeArrayElement(keys, slot);
             final V[] values2 = removeArrayElement(values, slot);
-            return new Leaf<>(keys2, values2);
+            if (ownedBy(edit)) {
+                keys = keys2;
+                values = values2;
+                return this;
+            }
+            return new Leaf<>(edit, keys2, values2);
         }
     }
 
@@ -238,11 +290,12 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
      */
     private static class InnerNode<K, V> extends Node<K, V> {
 
-        private final long mask; // the bitmap
-        private final K[] keys;
-        final Object[] subNodes; // subNodes[slot] is either a value or a sub node in case of a hash collision
+        private long mask; // the bitmap
+        private K[] keys;
+        Object[] subNodes; // subNodes[slot] is either a value or a sub node in case of a hash collision
 
-        InnerNode(long mask, K[] keys, Object[] subNodes) {
+        InnerNode(Object edit, long mask, K[] keys, Object[] subNodes) {
+            super(edit);
             this.mask = mask;
             this.keys = keys;
             this.subNodes = subNodes;
@@ -269,8 +322,8 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
         }
 
         @SuppressWarnings("unchecked")
-        InnerNode() {
-            this(0, (K[]) EMPTY_ARRAY, EMPTY_ARRAY);
+        InnerNode(Object edit) {
+            this(edit, 0, (K[]) EMPTY_ARRAY, EMPTY_ARRAY);
         }
 
         @Override
@@ -332,23 +385,39 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
             }
         }
 
-        private Node<K, V> newSubNode(int hashBits) {
+        private Node<K, V> newSubNode(Object edit, int hashBits) {
             if (hashBits <= 0) {
-                return new Leaf<>();
+                return new Leaf<>(edit);
             } else {
-                return new InnerNode<>();
+                return new InnerNode<>(edit);
+            }
+        }
+
+        /**
+         * Replace the arrays of this node if it is owned by <code>edit</code>, or return a modified copy otherwise.
+         */
+        private InnerNode<K, V> update(Object edit, long mask2, K[] keys2, Object[] subNodes2) {
+            if (ownedBy(edit)) {
+                mask = mask2;
+                keys = keys2;
+                subNodes = subNodes2;
+                assert consistent();
+                return this;
             }
+            return new InnerNode<>(edit, mask2, keys2, subNodes2);
         }
 
-        private InnerNode<K, V> putExisting(K key, int hash, int hashBits, int slot, V value, MutableValueInt newValue) {
-            final K[] keys2 = Arrays.copyOf(keys, keys.length);
-            final Object[] subNodes2 = Arrays.copyOf(subNodes, subNodes.length);
+        private InnerNode<K, V> putExisting(Object edit, K key, int hash, int hashBits, int slot, V value,
+                                            MutableValueInt newValue) {
+            final boolean owned = ownedBy(edit);
+            final K[] keys2 = owned ? keys : Arrays.copyOf(keys, keys.length);
+            final Object[] subNodes2 = owned ? subNodes : Arrays.copyOf(subNodes, subNodes.length);
 
             final Object previousValue = subNodes2[slot];
             if (previousValue instanceof Node) {
                 // insert recursively
                 assert keys[slot] == null;
-                subNodes2[slot] = ((Node<K, V>) previousValue).put(key, hash, hashBits, value, newValue);
+                subNodes2[slot] = ((Node<K, V>) previousValue).put(edit, key, hash, hashBits, value, newValue);
             } else if (keys[slot].equals(key)) {
                 // replace the existing entry
                 subNodes2[slot] = value;
@@ -356,46 +425,46 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
                 // hash collision
                 final K previousKey = keys[slot];
                 final int previousHash = previousKey.hashCode() >>> (TOTAL_HASH_BITS - hashBits);
-                Node<K, V> subNode = newSubNode(hashBits);
-                subNode = subNode.put(previousKey, previousHash, hashBits, (V) previousValue, newValue);
-                subNode = subNode.put(key, hash, hashBits, value, newValue);
+                Node<K, V> subNode = newSubNode(edit, hashBits);
+                subNode = subNode.put(edit, previousKey, previousHash, hashBits, (V) previousValue, newValue);
+                subNode = subNode.put(edit, key, hash, hashBits, value, newValue);
                 keys2[slot] = null;
                 subNodes2[slot] = subNode;
             }
-            return new InnerNode<>(mask, keys2, subNodes2);
+            return update(edit, mask, keys2, subNodes2);
         }
 
-        private InnerNode<K, V> putNew(K key, int hash6, int slot, V value) {
+        private InnerNode<K, V> putNew(Object edit, K key, int hash6, int slot, V value) {
             final long mask2 = mask | (1L << hash6);
             final K[] keys2 = insertElement(keys, key, slot);
             final Object[] subNodes2 = insertElement(subNodes, value, slot);
-            return new InnerNode<>(mask2, keys2, subNodes2);
+            return update(edit, mask2, keys2, subNodes2);
         }
 
         @Override
-        InnerNode<K, V> put(K key, int hash, int hashBits, V value, MutableValueInt newValue) {
+        InnerNode<K, V> put(Object edit, K key, int hash, int hashBits, V value, MutableValueInt newValue) {
             final int hash6 = hash & HASH_MASK;
             final int slot = slot(hash6);
 
             if (exists(hash6)) {
                 hash >>>= HASH_BITS;
                 hashBits -= HASH_BITS;
-                return putExisting(key, hash, hashBits, slot, value, newValue);
+                return putExisting(edit, key, hash, hashBits, slot, value, newValue);
             } else {
                 newValue.value = 1;
-                return putNew(key, hash6, slot, value);
+                return putNew(edit, key, hash6, slot, value);
             }
         }
 
-        private InnerNode<K, V> removeSlot(int hash6, int slot) {
+        private InnerNode<K, V> removeSlot(Object edit, int hash6, int slot) {
             final long mask2 = mask  & ~(1L << hash6);
             final K[] keys2 = removeArrayElement(keys, slot);
             final Object[] subNodes2 = removeArrayElement(subNodes, slot);
-            return new InnerNode<>(mask2, keys2, subNodes2);
+            return update(edit, mask2, keys2, subNodes2);
         }
 
         @Override
-        InnerNode<K, V> remove(Object key, int hash) {
+        InnerNode<K, V> remove(Object edit, Object key, int hash, MutableValueInt removed) {
             final int hash6 = hash & HASH_MASK;
             if (!exists(hash6)) {
                 return this;
@@ -405,21 +474,26 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
             if (previousValue instanceof Node) {
                 @SuppressWarnings("unchecked")
                 final Node<K, V> subNode = (Node<K, V>) previousValue;
-                final Node<K, V> removed = subNode.remove(key, hash >>> HASH_BITS);
-                if (removed == subNode) {
+                final Node<K, V> newSubNode = subNode.remove(edit, key, hash >>> HASH_BITS, removed);
+                if (removed.value == 0) {
                     // not in sub-nodes
                     return this;
                 }
-                if (removed.isEmpty()) {
-                    return removeSlot(hash6, slot);
+                if (newSubNode.isEmpty()) {
+                    return removeSlot(edit, hash6, slot);
+                }
+                if (ownedBy(edit)) {
+                    subNodes[slot] = newSubNode;
+                    return this;
                 }
                 final K[] keys2 = Arrays.copyOf(keys, keys.length);
                 final Object[] subNodes2 = Arrays.copyOf(subNodes, subNodes.length);
-                subNodes2[slot] = removed;
-                return new InnerNode<>(mask, keys2, subNodes2);
+                subNodes2[slot] = newSubNode;
+                return update(edit, mask, keys2, subNodes2);
             } else if (keys[slot].equals(key)) {
                 // remove entry
-                return removeSlot(hash6, slot);
+                removed.value = 1;
+                return removeSlot(edit, hash6, slot);
             } else {
                 // hash collision, nothing to remove
                 return this;
@@ -428,6 +502,118 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
 
     }
 
+    /**
+     * The order in which the trie consumes the bits of <code>hash</code>:
+     * the 6 lowest bits first, which select the slot in the root node, then
+     * the next 6 bits and so on. Sorting hashes on this order, as unsigned
+     * integers, groups the entries of every sub-tree together.
+     */
+    private static int trieOrder(int hash) {
+        int order = 0;
+        for (int shift = 0; shift < TOTAL_HASH_BITS; shift += HASH_BITS) {
+            final int bits = Math.min(HASH_BITS, TOTAL_HASH_BITS - shift);
+            order = (order << bits) | ((hash >>> shift) & ((1 << bits) - 1));
+        }
+        return order;
+    }
+
+    /**
+     * Create the trie of all entries of <code>map</code> at once. Instead of
+     * copying the path to every new entry, entries are sorted in the order of
+     * the trie so that every node is created with its final size. Keys that
+     * are equal but appear several times, for instance in an identity map,
+     * are stored once with their last value. The number of entries of the
+     * trie is written to <code>size</code>.
+     */
+    private static <K, V> InnerNode<K, V> bulkBuild(Object edit, Map<? extends K, ? extends V> map, MutableValueInt size) {
+        int count = 0;
+        Object[] keys = new Object[map.size()];
+        Object[] values = new Object[keys.length];
+        int[] hashes = new int[keys.length];
+        long[] sorted = new long[keys.length];
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            final K key = entry.getKey();
+            final V value = entry.getValue();
+            if (key == null) {
+                throw new IllegalArgumentException("null keys are not supported");
+            }
+            if (value == null) {
+                throw new IllegalArgumentException("null values are not supported");
+            }
+            if (count == keys.length) {
+                // the map grew concurrently
+                final int length = Math.max(16, count + (count >>> 1));
+                keys = Arrays.copyOf(keys, length);
+                values = Arrays.copyOf(values, length);
+                hashes = Arrays.copyOf(hashes, length);
+                sorted = Arrays.copyOf(sorted, length);
+            }
+            keys[count] = key;
+            values[count] = value;
+            hashes[count] = key.hashCode();
+            // the sign flip makes the signed sort order of longs follow the unsigned order of the trie
+            sorted[count] = ((long) (trieOrder(hashes[count]) ^ Integer.MIN_VALUE) << 32) | count;
+            count++;
+        }
+        Arrays.sort(sorted, 0, count);
+
+        // equal hashes are adjacent, drop the keys that appear again later
+        final int[] ords = new int[count];
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            final int ord = (int) sorted[i];
+            boolean duplicate = false;
+            for (int j = i + 1; j < count && (sorted[j] >>> 32) == (sorted[i] >>> 32); j++) {
+                if (keys[ord].equals(keys[(int) sorted[j]])) {
+                    duplicate = true;
+                    break;
+                }
+            }
+            if (duplicate == false) {
+                ords[unique++] = ord;
+            }
+        }
+        size.value = unique;
+        return bulkBuild(edit, 0, ords, 0, unique, keys, values, hashes);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> InnerNode<K, V> bulkBuild(Object edit, int shift, int[] ords, int from, int to,
+                                                    Object[] keys, Object[] values, int[] hashes) {
+        long mask = 0;
+        for (int i = from; i < to; i++) {
+            mask |= 1L << ((hashes[ords[i]] >>> shift) & HASH_MASK);
+        }
+        final int slots = Long.bitCount(mask);
+        final Object[] nodeKeys = new Object[slots];
+        final Object[] subNodes = new Object[slots];
+        int slot = 0;
+        for (int start = from; start < to; slot++) {
+            final int hash6 = (hashes[ords[start]] >>> shift) & HASH_MASK;
+            int end = start + 1;
+            while (end < to && ((hashes[ords[end]] >>> shift) & HASH_MASK) == hash6) {
+                end++;
+            }
+            if (end - start == 1) {
+                nodeKeys[slot] = keys[ords[start]];
+                subNodes[slot] = values[ords[start]];
+            } else if (shift + HASH_BITS >= TOTAL_HASH_BITS) {
+                // all bits of the hash are consumed: a collision
+                final Object[] leafKeys = new Object[end - start];
+                final Object[] leafValues = new Object[end - start];
+                for (int i = start; i < end; i++) {
+                    leafKeys[i - start] = keys[ords[i]];
+                    leafValues[i - start] = values[ords[i]];
+                }
+                subNodes[slot] = new Leaf<>(edit, (K[]) leafKeys, (V[]) leafValues);
+            } else {
+                subNodes[slot] = bulkBuild(edit, shift + HASH_BITS, ords, start, end, keys, values, hashes);
+            }
+            start = end;
+        }
+        return new InnerNode<>(edit, mask, (K[]) nodeKeys, subNodes);
+    }
+
     private static class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
 
         private final Deque<Map.Entry<K, V>> entries;
@@ -463,6 +649,95 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
 
     }
 
+    /**
+     * A transient version of a {CopyOnWriteHashMap} for batches of writes.
+     *
+     * The nodes that the builder creates are tagged with a token of the
+     * builder and later writes update them in place, so that a batch copies
+     * every node of the trie at most once rather than once per write. On
+     * {#build()} the builder takes a new token: the nodes of the returned map
+     * become immutable and the builder may keep being used, copying them
+     * again when it modifies them. The map that the builder was created from
+     * is never modified.
+     *
+     * Builders are not thread-safe, but the maps they build can be read
+     * concurrently like any other {CopyOnWriteHashMap}.
+     */
+    public static final class Builder<K, V> {
+
+        private Object edit = new Object();
+        private final MutableValueInt modified = new MutableValueInt();
+        private InnerNode<K, V> root;
+        private int size;
+
+        private Builder(CopyOnWriteHashMap<K, V> map) {
+            this.root = map.root;
+            this.size = map.size;
+        }
+
+        public V get(Object key) {
+            if (key == null) {
+                throw new IllegalArgumentException("null keys are not supported");
+            }
+            return root.get(key, key.hashCode());
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public Builder<K, V> put(K key, V value) {
+            if (key == null) {
+                throw new IllegalArgumentException("null keys are not supported");
+            }
+            if (value == null) {
+                throw new IllegalArgumentException("null values are not supported");
+            }
+            modified.value = 0;
+            root = root.put(edit, key, key.hashCode(), TOTAL_HASH_BITS, value, modified);
+            size += modified.value;
+            return this;
+        }
+
+        public Builder<K, V> putAll(Map<? extends K, ? extends V> map) {
+            if (size == 0) {
+                root = bulkBuild(edit, map, modified);
+                size = modified.value;
+            } else {
+                for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                    put(entry.getKey(), entry.getValue());
+                }
+            }
+            return this;
+        }
+
+        public Builder<K, V> remove(Object key) {
+            if (key == null) {
+                throw new IllegalArgumentException("null keys are not supported");
+            }
+            modified.value = 0;
+            root = root.remove(edit, key, key.hashCode(), modified);
+            size -= modified.value;
+            return this;
+        }
+
+        public Builder<K, V> removeAll(Collection<?> keys) {
+            for (Object key : keys) {
+                remove(key);
+            }
+            return this;
+        }
+
+        /**
+         * Return a map with the current content of this builder.
+         */
+        public CopyOnWriteHashMap<K, V> build() {
+            // later writes must not modify the nodes of the returned map
+            edit = new Object();
+            return new CopyOnWriteHashMap<>(root, size);
+        }
+    }
+
     private final InnerNode<K, V> root;
     private final int size;
 
@@ -470,7 +745,7 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
      * Create a new empty map.
      */
     public CopyOnWriteHashMap() {
-        this(new InnerNode<K, V>(), 0);
+        this(new InnerNode<K, V>(null), 0);
     }
 
     private CopyOnWriteHashMap(InnerNode<K, V> root, int size) {
@@ -512,7 +787,7 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
         }
         final int hash = key.hashCode();
         final MutableValueInt newValue = new MutableValueInt();
-        final InnerNode<K, V> newRoot = root.put(key, hash, TOTAL_HASH_BITS, value, newValue);
+        final InnerNode<K, V> newRoot = root.put(null, key, hash, TOTAL_HASH_BITS, value, newValue);
         final int newSize = size + newValue.value;
         return new CopyOnWriteHashMap<>(newRoot, newSize);
     }
@@ -521,15 +796,18 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
      * Same as {#copyAndPut(Object, Object)} but for an arbitrary number of entries.
      */
     public CopyOnWriteHashMap<K, V> copyAndPutAll(Map<? extends K, ? extends V> other) {
-        return copyAndPutAll(other.entrySet());
+        if (other.isEmpty()) {
+            return this;
+        }
+        return builder(this).putAll(other).build();
     }
 
     public <K1 extends K, V1 extends V> CopyOnWriteHashMap<K, V> copyAndPutAll(Iterable<Entry<K1, V1>> entries) {
-        CopyOnWriteHashMap<K, V> result = this;
+        final Builder<K, V> builder = builder(this);
         for (Entry<K1, V1> entry : entries) {
-            result = result.copyAndPut(entry.getKey(), entry.getValue());
+            builder.put(entry.getKey(), entry.getValue());
         }
-        return result;
+        return builder.build();
     }
 
     public <K1 extends K, V1 extends V> CopyOnWriteHashMap<K, V> copyAndPutAll(Stream<Entry<K1, V1>> entries) {
@@ -544,8 +822,9 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
             throw new IllegalArgumentException("null keys are not supported");
         }
         final int hash = key.hashCode();
-        final InnerNode<K, V> newRoot = root.remove(key, hash);
-        if (root == newRoot) {
+        final MutableValueInt removed = new MutableValueInt();
+        final InnerNode<K, V> newRoot = root.remove(null, key, hash, removed);
+        if (removed.value == 0) {
             return this;
         } else {
             return new CopyOnWriteHashMap<>(newRoot, size - 1);
@@ -556,11 +835,8 @@ public final class CopyOnWriteHashMap<K, V> extends AbstractMap<K, V> {
      * Same as {#copyAndRemove(Object)} but for an arbitrary number of entries.
      */
     public CopyOnWriteHashMap<K, V> copyAndRemoveAll(Collection<?> keys) {
-        CopyOnWriteHashMap<K, V> result = this;
-        for (Object key : keys) {
-            result = result.copyAndRemove(key);
-        }
-        return result;
+        final Builder<K, V> builder = builder(this).removeAll(keys);
+        return builder.size() == size ? this : builder.build();
     }
 
     @Override
@@ -210,7 +210,7 @@ public final class ImmutableOpenMap<KType, VType> implements Iterable<ObjectObje
      * @return  An immutable copy of the given map
      */
     public static <KType, VType> ImmutableOpenMap<KType, VType> copyOf(ObjectObjectMap<KType, VType> map) {
-        Builder<KType, VType> builder = builder();
+        Builder<KType, VType> builder = builder(map.size());
         builder.putAll(map);
         return builder.build();
     }
@@ -231,8 +231,7 @@ public final class ImmutableOpenMap<KType, VType> implements Iterable<ObjectObje
         private ObjectObjectHashMap<KType, VType> map;
 
         public Builder() {
-            //noinspection unchecked
-            this(EMPTY);
+            this.map = new ObjectObjectHashMap<>();
         }
 
         public Builder(int size) {
@@ -244,7 +243,8 @@ public final class ImmutableOpenMap<KType, VType> implements Iterable<ObjectObje
         }
 
         /**
-         * Builds a new instance of the
+         * Builds a new instance of the map. The builder hands its map over instead of copying it, so it can't be
+         * used anymore afterwards.
          */
         public ImmutableOpenMap<KType, VType> build() {
             ObjectObjectHashMap<KType, VType> map = this.map;
@@ -258,6 +258,7 @@ public final class ImmutableOpenMap<KType, VType> implements Iterable<ObjectObje
          * Puts all the entries in the map to the builder.
          */
         public Builder<KType, VType> putAll(Map<KType, VType> map) {
+            this.map.ensureCapacity(this.map.size() + map.size());
             for (Map.Entry<KType, VType> entry : map.entrySet()) {
                 this.map.put(entry.getKey(), entry.getValue());
             }
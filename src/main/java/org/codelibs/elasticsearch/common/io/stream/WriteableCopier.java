@@ -0,0 +1,129 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.common.io.stream;
+
+import org.codelibs.elasticsearch.ElasticsearchException;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Copies {Writeable}s by writing them to a buffer and reading them back, without a {NamedWriteableRegistry}.
+ * <p>
+ * While writing, the reader of every {NamedWriteable} is recorded in stream order, the <code>StreamInput</code>
+ * constructor of its class. Reading replays the recorded readers, so nested queries, aggregations and sorts can be
+ * read back even though no registry is available in this library. Used as the fallback of the structural
+ * <code>deepCopy()</code> methods of the builders, for the rare builders that have none: such a copy costs a full
+ * serialization round trip.
+ */
+public final class WriteableCopier {
+    private static final ClassValue<Writeable.Reader<?>> READERS = new ClassValue<Writeable.Reader<?>>() {
+        @Override
+        protected Writeable.Reader<?> computeValue(Class<?> type) {
+            final Constructor<?> constructor;
+            try {
+                constructor = type.getConstructor(StreamInput.class);
+            } catch (NoSuchMethodException e) {
+                return in -> {
+                    throw new UnsupportedOperationException("[" + type.getName() + "] cannot be read from a stream.");
+                };
+            }
+            return in -> {
+                try {
+                    return constructor.newInstance(in);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new ElasticsearchException("Failed to read [" + type.getName() + "].", e.getCause());
+                } catch (ReflectiveOperationException e) {
+                    throw new ElasticsearchException("Failed to read [" + type.getName() + "].", e);
+                }
+            };
+        }
+    };
+
+    private WriteableCopier() {
+    }
+
+    /**
+     * Returns a deep copy of the given named writeable, or <tt>null</tt> if it is <tt>null</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends NamedWriteable> T copy(T writeable) {
+        if (writeable == null) {
+            return null;
+        }
+        return copy(writeable, (Writeable.Reader<T>) READERS.get(writeable.getClass()));
+    }
+
+    /**
+     * Returns a deep copy of the given writeable read by the given reader, or <tt>null</tt> if it is <tt>null</tt>.
+     */
+    public static <T extends Writeable> T copy(T writeable, Writeable.Reader<T> reader) {
+        if (writeable == null) {
+            return null;
+        }
+        try (RecordingStreamOutput out = new RecordingStreamOutput()) {
+            writeable.writeTo(out);
+            try (StreamInput in = new ReplayingStreamInput(out.bytes().streamInput(), out.readers)) {
+                return reader.read(in);
+            }
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to copy [" + writeable.getClass().getName() + "].", e);
+        }
+    }
+
+    private static final class RecordingStreamOutput extends BytesStreamOutput {
+        private final Deque<Writeable.Reader<?>> readers = new ArrayDeque<>();
+
+        @Override
+        public void writeNamedWriteable(NamedWriteable namedWriteable) throws IOException {
+            readers.addLast(READERS.get(namedWriteable.getClass()));
+            super.writeNamedWriteable(namedWriteable);
+        }
+    }
+
+    private static final class ReplayingStreamInput extends FilterStreamInput {
+        private final Deque<Writeable.Reader<?>> readers;
+
+        ReplayingStreamInput(StreamInput delegate, Deque<Writeable.Reader<?>> readers) {
+            super(delegate);
+            this.readers = readers;
+        }
+
+        @Override
+        public <C extends NamedWriteable> C readNamedWriteable(Class<C> categoryClass) throws IOException {
+            return readNamedWriteable(categoryClass, readString());
+        }
+
+        @Override
+        public <C extends NamedWriteable> C readNamedWriteable(Class<C> categoryClass, String name) throws IOException {
+            final Writeable.Reader<?> reader = readers.pollFirst();
+            if (reader == null) {
+                throw new IllegalStateException("No recorded reader for [" + name + "].");
+            }
+            return categoryClass.cast(reader.read(this));
+        }
+    }
+}
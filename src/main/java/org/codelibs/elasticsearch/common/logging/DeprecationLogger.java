@@ -23,13 +23,22 @@ import org.codelibs.elasticsearch.querybuilders.mock.log4j.LogManager;
 import org.codelibs.elasticsearch.querybuilders.mock.log4j.Logger;
 import org.codelibs.elasticsearch.common.util.concurrent.ThreadContext;
 
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * A logger that logs deprecation notices.
+ * <p>
+ * Notices are discarded at the cost of a single volatile read unless a {DeprecationSink} is set or a
+ * {ThreadContext} collecting warnings is registered. Otherwise each notice is counted under its key, the first notice
+ * of each key is formatted, logged and handed to the sink, and every notice is added to the response headers of the
+ * registered thread contexts. See {#getDeprecations()} for the counts.
  */
 public class DeprecationLogger {
 
@@ -54,6 +63,15 @@ public class DeprecationLogger {
      */
     private static final CopyOnWriteArraySet<ThreadContext> THREAD_CONTEXT = new CopyOnWriteArraySet<>();
 
+    private static final ConcurrentMap<String, Deprecation> DEPRECATIONS = new ConcurrentHashMap<>();
+
+    private static DeprecationSink sink;
+
+    /**
+     * The consumers of notices, or <tt>null</tt> if notices are discarded. Updated under the class lock.
+     */
+    private static volatile Dispatch dispatch;
+
     /**
      * Set the {ThreadContext} used to add deprecation headers to network responses.
      * <p>
@@ -69,6 +87,7 @@ public class DeprecationLogger {
         if (THREAD_CONTEXT.add(threadContext) == false) {
             throw new IllegalStateException("Double-setting ThreadContext not allowed!");
         }
+        updateDispatch();
     }
 
     /**
@@ -86,6 +105,49 @@ public class DeprecationLogger {
         if (THREAD_CONTEXT.remove(threadContext) == false) {
             throw new IllegalStateException("Removing unknown ThreadContext not allowed!");
         }
+        updateDispatch();
+    }
+
+    /**
+     * Sets the sink the first notice of each key is handed to, or <tt>null</tt> to discard notices. To only count
+     * notices, set a sink that ignores them.
+     */
+    public static synchronized void setSink(DeprecationSink sink) {
+        DeprecationLogger.sink = sink;
+        updateDispatch();
+    }
+
+    private static synchronized void updateDispatch() {
+        final List<ThreadContext> threadContexts = new ArrayList<>();
+        for (ThreadContext threadContext : THREAD_CONTEXT) {
+            if (threadContext.isCollectingWarnings()) {
+                threadContexts.add(threadContext);
+            }
+        }
+        dispatch = sink == null && threadContexts.isEmpty() ? null
+                : new Dispatch(sink, threadContexts.toArray(new ThreadContext[threadContexts.size()]));
+    }
+
+    /**
+     * Returns <code>true</code> if notices are consumed. Callers may check this before computing the parameters of a
+     * notice, so that discarding it costs nothing more.
+     */
+    public static boolean isEnabled() {
+        return dispatch != null;
+    }
+
+    /**
+     * Returns the keys of the notices counted so far, along their counts and the first message of each.
+     */
+    public static List<Deprecation> getDeprecations() {
+        return new ArrayList<>(DEPRECATIONS.values());
+    }
+
+    /**
+     * Forgets the counts of all keys, so that the next notice of each key is logged and handed to the sink again.
+     */
+    public static void resetDeprecations() {
+        DEPRECATIONS.clear();
     }
 
     /**
@@ -105,35 +167,101 @@ public class DeprecationLogger {
     }
 
     /**
-     * Logs a deprecated message.
+     * Logs a deprecated message, keyed by the message pattern. Notices whose pattern is shared by different
+     * deprecated syntax, e.g. one pattern for every deprecated setting, should use
+     * {#deprecatedAndMaybeLog(String, String, Object...)} with a key of their own.
      */
     public void deprecated(String msg, Object... params) {
-        deprecated(THREAD_CONTEXT, msg, params);
+        deprecatedAndMaybeLog(msg, msg, params);
     }
 
     /**
-     * Logs a deprecated message to the deprecation log, as well as to the local {ThreadContext}.
+     * Logs a deprecated message the first time the given key is seen and counts it. The message is only formatted
+     * if it is logged or added to the response headers of a thread context.
      *
-     * @param threadContexts The node's {ThreadContext} (outside of concurrent tests, this should only ever have one context).
-     * @param message The deprecation message.
-     * @param params The parameters used to fill in the message, if any exist.
+     * @param key the deprecated syntax, e.g. the name of a deprecated field
+     * @param msg the message pattern
+     * @param params the parameters used to fill in the message, if any exist
+     */
+    public void deprecatedAndMaybeLog(String key, String msg, Object... params) {
+        final Dispatch dispatch = DeprecationLogger.dispatch;
+        if (dispatch != null) {
+            dispatch.deprecated(logger, key, msg, params);
+        }
+    }
+
+    /**
+     * The count of the notices of a key.
      */
-    void deprecated(Set<ThreadContext> threadContexts, String message, Object... params) {
-        Iterator<ThreadContext> iterator = threadContexts.iterator();
+    public static final class Deprecation {
+        private final String key;
+
+        private final LongAdder count = new LongAdder();
+
+        private final AtomicBoolean reported = new AtomicBoolean();
+
+        private volatile String message;
+
+        private Deprecation(String key) {
+            this.key = key;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        /**
+         * Returns the formatted message of the first notice, or <tt>null</tt> while it is being formatted.
+         */
+        public String message() {
+            return message;
+        }
 
-        if (iterator.hasNext()) {
-            final String formattedMessage = LoggerMessageFormat.format(message, params);
+        public long count() {
+            return count.sum();
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + count();
+        }
+    }
 
-            while (iterator.hasNext()) {
+    private static final class Dispatch {
+        private final DeprecationSink sink;
+
+        private final ThreadContext[] threadContexts;
+
+        private Dispatch(DeprecationSink sink, ThreadContext[] threadContexts) {
+            this.sink = sink;
+            this.threadContexts = threadContexts;
+        }
+
+        private void deprecated(Logger logger, String key, String message, Object[] params) {
+            Deprecation deprecation = DEPRECATIONS.get(key);
+            if (deprecation == null) {
+                deprecation = DEPRECATIONS.computeIfAbsent(key, Deprecation::new);
+            }
+            deprecation.count.increment();
+            String formattedMessage = null;
+            if (deprecation.reported.get() == false && deprecation.reported.compareAndSet(false, true)) {
+                formattedMessage = LoggerMessageFormat.format(message, params);
+                deprecation.message = formattedMessage;
+                logger.warn(formattedMessage);
+                if (sink != null) {
+                    sink.deprecated(key, formattedMessage);
+                }
+            }
+            for (ThreadContext threadContext : threadContexts) {
+                if (formattedMessage == null) {
+                    formattedMessage = LoggerMessageFormat.format(message, params);
+                }
                 try {
-                    iterator.next().addResponseHeader(WARNING_HEADER, formattedMessage);
+                    threadContext.addResponseHeader(WARNING_HEADER, formattedMessage);
                 } catch (IllegalStateException e) {
                     // ignored; it should be removed shortly
                 }
             }
-            logger.warn(formattedMessage);
-        } else {
-            logger.warn(message, params);
         }
     }
 
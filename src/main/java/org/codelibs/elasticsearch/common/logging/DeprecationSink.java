@@ -0,0 +1,17 @@
+package org.codelibs.elasticsearch.common.logging;
+
+/**
+ * Receives the deprecation notices of {DeprecationLogger}s, see {DeprecationLogger#setSink(DeprecationSink)}.
+ */
+@FunctionalInterface
+public interface DeprecationSink {
+
+    /**
+     * Called with the formatted message of the first notice of each key since the key was last reset. Notices are
+     * reported from the threads that trigger them, concurrently.
+     *
+     * @param key the deprecated syntax, e.g. the name of a deprecated field
+     * @param message the formatted message
+     */
+    void deprecated(String key, String message);
+}
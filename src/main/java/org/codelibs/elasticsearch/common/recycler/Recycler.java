@@ -0,0 +1,48 @@
+package org.codelibs.elasticsearch.common.recycler;
+
+import org.codelibs.elasticsearch.common.lease.Releasable;
+
+/**
+ * A recycled object, note, implementations should support calling obtain and then recycle
+ * on different threads.
+ */
+public interface Recycler<T> extends Releasable {
+
+    /**
+     * Creates, recycles and destroys the objects of a {Recycler}.
+     */
+    interface C<T> {
+
+        /** Create a new empty instance of the given size. */
+        T newInstance();
+
+        /** Recycle the data. This operation is called when the data structure is released. */
+        void recycle(T value);
+
+        /** Destroy the data. This operation allows the data structure to release any internal resources before GC. */
+        void destroy(T value);
+    }
+
+    /**
+     * A recycled object: closing it gives the object back to the recycler, after which it must not be used anymore.
+     */
+    interface V<T> extends Releasable {
+
+        /** Reference to the value. */
+        T v();
+
+        /** Whether this instance has been recycled (true) or newly allocated (false). */
+        boolean isRecycled();
+    }
+
+    /**
+     * Obtains an object, a recycled one if any is available.
+     */
+    V<T> obtain();
+
+    /**
+     * Destroys all the objects the recycler holds.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,171 @@
+package org.codelibs.elasticsearch.common.recycler;
+
+import com.carrotsearch.hppc.BitMixer;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public enum Recyclers {
+    ;
+
+    /**
+     * Return a {Recycler} that never recycles entries.
+     */
+    public static <T> Recycler<T> none(Recycler.C<T> c) {
+        return new StackRecycler<>(c, 0, 1);
+    }
+
+    /**
+     * Return a {Recycler} that keeps up to <code>limit</code> entries on a single lock-free stack shared by all
+     * threads.
+     */
+    public static <T> Recycler<T> concurrent(Recycler.C<T> c, int limit) {
+        return new StackRecycler<>(c, limit, 1);
+    }
+
+    /**
+     * Return a {Recycler} that keeps up to <code>limit</code> entries on <code>concurrencyLevel</code> lock-free
+     * stacks, rounded up to a power of two and down to the limit. Each thread releases entries to the stack its id hashes to and obtains
+     * them from that stack first, so that threads rarely contend on the same stack.
+     */
+    public static <T> Recycler<T> concurrent(Recycler.C<T> c, int limit, int concurrencyLevel) {
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("[concurrencyLevel] must be greater than 0: " + concurrencyLevel);
+        }
+        int stripes = concurrencyLevel == 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        // every stack holds at least one entry
+        stripes = Math.max(1, Math.min(stripes, Integer.highestOneBit(limit)));
+        return new StackRecycler<>(c, limit, stripes);
+    }
+
+    /**
+     * A recycler over striped Treiber stacks. A node is allocated on every push and never reused, so that a pop
+     * cannot suffer from the ABA problem.
+     */
+    private static final class StackRecycler<T> implements Recycler<T> {
+        private final Recycler.C<T> c;
+        private final Stripe<T>[] stripes;
+        private final int limitPerStripe;
+
+        @SuppressWarnings("unchecked")
+        StackRecycler(Recycler.C<T> c, int limit, int stripes) {
+            if (limit < 0) {
+                throw new IllegalArgumentException("[limit] must not be negative: " + limit);
+            }
+            assert Integer.bitCount(stripes) == 1;
+            this.c = c;
+            this.stripes = new Stripe[stripes];
+            for (int i = 0; i < stripes; i++) {
+                this.stripes[i] = new Stripe<>();
+            }
+            this.limitPerStripe = limit / stripes;
+        }
+
+        private int stripe() {
+            return (int) BitMixer.mix64(Thread.currentThread().getId()) & (stripes.length - 1);
+        }
+
+        @Override
+        public Recycler.V<T> obtain() {
+            if (limitPerStripe > 0) {
+                final int stripe = stripe();
+                // the stack of the current thread first, then the others before allocating
+                for (int i = 0; i < stripes.length; i++) {
+                    final T value = stripes[(stripe + i) & (stripes.length - 1)].pop();
+                    if (value != null) {
+                        return new Entry(value, true);
+                    }
+                }
+            }
+            return new Entry(c.newInstance(), false);
+        }
+
+        void release(T value) {
+            if (limitPerStripe > 0) {
+                c.recycle(value);
+                if (stripes[stripe()].push(value, limitPerStripe)) {
+                    return;
+                }
+            }
+            c.destroy(value);
+        }
+
+        @Override
+        public void close() {
+            for (Stripe<T> stripe : stripes) {
+                for (T value = stripe.pop(); value != null; value = stripe.pop()) {
+                    c.destroy(value);
+                }
+            }
+        }
+
+        private final class Entry implements Recycler.V<T> {
+            private final T value;
+            private final boolean recycled;
+            private boolean released;
+
+            Entry(T value, boolean recycled) {
+                this.value = value;
+                this.recycled = recycled;
+            }
+
+            @Override
+            public T v() {
+                return value;
+            }
+
+            @Override
+            public boolean isRecycled() {
+                return recycled;
+            }
+
+            @Override
+            public void close() {
+                if (released) {
+                    throw new IllegalStateException("recycler entry already released");
+                }
+                released = true;
+                release(value);
+            }
+        }
+    }
+
+    private static final class Node<T> {
+        final T value;
+        Node<T> next;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private static final class Stripe<T> {
+        private final AtomicReference<Node<T>> head = new AtomicReference<>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        boolean push(T value, int limit) {
+            // reserve a slot first so that the stack never holds more than the limit
+            if (size.incrementAndGet() > limit) {
+                size.decrementAndGet();
+                return false;
+            }
+            final Node<T> node = new Node<>(value);
+            do {
+                node.next = head.get();
+            } while (head.compareAndSet(node.next, node) == false);
+            return true;
+        }
+
+        T pop() {
+            Node<T> node;
+            do {
+                node = head.get();
+                if (node == null) {
+                    return null;
+                }
+            } while (head.compareAndSet(node, node.next) == false);
+            size.decrementAndGet();
+            return node.value;
+        }
+    }
+}
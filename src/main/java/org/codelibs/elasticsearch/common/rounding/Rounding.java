@@ -18,6 +18,7 @@
  */
 package org.codelibs.elasticsearch.common.rounding;
 
+import org.apache.lucene.util.ArrayUtil;
 import org.codelibs.elasticsearch.ElasticsearchException;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
@@ -28,6 +29,7 @@ import org.joda.time.DateTimeZone;
 import org.joda.time.IllegalInstantException;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Objects;
 
 /**
@@ -42,6 +44,27 @@ public abstract class Rounding implements Streamable {
      */
     public abstract long round(long value);
 
+    /**
+     * Rounds each of the given values into the array of rounded values, which may be the same array.
+     */
+    public void round(long[] values, long[] rounded) {
+        if (rounded.length < values.length) {
+            throw new IllegalArgumentException("Cannot round [" + values.length + "] values into [" + rounded.length + "] values");
+        }
+        for (int i = 0; i < values.length; i++) {
+            rounded[i] = round(values[i]);
+        }
+    }
+
+    /**
+     * Returns a rounding that rounds the values between <code>minUtcMillis</code> and <code>maxUtcMillis</code>,
+     * inclusive, exactly like this one but from tables that are computed upfront, without time zone lookups. Values
+     * out of the range are rounded by this rounding. Returns this rounding if it cannot be prepared for the range.
+     */
+    public Rounding prepare(long minUtcMillis, long maxUtcMillis) {
+        return this;
+    }
+
     /**
      * Given the rounded value (which was potentially generated by {#round(long)}, returns the next rounding value. For example, with
      * interval based rounding, if the interval is 3, {@code nextRoundValue(6) = 9 }.
@@ -166,6 +189,13 @@ public abstract class Rounding implements Streamable {
             return rounded;
         }
 
+        @Override
+        public Rounding prepare(long minUtcMillis, long maxUtcMillis) {
+            checkRange(minUtcMillis, maxUtcMillis);
+            final PreparedTimeUnitRounding prepared = new PreparedTimeUnitRounding();
+            return prepared.init(this, minUtcMillis, maxUtcMillis) ? prepared : this;
+        }
+
         @Override
         public long nextRoundingValue(long utcMillis) {
             long floor = round(utcMillis);
@@ -307,6 +337,13 @@ public abstract class Rounding implements Streamable {
             return false;
         }
 
+        @Override
+        public Rounding prepare(long minUtcMillis, long maxUtcMillis) {
+            checkRange(minUtcMillis, maxUtcMillis);
+            final PreparedTimeIntervalRounding prepared = new PreparedTimeIntervalRounding();
+            return prepared.init(this, minUtcMillis, maxUtcMillis) ? prepared : this;
+        }
+
         @Override
         public long nextRoundingValue(long time) {
             long timeLocal = time;
@@ -345,6 +382,273 @@ public abstract class Rounding implements Streamable {
         }
     }
 
+    /**
+     * The maximum number of rounded values or transitions a prepared rounding holds.
+     */
+    static final int MAX_PREPARED_KEYS = 1 << 20;
+
+    static void checkRange(long minUtcMillis, long maxUtcMillis) {
+        if (minUtcMillis > maxUtcMillis) {
+            throw new IllegalArgumentException("[min] must be lower than or equal to [max]: " + minUtcMillis + " > " + maxUtcMillis);
+        }
+    }
+
+    /**
+     * A rounding prepared for a range of values. It is serialized as the rounding it was prepared from, with its id,
+     * and the range, and is prepared again from them when it is read.
+     */
+    abstract static class PreparedRounding extends Rounding {
+
+        protected Rounding delegate;
+        protected long minUtcMillis;
+        protected long maxUtcMillis;
+
+        /**
+         * Prepares the given rounding for the given range, or returns <code>false</code> if the range has too many
+         * rounded values or transitions to be prepared.
+         */
+        abstract boolean init(Rounding delegate, long minUtcMillis, long maxUtcMillis);
+
+        @Override
+        public long nextRoundingValue(long value) {
+            return delegate.nextRoundingValue(value);
+        }
+
+        @Override
+        public Rounding prepare(long minUtcMillis, long maxUtcMillis) {
+            if (minUtcMillis >= this.minUtcMillis && maxUtcMillis <= this.maxUtcMillis) {
+                return this;
+            }
+            return delegate.prepare(minUtcMillis, maxUtcMillis);
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            final Rounding delegate = Streams.read(in);
+            final long minUtcMillis = in.readLong();
+            final long maxUtcMillis = in.readLong();
+            if (init(delegate, minUtcMillis, maxUtcMillis) == false) {
+                throw new ElasticsearchException("rounding [" + delegate + "] cannot be prepared for [" + minUtcMillis + "-"
+                        + maxUtcMillis + "]");
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            Streams.write(delegate, out);
+            out.writeLong(minUtcMillis);
+            out.writeLong(maxUtcMillis);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            PreparedRounding other = (PreparedRounding) obj;
+            return delegate.equals(other.delegate) && minUtcMillis == other.minUtcMillis && maxUtcMillis == other.maxUtcMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(delegate, minUtcMillis, maxUtcMillis);
+        }
+
+        @Override
+        public String toString() {
+            return delegate + "[" + minUtcMillis + "-" + maxUtcMillis + "]";
+        }
+    }
+
+    /**
+     * A {TimeUnitRounding} prepared as the sorted array of the rounded values of its range: a value is rounded
+     * to the greatest rounded value that is lower than or equal to it. That value is found from a direct lookup
+     * table of the rounded value at regular steps of the range, the steps being about half as long as the rounding
+     * intervals so that a lookup is followed by one comparison in most cases.
+     */
+    static class PreparedTimeUnitRounding extends PreparedRounding {
+
+        static final byte ID = 3;
+
+        private long[] keys;
+        private long step;
+        /** The index of the greatest key lower than or equal to <code>keys[0] + i * step</code>. */
+        private int[] lookup;
+
+        @Override
+        public byte id() {
+            return ID;
+        }
+
+        @Override
+        boolean init(Rounding delegate, long minUtcMillis, long maxUtcMillis) {
+            final TimeUnitRounding rounding = (TimeUnitRounding) delegate;
+            if ((maxUtcMillis - minUtcMillis) / rounding.field.getDurationField().getUnitMillis() >= MAX_PREPARED_KEYS) {
+                return false;
+            }
+            // the rounded values of the range, as long as there are not too many of them
+            long[] keys = new long[16];
+            int count = 0;
+            long key = rounding.round(minUtcMillis);
+            while (key <= maxUtcMillis) {
+                if (count == MAX_PREPARED_KEYS) {
+                    return false;
+                } else if (count == keys.length) {
+                    keys = Arrays.copyOf(keys, Math.min(MAX_PREPARED_KEYS, ArrayUtil.oversize(count + 1, Long.BYTES)));
+                }
+                keys[count++] = key;
+                final long next = rounding.nextRoundingValue(key);
+                assert next > key;
+                key = next;
+            }
+            this.delegate = rounding;
+            this.minUtcMillis = minUtcMillis;
+            this.maxUtcMillis = maxUtcMillis;
+            this.keys = Arrays.copyOf(keys, count);
+            this.step = Math.max(1, (maxUtcMillis - keys[0]) / (2L * count));
+            this.lookup = new int[Math.toIntExact((maxUtcMillis - keys[0]) / step + 1)];
+            int index = 0;
+            for (int i = 0; i < lookup.length; i++) {
+                final long value = keys[0] + i * step;
+                while (index + 1 < count && keys[index + 1] <= value) {
+                    index++;
+                }
+                lookup[i] = index;
+            }
+            return true;
+        }
+
+        @Override
+        public long round(long utcMillis) {
+            if (utcMillis < minUtcMillis || utcMillis > maxUtcMillis) {
+                return delegate.round(utcMillis);
+            }
+            int index = lookup[(int) ((utcMillis - keys[0]) / step)];
+            while (index + 1 < keys.length && keys[index + 1] <= utcMillis) {
+                index++;
+            }
+            return keys[index];
+        }
+    }
+
+    /**
+     * Returns the index of the greatest key lower than or equal to the given value, between <code>from</code>,
+     * inclusive, and <code>to</code>, exclusive. The key at <code>from</code> must be lower than or equal to the value.
+     */
+    static int floorIndex(long[] keys, int from, int to, long value) {
+        final int index = Arrays.binarySearch(keys, from, to, value);
+        return index >= 0 ? index : -2 - index;
+    }
+
+    /**
+     * A {TimeIntervalRounding} prepared as the offset transitions of its range. Between two transitions, the
+     * offset is constant and values are rounded with arithmetic. The values that the rounding assigns to the
+     * interval before a transition are rounded to a value that is computed upfront for each transition.
+     */
+    static class PreparedTimeIntervalRounding extends PreparedRounding {
+
+        static final byte ID = 4;
+
+        private long interval;
+        private long[] transitions;
+        private long[] offsets;
+        /** The rounded value of each transition itself. */
+        private long[] atTransition;
+        /** The rounded value of the values after each transition that do not round to a local multiple of the interval after it. */
+        private long[] afterTransition;
+
+        @Override
+        public byte id() {
+            return ID;
+        }
+
+        @Override
+        boolean init(Rounding delegate, long minUtcMillis, long maxUtcMillis) {
+            final TimeIntervalRounding rounding = (TimeIntervalRounding) delegate;
+            final DateTimeZone timeZone = rounding.timeZone;
+            this.delegate = rounding;
+            this.minUtcMillis = minUtcMillis;
+            this.maxUtcMillis = maxUtcMillis;
+            this.interval = rounding.interval;
+            if (timeZone.isFixed()) {
+                this.transitions = new long[] { Long.MIN_VALUE };
+                this.offsets = new long[] { timeZone.getOffset(minUtcMillis) };
+                this.atTransition = new long[1];
+                this.afterTransition = new long[1];
+                return true;
+            }
+            // the offset transitions of the range, the first one being the last transition before the range if any
+            long[] transitions = new long[16];
+            int count = 0;
+            long transition = timeZone.previousTransition(minUtcMillis + 1);
+            if (transition == minUtcMillis + 1) {
+                transition = Long.MIN_VALUE;
+            }
+            while (transition <= maxUtcMillis) {
+                if (count == MAX_PREPARED_KEYS) {
+                    return false;
+                } else if (count == transitions.length) {
+                    transitions = Arrays.copyOf(transitions, ArrayUtil.oversize(count + 1, Long.BYTES));
+                }
+                transitions[count++] = transition;
+                final long next = timeZone.nextTransition(transition == Long.MIN_VALUE ? minUtcMillis : transition);
+                if (next == transition || next == minUtcMillis) {
+                    break;
+                }
+                transition = next;
+            }
+            this.transitions = Arrays.copyOf(transitions, count);
+            this.offsets = new long[count];
+            this.atTransition = new long[count];
+            this.afterTransition = new long[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = timeZone.getOffset(transitions[i] == Long.MIN_VALUE ? minUtcMillis : transitions[i]);
+                if (transitions[i] != Long.MIN_VALUE) {
+                    atTransition[i] = rounding.round(transitions[i]);
+                    afterTransition[i] = rounding.round(transitions[i] + 1);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public long round(long utcMillis) {
+            if (utcMillis < minUtcMillis || utcMillis > maxUtcMillis) {
+                return delegate.round(utcMillis);
+            }
+            return round(utcMillis, floorIndex(transitions, 0, transitions.length, utcMillis));
+        }
+
+        private long round(long utcMillis, int segment) {
+            final long transition = transitions[segment];
+            if (utcMillis == transition) {
+                return atTransition[segment];
+            }
+            final long offset = offsets[segment];
+            final long rounded = Math.floorDiv(utcMillis + offset, interval) * interval - offset;
+            return rounded >= transition ? rounded : afterTransition[segment];
+        }
+
+        @Override
+        public void round(long[] values, long[] rounded) {
+            if (rounded.length < values.length) {
+                throw new IllegalArgumentException("Cannot round [" + values.length + "] values into [" + rounded.length + "] values");
+            }
+            int segment = 0;
+            for (int i = 0; i < values.length; i++) {
+                final long value = values[i];
+                if (value < minUtcMillis || value > maxUtcMillis) {
+                    rounded[i] = delegate.round(value);
+                    continue;
+                }
+                if (value < transitions[segment] || (segment + 1 < transitions.length && value >= transitions[segment + 1])) {
+                    segment = floorIndex(transitions, 0, transitions.length, value);
+                }
+                rounded[i] = round(value, segment);
+            }
+        }
+    }
+
     public static class Streams {
 
         public static void write(Rounding rounding, StreamOutput out) throws IOException {
@@ -358,6 +662,8 @@ public abstract class Rounding implements Streamable {
             switch (id) {
                 case TimeUnitRounding.ID: rounding = new TimeUnitRounding(); break;
                 case TimeIntervalRounding.ID: rounding = new TimeIntervalRounding(); break;
+                case PreparedTimeUnitRounding.ID: rounding = new PreparedTimeUnitRounding(); break;
+                case PreparedTimeIntervalRounding.ID: rounding = new PreparedTimeIntervalRounding(); break;
                 default: throw new ElasticsearchException("unknown rounding id [" + id + "]");
             }
             rounding.readFrom(in);
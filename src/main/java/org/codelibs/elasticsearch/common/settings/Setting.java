@@ -30,6 +30,7 @@ import org.codelibs.elasticsearch.common.logging.DeprecationLogger;
 import org.codelibs.elasticsearch.common.logging.Loggers;
 import org.codelibs.elasticsearch.common.regex.Regex;
 import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
+import org.codelibs.elasticsearch.common.unit.MemorySizeValue;
 import org.codelibs.elasticsearch.common.unit.TimeValue;
 import org.codelibs.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
@@ -333,8 +334,8 @@ public class Setting<T> extends ToXContentToBytes {
         if (this.isDeprecated() && this.exists(settings)) {
             // It would be convenient to show its replacement key, but replacement is often not so simple
             final DeprecationLogger deprecationLogger = new DeprecationLogger(Loggers.getLogger(getClass()));
-            deprecationLogger.deprecated("[{}] setting was deprecated in Elasticsearch and it will be removed in a future release! " +
-                    "See the breaking changes lists in the documentation for details", getKey());
+            deprecationLogger.deprecatedAndMaybeLog(getKey(), "[{}] setting was deprecated in Elasticsearch and it will be removed " +
+                    "in a future release! See the breaking changes lists in the documentation for details", getKey());
         }
         return settings.get(getKey(), defaultValue.apply(settings));
     }
@@ -632,7 +633,7 @@ public class Setting<T> extends ToXContentToBytes {
      * @return the setting object
      */
     public static Setting<ByteSizeValue> memorySizeSetting(String key, Function<Settings, String> defaultValue, Property... properties) {
-        throw new UnsupportedOperationException();
+        return new Setting<>(key, defaultValue, (s) -> MemorySizeValue.parseBytesSizeValueOrHeapRatio(s, key), properties);
     }
 
     /**
@@ -646,7 +647,7 @@ public class Setting<T> extends ToXContentToBytes {
      * @return the setting object
      */
     public static Setting<ByteSizeValue> memorySizeSetting(String key, String defaultPercentage, Property... properties) {
-        throw new UnsupportedOperationException();
+        return new Setting<>(key, (s) -> defaultPercentage, (s) -> MemorySizeValue.parseBytesSizeValueOrHeapRatio(s, key), properties);
     }
 
     public static <T> Setting<List<T>> listSetting(String key, List<String> defaultStringValue, Function<String, T> singleValueParser,
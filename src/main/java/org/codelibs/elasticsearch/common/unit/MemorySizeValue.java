@@ -0,0 +1,33 @@
+package org.codelibs.elasticsearch.common.unit;
+
+import org.codelibs.elasticsearch.ElasticsearchParseException;
+
+import java.util.Objects;
+
+import static org.codelibs.elasticsearch.common.unit.ByteSizeValue.parseBytesSizeValue;
+
+/** Utility methods to get memory sizes. */
+public enum MemorySizeValue {
+    ;
+
+    /** Parse the provided string as a memory size. This method either accepts absolute values such as
+     *  <code>42</code> (default assumed unit is byte) or <code>2mb</code>, or percentages of the heap size: if
+     *  the heap is 1G, <code>10%</code> will be parsed as <code>100mb</code>.  */
+    public static ByteSizeValue parseBytesSizeValueOrHeapRatio(String sValue, String settingName) {
+        settingName = Objects.requireNonNull(settingName);
+        if (sValue != null && sValue.endsWith("%")) {
+            final String percentAsString = sValue.substring(0, sValue.length() - 1);
+            try {
+                final double percent = Double.parseDouble(percentAsString);
+                if (percent < 0 || percent > 100) {
+                    throw new ElasticsearchParseException("percentage should be in [0-100], got [{}]", percentAsString);
+                }
+                return new ByteSizeValue((long) ((percent / 100) * Runtime.getRuntime().maxMemory()), ByteSizeUnit.BYTES);
+            } catch (NumberFormatException e) {
+                throw new ElasticsearchParseException("failed to parse [{}] as a double", e, percentAsString);
+            }
+        } else {
+            return parseBytesSizeValue(sValue, settingName);
+        }
+    }
+}
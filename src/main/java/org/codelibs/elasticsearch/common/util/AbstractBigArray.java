@@ -21,13 +21,17 @@ package org.codelibs.elasticsearch.common.util;
 
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.recycler.Recycler;
 
+import java.lang.reflect.Array;
 import java.util.Arrays;
 
 /** Common implementation for array lists that slice data into fixed-size blocks. */
 abstract class AbstractBigArray extends AbstractArray {
 
-    private final Object recycler;
+    private final PageCacheRecycler recycler;
+    private Recycler.V<?>[] cache;
 
     private final int pageShift;
     private final int pageMask;
@@ -36,6 +40,9 @@ abstract class AbstractBigArray extends AbstractArray {
     protected AbstractBigArray(int pageSize, BigArrays bigArrays, boolean clearOnResize) {
         super(bigArrays, clearOnResize);
         this.recycler = bigArrays.recycler;
+        if (recycler != null) {
+            cache = new Recycler.V<?>[16];
+        }
         if (pageSize < 128) {
             throw new IllegalArgumentException("pageSize must be >= 128");
         }
@@ -82,9 +89,26 @@ abstract class AbstractBigArray extends AbstractArray {
         return ((long) pageIndex(size - 1) + 1) * pageSize() * numBytesPerElement();
     }
 
+    private static <T> T[] grow(T[] array, int minSize) {
+        if (array.length < minSize) {
+            final int newLen = ArrayUtil.oversize(minSize, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            array = Arrays.copyOf(array, newLen);
+        }
+        return array;
+    }
+
+    private <T> T registerNewPage(Recycler.V<T> v, int page, int expectedSize) {
+        cache = grow(cache, page + 1);
+        assert cache[page] == null;
+        cache[page] = v;
+        assert Array.getLength(v.v()) == expectedSize;
+        return v.v();
+    }
+
     protected final byte[] newBytePage(int page) {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<byte[]> v = recycler.bytePage(clearOnResize);
+            return registerNewPage(v, page, BigArrays.BYTE_PAGE_SIZE);
         } else {
             return new byte[BigArrays.BYTE_PAGE_SIZE];
         }
@@ -92,7 +116,8 @@ abstract class AbstractBigArray extends AbstractArray {
 
     protected final int[] newIntPage(int page) {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<int[]> v = recycler.intPage(clearOnResize);
+            return registerNewPage(v, page, BigArrays.INT_PAGE_SIZE);
         } else {
             return new int[BigArrays.INT_PAGE_SIZE];
         }
@@ -100,7 +125,8 @@ abstract class AbstractBigArray extends AbstractArray {
 
     protected final long[] newLongPage(int page) {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<long[]> v = recycler.longPage(clearOnResize);
+            return registerNewPage(v, page, BigArrays.LONG_PAGE_SIZE);
         } else {
             return new long[BigArrays.LONG_PAGE_SIZE];
         }
@@ -108,7 +134,8 @@ abstract class AbstractBigArray extends AbstractArray {
 
     protected final Object[] newObjectPage(int page) {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<Object[]> v = recycler.objectPage();
+            return registerNewPage(v, page, BigArrays.OBJECT_PAGE_SIZE);
         } else {
             return new Object[BigArrays.OBJECT_PAGE_SIZE];
         }
@@ -116,14 +143,16 @@ abstract class AbstractBigArray extends AbstractArray {
 
     protected final void releasePage(int page) {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            Releasables.close(cache[page]);
+            cache[page] = null;
         }
     }
 
     @Override
     protected final void doClose() {
         if (recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            Releasables.close(cache);
+            cache = null;
         }
     }
 
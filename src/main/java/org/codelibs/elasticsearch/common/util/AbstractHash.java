@@ -23,7 +23,10 @@ import org.codelibs.elasticsearch.common.lease.Releasables;
 
 /**
  * Base implementation for {BytesRefHash} and {LongHash}, or any class that
- * needs to map values to dense ords. This class is not thread-safe.
+ * needs to map values to dense ords. Ords are assigned in insertion order, so
+ * iterating over ids from <tt>0</tt> to {#size()} visits keys in a stable
+ * order which depends neither on the capacity nor on the load factor. This
+ * class is not thread-safe.
  */
 // IDs are internally stored as id + 1 so that 0 encodes for an empty slot
 abstract class AbstractHash extends AbstractPagedHashMap {
@@ -22,8 +22,11 @@ package org.codelibs.elasticsearch.common.util;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.RamUsageEstimator;
+import org.codelibs.elasticsearch.common.breaker.CircuitBreaker;
+import org.codelibs.elasticsearch.common.breaker.CircuitBreakingException;
 import org.codelibs.elasticsearch.common.lease.Releasable;
 import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.recycler.Recycler;
 import org.codelibs.elasticsearch.common.settings.Settings;
 
 import java.util.Arrays;
@@ -86,11 +89,12 @@ public class BigArrays implements Releasable {
 
         protected static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(ByteArrayWrapper.class);
 
-        private Releasable releasable;
+        private final Releasable releasable;
         private final long size;
 
-        AbstractArrayWrapper(BigArrays bigArrays, long size, boolean clearOnResize) {
+        AbstractArrayWrapper(BigArrays bigArrays, long size, Releasable releasable, boolean clearOnResize) {
             super(bigArrays, clearOnResize);
+            this.releasable = releasable;
             this.size = size;
         }
 
@@ -110,8 +114,8 @@ public class BigArrays implements Releasable {
 
         private final byte[] array;
 
-        ByteArrayWrapper(BigArrays bigArrays, byte[] array, long size, boolean clearOnResize) {
-            super(bigArrays, size, clearOnResize);
+        ByteArrayWrapper(BigArrays bigArrays, byte[] array, long size, Releasable releasable, boolean clearOnResize) {
+            super(bigArrays, size, releasable, clearOnResize);
             this.array = array;
         }
 
@@ -161,8 +165,8 @@ public class BigArrays implements Releasable {
 
         private final int[] array;
 
-        IntArrayWrapper(BigArrays bigArrays, int[] array, long size, boolean clearOnResize) {
-            super(bigArrays, size, clearOnResize);
+        IntArrayWrapper(BigArrays bigArrays, int[] array, long size, Releasable releasable, boolean clearOnResize) {
+            super(bigArrays, size, releasable, clearOnResize);
             this.array = array;
         }
 
@@ -204,8 +208,8 @@ public class BigArrays implements Releasable {
 
         private final long[] array;
 
-        LongArrayWrapper(BigArrays bigArrays, long[] array, long size, boolean clearOnResize) {
-            super(bigArrays, size, clearOnResize);
+        LongArrayWrapper(BigArrays bigArrays, long[] array, long size, Releasable releasable, boolean clearOnResize) {
+            super(bigArrays, size, releasable, clearOnResize);
             this.array = array;
         }
 
@@ -246,8 +250,8 @@ public class BigArrays implements Releasable {
 
         private final long[] array;
 
-        DoubleArrayWrapper(BigArrays bigArrays, long[] array, long size, boolean clearOnResize) {
-            super(bigArrays, size, clearOnResize);
+        DoubleArrayWrapper(BigArrays bigArrays, long[] array, long size, Releasable releasable, boolean clearOnResize) {
+            super(bigArrays, size, releasable, clearOnResize);
             this.array = array;
         }
 
@@ -289,8 +293,8 @@ public class BigArrays implements Releasable {
 
         private final int[] array;
 
-        FloatArrayWrapper(BigArrays bigArrays, int[] array, long size, boolean clearOnResize) {
-            super(bigArrays, size, clearOnResize);
+        FloatArrayWrapper(BigArrays bigArrays, int[] array, long size, Releasable releasable, boolean clearOnResize) {
+            super(bigArrays, size, releasable, clearOnResize);
             this.array = array;
         }
 
@@ -332,8 +336,8 @@ public class BigArrays implements Releasable {
 
         private final Object[] array;
 
-        ObjectArrayWrapper(BigArrays bigArrays, Object[] array, long size) {
-            super(bigArrays, size, true);
+        ObjectArrayWrapper(BigArrays bigArrays, Object[] array, long size, Releasable releasable) {
+            super(bigArrays, size, releasable, true);
             this.array = array;
         }
 
@@ -360,7 +364,11 @@ public class BigArrays implements Releasable {
 
     }
 
-    final Object recycler;
+    /** The label of the bytes {BigArrays} reserve from their {CircuitBreaker}. */
+    public static final String BREAKER_LABEL = "<reused_arrays>";
+
+    final PageCacheRecycler recycler;
+    private final CircuitBreaker breaker;
     final boolean checkBreaker;
     private final BigArrays circuitBreakingInstance;
 
@@ -370,12 +378,22 @@ public class BigArrays implements Releasable {
     }
     // public for tests
     public BigArrays(PageCacheRecycler recycler, boolean checkBreaker) {
+        this(recycler, null, checkBreaker);
+    }
+
+    /**
+     * Creates arrays that account for the memory they use in the given breaker, if any. The breaker trips when
+     * <code>checkBreaker</code> is true or on the instance {#withCircuitBreaking()} returns, the memory is only
+     * accounted for otherwise.
+     */
+    public BigArrays(PageCacheRecycler recycler, CircuitBreaker breaker, boolean checkBreaker) {
         this.checkBreaker = checkBreaker;
         this.recycler = recycler;
+        this.breaker = breaker;
         if (checkBreaker) {
             this.circuitBreakingInstance = this;
         } else {
-            this.circuitBreakingInstance = new BigArrays(recycler, true);
+            this.circuitBreakingInstance = new BigArrays(recycler, breaker, true);
         }
     }
 
@@ -385,6 +403,27 @@ public class BigArrays implements Releasable {
      * without tripping
      */
     void adjustBreaker(long delta) {
+        if (breaker == null) {
+            return;
+        }
+        if (checkBreaker && delta > 0) {
+            try {
+                breaker.addEstimateBytesAndMaybeBreak(delta, BREAKER_LABEL);
+            } catch (CircuitBreakingException e) {
+                // the array has been allocated or resized already, and closing it releases the bytes
+                breaker.addWithoutBreaking(delta, BREAKER_LABEL);
+                throw e;
+            }
+        } else {
+            breaker.addWithoutBreaking(delta, BREAKER_LABEL);
+        }
+    }
+
+    /**
+     * Return the breaker these arrays account for their memory in, or null if they do not.
+     */
+    public CircuitBreaker breaker() {
+        return breaker;
     }
 
     /**
@@ -402,7 +441,7 @@ public class BigArrays implements Releasable {
         return array;
     }
 
-    private <T extends BigArray> T validate(T array) {
+    <T extends BigArray> T validate(T array) {
         boolean success = false;
         try {
             adjustBreaker(array.ramBytesUsed());
@@ -425,9 +464,10 @@ public class BigArrays implements Releasable {
         if (size > BYTE_PAGE_SIZE) {
             array = new BigByteArray(size, this, clearOnResize);
         } else if (size >= BYTE_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<byte[]> page = recycler.bytePage(clearOnResize);
+            array = new ByteArrayWrapper(this, page.v(), size, page, clearOnResize);
         } else {
-            array = new ByteArrayWrapper(this, new byte[(int) size], size, clearOnResize);
+            array = new ByteArrayWrapper(this, new byte[(int) size], size, null, clearOnResize);
         }
         return validate(array);
     }
@@ -506,9 +546,10 @@ public class BigArrays implements Releasable {
         if (size > INT_PAGE_SIZE) {
             array = new BigIntArray(size, this, clearOnResize);
         } else if (size >= INT_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<int[]> page = recycler.intPage(clearOnResize);
+            array = new IntArrayWrapper(this, page.v(), size, page, clearOnResize);
         } else {
-            array = new IntArrayWrapper(this, new int[(int) size], size, clearOnResize);
+            array = new IntArrayWrapper(this, new int[(int) size], size, null, clearOnResize);
         }
         return validate(array);
     }
@@ -555,9 +596,10 @@ public class BigArrays implements Releasable {
         if (size > LONG_PAGE_SIZE) {
             array = new BigLongArray(size, this, clearOnResize);
         } else if (size >= LONG_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<long[]> page = recycler.longPage(clearOnResize);
+            array = new LongArrayWrapper(this, page.v(), size, page, clearOnResize);
         } else {
-            array = new LongArrayWrapper(this, new long[(int) size], size, clearOnResize);
+            array = new LongArrayWrapper(this, new long[(int) size], size, null, clearOnResize);
         }
         return validate(array);
     }
@@ -604,9 +646,10 @@ public class BigArrays implements Releasable {
         if (size > LONG_PAGE_SIZE) {
             arr = new BigDoubleArray(size, this, clearOnResize);
         } else if (size >= LONG_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<long[]> page = recycler.longPage(clearOnResize);
+            arr = new DoubleArrayWrapper(this, page.v(), size, page, clearOnResize);
         } else {
-            arr = new DoubleArrayWrapper(this, new long[(int) size], size, clearOnResize);
+            arr = new DoubleArrayWrapper(this, new long[(int) size], size, null, clearOnResize);
         }
         return validate(arr);
     }
@@ -650,9 +693,10 @@ public class BigArrays implements Releasable {
         if (size > INT_PAGE_SIZE) {
             array = new BigFloatArray(size, this, clearOnResize);
         } else if (size >= INT_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<int[]> page = recycler.intPage(clearOnResize);
+            array = new FloatArrayWrapper(this, page.v(), size, page, clearOnResize);
         } else {
-            array = new FloatArrayWrapper(this, new int[(int) size], size, clearOnResize);
+            array = new FloatArrayWrapper(this, new int[(int) size], size, null, clearOnResize);
         }
         return validate(array);
     }
@@ -695,9 +739,10 @@ public class BigArrays implements Releasable {
         if (size > OBJECT_PAGE_SIZE) {
             array = new BigObjectArray<>(size, this);
         } else if (size >= OBJECT_PAGE_SIZE / 2 && recycler != null) {
-            throw new UnsupportedOperationException("querybuilders does not support this operation.");
+            final Recycler.V<Object[]> page = recycler.objectPage();
+            array = new ObjectArrayWrapper<>(this, page.v(), size, page);
         } else {
-            array = new ObjectArrayWrapper<>(this, new Object[(int) size], size);
+            array = new ObjectArrayWrapper<>(this, new Object[(int) size], size, null);
         }
         return validate(array);
     }
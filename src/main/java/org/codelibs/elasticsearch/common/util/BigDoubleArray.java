@@ -66,7 +66,9 @@ final class BigDoubleArray extends AbstractBigArray implements DoubleArray {
         final int pageIndex = pageIndex(index);
         final int indexInPage = indexInPage(index);
         final long[] page = pages[pageIndex];
-        return page[indexInPage] = Double.doubleToRawLongBits(Double.longBitsToDouble(page[indexInPage]) + inc);
+        final double newVal = Double.longBitsToDouble(page[indexInPage]) + inc;
+        page[indexInPage] = Double.doubleToRawLongBits(newVal);
+        return newVal;
     }
 
     @Override
@@ -59,7 +59,9 @@ final class BigFloatArray extends AbstractBigArray implements FloatArray {
         final int pageIndex = pageIndex(index);
         final int indexInPage = indexInPage(index);
         final int[] page = pages[pageIndex];
-        return page[indexInPage] = Float.floatToRawIntBits(Float.intBitsToFloat(page[indexInPage]) + inc);
+        final float newVal = Float.intBitsToFloat(page[indexInPage]) + inc;
+        page[indexInPage] = Float.floatToRawIntBits(newVal);
+        return newVal;
     }
 
     @Override
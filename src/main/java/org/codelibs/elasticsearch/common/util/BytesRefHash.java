@@ -28,14 +28,14 @@ import org.codelibs.elasticsearch.common.lease.Releasables;
  *  Specialized hash table implementation similar to Lucene's BytesRefHash that maps
  *  BytesRef values to ids. Collisions are resolved with open addressing and linear
  *  probing, growth is smooth thanks to {BigArrays}, hashes are cached for faster
- *  re-hashing and capacity is always a multiple of 2 for faster identification of buckets.
+ *  re-hashing and lookups, and capacity is always a multiple of 2 for faster identification of buckets.
  *  This class is not thread-safe.
  */
 public final class BytesRefHash extends AbstractHash {
 
     private LongArray startOffsets;
     private ByteArray bytes;
-    private IntArray hashes; // we cache hashes for faster re-hashing
+    private IntArray hashes; // we cache hashes for faster re-hashing and to skip comparing bytes of keys that can't be equal
     private final BytesRef spare;
 
     // Constructor with configurable capacity and default maximum load factor.
@@ -74,10 +74,11 @@ public final class BytesRefHash extends AbstractHash {
      * Get the id associated with <code>key</code>
      */
     public long find(BytesRef key, int code) {
-        final long slot = slot(rehash(code), mask);
+        final int hash = rehash(code);
+        final long slot = slot(hash, mask);
         for (long index = slot; ; index = nextSlot(index, mask)) {
             final long id = id(index);
-            if (id == -1L || key.bytesEquals(get(id, spare))) {
+            if (id == -1L || (hashes.get(id) == hash && key.bytesEquals(get(id, spare)))) {
                 return id;
             }
         }
@@ -99,7 +100,7 @@ public final class BytesRefHash extends AbstractHash {
                 append(id, key, code);
                 ++size;
                 return id;
-            } else if (key.bytesEquals(get(curId, spare))) {
+            } else if (hashes.get(curId) == code && key.bytesEquals(get(curId, spare))) {
                 return -1 - curId;
             }
         }
@@ -64,9 +64,42 @@ public final class LongHash extends AbstractHash {
         }
     }
 
+    /**
+     * Bulk version of {#find(long)}: write the ids of the <code>length</code> keys that start at
+     * <code>keys[offset]</code> to <code>ids[0:length]</code>, using -1 for the keys that are not contained in the hash.
+     */
+    public void find(long[] keys, int offset, int length, long[] ids) {
+        checkBulk(keys, offset, length, ids);
+        hash(keys, offset, length, ids);
+        for (int i = 0; i < length; ++i) {
+            final long key = keys[offset + i];
+            if (i > 0 && key == keys[offset + i - 1]) {
+                // runs of equal keys are common in sorted input
+                ids[i] = ids[i - 1];
+                continue;
+            }
+            for (long index = slot(ids[i], mask); ; index = nextSlot(index, mask)) {
+                final long id = id(index);
+                if (id == -1 || this.keys.get(id) == key) {
+                    ids[i] = id;
+                    break;
+                }
+            }
+        }
+    }
+
+    /** Sugar for {#find(long[], int, int, long[]) find(keys, 0, keys.length, ids)}. */
+    public void find(long[] keys, long[] ids) {
+        find(keys, 0, keys.length, ids);
+    }
+
     private long set(long key, long id) {
+        return set(key, hash(key), id);
+    }
+
+    private long set(long key, long hash, long id) {
         assert size < maxSize;
-        final long slot = slot(hash(key), mask);
+        final long slot = slot(hash, mask);
         for (long index = slot; ; index = nextSlot(index, mask)) {
             final long curId = id(index);
             if (curId == -1) { // means unset
@@ -86,12 +119,12 @@ public final class LongHash extends AbstractHash {
     }
 
     private void reset(long key, long id) {
+        // keys are stored by id, which doesn't change: only the slot of the id moves
         final long slot = slot(hash(key), mask);
         for (long index = slot; ; index = nextSlot(index, mask)) {
             final long curId = id(index);
             if (curId == -1) { // means unset
                 id(index, id);
-                append(id, key);
                 break;
             }
         }
@@ -110,12 +143,57 @@ public final class LongHash extends AbstractHash {
         return set(key, size);
     }
 
+    /**
+     * Bulk version of {#add(long)}: add the <code>length</code> keys that start at <code>keys[offset]</code> and write
+     * to <code>ids[0:length]</code> what {#add(long)} would have returned for each of them.
+     */
+    public void add(long[] keys, int offset, int length, long[] ids) {
+        checkBulk(keys, offset, length, ids);
+        hash(keys, offset, length, ids);
+        for (int i = 0; i < length; ++i) {
+            final long key = keys[offset + i];
+            if (i > 0 && key == keys[offset + i - 1]) {
+                ids[i] = ids[i - 1] < 0 ? ids[i - 1] : -1 - ids[i - 1];
+                continue;
+            }
+            if (size >= maxSize) {
+                assert size == maxSize;
+                grow();
+            }
+            ids[i] = set(key, ids[i], size);
+        }
+    }
+
+    /** Sugar for {#add(long[], int, int, long[]) add(keys, 0, keys.length, ids)}. */
+    public void add(long[] keys, long[] ids) {
+        add(keys, 0, keys.length, ids);
+    }
+
+    private static void checkBulk(long[] keys, int offset, int length, long[] ids) {
+        if (offset < 0 || length < 0 || offset + length > keys.length) {
+            throw new IllegalArgumentException("[offset] and [length] must be within the bounds of [keys], got ["
+                + offset + "] and [" + length + "] for [" + keys.length + "] keys");
+        }
+        if (ids.length < length) {
+            throw new IllegalArgumentException("[ids] must have room for [" + length + "] ids, got [" + ids.length + "]");
+        }
+    }
+
+    /**
+     * Hash a whole batch up-front, as a loop without dependencies on the table it lets the CPU mix several keys at once
+     * and keeps the probing loops short.
+     */
+    private static void hash(long[] keys, int offset, int length, long[] hashes) {
+        for (int i = 0; i < length; ++i) {
+            hashes[i] = hash(keys[offset + i]);
+        }
+    }
+
     @Override
     protected void removeAndAdd(long index) {
         final long id = id(index, -1);
         assert id >= 0;
-        final long key = keys.set(id, 0);
-        reset(key, id);
+        reset(keys.get(id), id);
     }
 
     @Override
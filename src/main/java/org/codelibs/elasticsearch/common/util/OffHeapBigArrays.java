@@ -0,0 +1,660 @@
+package org.codelibs.elasticsearch.common.util;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.codelibs.elasticsearch.common.breaker.CircuitBreaker;
+import org.codelibs.elasticsearch.common.recycler.Recycler;
+import org.codelibs.elasticsearch.common.recycler.Recyclers;
+import org.codelibs.elasticsearch.common.unit.ByteSizeUnit;
+import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {BigArrays} whose byte, int, long, float and double arrays of more than one page keep their pages off-heap, so
+ * that large structures such as hash tables and sketches neither fill the heap nor have to be copied or scanned
+ * by the garbage collector. Arrays of at most one page and object arrays stay on heap.
+ * <p>
+ * Pages are direct buffers by default. With a scratch file, the pages of arrays of at least a threshold size are
+ * slices of memory mappings of that file instead, so that arrays larger than the available memory are paged by the
+ * operating system:
+ * <pre>
+ * try (OffHeapBigArrays bigArrays = OffHeapBigArrays.builder().scratchFile(path, new ByteSizeValue(1, ByteSizeUnit.GB)).build()) {
+ *     LongHash hash = new LongHash(1 &lt;&lt; 24, bigArrays);
+ *     ...
+ *     hash.close();
+ * }
+ * </pre>
+ * Closing an array gives its pages back to a bounded cache of direct pages, or frees them right away when the cache
+ * is full. Closing this instance frees the cached pages and deletes the scratch file, and must happen after all
+ * its arrays are closed: unlike heap arrays, off-heap arrays must not be used once closed.
+ */
+public final class OffHeapBigArrays extends BigArrays {
+    private static final int PAGE_SHIFT = Integer.numberOfTrailingZeros(PAGE_SIZE_IN_BYTES);
+    private static final int PAGE_MASK = PAGE_SIZE_IN_BYTES - 1;
+
+    private static final MethodHandle INVOKE_CLEANER;
+    static {
+        MethodHandle invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner = MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // direct buffers are freed by the garbage collector only
+        }
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final Pages pages;
+    private final OffHeapBigArrays circuitBreakingInstance;
+
+    private OffHeapBigArrays(Pages pages, CircuitBreaker breaker, boolean checkBreaker) {
+        super(null, breaker, checkBreaker);
+        this.pages = pages;
+        this.circuitBreakingInstance = checkBreaker ? this : new OffHeapBigArrays(pages, breaker, true);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Frees the memory of the given direct buffer, which must not be used anymore.
+     */
+    static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER != null && buffer.isDirect()) {
+            try {
+                INVOKE_CLEANER.invokeExact(buffer);
+            } catch (Throwable e) {
+                throw new IllegalStateException("Failed to free a direct buffer", e);
+            }
+        }
+    }
+
+    @Override
+    public BigArrays withCircuitBreaking() {
+        return circuitBreakingInstance;
+    }
+
+    /**
+     * Frees the cached pages and deletes the scratch file.
+     */
+    @Override
+    public void close() {
+        pages.close();
+    }
+
+    private Recycler<ByteBuffer> pool(long size, int shift) {
+        return pages.mapped != null && size << shift >= pages.mappedThreshold ? pages.mapped : pages.direct;
+    }
+
+    private <T extends OffHeapArray> T resizeInPlace(T array, long newSize) {
+        final long oldMemSize = array.ramBytesUsed();
+        array.resize(newSize);
+        adjustBreaker(array.ramBytesUsed() - oldMemSize);
+        return array;
+    }
+
+    @Override
+    public ByteArray newByteArray(long size, boolean clearOnResize) {
+        if (size <= BYTE_PAGE_SIZE) {
+            return super.newByteArray(size, clearOnResize);
+        }
+        return validate(new OffHeapByteArray(this, pool(size, 0), size, clearOnResize));
+    }
+
+    @Override
+    public ByteArray resize(ByteArray array, long size) {
+        if (array instanceof OffHeapByteArray) {
+            return resizeInPlace((OffHeapByteArray) array, size);
+        }
+        return super.resize(array, size);
+    }
+
+    @Override
+    public IntArray newIntArray(long size, boolean clearOnResize) {
+        if (size <= INT_PAGE_SIZE) {
+            return super.newIntArray(size, clearOnResize);
+        }
+        return validate(new OffHeapIntArray(this, pool(size, 2), size, clearOnResize));
+    }
+
+    @Override
+    public IntArray resize(IntArray array, long size) {
+        if (array instanceof OffHeapIntArray) {
+            return resizeInPlace((OffHeapIntArray) array, size);
+        }
+        return super.resize(array, size);
+    }
+
+    @Override
+    public LongArray newLongArray(long size, boolean clearOnResize) {
+        if (size <= LONG_PAGE_SIZE) {
+            return super.newLongArray(size, clearOnResize);
+        }
+        return validate(new OffHeapLongArray(this, pool(size, 3), size, clearOnResize));
+    }
+
+    @Override
+    public LongArray resize(LongArray array, long size) {
+        if (array instanceof OffHeapLongArray) {
+            return resizeInPlace((OffHeapLongArray) array, size);
+        }
+        return super.resize(array, size);
+    }
+
+    @Override
+    public DoubleArray newDoubleArray(long size, boolean clearOnResize) {
+        if (size <= LONG_PAGE_SIZE) {
+            return super.newDoubleArray(size, clearOnResize);
+        }
+        return validate(new OffHeapDoubleArray(this, pool(size, 3), size, clearOnResize));
+    }
+
+    @Override
+    public DoubleArray resize(DoubleArray array, long size) {
+        if (array instanceof OffHeapDoubleArray) {
+            return resizeInPlace((OffHeapDoubleArray) array, size);
+        }
+        return super.resize(array, size);
+    }
+
+    @Override
+    public FloatArray newFloatArray(long size, boolean clearOnResize) {
+        if (size <= INT_PAGE_SIZE) {
+            return super.newFloatArray(size, clearOnResize);
+        }
+        return validate(new OffHeapFloatArray(this, pool(size, 2), size, clearOnResize));
+    }
+
+    @Override
+    public FloatArray resize(FloatArray array, long size) {
+        if (array instanceof OffHeapFloatArray) {
+            return resizeInPlace((OffHeapFloatArray) array, size);
+        }
+        return super.resize(array, size);
+    }
+
+    public static final class Builder {
+        private ByteSizeValue pageCacheSize = new ByteSizeValue(16, ByteSizeUnit.MB);
+
+        private Path scratchFile;
+
+        private ByteSizeValue mappedThreshold;
+
+        private CircuitBreaker breaker;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the size of the direct pages closed arrays keep for reuse, <tt>16mb</tt> by default. The pages
+         * beyond it are freed when their array is closed.
+         */
+        public Builder pageCacheSize(ByteSizeValue pageCacheSize) {
+            if (pageCacheSize == null || pageCacheSize.getBytes() < 0) {
+                throw new IllegalArgumentException("[pageCacheSize] must not be null or negative: " + pageCacheSize);
+            }
+            this.pageCacheSize = pageCacheSize;
+            return this;
+        }
+
+        /**
+         * Maps the pages of the arrays of at least <code>threshold</code> bytes from the given file, which is
+         * created, or truncated if it exists, and deleted when the {OffHeapBigArrays} are closed. The size of an
+         * array is the one it is created with, it keeps its kind of pages when it is resized.
+         */
+        public Builder scratchFile(Path scratchFile, ByteSizeValue threshold) {
+            if (scratchFile == null || threshold == null) {
+                throw new IllegalArgumentException("[scratchFile] and [threshold] must not be null.");
+            }
+            this.scratchFile = scratchFile;
+            this.mappedThreshold = threshold;
+            return this;
+        }
+
+        /**
+         * Sets the breaker the direct pages are accounted for in, mapped pages are not.
+         */
+        public Builder breaker(CircuitBreaker breaker) {
+            this.breaker = breaker;
+            return this;
+        }
+
+        public OffHeapBigArrays build() throws IOException {
+            final int concurrencyLevel = Runtime.getRuntime().availableProcessors();
+            final int cachedPages = (int) Math.min(Integer.MAX_VALUE, pageCacheSize.getBytes() / PAGE_SIZE_IN_BYTES);
+            final Recycler<ByteBuffer> direct = Recyclers.concurrent(new Recycler.C<ByteBuffer>() {
+                @Override
+                public ByteBuffer newInstance() {
+                    return ByteBuffer.allocateDirect(PAGE_SIZE_IN_BYTES).order(ByteOrder.nativeOrder());
+                }
+
+                @Override
+                public void recycle(ByteBuffer value) {
+                }
+
+                @Override
+                public void destroy(ByteBuffer value) {
+                    free(value);
+                }
+            }, cachedPages, concurrencyLevel);
+            Recycler<ByteBuffer> mapped = null;
+            MappedPages mappedPages = null;
+            if (scratchFile != null) {
+                mappedPages = new MappedPages(scratchFile);
+                // mapped pages are never freed before the file is deleted, so they are all kept for reuse
+                mapped = Recyclers.concurrent(mappedPages, Integer.MAX_VALUE, concurrencyLevel);
+            }
+            final Pages pages = new Pages(direct, mapped, mappedPages, mappedThreshold == null ? Long.MAX_VALUE : mappedThreshold.getBytes());
+            return new OffHeapBigArrays(pages, breaker, false);
+        }
+    }
+
+    private static final class Pages {
+        final Recycler<ByteBuffer> direct;
+        final Recycler<ByteBuffer> mapped;
+        final MappedPages mappedPages;
+        final long mappedThreshold;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Pages(Recycler<ByteBuffer> direct, Recycler<ByteBuffer> mapped, MappedPages mappedPages, long mappedThreshold) {
+            this.direct = direct;
+            this.mapped = mapped;
+            this.mappedPages = mappedPages;
+            this.mappedThreshold = mappedThreshold;
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                direct.close();
+                if (mappedPages != null) {
+                    mappedPages.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Slices pages out of large mappings of a scratch file. The mappings are not unmapped explicitly, so that an
+     * array used after the file is deleted cannot crash the JVM, and are released by the garbage collector.
+     */
+    private static final class MappedPages implements Recycler.C<ByteBuffer> {
+        private static final int CHUNK_SIZE = 1 << 26;
+
+        private final Path file;
+        private final FileChannel channel;
+        private ByteBuffer chunk;
+        private long chunkOffset = -CHUNK_SIZE;
+        private int position = CHUNK_SIZE;
+
+        MappedPages(Path file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public synchronized ByteBuffer newInstance() {
+            if (position == CHUNK_SIZE) {
+                try {
+                    chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkOffset + CHUNK_SIZE, CHUNK_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to map [" + file + "]", e);
+                }
+                chunkOffset += CHUNK_SIZE;
+                position = 0;
+            }
+            final ByteBuffer page = chunk.duplicate();
+            page.position(position);
+            page.limit(position + PAGE_SIZE_IN_BYTES);
+            position += PAGE_SIZE_IN_BYTES;
+            return page.slice().order(ByteOrder.nativeOrder());
+        }
+
+        @Override
+        public void recycle(ByteBuffer value) {
+        }
+
+        @Override
+        public void destroy(ByteBuffer value) {
+        }
+
+        synchronized void close() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to delete [" + file + "]", e);
+            }
+        }
+    }
+
+    /**
+     * An array whose elements of <tt>1 &lt;&lt; shift</tt> bytes are stored in pages of
+     * {BigArrays#PAGE_SIZE_IN_BYTES} bytes.
+     */
+    private abstract static class OffHeapArray extends AbstractArray {
+        private static final long SHALLOW_SIZE = RamUsageEstimator.shallowSizeOfInstance(OffHeapLongArray.class);
+
+        private final Recycler<ByteBuffer> pool;
+        private final boolean direct;
+        private final int shift;
+        private Recycler.V<ByteBuffer>[] handles;
+        protected ByteBuffer[] pages;
+        protected long size;
+
+        @SuppressWarnings("unchecked")
+        OffHeapArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, int shift, long size, boolean clearOnResize) {
+            super(bigArrays, clearOnResize);
+            this.pool = pool;
+            this.direct = pool == bigArrays.pages.direct;
+            this.shift = shift;
+            this.handles = new Recycler.V[0];
+            this.pages = new ByteBuffer[0];
+            resize(size);
+        }
+
+        @Override
+        public final long size() {
+            return size;
+        }
+
+        final int pageIndex(long index) {
+            return (int) ((index << shift) >>> PAGE_SHIFT);
+        }
+
+        final int offset(long index) {
+            return (int) (index << shift) & PAGE_MASK;
+        }
+
+        private int numPages(long size) {
+            final long numPages = ((size << shift) + PAGE_MASK) >>> PAGE_SHIFT;
+            if (size < 0 || numPages > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Invalid size for an off-heap array: " + size);
+            }
+            return (int) numPages;
+        }
+
+        final void resize(long newSize) {
+            final int numPages = numPages(newSize);
+            if (numPages > pages.length) {
+                final int length = ArrayUtil.oversize(numPages, RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+                pages = Arrays.copyOf(pages, length);
+                handles = Arrays.copyOf(handles, length);
+            }
+            for (int i = numPages - 1; i >= 0 && pages[i] == null; --i) {
+                final Recycler.V<ByteBuffer> handle = pool.obtain();
+                final ByteBuffer page = handle.v();
+                if (handle.isRecycled() && clearOnResize) {
+                    for (int j = 0; j < PAGE_SIZE_IN_BYTES; j += Long.BYTES) {
+                        page.putLong(j, 0L);
+                    }
+                }
+                handles[i] = handle;
+                pages[i] = page;
+            }
+            for (int i = numPages; i < pages.length && pages[i] != null; ++i) {
+                pages[i] = null;
+                handles[i].close();
+                handles[i] = null;
+            }
+            this.size = newSize;
+        }
+
+        @Override
+        public final long ramBytesUsed() {
+            final long references = RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF * pages.length);
+            return SHALLOW_SIZE + 2 * references + (direct ? (long) numPages(size) * PAGE_SIZE_IN_BYTES : 0);
+        }
+
+        @Override
+        protected final void doClose() {
+            for (int i = 0; i < handles.length && handles[i] != null; ++i) {
+                pages[i] = null;
+                handles[i].close();
+                handles[i] = null;
+            }
+        }
+    }
+
+    private static final class OffHeapByteArray extends OffHeapArray implements ByteArray {
+
+        OffHeapByteArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, long size, boolean clearOnResize) {
+            super(bigArrays, pool, 0, size, clearOnResize);
+        }
+
+        @Override
+        public byte get(long index) {
+            return pages[pageIndex(index)].get(offset(index));
+        }
+
+        @Override
+        public byte set(long index, byte value) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final byte ret = page.get(offset);
+            page.put(offset, value);
+            return ret;
+        }
+
+        @Override
+        public boolean get(long index, int len, BytesRef ref) {
+            assert index + len <= size();
+            ref.bytes = new byte[len];
+            ref.offset = 0;
+            ref.length = len;
+            for (int copied = 0; copied < len;) {
+                final ByteBuffer page = pages[pageIndex(index + copied)].duplicate();
+                final int offset = offset(index + copied);
+                final int length = Math.min(PAGE_SIZE_IN_BYTES - offset, len - copied);
+                page.position(offset);
+                page.get(ref.bytes, copied, length);
+                copied += length;
+            }
+            return true;
+        }
+
+        @Override
+        public void set(long index, byte[] buf, int offset, int len) {
+            assert index + len <= size();
+            for (int copied = 0; copied < len;) {
+                final ByteBuffer page = pages[pageIndex(index + copied)].duplicate();
+                final int offsetInPage = offset(index + copied);
+                final int length = Math.min(PAGE_SIZE_IN_BYTES - offsetInPage, len - copied);
+                page.position(offsetInPage);
+                page.put(buf, offset + copied, length);
+                copied += length;
+            }
+        }
+
+        @Override
+        public void fill(long fromIndex, long toIndex, byte value) {
+            if (fromIndex > toIndex) {
+                throw new IllegalArgumentException();
+            }
+            for (long i = fromIndex; i < toIndex; ++i) {
+                pages[pageIndex(i)].put(offset(i), value);
+            }
+        }
+    }
+
+    private static final class OffHeapIntArray extends OffHeapArray implements IntArray {
+
+        OffHeapIntArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, long size, boolean clearOnResize) {
+            super(bigArrays, pool, 2, size, clearOnResize);
+        }
+
+        @Override
+        public int get(long index) {
+            return pages[pageIndex(index)].getInt(offset(index));
+        }
+
+        @Override
+        public int set(long index, int value) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final int ret = page.getInt(offset);
+            page.putInt(offset, value);
+            return ret;
+        }
+
+        @Override
+        public int increment(long index, int inc) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final int value = page.getInt(offset) + inc;
+            page.putInt(offset, value);
+            return value;
+        }
+
+        @Override
+        public void fill(long fromIndex, long toIndex, int value) {
+            if (fromIndex > toIndex) {
+                throw new IllegalArgumentException();
+            }
+            for (long i = fromIndex; i < toIndex; ++i) {
+                pages[pageIndex(i)].putInt(offset(i), value);
+            }
+        }
+    }
+
+    private static final class OffHeapLongArray extends OffHeapArray implements LongArray {
+
+        OffHeapLongArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, long size, boolean clearOnResize) {
+            super(bigArrays, pool, 3, size, clearOnResize);
+        }
+
+        @Override
+        public long get(long index) {
+            return pages[pageIndex(index)].getLong(offset(index));
+        }
+
+        @Override
+        public long set(long index, long value) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final long ret = page.getLong(offset);
+            page.putLong(offset, value);
+            return ret;
+        }
+
+        @Override
+        public long increment(long index, long inc) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final long value = page.getLong(offset) + inc;
+            page.putLong(offset, value);
+            return value;
+        }
+
+        @Override
+        public void fill(long fromIndex, long toIndex, long value) {
+            if (fromIndex > toIndex) {
+                throw new IllegalArgumentException();
+            }
+            for (long i = fromIndex; i < toIndex; ++i) {
+                pages[pageIndex(i)].putLong(offset(i), value);
+            }
+        }
+    }
+
+    private static final class OffHeapDoubleArray extends OffHeapArray implements DoubleArray {
+
+        OffHeapDoubleArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, long size, boolean clearOnResize) {
+            super(bigArrays, pool, 3, size, clearOnResize);
+        }
+
+        @Override
+        public double get(long index) {
+            return pages[pageIndex(index)].getDouble(offset(index));
+        }
+
+        @Override
+        public double set(long index, double value) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final double ret = page.getDouble(offset);
+            page.putDouble(offset, value);
+            return ret;
+        }
+
+        @Override
+        public double increment(long index, double inc) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final double value = page.getDouble(offset) + inc;
+            page.putDouble(offset, value);
+            return value;
+        }
+
+        @Override
+        public void fill(long fromIndex, long toIndex, double value) {
+            if (fromIndex > toIndex) {
+                throw new IllegalArgumentException();
+            }
+            for (long i = fromIndex; i < toIndex; ++i) {
+                pages[pageIndex(i)].putDouble(offset(i), value);
+            }
+        }
+    }
+
+    private static final class OffHeapFloatArray extends OffHeapArray implements FloatArray {
+
+        OffHeapFloatArray(OffHeapBigArrays bigArrays, Recycler<ByteBuffer> pool, long size, boolean clearOnResize) {
+            super(bigArrays, pool, 2, size, clearOnResize);
+        }
+
+        @Override
+        public float get(long index) {
+            return pages[pageIndex(index)].getFloat(offset(index));
+        }
+
+        @Override
+        public float set(long index, float value) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final float ret = page.getFloat(offset);
+            page.putFloat(offset, value);
+            return ret;
+        }
+
+        @Override
+        public float increment(long index, float inc) {
+            final ByteBuffer page = pages[pageIndex(index)];
+            final int offset = offset(index);
+            final float value = page.getFloat(offset) + inc;
+            page.putFloat(offset, value);
+            return value;
+        }
+
+        @Override
+        public void fill(long fromIndex, long toIndex, float value) {
+            if (fromIndex > toIndex) {
+                throw new IllegalArgumentException();
+            }
+            for (long i = fromIndex; i < toIndex; ++i) {
+                pages[pageIndex(i)].putFloat(offset(i), value);
+            }
+        }
+    }
+}
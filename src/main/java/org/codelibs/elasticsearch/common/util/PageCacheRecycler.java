@@ -20,11 +20,15 @@
 package org.codelibs.elasticsearch.common.util;
 
 import org.codelibs.elasticsearch.common.lease.Releasable;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.recycler.Recycler;
+import org.codelibs.elasticsearch.common.recycler.Recyclers;
 import org.codelibs.elasticsearch.common.settings.Setting;
 import org.codelibs.elasticsearch.common.settings.Setting.Property;
 import org.codelibs.elasticsearch.common.settings.Settings;
 import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
 
+import java.util.Arrays;
 import java.util.Locale;
 
 /** A recycler of fixed-size pages. */
@@ -44,12 +48,18 @@ public class PageCacheRecycler implements Releasable {
     public static final Setting<Double> WEIGHT_OBJECTS_SETTING  =
         Setting.doubleSetting("cache.recycler.page.weight.objects", 0.1d, 0d, Property.NodeScope);
 
+    private final Recycler<byte[]> bytePage;
+    private final Recycler<int[]> intPage;
+    private final Recycler<long[]> longPage;
+    private final Recycler<Object[]> objectPage;
+
     @Override
     public void close() {
+        Releasables.close(bytePage, intPage, longPage, objectPage);
     }
 
-    protected PageCacheRecycler(Settings settings) {
-        TYPE_SETTING .get(settings);
+    public PageCacheRecycler(Settings settings) {
+        final Type type = TYPE_SETTING .get(settings);
         final long limit = LIMIT_HEAP_SETTING .get(settings).getBytes();
 
         // We have a global amount of memory that we need to divide across data types.
@@ -81,15 +91,113 @@ public class PageCacheRecycler implements Releasable {
 
         final int maxObjectPageCount = (int) (objectsWeight * maxPageCount / totalWeight);
 
+        final int availableProcessors = Runtime.getRuntime().availableProcessors();
+        bytePage = type.build(new AbstractRecyclerC<byte[]>() {
+            @Override
+            public byte[] newInstance() {
+                return new byte[BigArrays.BYTE_PAGE_SIZE];
+            }
+        }, maxBytePageCount, availableProcessors);
+        intPage = type.build(new AbstractRecyclerC<int[]>() {
+            @Override
+            public int[] newInstance() {
+                return new int[BigArrays.INT_PAGE_SIZE];
+            }
+        }, maxIntPageCount, availableProcessors);
+        longPage = type.build(new AbstractRecyclerC<long[]>() {
+            @Override
+            public long[] newInstance() {
+                return new long[BigArrays.LONG_PAGE_SIZE];
+            }
+        }, maxLongPageCount, availableProcessors);
+        objectPage = type.build(new AbstractRecyclerC<Object[]>() {
+            @Override
+            public Object[] newInstance() {
+                return new Object[BigArrays.OBJECT_PAGE_SIZE];
+            }
+
+            @Override
+            public void recycle(Object[] value) {
+                // we need to remove the strong refs on the objects stored in the array
+                Arrays.fill(value, null);
+            }
+        }, maxObjectPageCount, availableProcessors);
+
         assert BigArrays.PAGE_SIZE_IN_BYTES * (maxBytePageCount + maxIntPageCount + maxLongPageCount + maxObjectPageCount) <= limit;
     }
 
+    /**
+     * Obtains a page of bytes, filled with zeros if <code>clear</code> is true.
+     */
+    public Recycler.V<byte[]> bytePage(boolean clear) {
+        final Recycler.V<byte[]> v = bytePage.obtain();
+        if (v.isRecycled() && clear) {
+            Arrays.fill(v.v(), (byte) 0);
+        }
+        return v;
+    }
+
+    /**
+     * Obtains a page of ints, filled with zeros if <code>clear</code> is true.
+     */
+    public Recycler.V<int[]> intPage(boolean clear) {
+        final Recycler.V<int[]> v = intPage.obtain();
+        if (v.isRecycled() && clear) {
+            Arrays.fill(v.v(), 0);
+        }
+        return v;
+    }
+
+    /**
+     * Obtains a page of longs, filled with zeros if <code>clear</code> is true.
+     */
+    public Recycler.V<long[]> longPage(boolean clear) {
+        final Recycler.V<long[]> v = longPage.obtain();
+        if (v.isRecycled() && clear) {
+            Arrays.fill(v.v(), 0L);
+        }
+        return v;
+    }
+
+    /**
+     * Obtains a page of objects, always filled with <tt>null</tt>s.
+     */
+    public Recycler.V<Object[]> objectPage() {
+        // object pages are cleared on release anyway
+        return objectPage.obtain();
+    }
+
+    private abstract static class AbstractRecyclerC<T> implements Recycler.C<T> {
+
+        @Override
+        public void recycle(T value) {
+            // nothing to do
+        }
+
+        @Override
+        public void destroy(T value) {
+            // nothing to do
+        }
+    }
+
     public enum Type {
         QUEUE {
+            @Override
+            <T> Recycler<T> build(Recycler.C<T> c, int limit, int availableProcessors) {
+                return Recyclers.concurrent(c, limit);
+            }
         },
         CONCURRENT {
+            @Override
+            <T> Recycler<T> build(Recycler.C<T> c, int limit, int availableProcessors) {
+                return Recyclers.concurrent(c, limit, availableProcessors);
+            }
         },
         NONE {
+            @Override
+            <T> Recycler<T> build(Recycler.C<T> c, int limit, int availableProcessors) {
+                return Recyclers.none(c);
+            }
         };
 
         public static Type parse(String type) {
@@ -99,5 +207,7 @@ public class PageCacheRecycler implements Releasable {
                 throw new IllegalArgumentException("no type support [" + type + "]");
             }
         }
+
+        abstract <T> Recycler<T> build(Recycler.C<T> c, int limit, int availableProcessors);
     }
 }
@@ -18,7 +18,6 @@
  */
 package org.codelibs.elasticsearch.common.util.concurrent;
 
-import org.apache.lucene.util.CloseableThreadLocal;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
 import org.codelibs.elasticsearch.common.io.stream.Writeable;
@@ -29,14 +28,13 @@ import org.codelibs.elasticsearch.common.settings.Settings;
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Supplier;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
  * A ThreadContext is a map of string headers and a transient map of keyed objects that are associated with
@@ -63,7 +61,10 @@ import java.util.stream.Stream;
  *     }
  *     // previous context is restored on StoredContext#close()
  * </pre>
- *
+ * <p>
+ * Each context is an immutable struct holding its headers in small arrays of alternating keys and values, so that
+ * putting a header copies a few references instead of a hash map, and stashing or restoring a context is a single
+ * write to a field of the current thread.
  */
 public final class ThreadContext implements Closeable, Writeable {
 
@@ -71,6 +72,7 @@ public final class ThreadContext implements Closeable, Writeable {
     public static final Setting<Settings> DEFAULT_HEADERS_SETTING = Setting.groupSetting(PREFIX + ".", Property.NodeScope);
     private static final ThreadContextStruct DEFAULT_CONTEXT = new ThreadContextStruct();
     private final Map<String, String> defaultHeader;
+    private final boolean collectWarnings;
     private final ContextThreadLocal threadLocal;
 
     /**
@@ -78,17 +80,39 @@ public final class ThreadContext implements Closeable, Writeable {
      * @param settings the settings to read the default request headers from
      */
     public ThreadContext(Settings settings) {
+        this(readDefaultHeaders(settings), true);
+    }
+
+    /**
+     * Creates a new ThreadContext instance
+     * @param defaultHeaders the default request headers
+     * @param collectWarnings whether deprecation warnings are added to the response headers of this context, see
+     *                        {#isCollectingWarnings()}
+     */
+    public ThreadContext(Map<String, String> defaultHeaders, boolean collectWarnings) {
+        this.defaultHeader = defaultHeaders.isEmpty() ? Collections.emptyMap() : Collections.unmodifiableMap(new HashMap<>(defaultHeaders));
+        this.collectWarnings = collectWarnings;
+        threadLocal = new ContextThreadLocal();
+    }
+
+    private static Map<String, String> readDefaultHeaders(Settings settings) {
         Settings headers = DEFAULT_HEADERS_SETTING.get(settings);
         if (headers == null) {
-            this.defaultHeader = Collections.emptyMap();
-        } else {
-            Map<String, String> defaultHeader = new HashMap<>();
-            for (String key : headers.names()) {
-                defaultHeader.put(key, headers.get(key));
-            }
-            this.defaultHeader = Collections.unmodifiableMap(defaultHeader);
+            return Collections.emptyMap();
         }
-        threadLocal = new ContextThreadLocal();
+        Map<String, String> defaultHeader = new HashMap<>();
+        for (String key : headers.names()) {
+            defaultHeader.put(key, headers.get(key));
+        }
+        return defaultHeader;
+    }
+
+    /**
+     * Returns <code>true</code> if deprecation warnings are added to the response headers of this context. If not,
+     * {org.codelibs.elasticsearch.common.logging.DeprecationLogger} neither formats nor stores warnings for it.
+     */
+    public boolean isCollectingWarnings() {
+        return collectWarnings;
     }
 
     @Override
@@ -112,9 +136,7 @@ public final class ThreadContext implements Closeable, Writeable {
      */
     public StoredContext stashAndMergeHeaders(Map<String, String> headers) {
         final ThreadContextStruct context = threadLocal.get();
-        Map<String, String> newHeader = new HashMap<>(headers);
-        newHeader.putAll(context.requestHeaders);
-        threadLocal.set(DEFAULT_CONTEXT.putHeaders(newHeader));
+        threadLocal.set(DEFAULT_CONTEXT.putRequestHeaders(context.requestHeaders).putHeaders(headers));
         return () -> threadLocal.set(context);
     }
 
@@ -187,7 +209,7 @@ public final class ThreadContext implements Closeable, Writeable {
      * Returns the header for the given key or <code>null</code> if not present
      */
     public String getHeader(String key) {
-        String value = threadLocal.get().requestHeaders.get(key);
+        String value = get(threadLocal.get().requestHeaders, key);
         if (value == null)  {
             return defaultHeader.get(key);
         }
@@ -199,7 +221,7 @@ public final class ThreadContext implements Closeable, Writeable {
      */
     public Map<String, String> getHeaders() {
         HashMap<String, String> map = new HashMap<>(defaultHeader);
-        map.putAll(threadLocal.get().requestHeaders);
+        putAll(map, threadLocal.get().requestHeaders);
         return Collections.unmodifiableMap(map);
     }
 
@@ -209,13 +231,12 @@ public final class ThreadContext implements Closeable, Writeable {
      * @return Never {@code null}.
      */
     public Map<String, List<String>> getResponseHeaders() {
-        Map<String, List<String>> responseHeaders = threadLocal.get().responseHeaders;
-        HashMap<String, List<String>> map = new HashMap<>(responseHeaders.size());
-
-        for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
-            map.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+        Object[] responseHeaders = threadLocal.get().responseHeaders;
+        if (responseHeaders.length == 0) {
+            return Collections.emptyMap();
         }
-
+        HashMap<String, List<String>> map = new HashMap<>(responseHeaders.length);
+        putAll(map, responseHeaders);
         return Collections.unmodifiableMap(map);
     }
 
@@ -252,7 +273,7 @@ public final class ThreadContext implements Closeable, Writeable {
      */
     @SuppressWarnings("unchecked") // (T)object
     public <T> T getTransient(String key) {
-        return (T) threadLocal.get().transientHeaders.get(key);
+        return (T) get(threadLocal.get().transientHeaders, key);
     }
 
     /**
@@ -318,26 +339,63 @@ public final class ThreadContext implements Closeable, Writeable {
         }
     }
 
+    /**
+     * Returns the value of the given key in the given array of alternating keys and values, or <code>null</code>.
+     */
+    @SuppressWarnings("unchecked")
+    private static <V> V get(Object[] entries, String key) {
+        final int index = indexOf(entries, key);
+        return index < 0 ? null : (V) entries[index + 1];
+    }
+
+    private static int indexOf(Object[] entries, String key) {
+        for (int i = 0; i < entries.length; i += 2) {
+            if (entries[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the given array of alternating keys and values with the given entry appended.
+     */
+    private static <E> E[] append(E[] entries, E key, E value) {
+        final E[] copy = Arrays.copyOf(entries, entries.length + 2);
+        copy[entries.length] = key;
+        copy[entries.length + 1] = value;
+        return copy;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void putAll(Map<String, V> map, Object[] entries) {
+        for (int i = 0; i < entries.length; i += 2) {
+            map.put((String) entries[i], (V) entries[i + 1]);
+        }
+    }
+
     private static final class ThreadContextStruct {
-        private final Map<String, String> requestHeaders;
-        private final Map<String, Object> transientHeaders;
-        private final Map<String, List<String>> responseHeaders;
+        private static final String[] EMPTY_STRINGS = new String[0];
+        private static final Object[] EMPTY_OBJECTS = new Object[0];
+
+        // alternating keys and values, the values of response headers are unmodifiable lists
+        private final String[] requestHeaders;
+        private final Object[] transientHeaders;
+        private final Object[] responseHeaders;
 
         private ThreadContextStruct(StreamInput in) throws IOException {
             final int numRequest = in.readVInt();
-            Map<String, String> requestHeaders = numRequest == 0 ? Collections.emptyMap() : new HashMap<>(numRequest);
+            ThreadContextStruct struct = DEFAULT_CONTEXT;
             for (int i = 0; i < numRequest; i++) {
-                requestHeaders.put(in.readString(), in.readString());
+                struct = struct.replaceRequest(in.readString(), in.readString());
             }
-
-            this.requestHeaders = requestHeaders;
-            this.responseHeaders = in.readMapOfLists(StreamInput::readString, StreamInput::readString);
-            this.transientHeaders = Collections.emptyMap();
+            struct = struct.putResponseHeaders(in.readMapOfLists(StreamInput::readString, StreamInput::readString));
+            this.requestHeaders = struct.requestHeaders;
+            this.responseHeaders = struct.responseHeaders;
+            this.transientHeaders = EMPTY_OBJECTS;
         }
 
-        private ThreadContextStruct(Map<String, String> requestHeaders,
-                                    Map<String, List<String>> responseHeaders,
-                                    Map<String, Object> transientHeaders) {
+        private ThreadContextStruct(String[] requestHeaders, Object[] responseHeaders, Object[] transientHeaders) {
             this.requestHeaders = requestHeaders;
             this.responseHeaders = responseHeaders;
             this.transientHeaders = transientHeaders;
@@ -347,49 +405,83 @@ public final class ThreadContext implements Closeable, Writeable {
          * This represents the default context and it should only ever be called by {#DEFAULT_CONTEXT}.
          */
         private ThreadContextStruct() {
-            this(Collections.emptyMap(), Collections.emptyMap(), Collections.emptyMap());
+            this(EMPTY_STRINGS, EMPTY_OBJECTS, EMPTY_OBJECTS);
         }
 
         private ThreadContextStruct putRequest(String key, String value) {
-            Map<String, String> newRequestHeaders = new HashMap<>(this.requestHeaders);
-            putSingleHeader(key, value, newRequestHeaders);
-            return new ThreadContextStruct(newRequestHeaders, responseHeaders, transientHeaders);
+            if (indexOf(requestHeaders, key) >= 0) {
+                throw new IllegalArgumentException("value for key [" + key + "] already present");
+            }
+            return new ThreadContextStruct(append(requestHeaders, key, value), responseHeaders, transientHeaders);
         }
 
-        private void putSingleHeader(String key, String value, Map<String, String> newHeaders) {
-            if (newHeaders.putIfAbsent(key, value) != null) {
-                throw new IllegalArgumentException("value for key [" + key + "] already present");
+        private ThreadContextStruct replaceRequest(String key, String value) {
+            final int index = indexOf(requestHeaders, key);
+            if (index < 0) {
+                return new ThreadContextStruct(append(requestHeaders, key, value), responseHeaders, transientHeaders);
             }
+            final String[] newRequestHeaders = requestHeaders.clone();
+            newRequestHeaders[index + 1] = value;
+            return new ThreadContextStruct(newRequestHeaders, responseHeaders, transientHeaders);
         }
 
+        /**
+         * Adds the given headers, the values of existing headers are preserved.
+         */
         private ThreadContextStruct putHeaders(Map<String, String> headers) {
-            if (headers.isEmpty()) {
-                return this;
-            } else {
-                final Map<String, String> newHeaders = new HashMap<>();
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    putSingleHeader(entry.getKey(), entry.getValue(), newHeaders);
+            String[] newHeaders = requestHeaders;
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (indexOf(requestHeaders, entry.getKey()) < 0) {
+                    newHeaders = append(newHeaders, entry.getKey(), entry.getValue());
                 }
-                newHeaders.putAll(this.requestHeaders);
-                return new ThreadContextStruct(newHeaders, responseHeaders, transientHeaders);
             }
+            return newHeaders == requestHeaders ? this : new ThreadContextStruct(newHeaders, responseHeaders, transientHeaders);
+        }
+
+        private ThreadContextStruct putRequestHeaders(String[] headers) {
+            return headers.length == 0 ? this : new ThreadContextStruct(headers, responseHeaders, transientHeaders);
         }
 
         private ThreadContextStruct putResponseHeaders(Map<String, List<String>> headers) {
+            final Object[] entries = new Object[2 * headers.size()];
+            int i = 0;
+            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+                entries[i++] = entry.getKey();
+                entries[i++] = Collections.unmodifiableList(entry.getValue());
+            }
+            return putResponseHeaders(entries);
+        }
+
+        /**
+         * Adds the given response headers of another context, merging the values of headers that exist in both.
+         */
+        @SuppressWarnings("unchecked")
+        private ThreadContextStruct putResponseHeaders(Object[] headers) {
             assert headers != null;
-            if (headers.isEmpty()) {
+            if (headers.length == 0) {
                 return this;
             }
-            final Map<String, List<String>> newResponseHeaders = new HashMap<>(this.responseHeaders);
-            for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
-                String key = entry.getKey();
-                final List<String> existingValues = newResponseHeaders.get(key);
-                if (existingValues != null) {
-                    List<String> newValues = Stream.concat(entry.getValue().stream(),
-                        existingValues.stream()).distinct().collect(Collectors.toList());
-                    newResponseHeaders.put(key, Collections.unmodifiableList(newValues));
+            Object[] newResponseHeaders = this.responseHeaders.clone();
+            for (int i = 0; i < headers.length; i += 2) {
+                final String key = (String) headers[i];
+                final List<String> values = (List<String>) headers[i + 1];
+                final int index = indexOf(newResponseHeaders, key);
+                if (index >= 0) {
+                    final List<String> existingValues = (List<String>) newResponseHeaders[index + 1];
+                    final List<String> newValues = new ArrayList<>(values.size() + existingValues.size());
+                    for (String value : values) {
+                        if (newValues.contains(value) == false) {
+                            newValues.add(value);
+                        }
+                    }
+                    for (String value : existingValues) {
+                        if (newValues.contains(value) == false) {
+                            newValues.add(value);
+                        }
+                    }
+                    newResponseHeaders[index + 1] = Collections.unmodifiableList(newValues);
                 } else {
-                    newResponseHeaders.put(key, entry.getValue());
+                    newResponseHeaders = append(newResponseHeaders, key, values);
                 }
             }
             return new ThreadContextStruct(requestHeaders, newResponseHeaders, transientHeaders);
@@ -398,49 +490,53 @@ public final class ThreadContext implements Closeable, Writeable {
         private ThreadContextStruct putResponse(String key, String value) {
             assert value != null;
 
-            final Map<String, List<String>> newResponseHeaders = new HashMap<>(this.responseHeaders);
-            final List<String> existingValues = newResponseHeaders.get(key);
-
-            if (existingValues != null) {
+            final int index = indexOf(responseHeaders, key);
+            final Object[] newResponseHeaders;
+            if (index >= 0) {
+                @SuppressWarnings("unchecked")
+                final List<String> existingValues = (List<String>) responseHeaders[index + 1];
                 if (existingValues.contains(value)) {
                     return this;
                 }
 
-                final List<String> newValues = new ArrayList<>(existingValues);
+                final List<String> newValues = new ArrayList<>(existingValues.size() + 1);
+                newValues.addAll(existingValues);
                 newValues.add(value);
 
-                newResponseHeaders.put(key, Collections.unmodifiableList(newValues));
+                newResponseHeaders = responseHeaders.clone();
+                newResponseHeaders[index + 1] = Collections.unmodifiableList(newValues);
             } else {
-                newResponseHeaders.put(key, Collections.singletonList(value));
+                newResponseHeaders = append(responseHeaders, key, Collections.singletonList(value));
             }
 
             return new ThreadContextStruct(requestHeaders, newResponseHeaders, transientHeaders);
         }
 
         private ThreadContextStruct putTransient(String key, Object value) {
-            Map<String, Object> newTransient = new HashMap<>(this.transientHeaders);
-            if (newTransient.putIfAbsent(key, value) != null) {
+            if (indexOf(transientHeaders, key) >= 0) {
                 throw new IllegalArgumentException("value for key [" + key + "] already present");
             }
-            return new ThreadContextStruct(requestHeaders, responseHeaders, newTransient);
+            return new ThreadContextStruct(requestHeaders, responseHeaders, append(transientHeaders, key, value));
         }
 
         private ThreadContextStruct copyHeaders(Iterable<Map.Entry<String, String>> headers) {
-            Map<String, String> newHeaders = new HashMap<>();
+            // the last value of a header wins among the given headers, but not over an existing header
+            ThreadContextStruct copied = DEFAULT_CONTEXT;
             for (Map.Entry<String, String> header : headers) {
-                newHeaders.put(header.getKey(), header.getValue());
+                copied = copied.replaceRequest(header.getKey(), header.getValue());
             }
-            return putHeaders(newHeaders);
+            String[] newHeaders = requestHeaders;
+            for (int i = 0; i < copied.requestHeaders.length; i += 2) {
+                if (indexOf(requestHeaders, copied.requestHeaders[i]) < 0) {
+                    newHeaders = append(newHeaders, copied.requestHeaders[i], copied.requestHeaders[i + 1]);
+                }
+            }
+            return newHeaders == requestHeaders ? this : new ThreadContextStruct(newHeaders, responseHeaders, transientHeaders);
         }
 
         private void writeTo(StreamOutput out, Map<String, String> defaultHeaders) throws IOException {
-            final Map<String, String> requestHeaders;
-            if (defaultHeaders.isEmpty()) {
-                requestHeaders = this.requestHeaders;
-            } else {
-                requestHeaders = new HashMap<>(defaultHeaders);
-                requestHeaders.putAll(this.requestHeaders);
-            }
+            final Map<String, String> requestHeaders = new HashMap<>(defaultHeaders);
+            putAll(requestHeaders, this.requestHeaders);
 
             out.writeVInt(requestHeaders.size());
             for (Map.Entry<String, String> entry : requestHeaders.entrySet()) {
@@ -448,43 +544,29 @@ public final class ThreadContext implements Closeable, Writeable {
                 out.writeString(entry.getValue());
             }
 
+            final Map<String, List<String>> responseHeaders = new HashMap<>(this.responseHeaders.length);
+            putAll(responseHeaders, this.responseHeaders);
             out.writeMapOfLists(responseHeaders, StreamOutput::writeString, StreamOutput::writeString);
         }
     }
 
-    private static class ContextThreadLocal extends CloseableThreadLocal<ThreadContextStruct> {
+    /**
+     * Keeps the context of each thread in a holder of its own, so that stashing and restoring a context is a plain
+     * field write. Closing releases the context of the closing thread, the contexts of other threads are released
+     * with their thread local entries once this instance is unreachable.
+     */
+    private static class ContextThreadLocal {
         private final AtomicBoolean closed = new AtomicBoolean(false);
+        private final ThreadLocal<Holder> holders = ThreadLocal.withInitial(Holder::new);
 
-        @Override
         public void set(ThreadContextStruct object) {
-            try {
-                if (object == DEFAULT_CONTEXT) {
-                    super.set(null);
-                } else {
-                    super.set(object);
-                }
-            } catch (NullPointerException ex) {
-                /* This is odd but CloseableThreadLocal throws a NPE if it was closed but still accessed.
-                   to get a real exception we call ensureOpen() to tell the user we are already closed.*/
-                ensureOpen();
-                throw ex;
-            }
+            ensureOpen();
+            holders.get().context = object == null ? DEFAULT_CONTEXT : object;
         }
 
-        @Override
         public ThreadContextStruct get() {
-            try {
-                ThreadContextStruct threadContextStruct = super.get();
-                if (threadContextStruct != null) {
-                    return threadContextStruct;
-                }
-                return DEFAULT_CONTEXT;
-            } catch (NullPointerException ex) {
-                /* This is odd but CloseableThreadLocal throws a NPE if it was closed but still accessed.
-                   to get a real exception we call ensureOpen() to tell the user we are already closed.*/
-                ensureOpen();
-                throw ex;
-            }
+            ensureOpen();
+            return holders.get().context;
         }
 
         private void ensureOpen() {
@@ -493,14 +575,17 @@ public final class ThreadContext implements Closeable, Writeable {
             }
         }
 
-        @Override
         public void close() {
             if (closed.compareAndSet(false, true)) {
-                super.close();
+                holders.remove();
             }
         }
     }
 
+    private static final class Holder {
+        private ThreadContextStruct context = DEFAULT_CONTEXT;
+    }
+
     /**
      * Wraps a Runnable to preserve the thread context.
      */
@@ -25,6 +25,8 @@ import org.codelibs.elasticsearch.ElasticsearchParseException;
 import org.codelibs.elasticsearch.common.bytes.BytesArray;
 import org.codelibs.elasticsearch.common.bytes.BytesReference;
 import org.codelibs.elasticsearch.common.io.Streams;
+import org.codelibs.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.codelibs.elasticsearch.common.util.BigArrays;
 import org.codelibs.elasticsearch.common.xcontent.cbor.CborXContent;
 import org.codelibs.elasticsearch.common.xcontent.json.JsonXContent;
 import org.codelibs.elasticsearch.common.xcontent.smile.SmileXContent;
@@ -129,6 +131,19 @@ public class XContentFactory {
         throw new IllegalArgumentException("No matching content type for " + type);
     }
 
+    /**
+     * Returns a content builder for the provided content type that builds the content in pages of the given
+     * {BigArrays}, so that its memory is accounted for in their {org.codelibs.elasticsearch.common.breaker.CircuitBreaker}
+     * and a runaway content fails with a {org.codelibs.elasticsearch.common.breaker.CircuitBreakingException}.
+     * <p>
+     * The {ReleasablePagedBytesReference} returned by {XContentBuilder#bytes()} must be released once done with. To
+     * release the pages when building fails as well, build on a {ReleasableBytesStreamOutput} with
+     * {#contentBuilder(XContentType, OutputStream)} and release its bytes in a finally block.
+     */
+    public static XContentBuilder contentBuilder(XContentType type, BigArrays bigArrays) throws IOException {
+        return contentBuilder(type, new ReleasableBytesStreamOutput(bigArrays));
+    }
+
     /**
      * Returns the {org.codelibs.elasticsearch.common.xcontent.XContent} for the provided content type.
      */
@@ -20,7 +20,6 @@
 package org.codelibs.elasticsearch.index.mapper;
 
 import com.carrotsearch.hppc.cursors.ObjectCursor;
-import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
 import org.apache.lucene.document.FieldType;
 import org.apache.lucene.index.IndexOptions;
 import org.codelibs.elasticsearch.Version;
@@ -476,12 +475,8 @@ public abstract class FieldMapper extends Mapper implements Cloneable {
         private final ImmutableOpenMap<String, FieldMapper> mappers;
 
         private MultiFields(ImmutableOpenMap<String, FieldMapper> mappers) {
-            ImmutableOpenMap.Builder<String, FieldMapper> builder = new ImmutableOpenMap.Builder<>();
-            // we disable the all in multi-field mappers
-            for (ObjectObjectCursor<String, FieldMapper> cursor : mappers) {
-                builder.put(cursor.key, cursor.value);
-            }
-            this.mappers = builder.build();
+            // the map is immutable already, no need to copy it again
+            this.mappers = mappers;
         }
 
         public MultiFields merge(MultiFields mergeWith) {
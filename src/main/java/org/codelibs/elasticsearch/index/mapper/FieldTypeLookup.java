@@ -0,0 +1,243 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.index.mapper;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.core.StopAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexOptions;
+import org.codelibs.elasticsearch.common.bytes.BytesArray;
+import org.codelibs.elasticsearch.common.joda.Joda;
+import org.codelibs.elasticsearch.common.regex.Regex;
+import org.codelibs.elasticsearch.common.xcontent.XContentHelper;
+import org.codelibs.elasticsearch.index.analysis.AnalyzerScope;
+import org.codelibs.elasticsearch.index.analysis.NamedAnalyzer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable map of full field names to the {MappedFieldType}s declared in a mapping definition.
+ * <p>
+ * Only the mapping itself is needed, no index or cluster. Supported field types are <code>keyword</code>,
+ * <code>text</code>, the numeric types except <code>scaled_float</code>, <code>date</code> and <code>ip</code>;
+ * <code>object</code> and <code>nested</code> properties and multi-fields are flattened to dotted names. Text
+ * fields may use the built-in <code>standard</code>, <code>simple</code>, <code>whitespace</code>,
+ * <code>stop</code> and <code>keyword</code> analyzers.
+ */
+public final class FieldTypeLookup implements Iterable<MappedFieldType> {
+    private static final Map<String, NamedAnalyzer> BUILT_IN_ANALYZERS;
+    static {
+        Map<String, NamedAnalyzer> analyzers = new HashMap<>();
+        analyzers.put("standard", new NamedAnalyzer("standard", AnalyzerScope.GLOBAL, new StandardAnalyzer()));
+        analyzers.put("simple", new NamedAnalyzer("simple", AnalyzerScope.GLOBAL, new SimpleAnalyzer()));
+        analyzers.put("whitespace", new NamedAnalyzer("whitespace", AnalyzerScope.GLOBAL, new WhitespaceAnalyzer()));
+        analyzers.put("stop", new NamedAnalyzer("stop", AnalyzerScope.GLOBAL, new StopAnalyzer()));
+        analyzers.put("keyword", new NamedAnalyzer("keyword", AnalyzerScope.GLOBAL, new KeywordAnalyzer()));
+        BUILT_IN_ANALYZERS = Collections.unmodifiableMap(analyzers);
+    }
+
+    private final Map<String, MappedFieldType> fullNameToFieldType;
+
+    private FieldTypeLookup(Map<String, MappedFieldType> fullNameToFieldType) {
+        this.fullNameToFieldType = Collections.unmodifiableMap(fullNameToFieldType);
+    }
+
+    /**
+     * Returns the field type for the given full field name, or <tt>null</tt> if the field is not mapped.
+     */
+    public MappedFieldType get(String field) {
+        return fullNameToFieldType.get(field);
+    }
+
+    /**
+     * Returns the full names of the mapped fields matching the given simple pattern, see {Regex#simpleMatch}.
+     */
+    public Collection<String> simpleMatchToFullName(String pattern) {
+        if (Regex.isSimpleMatchPattern(pattern) == false) {
+            return fullNameToFieldType.containsKey(pattern) ? Collections.singletonList(pattern) : Collections.emptyList();
+        }
+        List<String> fields = new ArrayList<>();
+        for (String field : fullNameToFieldType.keySet()) {
+            if (Regex.simpleMatch(pattern, field)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * @return the number of mapped fields
+     */
+    public int size() {
+        return fullNameToFieldType.size();
+    }
+
+    @Override
+    public Iterator<MappedFieldType> iterator() {
+        return fullNameToFieldType.values().iterator();
+    }
+
+    /**
+     * Returns the built-in analyzer with the given name, or <tt>null</tt> if there is none.
+     */
+    public static NamedAnalyzer builtInAnalyzer(String name) {
+        return BUILT_IN_ANALYZERS.get(name);
+    }
+
+    /**
+     * Parses the given mapping definition in JSON. See {#fromMapping(Map)}.
+     */
+    public static FieldTypeLookup fromMapping(String mapping) {
+        return fromMapping(XContentHelper.convertToMap(new BytesArray(mapping), false).v2());
+    }
+
+    /**
+     * Builds a lookup from a mapping definition, either <code>{"properties":{...}}</code> or the same wrapped in
+     * a single type name.
+     *
+     * @throws MapperParsingException if a field declares an unsupported type or invalid parameters
+     */
+    public static FieldTypeLookup fromMapping(Map<String, ?> mapping) {
+        Object properties = mapping.get("properties");
+        if (properties == null && mapping.size() == 1) {
+            Object type = mapping.values().iterator().next();
+            if (type instanceof Map) {
+                properties = ((Map<?, ?>) type).get("properties");
+            }
+        }
+        if (properties instanceof Map == false) {
+            throw new MapperParsingException("Mapping does not declare [properties]");
+        }
+        Map<String, MappedFieldType> fieldTypes = new LinkedHashMap<>();
+        parseProperties("", (Map<?, ?>) properties, fieldTypes);
+        return new FieldTypeLookup(fieldTypes);
+    }
+
+    private static void parseProperties(String prefix, Map<?, ?> properties, Map<String, MappedFieldType> fieldTypes) {
+        for (Map.Entry<?, ?> entry : properties.entrySet()) {
+            final String name = prefix + entry.getKey();
+            if (entry.getValue() instanceof Map == false) {
+                throw new MapperParsingException("Expected map for property [" + name + "] but got [" + entry.getValue() + "]");
+            }
+            final Map<?, ?> node = (Map<?, ?>) entry.getValue();
+            final Object type = node.get("type");
+            if (type == null || "object".equals(type) || "nested".equals(type)) {
+                Object subProperties = node.get("properties");
+                if (subProperties instanceof Map) {
+                    parseProperties(name + ".", (Map<?, ?>) subProperties, fieldTypes);
+                } else if (type == null) {
+                    throw new MapperParsingException("No type specified for field [" + name + "]");
+                }
+                continue;
+            }
+            fieldTypes.put(name, newFieldType(name, type.toString(), node));
+            Object fields = node.get("fields");
+            if (fields instanceof Map) {
+                parseProperties(name + ".", (Map<?, ?>) fields, fieldTypes);
+            }
+        }
+    }
+
+    private static MappedFieldType newFieldType(String name, String type, Map<?, ?> node) {
+        final MappedFieldType fieldType;
+        switch (type) {
+        case KeywordFieldMapper.CONTENT_TYPE:
+            fieldType = KeywordFieldMapper.Defaults.FIELD_TYPE.clone();
+            break;
+        case TextFieldMapper.CONTENT_TYPE:
+            fieldType = TextFieldMapper.Defaults.FIELD_TYPE.clone();
+            fieldType.setIndexOptions(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS);
+            NamedAnalyzer analyzer = analyzer(name, node.get("analyzer"), "standard");
+            fieldType.setIndexAnalyzer(analyzer);
+            fieldType.setSearchAnalyzer(analyzer(name, node.get("search_analyzer"), analyzer.name()));
+            fieldType.setSearchQuoteAnalyzer(analyzer(name, node.get("search_quote_analyzer"), fieldType.searchAnalyzer().name()));
+            break;
+        case DateFieldMapper.CONTENT_TYPE:
+            DateFieldMapper.DateFieldType dateFieldType = new DateFieldMapper.DateFieldType();
+            dateFieldType.setIndexOptions(IndexOptions.DOCS);
+            if (node.get("format") != null) {
+                dateFieldType.setDateTimeFormatter(Joda.forPattern(node.get("format").toString()));
+            }
+            fieldType = dateFieldType;
+            break;
+        case IpFieldMapper.CONTENT_TYPE:
+            fieldType = new IpFieldMapper.IpFieldType();
+            fieldType.setIndexOptions(IndexOptions.DOCS);
+            break;
+        default:
+            NumberFieldMapper.NumberType numberType = null;
+            for (NumberFieldMapper.NumberType candidate : NumberFieldMapper.NumberType.values()) {
+                if (candidate.typeName().equals(type)) {
+                    numberType = candidate;
+                }
+            }
+            if (numberType == null) {
+                throw new MapperParsingException("No handler for type [" + type + "] declared on field [" + name + "]");
+            }
+            fieldType = new NumberFieldMapper.NumberFieldType(numberType);
+            fieldType.setIndexOptions(IndexOptions.DOCS);
+            break;
+        }
+        fieldType.setName(name);
+        if (Boolean.FALSE.equals(parseBoolean(name, "index", node.get("index")))) {
+            fieldType.setIndexOptions(IndexOptions.NONE);
+        }
+        if (Boolean.FALSE.equals(parseBoolean(name, "doc_values", node.get("doc_values")))) {
+            fieldType.setHasDocValues(false);
+        }
+        if (node.get("boost") != null) {
+            fieldType.setBoost(Float.parseFloat(node.get("boost").toString()));
+        }
+        fieldType.freeze();
+        return fieldType;
+    }
+
+    private static NamedAnalyzer analyzer(String field, Object name, String defaultName) {
+        final String analyzerName = name == null ? defaultName : name.toString();
+        NamedAnalyzer analyzer = BUILT_IN_ANALYZERS.get(analyzerName);
+        if (analyzer == null) {
+            throw new MapperParsingException("analyzer [" + analyzerName + "] not found for field [" + field + "]");
+        }
+        return analyzer;
+    }
+
+    private static Boolean parseBoolean(String field, String parameter, Object value) {
+        if (value == null) {
+            return null;
+        }
+        switch (value.toString()) {
+        case "true":
+            return Boolean.TRUE;
+        case "false":
+            return Boolean.FALSE;
+        default:
+            throw new MapperParsingException("Failed to parse [" + parameter + "] of field [" + field + "]: [" + value + "]");
+        }
+    }
+}
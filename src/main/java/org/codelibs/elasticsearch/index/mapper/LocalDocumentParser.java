@@ -0,0 +1,156 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.index.mapper;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.InetAddressPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.codelibs.elasticsearch.common.bytes.BytesArray;
+import org.codelibs.elasticsearch.common.network.InetAddresses;
+import org.codelibs.elasticsearch.common.xcontent.XContentHelper;
+import org.codelibs.elasticsearch.index.analysis.FieldNameAnalyzer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns JSON source documents into the Lucene fields of the field types in a {FieldTypeLookup}, so that they
+ * can be indexed into in-memory indexes and searched with the queries built by a local {QueryShardContext}.
+ * <p>
+ * Text fields are analyzed by {#indexAnalyzer()}, the other mapped types are indexed like the mappers of the
+ * same type do, without doc values and stored fields. Values of unmapped fields are indexed as single terms.
+ * Every field with a value is also recorded in the <code>_field_names</code> field used by <code>exists</code>
+ * queries. This class is thread-safe.
+ */
+public final class LocalDocumentParser {
+    /** The field that indexes the names of the fields each document has a value for. */
+    public static final String FIELD_NAMES_FIELD = "_field_names";
+
+    private static final MappedFieldType UNMAPPED_FIELD_TYPE = KeywordFieldMapper.Defaults.FIELD_TYPE.clone();
+    static {
+        UNMAPPED_FIELD_TYPE.freeze();
+    }
+
+    private final FieldTypeLookup fieldTypes;
+
+    private final Analyzer indexAnalyzer;
+
+    public LocalDocumentParser(FieldTypeLookup fieldTypes) {
+        this.fieldTypes = fieldTypes;
+        Map<String, Analyzer> analyzers = new HashMap<>();
+        for (MappedFieldType fieldType : fieldTypes) {
+            if (fieldType.tokenized() && fieldType.indexAnalyzer() != null) {
+                analyzers.put(fieldType.name(), fieldType.indexAnalyzer());
+            }
+        }
+        this.indexAnalyzer = new FieldNameAnalyzer(analyzers);
+    }
+
+    /**
+     * Returns the analyzer of the tokenized fields returned by {#parse(Map)}.
+     */
+    public Analyzer indexAnalyzer() {
+        return indexAnalyzer;
+    }
+
+    /**
+     * Parses the given JSON document. See {#parse(Map)}.
+     */
+    public List<IndexableField> parse(String source) {
+        return parse(XContentHelper.convertToMap(new BytesArray(source), false).v2());
+    }
+
+    /**
+     * Returns the Lucene fields of the given source document. Objects are flattened to dotted field names, arrays
+     * are indexed as multiple values and <tt>null</tt> values are ignored.
+     *
+     * @throws MapperParsingException if a value cannot be parsed by the type of its field
+     */
+    public List<IndexableField> parse(Map<String, ?> source) {
+        List<IndexableField> fields = new ArrayList<>();
+        parseObject("", source, fields);
+        return fields;
+    }
+
+    private void parseObject(String prefix, Map<?, ?> object, List<IndexableField> fields) {
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            parseValue(prefix + entry.getKey(), entry.getValue(), fields);
+        }
+    }
+
+    private void parseValue(String name, Object value, List<IndexableField> fields) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Map) {
+            parseObject(name + ".", (Map<?, ?>) value, fields);
+        } else if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                parseValue(name, element, fields);
+            }
+        } else if (value instanceof Object[]) {
+            for (Object element : (Object[]) value) {
+                parseValue(name, element, fields);
+            }
+        } else {
+            final int size = fields.size();
+            try {
+                createFields(name, value, fields);
+            } catch (IllegalArgumentException e) {
+                throw new MapperParsingException("failed to parse [" + name + "]", e);
+            }
+            if (fields.size() > size) {
+                fields.add(new Field(FIELD_NAMES_FIELD, name, UNMAPPED_FIELD_TYPE));
+            }
+        }
+    }
+
+    private void createFields(String name, Object value, List<IndexableField> fields) {
+        final MappedFieldType fieldType = fieldTypes.get(name);
+        if (fieldType == null) {
+            fields.add(new Field(name, value.toString(), UNMAPPED_FIELD_TYPE));
+        } else if (fieldType instanceof NumberFieldMapper.NumberFieldType) {
+            NumberFieldMapper.NumberType type = ((NumberFieldMapper.NumberFieldType) fieldType).type;
+            boolean indexed = fieldType.indexOptions() != IndexOptions.NONE;
+            fields.addAll(type.createFields(name, type.parse(value, true), indexed, false, false));
+        } else if (fieldType.indexOptions() == IndexOptions.NONE) {
+            // not searchable
+        } else if (fieldType instanceof DateFieldMapper.DateFieldType) {
+            long timestamp;
+            if (value instanceof Number) {
+                timestamp = ((Number) value).longValue();
+            } else {
+                timestamp = ((DateFieldMapper.DateFieldType) fieldType).parse(value.toString());
+            }
+            fields.add(new LongPoint(name, timestamp));
+        } else if (fieldType instanceof IpFieldMapper.IpFieldType) {
+            InetAddress address = value instanceof InetAddress ? (InetAddress) value : InetAddresses.forString(value.toString());
+            fields.add(new InetAddressPoint(name, address));
+        } else {
+            fields.add(new Field(name, value.toString(), fieldType));
+        }
+    }
+}
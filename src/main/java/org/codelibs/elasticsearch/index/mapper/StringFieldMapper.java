@@ -167,8 +167,8 @@ public class StringFieldMapper extends FieldMapper {
                         throw new IllegalArgumentException("Cannot set position_increment_gap on field ["
                                 + name + "] without positions enabled");
                     } else {
-                        deprecationLogger.deprecated("setting position_increment_gap on field [{}] without positions enabled " +
-                                        "is deprecated and will be ignored", name);
+                        deprecationLogger.deprecatedAndMaybeLog(name, "setting position_increment_gap on field [{}] without " +
+                                        "positions enabled is deprecated and will be ignored", name);
                     }
                 } else {
                     fieldType.setIndexAnalyzer(new NamedAnalyzer(fieldType.indexAnalyzer(), positionIncrementGap));
@@ -21,8 +21,11 @@ package org.codelibs.elasticsearch.index.mapper;
 
 import java.util.List;
 
+import org.apache.lucene.index.Term;
 import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
 import org.codelibs.elasticsearch.common.lucene.BytesRefs;
 import org.codelibs.elasticsearch.index.query.QueryShardContext;
@@ -46,7 +49,12 @@ abstract class TermBasedFieldType extends MappedFieldType {
 
     @Override
     public Query termQuery(Object value, QueryShardContext context) {
-        throw new UnsupportedOperationException();
+        failIfNotIndexed();
+        TermQuery query = new TermQuery(new Term(name(), indexedValueForSearch(value)));
+        if (boost() == 1f) {
+            return query;
+        }
+        return new BoostQuery(query, boost());
     }
 
     @Override
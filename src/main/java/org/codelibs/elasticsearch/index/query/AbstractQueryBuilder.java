@@ -19,7 +19,10 @@
 
 package org.codelibs.elasticsearch.index.query;
 
+import org.apache.lucene.search.BoostQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanBoostQuery;
+import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.util.BytesRef;
 import org.codelibs.elasticsearch.action.support.ToXContentToBytes;
 import org.codelibs.elasticsearch.common.ParseField;
@@ -27,6 +30,7 @@ import org.codelibs.elasticsearch.common.ParseFieldMatcherSupplier;
 import org.codelibs.elasticsearch.common.ParsingException;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.lucene.BytesRefs;
 import org.codelibs.elasticsearch.common.xcontent.AbstractObjectParser;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
@@ -91,12 +95,33 @@ public abstract class AbstractQueryBuilder<QB extends AbstractQueryBuilder<QB>>
 
     @Override
     public final Query toQuery(QueryShardContext context) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        Query query = doToQuery(context);
+        if (query != null) {
+            if (boost != DEFAULT_BOOST) {
+                if (query instanceof SpanQuery) {
+                    query = new SpanBoostQuery((SpanQuery) query, boost);
+                } else {
+                    query = new BoostQuery(query, boost);
+                }
+            }
+            if (queryName != null) {
+                context.addNamedQuery(queryName, query);
+            }
+        }
+        return query;
     }
 
     @Override
     public final Query toFilter(QueryShardContext context) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        Query result = null;
+        final boolean originalIsFilter = context.isFilter();
+        try {
+            context.setIsFilter(true);
+            result = toQuery(context);
+        } finally {
+            context.setIsFilter(originalIsFilter);
+        }
+        return result;
     }
 
     protected abstract Query doToQuery(QueryShardContext context) throws IOException;
@@ -138,6 +163,31 @@ public abstract class AbstractQueryBuilder<QB extends AbstractQueryBuilder<QB>>
         return (QB) this;
     }
 
+    /**
+     * Returns a deep copy of this query. By default the query is copied through its stream serialization, builders
+     * that are commonly copied override this with a structural copy.
+     */
+    @SuppressWarnings("unchecked")
+    @Override
+    public QB deepCopy() {
+        return (QB) WriteableCopier.copy(this);
+    }
+
+    /**
+     * Deep copies the given clauses into a new modifiable list. <tt>null</tt> stays <tt>null</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    protected static <Q extends QueryBuilder> List<Q> copyQueries(List<Q> queries) {
+        if (queries == null) {
+            return null;
+        }
+        List<Q> copies = new ClauseList<>();
+        for (Q query : queries) {
+            copies.add((Q) query.deepCopy());
+        }
+        return copies;
+    }
+
     protected final QueryValidationException addValidationError(String validationError, QueryValidationException validationException) {
         return QueryValidationException.addValidationError(getName(), validationError, validationException);
     }
@@ -28,15 +28,19 @@ import org.codelibs.elasticsearch.common.ParseField;
 import org.codelibs.elasticsearch.common.ParsingException;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.lucene.search.Queries;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.common.xcontent.XContentParser;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.RandomAccess;
 import java.util.function.Consumer;
 
 /**
@@ -57,13 +61,21 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
     private static final ParseField MINIMUM_SHOULD_MATCH = new ParseField("minimum_should_match", "minimum_number_should_match");
     private static final ParseField ADJUST_PURE_NEGATIVE = new ParseField("adjust_pure_negative");
 
-    private final List<QueryBuilder> mustClauses = new ArrayList<>();
+    private static final int MUST_SLOT = 0;
+    private static final int FILTER_SLOT = 1;
+    private static final int MUST_NOT_SLOT = 2;
+    private static final int SHOULD_SLOT = 3;
 
-    private final List<QueryBuilder> mustNotClauses = new ArrayList<>();
+    // clause lists are created on first use, most bool queries only use one or two of them
+    private List<QueryBuilder> mustClauses;
 
-    private final List<QueryBuilder> filterClauses = new ArrayList<>();
+    private List<QueryBuilder> mustNotClauses;
 
-    private final List<QueryBuilder> shouldClauses = new ArrayList<>();
+    private List<QueryBuilder> filterClauses;
+
+    private List<QueryBuilder> shouldClauses;
+
+    private boolean frozen;
 
     private boolean disableCoord = DISABLE_COORD_DEFAULT;
 
@@ -82,10 +94,10 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      */
     public BoolQueryBuilder(StreamInput in) throws IOException {
         super(in);
-        mustClauses.addAll(readQueries(in));
-        mustNotClauses.addAll(readQueries(in));
-        shouldClauses.addAll(readQueries(in));
-        filterClauses.addAll(readQueries(in));
+        mustClauses = readClauses(in);
+        mustNotClauses = readClauses(in);
+        shouldClauses = readClauses(in);
+        filterClauses = readClauses(in);
         adjustPureNegative = in.readBoolean();
         disableCoord = in.readBoolean();
         minimumShouldMatch = in.readOptionalString();
@@ -93,15 +105,20 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
 
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
-        writeQueries(out, mustClauses);
-        writeQueries(out, mustNotClauses);
-        writeQueries(out, shouldClauses);
-        writeQueries(out, filterClauses);
+        writeQueries(out, ClauseList.orEmpty(mustClauses));
+        writeQueries(out, ClauseList.orEmpty(mustNotClauses));
+        writeQueries(out, ClauseList.orEmpty(shouldClauses));
+        writeQueries(out, ClauseList.orEmpty(filterClauses));
         out.writeBoolean(adjustPureNegative);
         out.writeBoolean(disableCoord);
         out.writeOptionalString(minimumShouldMatch);
     }
 
+    private static List<QueryBuilder> readClauses(StreamInput in) throws IOException {
+        List<QueryBuilder> clauses = readQueries(in);
+        return clauses.isEmpty() ? null : new ClauseList<>(clauses);
+    }
+
     /**
      * Adds a query that <b>must</b> appear in the matching documents and will
      * contribute to scoring. No <tt>null</tt> value allowed.
@@ -110,6 +127,10 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         if (queryBuilder == null) {
             throw new IllegalArgumentException("inner bool query clause cannot be null");
         }
+        ensureNotFrozen();
+        if (mustClauses == null) {
+            mustClauses = new ClauseList<>();
+        }
         mustClauses.add(queryBuilder);
         return this;
     }
@@ -118,7 +139,7 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      * Gets the queries that <b>must</b> appear in the matching documents.
      */
     public List<QueryBuilder> must() {
-        return this.mustClauses;
+        return mustClauses != null ? mustClauses : view(MUST_SLOT);
     }
 
     /**
@@ -129,6 +150,10 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         if (queryBuilder == null) {
             throw new IllegalArgumentException("inner bool query clause cannot be null");
         }
+        ensureNotFrozen();
+        if (filterClauses == null) {
+            filterClauses = new ClauseList<>();
+        }
         filterClauses.add(queryBuilder);
         return this;
     }
@@ -137,7 +162,7 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      * Gets the queries that <b>must</b> appear in the matching documents but don't contribute to scoring
      */
     public List<QueryBuilder> filter() {
-        return this.filterClauses;
+        return filterClauses != null ? filterClauses : view(FILTER_SLOT);
     }
 
     /**
@@ -148,6 +173,10 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         if (queryBuilder == null) {
             throw new IllegalArgumentException("inner bool query clause cannot be null");
         }
+        ensureNotFrozen();
+        if (mustNotClauses == null) {
+            mustNotClauses = new ClauseList<>();
+        }
         mustNotClauses.add(queryBuilder);
         return this;
     }
@@ -156,7 +185,7 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      * Gets the queries that <b>must not</b> appear in the matching documents.
      */
     public List<QueryBuilder> mustNot() {
-        return this.mustNotClauses;
+        return mustNotClauses != null ? mustNotClauses : view(MUST_NOT_SLOT);
     }
 
     /**
@@ -170,6 +199,10 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         if (queryBuilder == null) {
             throw new IllegalArgumentException("inner bool query clause cannot be null");
         }
+        ensureNotFrozen();
+        if (shouldClauses == null) {
+            shouldClauses = new ClauseList<>();
+        }
         shouldClauses.add(queryBuilder);
         return this;
     }
@@ -181,7 +214,7 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      *  @see #minimumShouldMatch(int)
      */
     public List<QueryBuilder> should() {
-        return this.shouldClauses;
+        return shouldClauses != null ? shouldClauses : view(SHOULD_SLOT);
     }
 
     /**
@@ -257,7 +290,60 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
      * Otherwise <code>false</code>.
      */
     public boolean hasClauses() {
-        return !(mustClauses.isEmpty() && shouldClauses.isEmpty() && mustNotClauses.isEmpty() && filterClauses.isEmpty());
+        return clauseCount() > 0;
+    }
+
+    private int clauseCount() {
+        return ClauseList.orEmpty(mustClauses).size() + ClauseList.orEmpty(mustNotClauses).size()
+                + ClauseList.orEmpty(filterClauses).size() + ClauseList.orEmpty(shouldClauses).size();
+    }
+
+    /**
+     * Trims the clause lists of this query to their exact size and makes them unmodifiable. Adding clauses to a
+     * frozen query fails. Clauses are not frozen recursively, but {#deepCopy()} shares the clauses of a frozen query
+     * with its copies, so they should not be modified anymore.
+     */
+    public BoolQueryBuilder freeze() {
+        mustClauses = ClauseList.freeze(mustClauses);
+        mustNotClauses = ClauseList.freeze(mustNotClauses);
+        filterClauses = ClauseList.freeze(filterClauses);
+        shouldClauses = ClauseList.freeze(shouldClauses);
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return whether {#freeze()} was called on this query
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public BoolQueryBuilder deepCopy() {
+        BoolQueryBuilder copy = new BoolQueryBuilder();
+        if (frozen) {
+            copy.mustClauses = mustClauses;
+            copy.mustNotClauses = mustNotClauses;
+            copy.filterClauses = filterClauses;
+            copy.shouldClauses = shouldClauses;
+            copy.frozen = true;
+        } else {
+            copy.mustClauses = copyQueries(mustClauses);
+            copy.mustNotClauses = copyQueries(mustNotClauses);
+            copy.filterClauses = copyQueries(filterClauses);
+            copy.shouldClauses = copyQueries(shouldClauses);
+        }
+        copy.adjustPureNegative = adjustPureNegative;
+        copy.disableCoord = disableCoord;
+        copy.minimumShouldMatch = minimumShouldMatch;
+        return copy.boost(boost).queryName(queryName);
+    }
+
+    private void ensureNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("[" + NAME + "] query is frozen and cannot take further clauses");
+        }
     }
 
     /**
@@ -295,7 +381,7 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
 
     private static void doXArrayContent(String field, List<QueryBuilder> clauses, XContentBuilder builder, Params params)
             throws IOException {
-        if (clauses.isEmpty()) {
+        if (clauses == null || clauses.isEmpty()) {
             return;
         }
         builder.startArray(field);
@@ -408,13 +494,50 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
+        booleanQueryBuilder.setDisableCoord(disableCoord);
+        addBooleanClauses(context, booleanQueryBuilder, ClauseList.orEmpty(mustClauses), BooleanClause.Occur.MUST);
+        addBooleanClauses(context, booleanQueryBuilder, ClauseList.orEmpty(mustNotClauses), BooleanClause.Occur.MUST_NOT);
+        addBooleanClauses(context, booleanQueryBuilder, ClauseList.orEmpty(shouldClauses), BooleanClause.Occur.SHOULD);
+        addBooleanClauses(context, booleanQueryBuilder, ClauseList.orEmpty(filterClauses), BooleanClause.Occur.FILTER);
+        BooleanQuery booleanQuery = booleanQueryBuilder.build();
+        if (booleanQuery.clauses().isEmpty()) {
+            return new MatchAllDocsQuery();
+        }
+
+        final String minimumShouldMatch;
+        if (context.isFilter() && this.minimumShouldMatch == null && ClauseList.orEmpty(shouldClauses).size() > 0) {
+            minimumShouldMatch = "1";
+        } else {
+            minimumShouldMatch = this.minimumShouldMatch;
+        }
+        Query query = Queries.applyMinimumShouldMatch(booleanQuery, minimumShouldMatch);
+        return adjustPureNegative ? Queries.fixNegativeQueryIfNeeded(query) : query;
+    }
+
+    private static void addBooleanClauses(QueryShardContext context, BooleanQuery.Builder booleanQueryBuilder,
+                                          List<QueryBuilder> clauses, Occur occurs) throws IOException {
+        for (QueryBuilder query : clauses) {
+            Query luceneQuery = null;
+            switch (occurs) {
+                case MUST:
+                case SHOULD:
+                    luceneQuery = query.toQuery(context);
+                    break;
+                case FILTER:
+                case MUST_NOT:
+                    luceneQuery = query.toFilter(context);
+                    break;
+            }
+            booleanQueryBuilder.add(new BooleanClause(luceneQuery, occurs));
+        }
     }
 
     @Override
     protected int doHashCode() {
         return Objects.hash(adjustPureNegative, disableCoord,
-                minimumShouldMatch, mustClauses, shouldClauses, mustNotClauses, filterClauses);
+                minimumShouldMatch, ClauseList.orEmpty(mustClauses), ClauseList.orEmpty(shouldClauses),
+                ClauseList.orEmpty(mustNotClauses), ClauseList.orEmpty(filterClauses));
     }
 
     @Override
@@ -422,24 +545,23 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         return Objects.equals(adjustPureNegative, other.adjustPureNegative) &&
                 Objects.equals(disableCoord, other.disableCoord) &&
                 Objects.equals(minimumShouldMatch, other.minimumShouldMatch) &&
-                Objects.equals(mustClauses, other.mustClauses) &&
-                Objects.equals(shouldClauses, other.shouldClauses) &&
-                Objects.equals(mustNotClauses, other.mustNotClauses) &&
-                Objects.equals(filterClauses, other.filterClauses);
+                Objects.equals(ClauseList.orEmpty(mustClauses), ClauseList.orEmpty(other.mustClauses)) &&
+                Objects.equals(ClauseList.orEmpty(shouldClauses), ClauseList.orEmpty(other.shouldClauses)) &&
+                Objects.equals(ClauseList.orEmpty(mustNotClauses), ClauseList.orEmpty(other.mustNotClauses)) &&
+                Objects.equals(ClauseList.orEmpty(filterClauses), ClauseList.orEmpty(other.filterClauses));
     }
 
     @Override
     protected QueryBuilder doRewrite(QueryRewriteContext queryRewriteContext) throws IOException {
         BoolQueryBuilder newBuilder = new BoolQueryBuilder();
         boolean changed = false;
-        final int clauses = mustClauses.size() + mustNotClauses.size() + filterClauses.size() + shouldClauses.size();
-        if (clauses == 0) {
+        if (clauseCount() == 0) {
             return new MatchAllQueryBuilder().boost(boost()).queryName(queryName());
         }
-        changed |= rewriteClauses(queryRewriteContext, mustClauses, newBuilder::must);
-        changed |= rewriteClauses(queryRewriteContext, mustNotClauses, newBuilder::mustNot);
-        changed |= rewriteClauses(queryRewriteContext, filterClauses, newBuilder::filter);
-        changed |= rewriteClauses(queryRewriteContext, shouldClauses, newBuilder::should);
+        changed |= rewriteClauses(queryRewriteContext, ClauseList.orEmpty(mustClauses), newBuilder::must);
+        changed |= rewriteClauses(queryRewriteContext, ClauseList.orEmpty(mustNotClauses), newBuilder::mustNot);
+        changed |= rewriteClauses(queryRewriteContext, ClauseList.orEmpty(filterClauses), newBuilder::filter);
+        changed |= rewriteClauses(queryRewriteContext, ClauseList.orEmpty(shouldClauses), newBuilder::should);
 
         if (changed) {
             newBuilder.adjustPureNegative = adjustPureNegative;
@@ -454,9 +576,9 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
 
     @Override
     protected void extractInnerHitBuilders(Map<String, InnerHitBuilder> innerHits) {
-        List<QueryBuilder> clauses = new ArrayList<>(filter());
-        clauses.addAll(must());
-        clauses.addAll(should());
+        List<QueryBuilder> clauses = new ArrayList<>(ClauseList.orEmpty(filterClauses));
+        clauses.addAll(ClauseList.orEmpty(mustClauses));
+        clauses.addAll(ClauseList.orEmpty(shouldClauses));
         // no need to include must_not (since there will be no hits for it)
         for (QueryBuilder clause : clauses) {
             InnerHitBuilder.extractInnerHits(clause, innerHits);
@@ -475,4 +597,72 @@ public class BoolQueryBuilder extends AbstractQueryBuilder<BoolQueryBuilder> {
         }
         return changed;
     }
+
+    private List<QueryBuilder> view(int slot) {
+        // views are not kept on the builder, callers that compare clause lists by identity read each getter once
+        return frozen ? Collections.emptyList() : new LazyClauses(slot);
+    }
+
+    /**
+     * Live view of a clause list that was not created yet, so reading clauses through the getters does not
+     * allocate storage. The list is created once a clause is added through the view.
+     */
+    private final class LazyClauses extends AbstractList<QueryBuilder> implements RandomAccess {
+        private final int slot;
+
+        LazyClauses(int slot) {
+            this.slot = slot;
+        }
+
+        private List<QueryBuilder> clauses(boolean create) {
+            switch (slot) {
+            case MUST_SLOT:
+                if (create && mustClauses == null) {
+                    mustClauses = new ClauseList<>();
+                }
+                return mustClauses;
+            case FILTER_SLOT:
+                if (create && filterClauses == null) {
+                    filterClauses = new ClauseList<>();
+                }
+                return filterClauses;
+            case MUST_NOT_SLOT:
+                if (create && mustNotClauses == null) {
+                    mustNotClauses = new ClauseList<>();
+                }
+                return mustNotClauses;
+            default:
+                if (create && shouldClauses == null) {
+                    shouldClauses = new ClauseList<>();
+                }
+                return shouldClauses;
+            }
+        }
+
+        @Override
+        public QueryBuilder get(int index) {
+            return ClauseList.orEmpty(clauses(false)).get(index);
+        }
+
+        @Override
+        public int size() {
+            return ClauseList.orEmpty(clauses(false)).size();
+        }
+
+        @Override
+        public QueryBuilder set(int index, QueryBuilder element) {
+            return ClauseList.orEmpty(clauses(false)).set(index, element);
+        }
+
+        @Override
+        public void add(int index, QueryBuilder element) {
+            ensureNotFrozen();
+            clauses(true).add(index, element);
+        }
+
+        @Override
+        public QueryBuilder remove(int index) {
+            return ClauseList.orEmpty(clauses(false)).remove(index);
+        }
+    }
 }
@@ -0,0 +1,183 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.codelibs.elasticsearch.index.query;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A compact list for the clauses of multi-clause query builders, which mostly hold one or two clauses.
+ * The first clause is stored inline so single-clause lists need no backing array, further clauses go into an
+ * array that grows from one slot. {#freeze(List)} turns a list into an exact-size, unmodifiable copy.
+ */
+final class ClauseList<E> extends AbstractList<E> implements RandomAccess {
+    private Object first;
+
+    private Object[] rest;
+
+    private int size;
+
+    ClauseList() {
+    }
+
+    ClauseList(Collection<? extends E> clauses) {
+        for (E clause : clauses) {
+            add(clause);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        checkIndex(index, size);
+        return (E) (index == 0 ? first : rest[index - 1]);
+    }
+
+    @Override
+    public E set(int index, E element) {
+        E old = get(index);
+        if (index == 0) {
+            first = element;
+        } else {
+            rest[index - 1] = element;
+        }
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        if (size == 0) {
+            first = element;
+        } else {
+            ensureRestCapacity(size);
+            rest[size - 1] = element;
+        }
+        size++;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkIndex(index, size + 1);
+        if (index == size) {
+            add(element);
+            return;
+        }
+        ensureRestCapacity(size);
+        // shift the elements from index on one slot to the right
+        final int from = Math.max(index - 1, 0);
+        System.arraycopy(rest, from, rest, from + 1, size - 1 - from);
+        if (index == 0) {
+            rest[0] = first;
+            first = element;
+        } else {
+            rest[index - 1] = element;
+        }
+        size++;
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E old = get(index);
+        if (index == 0) {
+            if (size > 1) {
+                first = rest[0];
+                System.arraycopy(rest, 1, rest, 0, size - 2);
+                rest[size - 2] = null;
+            } else {
+                first = null;
+            }
+        } else {
+            System.arraycopy(rest, index, rest, index - 1, size - 1 - index);
+            rest[size - 2] = null;
+        }
+        size--;
+        modCount++;
+        return old;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void ensureRestCapacity(int capacity) {
+        if (rest == null) {
+            rest = new Object[1];
+        } else if (rest.length < capacity) {
+            rest = Arrays.copyOf(rest, Math.max(capacity, rest.length + (rest.length >> 1)));
+        }
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    /**
+     * Returns an unmodifiable copy of the given clauses backed by an exact-size array. <tt>null</tt> is treated as
+     * an empty list.
+     */
+    static <E> List<E> freeze(List<E> clauses) {
+        if (clauses == null || clauses.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (clauses.size() == 1) {
+            return Collections.singletonList(clauses.get(0));
+        }
+        if (clauses instanceof Frozen) {
+            return clauses;
+        }
+        return new Frozen<>(clauses.toArray());
+    }
+
+    /**
+     * Returns the given clauses, or an empty list if <tt>null</tt>.
+     */
+    static <E> List<E> orEmpty(List<E> clauses) {
+        return clauses == null ? Collections.emptyList() : clauses;
+    }
+
+    private static final class Frozen<E> extends AbstractList<E> implements RandomAccess {
+        private final Object[] elements;
+
+        Frozen(Object[] elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            return (E) elements[index];
+        }
+
+        @Override
+        public int size() {
+            return elements.length;
+        }
+    }
+}
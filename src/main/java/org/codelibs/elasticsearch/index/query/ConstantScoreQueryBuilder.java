@@ -77,6 +77,11 @@ public class ConstantScoreQueryBuilder extends AbstractQueryBuilder<ConstantScor
         return this.filterBuilder;
     }
 
+    @Override
+    public ConstantScoreQueryBuilder deepCopy() {
+        return new ConstantScoreQueryBuilder(filterBuilder.deepCopy()).boost(boost).queryName(queryName);
+    }
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
@@ -50,7 +50,9 @@ public class DisMaxQueryBuilder extends AbstractQueryBuilder<DisMaxQueryBuilder>
     private static final ParseField TIE_BREAKER_FIELD = new ParseField("tie_breaker");
     private static final ParseField QUERIES_FIELD = new ParseField("queries");
 
-    private final List<QueryBuilder> queries = new ArrayList<>();
+    private List<QueryBuilder> queries = new ClauseList<>();
+
+    private boolean frozen;
 
     private float tieBreaker = DEFAULT_TIE_BREAKER;
 
@@ -79,6 +81,9 @@ public class DisMaxQueryBuilder extends AbstractQueryBuilder<DisMaxQueryBuilder>
         if (queryBuilder == null) {
             throw new IllegalArgumentException("inner dismax query clause cannot be null");
         }
+        if (frozen) {
+            throw new IllegalStateException("[" + NAME + "] query is frozen and cannot take further queries");
+        }
         queries.add(queryBuilder);
         return this;
     }
@@ -90,6 +95,32 @@ public class DisMaxQueryBuilder extends AbstractQueryBuilder<DisMaxQueryBuilder>
         return this.queries;
     }
 
+    /**
+     * Trims the sub-queries of this query to their exact size and makes them unmodifiable. Adding sub-queries to a
+     * frozen query fails. {#deepCopy()} shares the sub-queries of a frozen query with its copies.
+     */
+    public DisMaxQueryBuilder freeze() {
+        queries = ClauseList.freeze(queries);
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return whether {#freeze()} was called on this query
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public DisMaxQueryBuilder deepCopy() {
+        DisMaxQueryBuilder copy = new DisMaxQueryBuilder();
+        copy.queries = frozen ? queries : copyQueries(queries);
+        copy.frozen = frozen;
+        copy.tieBreaker = tieBreaker;
+        return copy.boost(boost).queryName(queryName);
+    }
+
     /**
      * The score of each non-maximum disjunct for a document is multiplied by this weight
      * and added into the final score.  If non-zero, the value should be small, on the order of 0.1, which says that
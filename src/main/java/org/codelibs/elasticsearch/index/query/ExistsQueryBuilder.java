@@ -19,16 +19,24 @@
 
 package org.codelibs.elasticsearch.index.query;
 
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
 import org.codelibs.elasticsearch.common.ParseField;
 import org.codelibs.elasticsearch.common.ParsingException;
 import org.codelibs.elasticsearch.common.Strings;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.lucene.search.Queries;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.common.xcontent.XContentParser;
+import org.codelibs.elasticsearch.index.mapper.LocalDocumentParser;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Objects;
 import java.util.Optional;
 
@@ -122,7 +130,23 @@ public class ExistsQueryBuilder extends AbstractQueryBuilder<ExistsQueryBuilder>
     }
 
     public static Query newFilter(QueryShardContext context, String fieldPattern) {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        Collection<String> fields = context.simpleMatchToIndexNames(fieldPattern);
+        if (fields.isEmpty()) {
+            // the pattern may name an object field, check for its sub fields
+            fields = context.simpleMatchToIndexNames(fieldPattern + ".*");
+        }
+        if (fields.isEmpty()) {
+            // no field mapped, so no document can have a value
+            return Queries.newMatchNoDocsQuery("No field matches [" + fieldPattern + "]");
+        }
+        if (fields.size() == 1) {
+            return new ConstantScoreQuery(new TermQuery(new Term(LocalDocumentParser.FIELD_NAMES_FIELD, fields.iterator().next())));
+        }
+        BooleanQuery.Builder boolFilterBuilder = new BooleanQuery.Builder();
+        for (String field : fields) {
+            boolFilterBuilder.add(new TermQuery(new Term(LocalDocumentParser.FIELD_NAMES_FIELD, field)), BooleanClause.Occur.SHOULD);
+        }
+        return new ConstantScoreQuery(boolFilterBuilder.build());
     }
 
     @Override
@@ -51,6 +51,11 @@ public class MatchAllQueryBuilder extends AbstractQueryBuilder<MatchAllQueryBuil
         // only superclass has state
     }
 
+    @Override
+    public MatchAllQueryBuilder deepCopy() {
+        return new MatchAllQueryBuilder().boost(boost).queryName(queryName);
+    }
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
@@ -163,7 +163,17 @@ public class MatchPhrasePrefixQueryBuilder extends AbstractQueryBuilder<MatchPhr
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        // validate context specific fields
+        if (analyzer != null && context.getAnalyzer(analyzer) == null) {
+            throw new QueryShardException(context, "[" + NAME + "] analyzer [" + analyzer + "] not found");
+        }
+
+        MatchQuery matchQuery = new MatchQuery(context);
+        matchQuery.setAnalyzer(analyzer);
+        matchQuery.setPhraseSlop(slop);
+        matchQuery.setMaxExpansions(maxExpansions);
+
+        return matchQuery.parse(MatchQuery.Type.PHRASE_PREFIX, fieldName, value);
     }
 
     @Override
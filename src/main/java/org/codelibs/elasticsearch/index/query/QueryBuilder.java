@@ -21,6 +21,7 @@ package org.codelibs.elasticsearch.index.query;
 
 import org.apache.lucene.search.Query;
 import org.codelibs.elasticsearch.common.io.stream.NamedWriteable;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.xcontent.ToXContent;
 
 import java.io.IOException;
@@ -79,6 +80,14 @@ public interface QueryBuilder extends NamedWriteable, ToXContent {
      */
     String getName();
 
+    /**
+     * Returns a deep copy of this query that can be modified without affecting this query. Immutable parts such as
+     * strings, packed terms and frozen sub queries are shared with the copy.
+     */
+    default QueryBuilder deepCopy() {
+        return WriteableCopier.copy(this);
+    }
+
     /**
      * Rewrites this query builder into its primitive form. By default this method return the builder itself. If the builder
      * did not change the identity reference must be returned otherwise the builder will be rewritten infinitely.
@@ -98,8 +98,10 @@ public class QueryParseContext implements ParseFieldMatcherSupplier {
         }
         if (parser.nextToken() == XContentParser.Token.END_OBJECT) {
             // we encountered '{}' for a query clause
-            String msg = "query malformed, empty clause found at [" + parser.getTokenLocation() +"]";
-            DEPRECATION_LOGGER.deprecated(msg);
+            if (DeprecationLogger.isEnabled()) {
+                DEPRECATION_LOGGER.deprecatedAndMaybeLog("empty_query_clause", "query malformed, empty clause found at [{}]",
+                        parser.getTokenLocation());
+            }
             return Optional.empty();
         }
         if (parser.currentToken() != XContentParser.Token.FIELD_NAME) {
@@ -19,8 +19,120 @@
 
 package org.codelibs.elasticsearch.index.query;
 
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.codelibs.elasticsearch.common.lucene.Lucene;
+import org.codelibs.elasticsearch.index.analysis.NamedAnalyzer;
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.mapper.MappedFieldType;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Context object used to create lucene queries on the shard level.
+ * <p>
+ * In this library the context is backed by the field types of a mapping definition, see
+ * {FieldTypeLookup#fromMapping(String)}, so that {QueryBuilder#toQuery(QueryShardContext)} compiles queries to
+ * Lucene locally without an index. A context collects named queries and must not be shared between threads.
  */
 public class QueryShardContext extends QueryRewriteContext {
+    private final FieldTypeLookup fieldTypes;
+
+    private final long nowInMillis;
+
+    private final Map<String, Query> namedQueries = new HashMap<>();
+
+    private boolean isFilter;
+
+    public QueryShardContext(FieldTypeLookup fieldTypes) {
+        this(fieldTypes, System.currentTimeMillis());
+    }
+
+    /**
+     * @param nowInMillis the time that <code>now</code> resolves to in date math
+     */
+    public QueryShardContext(FieldTypeLookup fieldTypes, long nowInMillis) {
+        if (fieldTypes == null) {
+            throw new IllegalArgumentException("field types must not be null");
+        }
+        this.fieldTypes = fieldTypes;
+        this.nowInMillis = nowInMillis;
+    }
+
+    /**
+     * Returns the field type of the given field, or <tt>null</tt> if the field is not mapped.
+     */
+    public MappedFieldType fieldMapper(String name) {
+        return fieldTypes.get(name);
+    }
+
+    /**
+     * Returns the names of the mapped fields matching the given simple pattern.
+     */
+    public Collection<String> simpleMatchToIndexNames(String pattern) {
+        return fieldTypes.simpleMatchToFullName(pattern);
+    }
+
+    /**
+     * Returns the search analyzer of the given field type, or the standard analyzer if it has none.
+     */
+    public NamedAnalyzer getSearchAnalyzer(MappedFieldType fieldType) {
+        if (fieldType.searchAnalyzer() != null) {
+            return fieldType.searchAnalyzer();
+        }
+        return Lucene.STANDARD_ANALYZER;
+    }
+
+    /**
+     * Returns the search quote analyzer of the given field type, falling back to its search analyzer.
+     */
+    public NamedAnalyzer getSearchQuoteAnalyzer(MappedFieldType fieldType) {
+        if (fieldType.searchQuoteAnalyzer() != null) {
+            return fieldType.searchQuoteAnalyzer();
+        }
+        return getSearchAnalyzer(fieldType);
+    }
+
+    /**
+     * Returns the analyzer with the given name, or <tt>null</tt> if there is none.
+     */
+    public NamedAnalyzer getAnalyzer(String name) {
+        return FieldTypeLookup.builtInAnalyzer(name);
+    }
+
+    /**
+     * Return whether we are currently parsing a filter or a query.
+     */
+    public boolean isFilter() {
+        return isFilter;
+    }
+
+    /**
+     * Sets whether we are currently parsing a filter or a query.
+     */
+    public void setIsFilter(boolean isFilter) {
+        this.isFilter = isFilter;
+    }
+
+    public void addNamedQuery(String name, Query query) {
+        if (query != null) {
+            namedQueries.put(name, query);
+        }
+    }
+
+    public Map<String, Query> copyNamedQueries() {
+        return new HashMap<>(namedQueries);
+    }
+
+    @Override
+    public IndexReader getIndexReader() {
+        return null;
+    }
+
+    @Override
+    public long nowInMillis() {
+        return nowInMillis;
+    }
 }
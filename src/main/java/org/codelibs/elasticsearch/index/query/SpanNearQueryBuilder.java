@@ -52,7 +52,9 @@ public class SpanNearQueryBuilder extends AbstractQueryBuilder<SpanNearQueryBuil
     private static final ParseField CLAUSES_FIELD = new ParseField("clauses");
     private static final ParseField IN_ORDER_FIELD = new ParseField("in_order");
 
-    private final List<SpanQueryBuilder> clauses = new ArrayList<>();
+    private List<SpanQueryBuilder> clauses = new ClauseList<>();
+
+    private boolean frozen;
 
     private final int slop;
 
@@ -103,6 +105,9 @@ public class SpanNearQueryBuilder extends AbstractQueryBuilder<SpanNearQueryBuil
         if (clause == null) {
             throw new IllegalArgumentException("[" + NAME + "]  clauses cannot be null");
         }
+        if (frozen) {
+            throw new IllegalStateException("[" + NAME + "] query is frozen and cannot take further clauses");
+        }
         clauses.add(clause);
         return this;
     }
@@ -114,6 +119,32 @@ public class SpanNearQueryBuilder extends AbstractQueryBuilder<SpanNearQueryBuil
         return Collections.unmodifiableList(this.clauses);
     }
 
+    /**
+     * Trims the clauses of this query to their exact size and makes them unmodifiable. Adding clauses to a
+     * frozen query fails. {#deepCopy()} shares the clauses of a frozen query with its copies.
+     */
+    public SpanNearQueryBuilder freeze() {
+        clauses = ClauseList.freeze(clauses);
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return whether {#freeze()} was called on this query
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public SpanNearQueryBuilder deepCopy() {
+        SpanNearQueryBuilder copy = new SpanNearQueryBuilder(clauses.get(0), slop);
+        copy.clauses = frozen ? clauses : copyQueries(clauses);
+        copy.frozen = frozen;
+        copy.inOrder = inOrder;
+        return copy.boost(boost).queryName(queryName);
+    }
+
     /**
      * When <code>inOrder</code> is true, the spans from each clause
      * must be in the same order as in <code>clauses</code> and must be non-overlapping.
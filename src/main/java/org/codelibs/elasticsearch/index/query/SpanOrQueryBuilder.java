@@ -44,7 +44,9 @@ public class SpanOrQueryBuilder extends AbstractQueryBuilder<SpanOrQueryBuilder>
 
     private static final ParseField CLAUSES_FIELD = new ParseField("clauses");
 
-    private final List<SpanQueryBuilder> clauses = new ArrayList<>();
+    private List<SpanQueryBuilder> clauses = new ClauseList<>();
+
+    private boolean frozen;
 
     public SpanOrQueryBuilder(SpanQueryBuilder initialClause) {
         if (initialClause == null) {
@@ -75,6 +77,9 @@ public class SpanOrQueryBuilder extends AbstractQueryBuilder<SpanOrQueryBuilder>
         if (clause == null) {
             throw new IllegalArgumentException("[" + NAME + "] inner clause cannot be null");
         }
+        if (frozen) {
+            throw new IllegalStateException("[" + NAME + "] query is frozen and cannot take further clauses");
+        }
         clauses.add(clause);
         return this;
     }
@@ -86,6 +91,31 @@ public class SpanOrQueryBuilder extends AbstractQueryBuilder<SpanOrQueryBuilder>
         return Collections.unmodifiableList(this.clauses);
     }
 
+    /**
+     * Trims the clauses of this query to their exact size and makes them unmodifiable. Adding clauses to a
+     * frozen query fails. {#deepCopy()} shares the clauses of a frozen query with its copies.
+     */
+    public SpanOrQueryBuilder freeze() {
+        clauses = ClauseList.freeze(clauses);
+        frozen = true;
+        return this;
+    }
+
+    /**
+     * @return whether {#freeze()} was called on this query
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    @Override
+    public SpanOrQueryBuilder deepCopy() {
+        SpanOrQueryBuilder copy = new SpanOrQueryBuilder(clauses.get(0));
+        copy.clauses = frozen ? clauses : copyQueries(clauses);
+        copy.frozen = frozen;
+        return copy.boost(boost).queryName(queryName);
+    }
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
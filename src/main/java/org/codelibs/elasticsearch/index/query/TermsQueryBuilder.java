@@ -19,6 +19,7 @@
 
 package org.codelibs.elasticsearch.index.query;
 
+import org.apache.lucene.queries.TermsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.BytesRefBuilder;
@@ -29,8 +30,11 @@ import org.codelibs.elasticsearch.common.bytes.BytesReference;
 import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.lucene.BytesRefs;
+import org.codelibs.elasticsearch.common.lucene.search.Queries;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.common.xcontent.XContentParser;
+import org.codelibs.elasticsearch.index.mapper.MappedFieldType;
 import java.io.IOException;
 import java.util.AbstractList;
 import java.util.ArrayList;
@@ -38,6 +42,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -131,6 +136,14 @@ public class TermsQueryBuilder extends AbstractQueryBuilder<TermsQueryBuilder> {
         this.values = convert(values);
     }
 
+    /**
+     * Creates a terms query over values that have already been converted by {#convert(List)}.
+     */
+    private TermsQueryBuilder(String fieldName, List<?> convertedValues) {
+        this.fieldName = fieldName;
+        this.values = convertedValues;
+    }
+
     /**
      * Read from a stream.
      */
@@ -154,6 +167,38 @@ public class TermsQueryBuilder extends AbstractQueryBuilder<TermsQueryBuilder> {
         return convertBack(this.values);
     }
 
+    /**
+     * Returns a copy of this query. The packed values are immutable and shared with the copy.
+     */
+    @Override
+    public TermsQueryBuilder deepCopy() {
+        return new TermsQueryBuilder(fieldName, values).boost(boost).queryName(queryName);
+    }
+
+    /**
+     * @return the number of terms in this query
+     */
+    public int size() {
+        return this.values.size();
+    }
+
+    /**
+     * Splits this query into terms queries on the same field holding at most <code>chunkSize</code> terms each.
+     * The chunks are views over the packed values of this query, so terms are neither copied nor re-encoded.
+     * Boost and query name are not carried over to the chunks.
+     */
+    public List<TermsQueryBuilder> split(int chunkSize) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunk size must be positive but was [" + chunkSize + "]");
+        }
+        final int size = values.size();
+        final List<TermsQueryBuilder> chunks = new ArrayList<>((size + chunkSize - 1) / chunkSize);
+        for (int start = 0; start < size; start += chunkSize) {
+            chunks.add(new TermsQueryBuilder(fieldName, values.subList(start, Math.min(size, start + chunkSize))));
+        }
+        return chunks;
+    }
+
     private static final Set<Class<? extends Number>> INTEGER_TYPES = new HashSet<>(
             Arrays.asList(Byte.class, Short.class, Integer.class, Long.class));
     private static final Set<Class<?>> STRING_TYPES = new HashSet<>(
@@ -289,18 +334,30 @@ public class TermsQueryBuilder extends AbstractQueryBuilder<TermsQueryBuilder> {
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        if (values.isEmpty()) {
+            return Queries.newMatchNoDocsQuery("No terms supplied for \"" + getName() + "\" query.");
+        }
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType != null) {
+            return fieldType.termsQuery(values, context);
+        }
+        BytesRef[] filterValues = new BytesRef[values.size()];
+        for (int i = 0; i < filterValues.length; i++) {
+            filterValues[i] = BytesRefs.toBytesRef(values.get(i));
+        }
+        return new TermsQuery(fieldName, filterValues);
     }
 
 
     @Override
     protected int doHashCode() {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        return Objects.hash(fieldName, values);
     }
 
     @Override
     protected boolean doEquals(TermsQueryBuilder other) {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        return Objects.equals(fieldName, other.fieldName) &&
+                Objects.equals(values, other.values);
     }
 
     @Override
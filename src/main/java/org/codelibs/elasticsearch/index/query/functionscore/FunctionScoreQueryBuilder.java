@@ -75,6 +75,9 @@ public class FunctionScoreQueryBuilder extends AbstractQueryBuilder<FunctionScor
     public static final CombineFunction DEFAULT_BOOST_MODE = CombineFunction.MULTIPLY;
     public static final FiltersFunctionScoreQuery.ScoreMode DEFAULT_SCORE_MODE = FiltersFunctionScoreQuery.ScoreMode.MULTIPLY;
 
+    // shared by all function_score queries without functions
+    private static final FilterFunctionBuilder[] NO_FUNCTIONS = new FilterFunctionBuilder[0];
+
     private final QueryBuilder query;
 
     private float maxBoost = FunctionScoreQuery.DEFAULT_MAX_BOOST;
@@ -93,7 +96,7 @@ public class FunctionScoreQueryBuilder extends AbstractQueryBuilder<FunctionScor
      * @param query the query that needs to be custom scored
      */
     public FunctionScoreQueryBuilder(QueryBuilder query) {
-        this(query, new FilterFunctionBuilder[0]);
+        this(query, NO_FUNCTIONS);
     }
 
     /**
@@ -152,7 +155,7 @@ public class FunctionScoreQueryBuilder extends AbstractQueryBuilder<FunctionScor
     public FunctionScoreQueryBuilder(StreamInput in) throws IOException {
         super(in);
         query = in.readNamedWriteable(QueryBuilder.class);
-        filterFunctionBuilders = in.readList(FilterFunctionBuilder::new).toArray(new FilterFunctionBuilder[0]);
+        filterFunctionBuilders = in.readList(FilterFunctionBuilder::new).toArray(NO_FUNCTIONS);
         maxBoost = in.readFloat();
         minScore = in.readOptionalFloat();
         boostMode = in.readOptionalWriteable(CombineFunction::readFromStream);
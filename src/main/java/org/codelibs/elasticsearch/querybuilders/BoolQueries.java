@@ -0,0 +1,35 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+
+import java.util.List;
+
+/**
+ * Helpers shared by the rewriters of this package, which rebuild <code>bool</code> queries instead of modifying them.
+ */
+final class BoolQueries {
+    private BoolQueries() {
+    }
+
+    /**
+     * Returns a new <code>bool</code> query with the given clauses and the settings of the source query, or the
+     * default settings if the source is <code>null</code>.
+     */
+    static BoolQueryBuilder copy(BoolQueryBuilder source, List<QueryBuilder> must, List<QueryBuilder> filter,
+                                 List<QueryBuilder> mustNot, List<QueryBuilder> should) {
+        BoolQueryBuilder bool = new BoolQueryBuilder();
+        must.forEach(bool::must);
+        filter.forEach(bool::filter);
+        mustNot.forEach(bool::mustNot);
+        should.forEach(bool::should);
+        if (source != null) {
+            bool.disableCoord(source.disableCoord());
+            bool.adjustPureNegative(source.adjustPureNegative());
+            bool.minimumShouldMatch(source.minimumShouldMatch());
+            bool.boost(source.boost());
+            bool.queryName(source.queryName());
+        }
+        return bool;
+    }
+}
@@ -0,0 +1,327 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.common.bytes.BytesArray;
+import org.codelibs.elasticsearch.common.bytes.BytesReference;
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.codelibs.elasticsearch.common.io.stream.NamedWriteable;
+import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.io.stream.Writeable;
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.DisMaxQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Maps structurally equal query and aggregation builders to one canonical instance, so that the tenant filters,
+ * ACLs and common aggregations shared by many generated requests are held in memory only once.
+ * <p>
+ * Builders are interned bottom-up so that equal sub trees of otherwise different builders are shared as well. Leaf
+ * queries are keyed by their stream serialization, while <code>bool</code>, <code>dis_max</code> and
+ * <code>constant_score</code> queries and aggregations are keyed by their own settings and the ids of their canonical
+ * children, so that every node is serialized once whatever the depth of the tree. The clause lists and sub
+ * aggregations of the given builders are updated in place to reference the canonical children, except for frozen
+ * queries which are rebuilt instead.
+ * <p>
+ * Canonical instances are only weakly referenced, entries are dropped once no request uses them anymore.
+ * Interned builders are shared between requests and threads and must not be modified afterwards.
+ * This class is thread-safe.
+ */
+public class BuilderInterner {
+    private static final byte LEAF_KEY = 0;
+
+    private static final byte COMPOUND_KEY = 1;
+
+    private final Table<QueryBuilder> queries = new Table<>();
+
+    private final Table<AggregationBuilder> aggregations = new Table<>();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private BuilderInterner() {
+    }
+
+    /**
+     * Returns the canonical instance of the given query, interning its clauses first.
+     */
+    public QueryBuilder intern(QueryBuilder query) {
+        if (query == null) {
+            return null;
+        }
+        return internQuery(query).value;
+    }
+
+    private Interned<QueryBuilder> internQuery(QueryBuilder query) {
+        if (query instanceof BoolQueryBuilder) {
+            return internBool((BoolQueryBuilder) query);
+        } else if (query instanceof DisMaxQueryBuilder) {
+            return internDisMax((DisMaxQueryBuilder) query);
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            Interned<QueryBuilder> inner = internQuery(((ConstantScoreQueryBuilder) query).innerQuery());
+            if (inner.value != ((ConstantScoreQueryBuilder) query).innerQuery()) {
+                query = new ConstantScoreQueryBuilder(inner.value).boost(query.boost()).queryName(query.queryName());
+            }
+            return queries.intern(query, (out, value) -> {
+                writeCompoundHeader(out, value);
+                out.writeLong(inner.id);
+            });
+        }
+        return queries.intern(query, (out, value) -> {
+            out.writeByte(LEAF_KEY);
+            out.writeNamedWriteable(value);
+        });
+    }
+
+    private Interned<QueryBuilder> internBool(BoolQueryBuilder bool) {
+        final boolean inPlace = !bool.isFrozen();
+        final List<QueryBuilder> boolMust = bool.must();
+        final List<QueryBuilder> boolFilter = bool.filter();
+        final List<QueryBuilder> boolMustNot = bool.mustNot();
+        final List<QueryBuilder> boolShould = bool.should();
+        final long[] mustIds = new long[boolMust.size()];
+        final long[] filterIds = new long[boolFilter.size()];
+        final long[] mustNotIds = new long[boolMustNot.size()];
+        final long[] shouldIds = new long[boolShould.size()];
+        List<QueryBuilder> must = internAll(boolMust, mustIds, inPlace);
+        List<QueryBuilder> filter = internAll(boolFilter, filterIds, inPlace);
+        List<QueryBuilder> mustNot = internAll(boolMustNot, mustNotIds, inPlace);
+        List<QueryBuilder> should = internAll(boolShould, shouldIds, inPlace);
+        if (must != boolMust || filter != boolFilter || mustNot != boolMustNot || should != boolShould) {
+            bool = BoolQueries.copy(bool, must, filter, mustNot, should).freeze();
+        }
+        return queries.intern(bool, (out, value) -> {
+            BoolQueryBuilder b = (BoolQueryBuilder) value;
+            writeCompoundHeader(out, b);
+            out.writeBoolean(b.adjustPureNegative());
+            out.writeBoolean(b.disableCoord());
+            out.writeOptionalString(b.minimumShouldMatch());
+            writeIds(out, mustIds);
+            writeIds(out, filterIds);
+            writeIds(out, mustNotIds);
+            writeIds(out, shouldIds);
+        });
+    }
+
+    private Interned<QueryBuilder> internDisMax(DisMaxQueryBuilder disMax) {
+        final long[] innerIds = new long[disMax.innerQueries().size()];
+        List<QueryBuilder> inner = internAll(disMax.innerQueries(), innerIds, !disMax.isFrozen());
+        if (inner != disMax.innerQueries()) {
+            DisMaxQueryBuilder copy = new DisMaxQueryBuilder().tieBreaker(disMax.tieBreaker());
+            inner.forEach(copy::add);
+            disMax = copy.boost(disMax.boost()).queryName(disMax.queryName()).freeze();
+        }
+        return queries.intern(disMax, (out, value) -> {
+            writeCompoundHeader(out, value);
+            out.writeFloat(((DisMaxQueryBuilder) value).tieBreaker());
+            writeIds(out, innerIds);
+        });
+    }
+
+    /**
+     * Interns the given clauses and collects their ids. Canonical clauses are set in the given list if it may be
+     * modified, or else in a copy that is returned.
+     */
+    private List<QueryBuilder> internAll(List<QueryBuilder> clauses, long[] clauseIds, boolean inPlace) {
+        List<QueryBuilder> result = clauses;
+        for (int i = 0; i < clauses.size(); i++) {
+            QueryBuilder clause = clauses.get(i);
+            Interned<QueryBuilder> canonical = internQuery(clause);
+            clauseIds[i] = canonical.id;
+            if (canonical.value != clause) {
+                if (inPlace == false && result == clauses) {
+                    result = new ArrayList<>(clauses);
+                }
+                result.set(i, canonical.value);
+            }
+        }
+        return result;
+    }
+
+    private static void writeCompoundHeader(StreamOutput out, QueryBuilder query) throws IOException {
+        out.writeByte(COMPOUND_KEY);
+        out.writeString(query.getWriteableName());
+        out.writeFloat(query.boost());
+        out.writeOptionalString(query.queryName());
+    }
+
+    private static void writeIds(StreamOutput out, long[] ids) throws IOException {
+        out.writeVInt(ids.length);
+        for (long id : ids) {
+            out.writeLong(id);
+        }
+    }
+
+    /**
+     * Returns the canonical instance of the given aggregation, interning its sub aggregations first.
+     */
+    public AggregationBuilder intern(AggregationBuilder aggregation) {
+        if (aggregation == null) {
+            return null;
+        }
+        return internAggregation(aggregation).value;
+    }
+
+    private Interned<AggregationBuilder> internAggregation(AggregationBuilder aggregation) {
+        final List<AggregationBuilder> subAggregations = aggregation.getSubAggregations();
+        final long[] subIds = new long[subAggregations.size()];
+        for (int i = 0; i < subIds.length; i++) {
+            AggregationBuilder sub = subAggregations.get(i);
+            Interned<AggregationBuilder> canonical = internAggregation(sub);
+            subIds[i] = canonical.id;
+            if (canonical.value != sub) {
+                aggregation.setSubAggregation(i, canonical.value);
+            }
+        }
+        return aggregations.intern(aggregation, (out, value) -> {
+            out.writeString(value.getWriteableName());
+            value.writeTo(out, (o, factories) -> {
+                writeIds(o, subIds);
+                o.writeNamedWriteableList(factories.getPipelineAggregatorFactories());
+            });
+        });
+    }
+
+    /**
+     * Interns the query, post filter and aggregations of the given search in place.
+     */
+    public SearchSourceBuilder intern(SearchSourceBuilder source) {
+        if (source.query() != null) {
+            source.query(intern(source.query()));
+        }
+        if (source.postFilter() != null) {
+            source.postFilter(intern(source.postFilter()));
+        }
+        if (source.aggregations() != null) {
+            List<AggregationBuilder> aggregationBuilders = source.aggregations().getAggregatorFactories();
+            for (int i = 0; i < aggregationBuilders.size(); i++) {
+                AggregationBuilder canonical = intern(aggregationBuilders.get(i));
+                if (canonical != aggregationBuilders.get(i)) {
+                    source.aggregations().setAggregator(i, canonical);
+                }
+            }
+        }
+        return source;
+    }
+
+    /**
+     * @return the number of live canonical instances
+     */
+    public int size() {
+        queries.expunge();
+        aggregations.expunge();
+        return queries.map.size() + aggregations.map.size();
+    }
+
+    /**
+     * @return the number of interned builders that were replaced by an existing canonical instance
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of interned builders that became canonical instances
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * Drops all canonical instances.
+     */
+    public void clear() {
+        queries.map.clear();
+        aggregations.map.clear();
+    }
+
+    public static BuilderInterner interner() {
+        return new BuilderInterner();
+    }
+
+    private static <T extends NamedWriteable> BytesReference key(T value, Writeable.Writer<T> writer) {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            writer.write(out, value);
+            // compact the pages of the stream, the key lives as long as the canonical instance
+            return new BytesArray(BytesRef.deepCopyOf(out.bytes().toBytesRef()));
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to serialize [" + value.getWriteableName() + "].", e);
+        }
+    }
+
+    private static final class Interned<T> {
+        private final T value;
+
+        private final long id;
+
+        Interned(T value, long id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    private final class Table<T extends NamedWriteable> {
+        private final ConcurrentHashMap<BytesReference, Canonical<T>> map = new ConcurrentHashMap<>();
+
+        private final ReferenceQueue<T> queue = new ReferenceQueue<>();
+
+        Interned<T> intern(T value, Writeable.Writer<T> keyWriter) {
+            expunge();
+            final BytesReference key = key(value, keyWriter);
+            while (true) {
+                Canonical<T> ref = map.get(key);
+                if (ref != null) {
+                    T canonical = ref.get();
+                    if (canonical != null) {
+                        hits.increment();
+                        return new Interned<>(canonical, ref.id);
+                    }
+                    map.remove(key, ref);
+                }
+                final long id = ids.incrementAndGet();
+                if (map.putIfAbsent(key, new Canonical<>(value, key, id, queue)) == null) {
+                    misses.increment();
+                    return new Interned<>(value, id);
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void expunge() {
+            Reference<? extends T> ref;
+            while ((ref = queue.poll()) != null) {
+                Canonical<T> canonical = (Canonical<T>) ref;
+                map.remove(canonical.key, canonical);
+            }
+        }
+    }
+
+    private static final class Canonical<T> extends WeakReference<T> {
+        private final BytesReference key;
+
+        // identifies the canonical instance in the keys of its parents, which reference it strongly
+        private final long id;
+
+        Canonical(T referent, BytesReference key, long id, ReferenceQueue<T> queue) {
+            super(referent, queue);
+            this.key = key;
+            this.id = id;
+        }
+    }
+}
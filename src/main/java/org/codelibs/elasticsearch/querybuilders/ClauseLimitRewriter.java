@@ -0,0 +1,409 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.DisMaxQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.TermsQueryBuilder;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.sort.SortBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Reshapes query trees whose <code>bool</code> or <code>terms</code> queries exceed the clause limits of the cluster
+ * (<code>indices.query.bool.max_clause_count</code>) into equivalent trees of nested chunks, or splits a search
+ * into sibling searches for <code>_msearch</code>.
+ * <p>
+ * Only <code>bool</code>, <code>constant_score</code> and <code>dis_max</code> queries are descended into, other
+ * compound queries are left untouched. Oversize <code>terms</code> queries are split over views of their packed
+ * values, so rewriting does not copy or re-encode terms.
+ */
+public class ClauseLimitRewriter {
+    public static final int DEFAULT_MAX_CLAUSE_COUNT = 1024;
+    public static final int DEFAULT_MAX_TERMS_COUNT = 65536;
+
+    private static final int DEFAULT_SIZE = 10;
+
+    private int maxClauseCount = DEFAULT_MAX_CLAUSE_COUNT;
+
+    private int clauseChunkSize = -1;
+
+    private int maxTermsCount = DEFAULT_MAX_TERMS_COUNT;
+
+    private int termsChunkSize = -1;
+
+    private ClauseLimitRewriter() {
+    }
+
+    /**
+     * Sets the maximum number of clauses a single <code>bool</code> query may hold. Defaults to
+     * <code>1024</code>, the default of <code>indices.query.bool.max_clause_count</code>.
+     */
+    public ClauseLimitRewriter maxClauseCount(int maxClauseCount) {
+        if (maxClauseCount < 4) {
+            throw new IllegalArgumentException("[max_clause_count] must be at least 4 but was [" + maxClauseCount + "]");
+        }
+        this.maxClauseCount = maxClauseCount;
+        return this;
+    }
+
+    public int maxClauseCount() {
+        return maxClauseCount;
+    }
+
+    /**
+     * Sets the number of clauses grouped into each nested <code>bool</code> query. Defaults to
+     * {#maxClauseCount()}.
+     */
+    public ClauseLimitRewriter clauseChunkSize(int clauseChunkSize) {
+        if (clauseChunkSize < 2) {
+            throw new IllegalArgumentException("[clause_chunk_size] must be at least 2 but was [" + clauseChunkSize + "]");
+        }
+        this.clauseChunkSize = clauseChunkSize;
+        return this;
+    }
+
+    public int clauseChunkSize() {
+        return clauseChunkSize < 0 ? maxClauseCount : Math.min(clauseChunkSize, maxClauseCount);
+    }
+
+    /**
+     * Sets the maximum number of terms a single <code>terms</code> query may hold. Defaults to <code>65536</code>.
+     */
+    public ClauseLimitRewriter maxTermsCount(int maxTermsCount) {
+        if (maxTermsCount < 1) {
+            throw new IllegalArgumentException("[max_terms_count] must be positive but was [" + maxTermsCount + "]");
+        }
+        this.maxTermsCount = maxTermsCount;
+        return this;
+    }
+
+    public int maxTermsCount() {
+        return maxTermsCount;
+    }
+
+    /**
+     * Sets the number of terms held by each chunk of a split <code>terms</code> query. Defaults to
+     * {#maxTermsCount()}.
+     */
+    public ClauseLimitRewriter termsChunkSize(int termsChunkSize) {
+        if (termsChunkSize < 1) {
+            throw new IllegalArgumentException("[terms_chunk_size] must be positive but was [" + termsChunkSize + "]");
+        }
+        this.termsChunkSize = termsChunkSize;
+        return this;
+    }
+
+    public int termsChunkSize() {
+        return termsChunkSize < 0 ? maxTermsCount : Math.min(termsChunkSize, maxTermsCount);
+    }
+
+    /**
+     * Returns <code>true</code> if the given query tree holds a <code>bool</code> or <code>terms</code> query above
+     * the configured limits.
+     */
+    public boolean exceedsLimits(QueryBuilder query) {
+        if (query instanceof TermsQueryBuilder) {
+            return ((TermsQueryBuilder) query).size() > maxTermsCount;
+        } else if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            if (clauseCount(bool) > maxClauseCount) {
+                return true;
+            }
+            return anyExceedsLimits(bool.must()) || anyExceedsLimits(bool.filter())
+                    || anyExceedsLimits(bool.mustNot()) || anyExceedsLimits(bool.should());
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            return exceedsLimits(((ConstantScoreQueryBuilder) query).innerQuery());
+        } else if (query instanceof DisMaxQueryBuilder) {
+            return anyExceedsLimits(((DisMaxQueryBuilder) query).innerQueries());
+        }
+        return false;
+    }
+
+    private boolean anyExceedsLimits(List<QueryBuilder> queries) {
+        for (QueryBuilder query : queries) {
+            if (exceedsLimits(query)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the given query tree so that no <code>bool</code> or <code>terms</code> query exceeds the configured
+     * limits. Matching documents are unchanged. If nothing needs to be rewritten the given instance is returned.
+     *
+     * @throws IllegalArgumentException if a <code>bool</code> query cannot be reshaped, e.g. because its
+     *         <code>should</code> clauses are bound by a <code>minimum_should_match</code> other than <code>1</code>
+     */
+    public QueryBuilder rewrite(QueryBuilder query) {
+        if (query instanceof TermsQueryBuilder) {
+            return rewriteTerms((TermsQueryBuilder) query);
+        } else if (query instanceof BoolQueryBuilder) {
+            return rewriteBool((BoolQueryBuilder) query);
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            ConstantScoreQueryBuilder constantScore = (ConstantScoreQueryBuilder) query;
+            QueryBuilder inner = rewrite(constantScore.innerQuery());
+            if (inner == constantScore.innerQuery()) {
+                return query;
+            }
+            return new ConstantScoreQueryBuilder(inner).boost(query.boost()).queryName(query.queryName());
+        } else if (query instanceof DisMaxQueryBuilder) {
+            DisMaxQueryBuilder disMax = (DisMaxQueryBuilder) query;
+            List<QueryBuilder> inner = rewriteAll(disMax.innerQueries());
+            if (inner == disMax.innerQueries()) {
+                return query;
+            }
+            DisMaxQueryBuilder newBuilder = new DisMaxQueryBuilder().tieBreaker(disMax.tieBreaker());
+            inner.forEach(newBuilder::add);
+            return newBuilder.boost(query.boost()).queryName(query.queryName());
+        }
+        return query;
+    }
+
+    /**
+     * Rewrites the query and post filter of the given search. If nothing needs to be rewritten the given instance
+     * is returned.
+     */
+    public SearchSourceBuilder rewrite(SearchSourceBuilder source) {
+        QueryBuilder query = source.query() == null ? null : rewrite(source.query());
+        QueryBuilder postFilter = source.postFilter() == null ? null : rewrite(source.postFilter());
+        if (query == source.query() && postFilter == source.postFilter()) {
+            return source;
+        }
+        return source.copyWithNewQuery(query).postFilter(postFilter);
+    }
+
+    /**
+     * Splits the given search into sibling searches for <code>_msearch</code>. The largest oversize
+     * <code>terms</code> query that every hit is required to match is divided into chunks of
+     * {#termsChunkSize()} terms, one per search, and the remaining tree and the post filter are rewritten with
+     * {#rewrite(QueryBuilder)}. The union of the hits of all searches equals the hits of the original search.
+     */
+    public MultiSearchPlan split(SearchSourceBuilder source) {
+        final int from = source.from() < 0 ? 0 : source.from();
+        final int size = source.size() < 0 ? DEFAULT_SIZE : source.size();
+        final TermsQueryBuilder target = source.query() == null ? null : findRequiredTerms(source.query(), null);
+        if (target == null) {
+            return new MultiSearchPlan(Collections.singletonList(rewrite(source)), from, size, source.sorts());
+        }
+        final List<TermsQueryBuilder> chunks = target.split(termsChunkSize());
+        final List<SearchSourceBuilder> searches = new ArrayList<>(chunks.size());
+        // the post filter is the same for every search, it is rewritten once
+        final QueryBuilder postFilter = source.postFilter() == null ? null : rewrite(source.postFilter());
+        for (TermsQueryBuilder chunk : chunks) {
+            chunk.boost(target.boost()).queryName(target.queryName());
+            QueryBuilder query = rewrite(replace(source.query(), target, chunk));
+            searches.add(source.copyWithNewQuery(query).postFilter(postFilter).from(0).size(from + size));
+        }
+        return new MultiSearchPlan(searches, from, size, source.sorts());
+    }
+
+    private TermsQueryBuilder findRequiredTerms(QueryBuilder query, TermsQueryBuilder largest) {
+        if (query instanceof TermsQueryBuilder) {
+            TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            if (terms.size() > maxTermsCount && (largest == null || terms.size() > largest.size())) {
+                return terms;
+            }
+        } else if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            for (QueryBuilder clause : bool.must()) {
+                largest = findRequiredTerms(clause, largest);
+            }
+            for (QueryBuilder clause : bool.filter()) {
+                largest = findRequiredTerms(clause, largest);
+            }
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            return findRequiredTerms(((ConstantScoreQueryBuilder) query).innerQuery(), largest);
+        }
+        return largest;
+    }
+
+    private static QueryBuilder replace(QueryBuilder query, QueryBuilder target, QueryBuilder replacement) {
+        if (query == target) {
+            return replacement;
+        } else if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            final List<QueryBuilder> boolMust = bool.must();
+            final List<QueryBuilder> boolFilter = bool.filter();
+            List<QueryBuilder> must = replaceAll(boolMust, target, replacement);
+            List<QueryBuilder> filter = replaceAll(boolFilter, target, replacement);
+            if (must == boolMust && filter == boolFilter) {
+                return query;
+            }
+            return BoolQueries.copy(bool, must, filter, bool.mustNot(), bool.should());
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            QueryBuilder inner = replace(((ConstantScoreQueryBuilder) query).innerQuery(), target, replacement);
+            if (inner == ((ConstantScoreQueryBuilder) query).innerQuery()) {
+                return query;
+            }
+            return new ConstantScoreQueryBuilder(inner).boost(query.boost()).queryName(query.queryName());
+        }
+        return query;
+    }
+
+    private static List<QueryBuilder> replaceAll(List<QueryBuilder> queries, QueryBuilder target, QueryBuilder replacement) {
+        List<QueryBuilder> result = queries;
+        for (int i = 0; i < queries.size(); i++) {
+            QueryBuilder replaced = replace(queries.get(i), target, replacement);
+            if (replaced != queries.get(i)) {
+                if (result == queries) {
+                    result = new ArrayList<>(queries);
+                }
+                result.set(i, replaced);
+            }
+        }
+        return result;
+    }
+
+    private QueryBuilder rewriteTerms(TermsQueryBuilder terms) {
+        if (terms.size() <= maxTermsCount) {
+            return terms;
+        }
+        List<QueryBuilder> chunks = new ArrayList<>(terms.split(termsChunkSize()));
+        chunks = fold(chunks, maxClauseCount, ClauseLimitRewriter::disjunction);
+        // a terms query scores every hit with its boost, a constant_score wrapper keeps that for the disjunction
+        return new ConstantScoreQueryBuilder(disjunction(chunks)).boost(terms.boost()).queryName(terms.queryName());
+    }
+
+    private QueryBuilder rewriteBool(BoolQueryBuilder bool) {
+        // the getters of empty clause lists return a new view on each call, they are read once to compare by identity
+        final List<QueryBuilder> boolMust = bool.must();
+        final List<QueryBuilder> boolFilter = bool.filter();
+        final List<QueryBuilder> boolMustNot = bool.mustNot();
+        final List<QueryBuilder> boolShould = bool.should();
+        List<QueryBuilder> must = rewriteAll(boolMust);
+        List<QueryBuilder> filter = rewriteAll(boolFilter);
+        List<QueryBuilder> mustNot = rewriteAll(boolMustNot);
+        List<QueryBuilder> should = rewriteAll(boolShould);
+        int clauses = must.size() + filter.size() + mustNot.size() + should.size();
+        if (clauses > maxClauseCount) {
+            boolean splittableShould = isSplittableShould(bool.minimumShouldMatch());
+            int lists = (must.isEmpty() ? 0 : 1) + (filter.isEmpty() ? 0 : 1) + (mustNot.isEmpty() ? 0 : 1);
+            int budget = maxClauseCount;
+            if (splittableShould == false) {
+                budget -= should.size();
+            } else if (should.isEmpty() == false) {
+                lists++;
+            }
+            if (lists == 0 || budget < lists) {
+                throw new IllegalArgumentException("[" + BoolQueryBuilder.NAME + "] query with [" + should.size()
+                        + "] should clauses and minimum_should_match [" + bool.minimumShouldMatch()
+                        + "] cannot be reshaped below [" + maxClauseCount + "] clauses");
+            }
+            budget /= lists;
+            must = fold(must, budget, chunk -> BoolQueries.copy(null, chunk, Collections.emptyList(), Collections.emptyList(),
+                    Collections.emptyList()));
+            filter = fold(filter, budget, chunk -> BoolQueries.copy(null, Collections.emptyList(), chunk, Collections.emptyList(),
+                    Collections.emptyList()));
+            // not(a or b or c) is the same as not(a or b) and not(c)
+            mustNot = fold(mustNot, budget, ClauseLimitRewriter::disjunction);
+            if (splittableShould) {
+                should = fold(should, budget, ClauseLimitRewriter::disjunction);
+            }
+        }
+        if (must == boolMust && filter == boolFilter && mustNot == boolMustNot && should == boolShould) {
+            return bool;
+        }
+        return BoolQueries.copy(bool, must, filter, mustNot, should);
+    }
+
+    private List<QueryBuilder> rewriteAll(List<QueryBuilder> queries) {
+        List<QueryBuilder> result = queries;
+        for (int i = 0; i < queries.size(); i++) {
+            QueryBuilder rewritten = rewrite(queries.get(i));
+            if (rewritten != queries.get(i)) {
+                if (result == queries) {
+                    result = new ArrayList<>(queries);
+                }
+                result.set(i, rewritten);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Groups the clauses into wrapper queries of {#clauseChunkSize()} clauses, repeatedly, until no more than
+     * <code>budget</code> clauses remain.
+     */
+    private List<QueryBuilder> fold(List<QueryBuilder> clauses, int budget, Function<List<QueryBuilder>, QueryBuilder> wrapper) {
+        final int chunkSize = clauseChunkSize();
+        while (clauses.size() > budget) {
+            List<QueryBuilder> wrapped = new ArrayList<>((clauses.size() + chunkSize - 1) / chunkSize);
+            for (int start = 0; start < clauses.size(); start += chunkSize) {
+                wrapped.add(wrapper.apply(clauses.subList(start, Math.min(clauses.size(), start + chunkSize))));
+            }
+            clauses = wrapped;
+        }
+        return clauses;
+    }
+
+    private static boolean isSplittableShould(String minimumShouldMatch) {
+        return minimumShouldMatch == null || "0".equals(minimumShouldMatch) || "1".equals(minimumShouldMatch);
+    }
+
+    private static QueryBuilder disjunction(List<? extends QueryBuilder> clauses) {
+        BoolQueryBuilder bool = new BoolQueryBuilder();
+        for (QueryBuilder clause : clauses) {
+            bool.should(clause);
+        }
+        return bool;
+    }
+
+    private static int clauseCount(BoolQueryBuilder bool) {
+        return bool.must().size() + bool.filter().size() + bool.mustNot().size() + bool.should().size();
+    }
+
+    public static ClauseLimitRewriter rewriter() {
+        return new ClauseLimitRewriter();
+    }
+
+    /**
+     * Sibling searches produced by {ClauseLimitRewriter#split(SearchSourceBuilder)} together with the plan to merge
+     * their responses: hits are the union of all responses, deduplicated by <code>_id</code> because a document
+     * with several values in the split field can match more than one search, sorted by {#sorts()} (by score
+     * when empty) and cut to {#from()} and {#size()}. Each search already requests <code>from + size</code> hits.
+     * Aggregations have to be reduced across the responses and are only exact when every document matches a
+     * single search.
+     */
+    public static class MultiSearchPlan {
+        private final List<SearchSourceBuilder> searches;
+        private final int from;
+        private final int size;
+        private final List<SortBuilder<?>> sorts;
+
+        MultiSearchPlan(List<SearchSourceBuilder> searches, int from, int size, List<SortBuilder<?>> sorts) {
+            this.searches = Collections.unmodifiableList(searches);
+            this.from = from;
+            this.size = size;
+            this.sorts = sorts == null ? Collections.emptyList() : Collections.unmodifiableList(sorts);
+        }
+
+        public List<SearchSourceBuilder> searches() {
+            return searches;
+        }
+
+        public int from() {
+            return from;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public List<SortBuilder<?>> sorts() {
+            return sorts;
+        }
+
+        /**
+         * @return <code>true</code> if the search was split and responses have to be merged
+         */
+        public boolean requiresMerge() {
+            return searches.size() > 1;
+        }
+    }
+}
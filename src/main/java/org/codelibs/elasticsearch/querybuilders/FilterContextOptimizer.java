@@ -0,0 +1,317 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.common.lucene.search.function.CombineFunction;
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ExistsQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeoBoundingBoxQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeoDistanceQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeoDistanceRangeQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeoPolygonQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeoShapeQueryBuilder;
+import org.codelibs.elasticsearch.index.query.GeohashCellQuery;
+import org.codelibs.elasticsearch.index.query.IdsQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.RangeQueryBuilder;
+import org.codelibs.elasticsearch.index.query.TermsQueryBuilder;
+import org.codelibs.elasticsearch.index.query.TypeQueryBuilder;
+import org.codelibs.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.functionscore.FunctionScoreQueryBuilder.FilterFunctionBuilder;
+import org.codelibs.elasticsearch.index.query.functionscore.ScriptScoreFunctionBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.sampler.DiversifiedAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.sampler.SamplerAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.scripted.ScriptedMetricAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.tophits.TopHitsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.sort.ScoreSortBuilder;
+import org.codelibs.elasticsearch.search.sort.ScriptSortBuilder;
+import org.codelibs.elasticsearch.search.sort.SortBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Moves <code>must</code> clauses of <code>bool</code> queries into <code>filter</code> context wherever their
+ * scores cannot influence the response, so that they skip scoring and become eligible for the node query cache.
+ * <p>
+ * Scores are ignored inside <code>filter</code>, <code>must_not</code>, <code>constant_score</code>,
+ * <code>post_filter</code> and function filters, and for the whole query when the search does not need scores at
+ * all, see {#scoresIgnored(SearchSourceBuilder)}. <code>bool</code>, <code>constant_score</code> and
+ * <code>function_score</code> queries are descended into, other compound queries are left untouched.
+ * Every moved clause is reported to the listener as a {Change}.
+ */
+public class FilterContextOptimizer {
+    private final Consumer<Change> listener;
+
+    private boolean allowScoreShift = false;
+
+    private FilterContextOptimizer(Consumer<Change> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Also moves constant scoring clauses (<code>terms</code>, <code>range</code>, <code>exists</code>,
+     * <code>ids</code>, <code>type</code> and <code>geo_*</code>) out of the <code>must</code> clauses that every
+     * hit of a scored search has to match. This subtracts the same constant from the score of every hit, so the order
+     * of hits is unchanged but the reported scores are not. The <code>must</code> clauses of <code>bool</code>
+     * queries with <code>should</code> clauses and coord enabled are left untouched, nested ones included, because
+     * their coord factor depends on the number of matching clauses and would scale the shift differently for each hit. Defaults to <code>false</code>.
+     */
+    public FilterContextOptimizer allowScoreShift(boolean allowScoreShift) {
+        this.allowScoreShift = allowScoreShift;
+        return this;
+    }
+
+    public boolean allowScoreShift() {
+        return allowScoreShift;
+    }
+
+    /**
+     * Returns <code>true</code> if no part of the response of the given search depends on scores, e.g. because it
+     * sorts on fields without <code>track_scores</code> or has a <code>size</code> of <code>0</code>.
+     */
+    public static boolean scoresIgnored(SearchSourceBuilder source) {
+        if (source.minScore() != null || source.trackScores() || Boolean.TRUE.equals(source.explain())) {
+            return false;
+        }
+        if (source.rescores() != null && source.rescores().isEmpty() == false) {
+            return false;
+        }
+        if (source.aggregations() != null && needsScores(source.aggregations().getAggregatorFactories())) {
+            return false;
+        }
+        if (source.size() == 0) {
+            return true;
+        }
+        final List<SortBuilder<?>> sorts = source.sorts();
+        if (sorts == null || sorts.isEmpty()) {
+            return false;
+        }
+        for (SortBuilder<?> sort : sorts) {
+            if (sort instanceof ScoreSortBuilder || sort instanceof ScriptSortBuilder) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean needsScores(List<AggregationBuilder> aggregations) {
+        for (AggregationBuilder aggregation : aggregations) {
+            if (aggregation instanceof TopHitsAggregationBuilder || aggregation instanceof ScriptedMetricAggregationBuilder
+                    || aggregation instanceof SamplerAggregationBuilder || aggregation instanceof DiversifiedAggregationBuilder) {
+                return true;
+            }
+            // scripts can read _score
+            if (aggregation instanceof ValuesSourceAggregationBuilder
+                    && ((ValuesSourceAggregationBuilder<?, ?>) aggregation).script() != null) {
+                return true;
+            }
+            if (needsScores(aggregation.getSubAggregations())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Optimizes the query and post filter of the given search. If nothing changed the given instance is returned.
+     */
+    public SearchSourceBuilder optimize(SearchSourceBuilder source) {
+        final boolean scoring = scoresIgnored(source) == false;
+        final boolean shiftSafe = source.minScore() == null && (source.rescores() == null || source.rescores().isEmpty());
+        QueryBuilder query = source.query() == null ? null
+                : optimize(source.query(), scoring, scoring && shiftSafe, SearchSourceBuilder.QUERY_FIELD.getPreferredName());
+        QueryBuilder postFilter = source.postFilter() == null ? null
+                : optimize(source.postFilter(), false, false, SearchSourceBuilder.POST_FILTER_FIELD.getPreferredName());
+        if (query == source.query() && postFilter == source.postFilter()) {
+            return source;
+        }
+        return source.copyWithNewQuery(query).postFilter(postFilter);
+    }
+
+    /**
+     * Optimizes the given query. If nothing changed the given instance is returned.
+     *
+     * @param scoresIgnored whether the scores of the given query are ignored, e.g. because it is used as a filter
+     */
+    public QueryBuilder optimize(QueryBuilder query, boolean scoresIgnored) {
+        return optimize(query, scoresIgnored == false, scoresIgnored == false, SearchSourceBuilder.QUERY_FIELD.getPreferredName());
+    }
+
+    /**
+     * @param scoring whether the score of the query is used
+     * @param shiftSafe whether every hit has to match the query and its score is only summed into the final score
+     */
+    private QueryBuilder optimize(QueryBuilder query, boolean scoring, boolean shiftSafe, String path) {
+        if (query instanceof BoolQueryBuilder) {
+            return optimizeBool((BoolQueryBuilder) query, scoring, shiftSafe, path);
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            ConstantScoreQueryBuilder constantScore = (ConstantScoreQueryBuilder) query;
+            QueryBuilder inner = optimize(constantScore.innerQuery(), false, false,
+                    path + "." + ConstantScoreQueryBuilder.NAME + ".filter");
+            if (inner == constantScore.innerQuery()) {
+                return query;
+            }
+            return new ConstantScoreQueryBuilder(inner).boost(query.boost()).queryName(query.queryName());
+        } else if (query instanceof FunctionScoreQueryBuilder) {
+            return optimizeFunctionScore((FunctionScoreQueryBuilder) query, scoring, path);
+        }
+        return query;
+    }
+
+    private QueryBuilder optimizeBool(BoolQueryBuilder bool, boolean scoring, boolean shiftSafe, String path) {
+        final String prefix = path + "." + BoolQueryBuilder.NAME + ".";
+        // with coord, the factor applied to the score of a hit depends on the should clauses it matches, which
+        // scales a shift of the must clauses, nested ones included, differently for each hit
+        final List<QueryBuilder> boolMust = bool.must();
+        final List<QueryBuilder> boolFilter = bool.filter();
+        final List<QueryBuilder> boolMustNot = bool.mustNot();
+        final List<QueryBuilder> boolShould = bool.should();
+        final boolean coordSafe = bool.disableCoord() || boolShould.isEmpty();
+        List<QueryBuilder> must = optimizeAll(boolMust, scoring, shiftSafe && coordSafe, prefix + "must");
+        List<QueryBuilder> filter = optimizeAll(boolFilter, false, false, prefix + "filter");
+        List<QueryBuilder> mustNot = optimizeAll(boolMustNot, false, false, prefix + "must_not");
+        List<QueryBuilder> should = optimizeAll(boolShould, scoring, false, prefix + "should");
+
+        if (must.isEmpty() == false && (scoring == false || (shiftSafe && allowScoreShift && coordSafe))) {
+            List<QueryBuilder> remaining = new ArrayList<>(must.size());
+            List<QueryBuilder> moved = new ArrayList<>(filter);
+            for (int i = 0; i < must.size(); i++) {
+                QueryBuilder clause = must.get(i);
+                if (scoring && isConstantScoring(clause) == false) {
+                    remaining.add(clause);
+                    continue;
+                }
+                moved.add(clause);
+                listener.accept(new Change(prefix + "must[" + i + "]", clause,
+                        scoring ? Reason.CONSTANT_SCORE_SHIFT : Reason.SCORES_IGNORED));
+            }
+            if (remaining.size() != must.size()) {
+                must = remaining;
+                filter = moved;
+            }
+        }
+
+        if (must == boolMust && filter == boolFilter && mustNot == boolMustNot && should == boolShould) {
+            return bool;
+        }
+        return BoolQueries.copy(bool, must, filter, mustNot, should);
+    }
+
+    private QueryBuilder optimizeFunctionScore(FunctionScoreQueryBuilder functionScore, boolean scoring, String path) {
+        final String prefix = path + "." + FunctionScoreQueryBuilder.NAME + ".";
+        final FilterFunctionBuilder[] functions = functionScore.filterFunctionBuilders();
+        // min_score filters on the combined score, replace drops the query score unless a script reads it
+        boolean queryScoring = functionScore.getMinScore() != null
+                || (scoring && (functionScore.boostMode() != CombineFunction.REPLACE || functions.length == 0
+                    || hasScriptFunction(functions)));
+        QueryBuilder query = optimize(functionScore.query(), queryScoring, false, prefix + "query");
+        FilterFunctionBuilder[] newFunctions = functions;
+        for (int i = 0; i < functions.length; i++) {
+            QueryBuilder filter = optimize(functions[i].getFilter(), false, false, prefix + "functions[" + i + "].filter");
+            if (filter != functions[i].getFilter()) {
+                if (newFunctions == functions) {
+                    newFunctions = functions.clone();
+                }
+                newFunctions[i] = new FilterFunctionBuilder(filter, functions[i].getScoreFunction());
+            }
+        }
+        if (query == functionScore.query() && newFunctions == functions) {
+            return functionScore;
+        }
+        FunctionScoreQueryBuilder newBuilder = new FunctionScoreQueryBuilder(query, newFunctions)
+                .scoreMode(functionScore.scoreMode())
+                .maxBoost(functionScore.maxBoost());
+        if (functionScore.boostMode() != null) {
+            newBuilder.boostMode(functionScore.boostMode());
+        }
+        if (functionScore.getMinScore() != null) {
+            newBuilder.setMinScore(functionScore.getMinScore());
+        }
+        return newBuilder.boost(functionScore.boost()).queryName(functionScore.queryName());
+    }
+
+    private List<QueryBuilder> optimizeAll(List<QueryBuilder> queries, boolean scoring, boolean shiftSafe, String path) {
+        List<QueryBuilder> result = queries;
+        for (int i = 0; i < queries.size(); i++) {
+            QueryBuilder optimized = optimize(queries.get(i), scoring, shiftSafe, path + "[" + i + "]");
+            if (optimized != queries.get(i)) {
+                if (result == queries) {
+                    result = new ArrayList<>(queries);
+                }
+                result.set(i, optimized);
+            }
+        }
+        return result;
+    }
+
+    private static boolean hasScriptFunction(FilterFunctionBuilder[] functions) {
+        for (FilterFunctionBuilder function : functions) {
+            if (function.getScoreFunction() instanceof ScriptScoreFunctionBuilder) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isConstantScoring(QueryBuilder query) {
+        return query instanceof TermsQueryBuilder || query instanceof RangeQueryBuilder || query instanceof ExistsQueryBuilder
+                || query instanceof IdsQueryBuilder || query instanceof TypeQueryBuilder || query instanceof ConstantScoreQueryBuilder
+                || query instanceof GeoBoundingBoxQueryBuilder || query instanceof GeoDistanceQueryBuilder
+                || query instanceof GeoDistanceRangeQueryBuilder || query instanceof GeoPolygonQueryBuilder
+                || query instanceof GeoShapeQueryBuilder || query instanceof GeohashCellQuery.Builder;
+    }
+
+    public static FilterContextOptimizer optimizer() {
+        return new FilterContextOptimizer(change -> {});
+    }
+
+    public static FilterContextOptimizer optimizer(Consumer<Change> listener) {
+        return new FilterContextOptimizer(listener);
+    }
+
+    public enum Reason {
+        /** the clause was in a context whose scores are ignored */
+        SCORES_IGNORED,
+        /** the clause scored a constant for every hit, see {FilterContextOptimizer#allowScoreShift(boolean)} */
+        CONSTANT_SCORE_SHIFT
+    }
+
+    /**
+     * A clause that was moved from <code>must</code> into <code>filter</code> context.
+     */
+    public static class Change {
+        private final String path;
+        private final QueryBuilder clause;
+        private final Reason reason;
+
+        Change(String path, QueryBuilder clause, Reason reason) {
+            this.path = path;
+            this.clause = clause;
+            this.reason = reason;
+        }
+
+        /**
+         * @return the location of the clause in the original tree, e.g. <code>query.bool.must[1]</code>
+         */
+        public String path() {
+            return path;
+        }
+
+        public QueryBuilder clause() {
+            return clause;
+        }
+
+        public Reason reason() {
+            return reason;
+        }
+
+        @Override
+        public String toString() {
+            return path + " [" + clause.getName() + "] " + reason;
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.common.bytes.BytesArray;
+import org.codelibs.elasticsearch.common.bytes.BytesReference;
+import org.codelibs.elasticsearch.common.text.Text;
+import org.codelibs.elasticsearch.common.xcontent.XContentFactory;
+import org.codelibs.elasticsearch.common.xcontent.XContentType;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.slice.SliceBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plans the deep pagination of a sorted search with <code>search_after</code>, split into slices that parallel
+ * workers export independently:
+ * <pre>
+ * SearchSourceBuilder source = new SearchSourceBuilder().query(query).size(1000)
+ *         .sort("timestamp", SortOrder.ASC).sort("_uid", SortOrder.ASC);
+ * for (PaginationPlanner.Cursor cursor : PaginationPlanner.planner(source).slices(4).plan()) {
+ *     executor.execute(() -&gt; {
+ *         SearchResponse page = client.search(index, cursor.first());
+ *         while (page.hits().length &gt; 0) {
+ *             export(page);
+ *             page = client.search(index, cursor.next(page.lastHit().sortValues()));
+ *         }
+ *     });
+ * }
+ * </pre>
+ * Every {Cursor} renders the JSON body of its slice once, around a placeholder for the <code>search_after</code>
+ * values. A page only writes its sort values between the rendered prefix and suffix, so that the cost of a page
+ * doesn't depend on the size of the query, aggregations or highlighting of the search.
+ * <p>
+ * The sorts of the search must identify documents uniquely, typically by ending with a sort on <code>_uid</code>,
+ * or pages may skip or repeat documents that share the same sort values.
+ */
+public class PaginationPlanner {
+    private static final String SEARCH_AFTER_MARKER = "__pagination_planner_search_after__";
+
+    private static final byte[] SEARCH_AFTER_PLACEHOLDER = ("\"" + SearchSourceBuilder.SEARCH_AFTER.getPreferredName() + "\":[\""
+            + SEARCH_AFTER_MARKER + "\"]").getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes(StandardCharsets.US_ASCII);
+
+    private final SearchSourceBuilder source;
+
+    private volatile int slices = 1;
+
+    private volatile String sliceField;
+
+    private PaginationPlanner(SearchSourceBuilder source) {
+        if (source == null) {
+            throw new IllegalArgumentException("[source] must not be null.");
+        }
+        if (source.sorts() == null || source.sorts().isEmpty()) {
+            throw new IllegalArgumentException("[sort] must be set to paginate with search_after.");
+        }
+        if (source.from() > 0) {
+            throw new IllegalArgumentException("[from] must not be set to paginate with search_after.");
+        }
+        this.source = source;
+    }
+
+    /**
+     * Returns a planner for the given sorted search, which is not modified.
+     */
+    public static PaginationPlanner planner(SearchSourceBuilder source) {
+        return new PaginationPlanner(source);
+    }
+
+    /**
+     * Sets the number of slices, one per parallel worker. Searches are not sliced by default.
+     */
+    public PaginationPlanner slices(int slices) {
+        if (slices < 1) {
+            throw new IllegalArgumentException("[slices] must be greater than 0.");
+        }
+        this.slices = slices;
+        return this;
+    }
+
+    /**
+     * Sets the field to slice on, <code>_uid</code> by default. A numeric field with doc values is cheaper to slice on
+     * for large indices.
+     */
+    public PaginationPlanner sliceField(String sliceField) {
+        this.sliceField = sliceField;
+        return this;
+    }
+
+    /**
+     * Returns one cursor per slice.
+     */
+    public List<Cursor> plan() {
+        final int slices = this.slices;
+        final String sliceField = this.sliceField;
+        if (slices == 1) {
+            return Collections.singletonList(new Cursor(0, source));
+        }
+        final List<Cursor> cursors = new ArrayList<>(slices);
+        for (int id = 0; id < slices; id++) {
+            final SliceBuilder slice = sliceField == null ? new SliceBuilder(id, slices) : new SliceBuilder(sliceField, id, slices);
+            cursors.add(new Cursor(id, source.copyWithNewSlice(slice)));
+        }
+        return cursors;
+    }
+
+    /**
+     * The successive pages of one slice. A cursor is meant to be used by a single worker: it is not thread-safe and
+     * the bytes it returns are only valid until its next call.
+     */
+    public static final class Cursor {
+        private final int slice;
+
+        private final SearchSourceBuilder source;
+
+        private final int sortCount;
+
+        private final BytesReference first;
+
+        // buffer always starts with the rendered prefix, which ends with "search_after":[
+        private final int prefixLength;
+
+        private final byte[] suffix;
+
+        private byte[] buffer;
+
+        private int length;
+
+        private long pages;
+
+        private Cursor(int slice, SearchSourceBuilder source) {
+            this.slice = slice;
+            this.source = source;
+            this.sortCount = source.sorts().size();
+            this.first = new BytesArray(source.buildAsBytes(XContentType.JSON).toBytesRef(), true);
+
+            final BytesRef marked = source.copyWithNewSearchAfter(new Object[] { SEARCH_AFTER_MARKER })
+                    .buildAsBytes(XContentType.JSON).toBytesRef();
+            final int start = indexOf(marked, SEARCH_AFTER_PLACEHOLDER);
+            if (start < 0) {
+                throw new IllegalStateException("search_after placeholder not found in [" + marked.utf8ToString() + "]");
+            }
+            final int valuesStart = start + SEARCH_AFTER_PLACEHOLDER.length - SEARCH_AFTER_MARKER.length() - 3;
+            final int end = start + SEARCH_AFTER_PLACEHOLDER.length - 1;
+            this.prefixLength = valuesStart - marked.offset;
+            this.buffer = new byte[ArrayUtil.oversize(marked.length + 64, 1)];
+            System.arraycopy(marked.bytes, marked.offset, buffer, 0, prefixLength);
+            this.suffix = new byte[marked.offset + marked.length - end];
+            System.arraycopy(marked.bytes, end, suffix, 0, suffix.length);
+        }
+
+        private static int indexOf(BytesRef bytes, byte[] needle) {
+            final int last = bytes.offset + bytes.length - needle.length;
+            outer:
+            for (int i = bytes.offset; i <= last; i++) {
+                for (int j = 0; j < needle.length; j++) {
+                    if (bytes.bytes[i + j] != needle[j]) {
+                        continue outer;
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns the id of the slice of this cursor, <tt>0</tt> if the search is not sliced.
+         */
+        public int slice() {
+            return slice;
+        }
+
+        /**
+         * Returns the search of this slice, as rendered by {#first()}.
+         */
+        public SearchSourceBuilder source() {
+            return source;
+        }
+
+        /**
+         * Returns the number of pages returned by {#next(Object...)} so far.
+         */
+        public long pages() {
+            return pages;
+        }
+
+        /**
+         * Returns the JSON body of the first page.
+         */
+        public BytesReference first() {
+            return first;
+        }
+
+        /**
+         * Returns the JSON body of the page after the hit with the given sort values, usually the last hit of the
+         * previous page. The returned bytes are overwritten by the next call.
+         */
+        public BytesReference next(Object... sortValues) {
+            if (sortValues == null || sortValues.length != sortCount) {
+                throw new IllegalArgumentException("[search_after] must have [" + sortCount + "] values, one per sort, got "
+                        + (sortValues == null ? "none" : "[" + sortValues.length + "]") + ".");
+            }
+            length = prefixLength;
+            for (int i = 0; i < sortValues.length; i++) {
+                if (i > 0) {
+                    writeByte((byte) ',');
+                }
+                writeValue(sortValues[i]);
+            }
+            writeBytes(suffix, 0, suffix.length);
+            pages++;
+            return new BytesArray(buffer, 0, length);
+        }
+
+        private void writeValue(Object value) {
+            if (value == null) {
+                writeAscii("null");
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                writeLong(((Number) value).longValue());
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                writeAscii(((Boolean) value) ? "true" : "false");
+            } else if (value instanceof Double || value instanceof Float || value instanceof Text) {
+                // rare in sort values, rendered like SearchSourceBuilder does
+                try {
+                    final BytesRef bytes = XContentFactory.jsonBuilder().value(value).bytes().toBytesRef();
+                    writeBytes(bytes.bytes, bytes.offset, bytes.length);
+                } catch (IOException e) {
+                    throw new ElasticsearchException("Failed to render search_after value [{}]", e, value);
+                }
+            } else {
+                throw new IllegalArgumentException("Can't handle " + SearchSourceBuilder.SEARCH_AFTER + " field value of type ["
+                        + value.getClass() + "]");
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            buffer = ArrayUtil.grow(buffer, length + extra);
+        }
+
+        private void writeByte(byte b) {
+            ensureCapacity(1);
+            buffer[length++] = b;
+        }
+
+        private void writeBytes(byte[] bytes, int offset, int len) {
+            ensureCapacity(len);
+            System.arraycopy(bytes, offset, buffer, length, len);
+            length += len;
+        }
+
+        private void writeAscii(String value) {
+            ensureCapacity(value.length());
+            for (int i = 0; i < value.length(); i++) {
+                buffer[length++] = (byte) value.charAt(i);
+            }
+        }
+
+        private void writeLong(long value) {
+            if (value == Long.MIN_VALUE) {
+                writeAscii(Long.toString(value));
+                return;
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                buffer[length++] = '-';
+                value = -value;
+            }
+            final int start = length;
+            do {
+                buffer[length++] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            // digits were written from the lowest
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                final byte tmp = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = tmp;
+            }
+        }
+
+        private void writeString(String value) {
+            // at most 6 bytes per char, for escaped characters
+            ensureCapacity(2 + 6 * value.length());
+            buffer[length++] = '"';
+            for (int i = 0; i < value.length(); i++) {
+                final char c = value.charAt(i);
+                if (c < 0x80) {
+                    if (c == '"' || c == '\\') {
+                        buffer[length++] = '\\';
+                        buffer[length++] = (byte) c;
+                    } else if (c < 0x20) {
+                        writeControl(c);
+                    } else {
+                        buffer[length++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // like the JSON generator, characters out of the basic plane are written as escaped surrogates
+                    writeEscaped(c);
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            buffer[length++] = '"';
+        }
+
+        private void writeControl(char c) {
+            final byte escape;
+            switch (c) {
+                case '\b':
+                    escape = 'b';
+                    break;
+                case '\t':
+                    escape = 't';
+                    break;
+                case '\n':
+                    escape = 'n';
+                    break;
+                case '\f':
+                    escape = 'f';
+                    break;
+                case '\r':
+                    escape = 'r';
+                    break;
+                default:
+                    writeEscaped(c);
+                    return;
+            }
+            buffer[length++] = '\\';
+            buffer[length++] = escape;
+        }
+
+        private void writeEscaped(char c) {
+            buffer[length++] = '\\';
+            buffer[length++] = 'u';
+            buffer[length++] = HEX[c >> 12];
+            buffer[length++] = HEX[(c >> 8) & 0xF];
+            buffer[length++] = HEX[(c >> 4) & 0xF];
+            buffer[length++] = HEX[c & 0xF];
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PrefixCodedTerms;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.queries.TermsQuery;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SynonymQuery;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.mapper.LocalDocumentParser;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryShardContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+/**
+ * Matches documents against a set of registered queries in-process, the reverse of a search.
+ * <p>
+ * Queries are compiled once at registration through a new {QueryShardContext} built from the mapping, so date math
+ * such as <code>now</code> is resolved at the time each query is registered. Every document is indexed into a {MemoryIndex} and only the
+ * candidate queries are executed against it: for each query a set of terms is extracted of which a document must
+ * contain at least one in order to match, queries without such terms (ranges, prefixes, ...) are always executed.
+ * Batches are split into partitions that are matched in parallel on the configured executor.
+ * <p>
+ * Registration and matching may happen concurrently, a match sees the queries registered when it started.
+ * This class is thread-safe.
+ */
+public class QueryPercolator {
+    private final FieldTypeLookup fieldTypes;
+
+    private final LocalDocumentParser parser;
+
+    private final Map<String, Registered> registered = new LinkedHashMap<>();
+
+    private volatile Snapshot snapshot;
+
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private volatile LongSupplier clock = System::currentTimeMillis;
+
+    private QueryPercolator(FieldTypeLookup fieldTypes) {
+        this.fieldTypes = fieldTypes;
+        this.parser = new LocalDocumentParser(fieldTypes);
+    }
+
+    /**
+     * Sets the executor batches are matched on, the common fork join pool by default.
+     */
+    public QueryPercolator executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("[executor] must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of partitions a batch is split into, the number of processors by default.
+     */
+    public QueryPercolator parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("[parallelism] must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Sets the clock that <code>now</code> resolves to when a query is registered, the system clock by default.
+     */
+    public QueryPercolator clock(LongSupplier clock) {
+        if (clock == null) {
+            throw new IllegalArgumentException("[clock] must not be null.");
+        }
+        this.clock = clock;
+        return this;
+    }
+
+    /**
+     * Compiles and registers the given query, replacing the query previously registered with the same id.
+     *
+     * @throws IllegalArgumentException if the id or query is <tt>null</tt>
+     */
+    public synchronized QueryPercolator register(String id, QueryBuilder query) {
+        if (id == null || query == null) {
+            throw new IllegalArgumentException("[id] and [query] must not be null.");
+        }
+        final Query compiled;
+        try {
+            // a context per query, so that now is the registration time and named queries are not retained
+            compiled = query.toQuery(new QueryShardContext(fieldTypes, clock.getAsLong()));
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to compile [" + id + "].", e);
+        }
+        registered.put(id, new Registered(id, compiled, extractTerms(compiled)));
+        snapshot = null;
+        return this;
+    }
+
+    /**
+     * Removes the query with the given id.
+     *
+     * @return <tt>true</tt> if a query was registered with the id
+     */
+    public synchronized boolean unregister(String id) {
+        if (registered.remove(id) == null) {
+            return false;
+        }
+        snapshot = null;
+        return true;
+    }
+
+    /**
+     * @return the number of registered queries
+     */
+    public synchronized int size() {
+        return registered.size();
+    }
+
+    /**
+     * Returns the ids of the queries matching the given source document, in registration order.
+     */
+    public List<String> match(Map<String, ?> document) {
+        return match(snapshot(), new MemoryIndex(), parser.parse(document));
+    }
+
+    /**
+     * Returns the ids of the queries matching each of the given source documents, in registration order.
+     */
+    public List<List<String>> matchBatch(List<? extends Map<String, ?>> documents) {
+        final Snapshot snapshot = snapshot();
+        final int size = documents.size();
+        final int partitions = Math.min(parallelism, size);
+        @SuppressWarnings("unchecked")
+        final List<String>[] matches = new List[size];
+        if (partitions <= 1) {
+            matchPartition(snapshot, documents, 0, size, matches);
+            return Arrays.asList(matches);
+        }
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[partitions];
+        for (int i = 0; i < partitions; i++) {
+            final int from = (int) ((long) size * i / partitions);
+            final int to = (int) ((long) size * (i + 1) / partitions);
+            futures[i] = CompletableFuture.runAsync(() -> matchPartition(snapshot, documents, from, to, matches), executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return Arrays.asList(matches);
+    }
+
+    private void matchPartition(Snapshot snapshot, List<? extends Map<String, ?>> documents, int from, int to,
+            List<String>[] matches) {
+        final MemoryIndex index = new MemoryIndex();
+        for (int i = from; i < to; i++) {
+            matches[i] = match(snapshot, index, parser.parse(documents.get(i)));
+            index.reset();
+        }
+    }
+
+    private List<String> match(Snapshot snapshot, MemoryIndex index, List<IndexableField> fields) {
+        if (snapshot.ids.length == 0) {
+            return Collections.emptyList();
+        }
+        for (IndexableField field : fields) {
+            final boolean analyzed = field.fieldType().indexOptions() != IndexOptions.NONE && field.fieldType().tokenized();
+            index.addField(field, analyzed ? parser.indexAnalyzer() : null);
+        }
+        final IndexSearcher searcher = index.createSearcher();
+        searcher.setQueryCache(null);
+        try {
+            final FixedBitSet candidates = snapshot.verifyAlways.clone();
+            final LeafReader reader = searcher.getIndexReader().leaves().get(0).reader();
+            for (String field : reader.fields()) {
+                final Map<BytesRef, int[]> queriesByTerm = snapshot.queriesByTerm.get(field);
+                final Terms terms = reader.terms(field);
+                if (queriesByTerm == null || terms == null) {
+                    continue;
+                }
+                final TermsEnum termsEnum = terms.iterator();
+                for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                    final int[] slots = queriesByTerm.get(term);
+                    if (slots != null) {
+                        for (int slot : slots) {
+                            candidates.set(slot);
+                        }
+                    }
+                }
+            }
+            final List<String> matches = new ArrayList<>();
+            for (int slot = candidates.nextSetBit(0); slot < snapshot.ids.length;
+                    slot = slot + 1 < snapshot.ids.length ? candidates.nextSetBit(slot + 1) : Integer.MAX_VALUE) {
+                if (searcher.count(snapshot.queries[slot]) > 0) {
+                    matches.add(snapshot.ids[slot]);
+                }
+            }
+            return matches;
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to match document.", e);
+        }
+    }
+
+    private Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = new Snapshot(registered.values());
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public static QueryPercolator percolator(FieldTypeLookup fieldTypes) {
+        return new QueryPercolator(fieldTypes);
+    }
+
+    /**
+     * Returns terms of which a document must contain at least one to match the given query, or <tt>null</tt> if
+     * there are no such terms and the query must always be executed.
+     */
+    static Set<Term> extractTerms(Query query) {
+        if (query instanceof TermQuery) {
+            return Collections.singleton(((TermQuery) query).getTerm());
+        } else if (query instanceof BoostQuery) {
+            return extractTerms(((BoostQuery) query).getQuery());
+        } else if (query instanceof ConstantScoreQuery) {
+            return extractTerms(((ConstantScoreQuery) query).getQuery());
+        } else if (query instanceof MatchNoDocsQuery
+                || query instanceof org.codelibs.elasticsearch.common.lucene.search.MatchNoDocsQuery) {
+            return Collections.emptySet();
+        } else if (query instanceof TermsQuery) {
+            Set<Term> terms = new HashSet<>();
+            PrefixCodedTerms.TermIterator iterator = ((TermsQuery) query).getTermData().iterator();
+            for (BytesRef term = iterator.next(); term != null; term = iterator.next()) {
+                terms.add(new Term(iterator.field(), BytesRef.deepCopyOf(term)));
+            }
+            return terms;
+        } else if (query instanceof SynonymQuery) {
+            return new HashSet<>(((SynonymQuery) query).getTerms());
+        } else if (query instanceof PhraseQuery) {
+            // every term is required, the longest one is likely the rarest
+            Term longest = null;
+            for (Term term : ((PhraseQuery) query).getTerms()) {
+                if (longest == null || term.bytes().length > longest.bytes().length) {
+                    longest = term;
+                }
+            }
+            return longest == null ? Collections.emptySet() : Collections.singleton(longest);
+        } else if (query instanceof DisjunctionMaxQuery) {
+            return union(((DisjunctionMaxQuery) query).getDisjuncts());
+        } else if (query instanceof BooleanQuery) {
+            List<Query> required = new ArrayList<>();
+            List<Query> optional = new ArrayList<>();
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.isRequired()) {
+                    required.add(clause.getQuery());
+                } else if (clause.getOccur() == BooleanClause.Occur.SHOULD) {
+                    optional.add(clause.getQuery());
+                }
+            }
+            if (required.isEmpty()) {
+                // at least one optional clause must match, a pure negative query matches nothing
+                return union(optional);
+            }
+            Set<Term> best = null;
+            for (Query clause : required) {
+                Set<Term> terms = extractTerms(clause);
+                if (terms != null && (best == null || shortestTermLength(terms) > shortestTermLength(best))) {
+                    best = terms;
+                }
+            }
+            return best;
+        }
+        return null;
+    }
+
+    private static Set<Term> union(Iterable<Query> queries) {
+        Set<Term> union = new HashSet<>();
+        for (Query query : queries) {
+            Set<Term> terms = extractTerms(query);
+            if (terms == null) {
+                return null;
+            }
+            union.addAll(terms);
+        }
+        return union;
+    }
+
+    private static int shortestTermLength(Set<Term> terms) {
+        int shortest = Integer.MAX_VALUE;
+        for (Term term : terms) {
+            shortest = Math.min(shortest, term.bytes().length);
+        }
+        return shortest;
+    }
+
+    private static final class Registered {
+        private final String id;
+
+        private final Query query;
+
+        private final Set<Term> terms;
+
+        Registered(String id, Query query, Set<Term> terms) {
+            this.id = id;
+            this.query = query;
+            this.terms = terms;
+        }
+    }
+
+    private static final class Snapshot {
+        private final String[] ids;
+
+        private final Query[] queries;
+
+        private final FixedBitSet verifyAlways;
+
+        private final Map<String, Map<BytesRef, int[]>> queriesByTerm = new HashMap<>();
+
+        Snapshot(Iterable<Registered> registered) {
+            List<String> ids = new ArrayList<>();
+            List<Query> queries = new ArrayList<>();
+            List<Integer> verifyAlways = new ArrayList<>();
+            Map<String, Map<BytesRef, List<Integer>>> slotsByTerm = new HashMap<>();
+            for (Registered query : registered) {
+                final int slot = ids.size();
+                ids.add(query.id);
+                queries.add(query.query);
+                if (query.terms == null) {
+                    verifyAlways.add(slot);
+                    continue;
+                }
+                for (Term term : query.terms) {
+                    slotsByTerm.computeIfAbsent(term.field(), f -> new HashMap<>())
+                            .computeIfAbsent(term.bytes(), t -> new ArrayList<>()).add(slot);
+                }
+            }
+            this.ids = ids.toArray(new String[ids.size()]);
+            this.queries = queries.toArray(new Query[queries.size()]);
+            this.verifyAlways = new FixedBitSet(Math.max(this.ids.length, 1));
+            for (int slot : verifyAlways) {
+                this.verifyAlways.set(slot);
+            }
+            for (Map.Entry<String, Map<BytesRef, List<Integer>>> field : slotsByTerm.entrySet()) {
+                Map<BytesRef, int[]> terms = new HashMap<>();
+                for (Map.Entry<BytesRef, List<Integer>> term : field.getValue().entrySet()) {
+                    terms.put(term.getKey(), term.getValue().stream().mapToInt(Integer::intValue).toArray());
+                }
+                queriesByTerm.put(field.getKey(), terms);
+            }
+        }
+    }
+}
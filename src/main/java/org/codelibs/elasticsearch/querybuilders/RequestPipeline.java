@@ -0,0 +1,523 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.common.bytes.BytesReference;
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.codelibs.elasticsearch.common.xcontent.ToXContent;
+import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
+import org.codelibs.elasticsearch.common.xcontent.XContentFactory;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+/**
+ * Turns a stream of inputs into <code>_msearch</code> request bodies, building, optimizing and serializing the
+ * searches in parallel:
+ * <pre>
+ * RequestPipeline&lt;String[]&gt; pipeline = RequestPipeline.pipeline((String[] row) -&gt; new SearchSourceBuilder()
+ *         .query(QueryBuilders.termQuery("id", row[0])))
+ *         .optimizer(FilterContextOptimizer.optimizer()::optimize).batchSize(200);
+ * pipeline.run(rows, batch -&gt; client.msearch(batch.body()));
+ * </pre>
+ * Inputs are read on the calling thread and grouped into batches of {#batchSize(int)} inputs. Each batch is
+ * processed as one task on the configured executor, which only needs to accept tasks: a fork join pool, a fixed
+ * thread pool or a virtual thread per task executor, as tasks neither block nor use thread locals. At most
+ * {#maxPendingBatches(int)} batches are processed or wait for the sink at a time, the calling thread stops reading
+ * inputs until the oldest one is handed over. Batches are handed to the sink on the calling thread in input order,
+ * so a sink sending each batch synchronously slows reading down to the pace of the cluster.
+ * <p>
+ * The time spent in each {Stage} and the throughput of the pipeline are accumulated in {#stats()}, which may be
+ * read while a run is in progress. This class is thread-safe, several runs may share a pipeline.
+ */
+public class RequestPipeline<T> {
+    private static final String DEFAULT_HEADER = "{}";
+
+    private final Function<? super T, SearchSourceBuilder> builder;
+
+    private volatile UnaryOperator<SearchSourceBuilder> optimizer = UnaryOperator.identity();
+
+    private volatile Function<? super T, String> header = input -> DEFAULT_HEADER;
+
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    private volatile int batchSize = 100;
+
+    private volatile int maxPendingBatches = 2 * Runtime.getRuntime().availableProcessors();
+
+    private volatile BiConsumer<? super T, ? super Exception> failureHandler;
+
+    private final Metrics metrics = new Metrics();
+
+    private RequestPipeline(Function<? super T, SearchSourceBuilder> builder) {
+        if (builder == null) {
+            throw new IllegalArgumentException("[builder] must not be null.");
+        }
+        this.builder = builder;
+    }
+
+    /**
+     * Sets the function applied to each built search before it is serialized, e.g. a
+     * {FilterContextOptimizer} or a {ClauseLimitRewriter}. The function is called concurrently.
+     */
+    public RequestPipeline<T> optimizer(UnaryOperator<SearchSourceBuilder> optimizer) {
+        if (optimizer == null) {
+            throw new IllegalArgumentException("[optimizer] must not be null.");
+        }
+        this.optimizer = optimizer;
+        return this;
+    }
+
+    /**
+     * Sets the function returning the <code>_msearch</code> header line of each input, e.g.
+     * <code>{"index":"users"}</code>, <code>{}</code> by default. The function is called concurrently.
+     */
+    public RequestPipeline<T> header(Function<? super T, String> header) {
+        if (header == null) {
+            throw new IllegalArgumentException("[header] must not be null.");
+        }
+        this.header = header;
+        return this;
+    }
+
+    /**
+     * Sets the executor batches are processed on, the common fork join pool by default.
+     */
+    public RequestPipeline<T> executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("[executor] must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of searches of a batch, <code>100</code> by default.
+     */
+    public RequestPipeline<T> batchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("[batchSize] must be greater than 0: " + batchSize);
+        }
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    public int batchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Sets the maximum number of batches in progress or waiting for the sink, twice the number of processors by
+     * default. This bounds the memory of a run to about that many serialized batches.
+     */
+    public RequestPipeline<T> maxPendingBatches(int maxPendingBatches) {
+        if (maxPendingBatches < 1) {
+            throw new IllegalArgumentException("[maxPendingBatches] must be greater than 0: " + maxPendingBatches);
+        }
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+    }
+
+    public int maxPendingBatches() {
+        return maxPendingBatches;
+    }
+
+    /**
+     * Sets the handler of inputs that failed to build, optimize or serialize, which are left out of their batch.
+     * The handler is called on the calling thread before the batch is handed to the sink. Without a handler, the
+     * first failure aborts the run.
+     */
+    public RequestPipeline<T> onFailure(BiConsumer<? super T, ? super Exception> failureHandler) {
+        this.failureHandler = failureHandler;
+        return this;
+    }
+
+    /**
+     * Processes the given inputs and hands the resulting batches to the given sink, returning once the last batch
+     * has been handed over.
+     *
+     * @return the number of searches handed to the sink
+     */
+    public long run(Stream<? extends T> inputs, Consumer<? super Batch<T>> sink) {
+        return run(inputs.iterator(), sink);
+    }
+
+    /**
+     * Processes the given inputs and hands the resulting batches to the given sink, returning once the last batch
+     * has been handed over.
+     *
+     * @return the number of searches handed to the sink
+     */
+    public long run(Iterator<? extends T> inputs, Consumer<? super Batch<T>> sink) {
+        final int batchSize = this.batchSize;
+        final int maxPendingBatches = this.maxPendingBatches;
+        final Executor executor = this.executor;
+        final ArrayDeque<CompletableFuture<Batch<T>>> pending = new ArrayDeque<>(maxPendingBatches);
+        final long start = System.nanoTime();
+        long count = 0;
+        try {
+            List<T> chunk = new ArrayList<>(batchSize);
+            while (inputs.hasNext()) {
+                chunk.add(inputs.next());
+                if (chunk.size() == batchSize || inputs.hasNext() == false) {
+                    if (pending.size() == maxPendingBatches) {
+                        count += deliver(pending.poll(), sink);
+                    }
+                    final List<T> batch = chunk;
+                    pending.add(CompletableFuture.supplyAsync(() -> process(batch), executor));
+                    chunk = new ArrayList<>(batchSize);
+                }
+            }
+            while (pending.isEmpty() == false) {
+                count += deliver(pending.poll(), sink);
+            }
+        } finally {
+            for (CompletableFuture<Batch<T>> future : pending) {
+                future.cancel(false);
+            }
+            metrics.elapsed.add(System.nanoTime() - start);
+        }
+        return count;
+    }
+
+    private int deliver(CompletableFuture<Batch<T>> future, Consumer<? super Batch<T>> sink) {
+        final long start = System.nanoTime();
+        final Batch<T> batch;
+        try {
+            batch = future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            metrics.blocked.add(System.nanoTime() - start);
+        }
+        final BiConsumer<? super T, ? super Exception> failureHandler = this.failureHandler;
+        for (int i = 0; i < batch.failed.size(); i++) {
+            metrics.failures.increment();
+            if (failureHandler == null) {
+                throw new ElasticsearchException("Failed to process input [{}]", batch.failures.get(i), batch.failed.get(i));
+            }
+            failureHandler.accept(batch.failed.get(i), batch.failures.get(i));
+        }
+        if (batch.size() > 0) {
+            final long sinkStart = System.nanoTime();
+            sink.accept(batch);
+            final long nanos = System.nanoTime() - sinkStart;
+            metrics.record(Stage.SINK, 1, nanos, nanos);
+            metrics.batches.increment();
+            metrics.requests.add(batch.size());
+        }
+        return batch.size();
+    }
+
+    private Batch<T> process(List<T> chunk) {
+        final Function<? super T, String> header = this.header;
+        final UnaryOperator<SearchSourceBuilder> optimizer = this.optimizer;
+        final BytesStreamOutput out = new BytesStreamOutput();
+        final List<T> inputs = new ArrayList<>(chunk.size());
+        final List<T> failed = new ArrayList<>(0);
+        final List<Exception> failures = new ArrayList<>(0);
+        // timings are summed up per batch to keep contended updates of the metrics out of the loop
+        final long[] counts = new long[Stage.values().length];
+        final long[] times = new long[counts.length];
+        final long[] maxTimes = new long[counts.length];
+        for (T input : chunk) {
+            final int mark = out.size();
+            try {
+                long start = System.nanoTime();
+                SearchSourceBuilder source = builder.apply(input);
+                long end = System.nanoTime();
+                time(Stage.BUILD, end - start, counts, times, maxTimes);
+                start = end;
+                source = optimizer.apply(source);
+                end = System.nanoTime();
+                time(Stage.OPTIMIZE, end - start, counts, times, maxTimes);
+                start = end;
+                writeLine(out, header.apply(input));
+                try (XContentBuilder content = XContentFactory.jsonBuilder(out)) {
+                    source.toXContent(content, ToXContent.EMPTY_PARAMS);
+                }
+                out.writeByte((byte) '\n');
+                time(Stage.SERIALIZE, System.nanoTime() - start, counts, times, maxTimes);
+                inputs.add(input);
+            } catch (Exception e) {
+                out.seek(mark);
+                failed.add(input);
+                failures.add(e);
+            }
+        }
+        for (Stage stage : Stage.values()) {
+            final int i = stage.ordinal();
+            if (counts[i] > 0) {
+                metrics.record(stage, counts[i], times[i], maxTimes[i]);
+            }
+        }
+        return new Batch<>(inputs, out.bytes(), failed, failures);
+    }
+
+    private static void time(Stage stage, long nanos, long[] counts, long[] times, long[] maxTimes) {
+        final int i = stage.ordinal();
+        counts[i]++;
+        times[i] += nanos;
+        maxTimes[i] = Math.max(maxTimes[i], nanos);
+    }
+
+    private static void writeLine(BytesStreamOutput out, String header) throws IOException {
+        if (header.indexOf('\n') >= 0 || header.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("[header] must be a single line: " + header);
+        }
+        final byte[] bytes = header.getBytes(StandardCharsets.UTF_8);
+        out.writeBytes(bytes, 0, bytes.length);
+        out.writeByte((byte) '\n');
+    }
+
+    /**
+     * Returns the metrics accumulated by all runs of this pipeline so far.
+     */
+    public Stats stats() {
+        return metrics.stats();
+    }
+
+    /**
+     * Returns a pipeline building the search of each input with the given function, which is called concurrently.
+     */
+    public static <T> RequestPipeline<T> pipeline(Function<? super T, SearchSourceBuilder> builder) {
+        return new RequestPipeline<>(builder);
+    }
+
+    /**
+     * A part of the work of a pipeline, timed separately.
+     */
+    public enum Stage {
+        /** Applying the builder function to an input. */
+        BUILD,
+        /** Applying the optimizer to a search. */
+        OPTIMIZE,
+        /** Writing the header line and the search to the body of a batch. */
+        SERIALIZE,
+        /** Handing a batch to the sink. */
+        SINK
+    }
+
+    /**
+     * A <code>_msearch</code> request body along the inputs of its searches, in the same order as the responses.
+     */
+    public static final class Batch<T> {
+        private final List<T> inputs;
+
+        private final BytesReference body;
+
+        private final List<T> failed;
+
+        private final List<Exception> failures;
+
+        private Batch(List<T> inputs, BytesReference body, List<T> failed, List<Exception> failures) {
+            this.inputs = Collections.unmodifiableList(inputs);
+            this.body = body;
+            this.failed = failed;
+            this.failures = failures;
+        }
+
+        public List<T> inputs() {
+            return inputs;
+        }
+
+        /**
+         * Returns the newline delimited header and search lines of the batch.
+         */
+        public BytesReference body() {
+            return body;
+        }
+
+        public int size() {
+            return inputs.size();
+        }
+
+        @Override
+        public String toString() {
+            return body.utf8ToString();
+        }
+    }
+
+    /**
+     * The latency of a {Stage}: the number of times it ran and the time it took.
+     */
+    public static final class StageStats {
+        private final long count;
+
+        private final long totalNanos;
+
+        private final long maxNanos;
+
+        private StageStats(long count, long totalNanos, long maxNanos) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        public long maxNanos() {
+            return maxNanos;
+        }
+
+        public double meanNanos() {
+            return count == 0 ? 0.0 : (double) totalNanos / count;
+        }
+
+        /**
+         * Returns the number of runs per second of a single thread busy with this stage.
+         */
+        public double throughput() {
+            return totalNanos == 0 ? 0.0 : count * 1_000_000_000.0 / totalNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) meanNanos() + "ns, max=" + maxNanos + "ns";
+        }
+    }
+
+    /**
+     * A snapshot of the metrics of a pipeline.
+     */
+    public static final class Stats {
+        private final long requests;
+
+        private final long batches;
+
+        private final long failures;
+
+        private final long elapsedNanos;
+
+        private final long blockedNanos;
+
+        private final Map<Stage, StageStats> stages;
+
+        private Stats(long requests, long batches, long failures, long elapsedNanos, long blockedNanos,
+                Map<Stage, StageStats> stages) {
+            this.requests = requests;
+            this.batches = batches;
+            this.failures = failures;
+            this.elapsedNanos = elapsedNanos;
+            this.blockedNanos = blockedNanos;
+            this.stages = stages;
+        }
+
+        /**
+         * Returns the number of searches handed to sinks.
+         */
+        public long requests() {
+            return requests;
+        }
+
+        public long batches() {
+            return batches;
+        }
+
+        public long failures() {
+            return failures;
+        }
+
+        /**
+         * Returns the wall time spent in completed runs.
+         */
+        public long elapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /**
+         * Returns the time calling threads waited for batches to be processed, long if the executor is the
+         * bottleneck and short if the sink is.
+         */
+        public long blockedNanos() {
+            return blockedNanos;
+        }
+
+        public StageStats stage(Stage stage) {
+            return stages.get(stage);
+        }
+
+        /**
+         * Returns the number of searches handed to sinks per second of completed runs.
+         */
+        public double requestsPerSecond() {
+            return elapsedNanos == 0 ? 0.0 : requests * 1_000_000_000.0 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + requests + ", batches=" + batches + ", failures=" + failures + ", elapsed=" + elapsedNanos
+                    + "ns, blocked=" + blockedNanos + "ns, stages=" + stages;
+        }
+    }
+
+    private static final class Metrics {
+        private final LongAdder requests = new LongAdder();
+
+        private final LongAdder batches = new LongAdder();
+
+        private final LongAdder failures = new LongAdder();
+
+        private final LongAdder elapsed = new LongAdder();
+
+        private final LongAdder blocked = new LongAdder();
+
+        private final LongAdder[] counts = new LongAdder[Stage.values().length];
+
+        private final LongAdder[] times = new LongAdder[counts.length];
+
+        private final LongAccumulator[] maxTimes = new LongAccumulator[counts.length];
+
+        Metrics() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = new LongAdder();
+                times[i] = new LongAdder();
+                maxTimes[i] = new LongAccumulator(Math::max, 0);
+            }
+        }
+
+        void record(Stage stage, long count, long totalNanos, long maxNanos) {
+            final int i = stage.ordinal();
+            counts[i].add(count);
+            times[i].add(totalNanos);
+            maxTimes[i].accumulate(maxNanos);
+        }
+
+        Stats stats() {
+            final Map<Stage, StageStats> stages = new EnumMap<>(Stage.class);
+            for (Stage stage : Stage.values()) {
+                final int i = stage.ordinal();
+                stages.put(stage, new StageStats(counts[i].sum(), times[i].sum(), maxTimes[i].get()));
+            }
+            return new Stats(requests.sum(), batches.sum(), failures.sum(), elapsed.sum(), blocked.sum(),
+                    Collections.unmodifiableMap(stages));
+        }
+    }
+}
@@ -24,9 +24,14 @@ import java.util.List;
 import java.util.function.Supplier;
 
 public class SearchDslBuilder {
-    public SearchSourceBuilder searchSourceBuilder = new SearchSourceBuilder();
+    public SearchSourceBuilder searchSourceBuilder;
 
     private SearchDslBuilder() {
+        this(new SearchSourceBuilder());
+    }
+
+    SearchDslBuilder(SearchSourceBuilder searchSourceBuilder) {
+        this.searchSourceBuilder = searchSourceBuilder;
     }
 
     public SearchDslBuilder query(Supplier<QueryBuilder> query) {
@@ -226,6 +231,14 @@ public class SearchDslBuilder {
     }
 
 
+    /**
+     * Returns an immutable copy of the request built so far, which can be shared between threads and derived into
+     * variants with its <code>with</code> methods. Later changes to this builder do not affect the snapshot.
+     */
+    public SearchDslSnapshot snapshot() {
+        return new SearchDslSnapshot(searchSourceBuilder.deepCopy());
+    }
+
     public String build() {
         try {
             return XContentHelper.convertToJson(searchSourceBuilder.buildAsBytes(), true);
@@ -0,0 +1,170 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.common.bytes.BytesReference;
+import org.codelibs.elasticsearch.common.xcontent.XContentHelper;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregatorFactories;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.sort.SortBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable search request definition taken with {SearchDslBuilder#snapshot()}, that can be shared between
+ * threads and derived into variants without locks:
+ * <pre>
+ * SearchDslSnapshot template = SearchDslBuilder.builder().query(query).aggregation(terms).size(20).snapshot();
+ * // on any thread
+ * String page = template.withFrom(100).withSearchAfter(lastSortValues).build();
+ * </pre>
+ * A <code>with</code> method copies the top-level sections of the request by reference and replaces only the one
+ * it changes, so that a variant costs a few allocations whatever the size of the sections it keeps. Builders are
+ * deep copied when they enter or leave a snapshot: the sections given to a <code>with</code> method and the ones
+ * returned by the getters can be modified without affecting the snapshot, and {#toBuilder()} returns a deep copy
+ * of the whole request.
+ */
+public final class SearchDslSnapshot {
+    private final SearchSourceBuilder source;
+
+    /**
+     * @param source a source no other object references, which is never modified from then on
+     */
+    SearchDslSnapshot(SearchSourceBuilder source) {
+        this.source = source;
+    }
+
+    /**
+     * Returns a snapshot with the given query.
+     */
+    public SearchDslSnapshot withQuery(QueryBuilder query) {
+        return new SearchDslSnapshot(source.copyWithNewQuery(query == null ? null : query.deepCopy()));
+    }
+
+    /**
+     * Returns a snapshot with the given from index.
+     */
+    public SearchDslSnapshot withFrom(int from) {
+        return new SearchDslSnapshot(source.copyWithNewFromSize(from, source.size()));
+    }
+
+    /**
+     * Returns a snapshot with the given number of hits.
+     */
+    public SearchDslSnapshot withSize(int size) {
+        return new SearchDslSnapshot(source.copyWithNewFromSize(source.from(), size));
+    }
+
+    /**
+     * Returns a snapshot with the given from index and number of hits.
+     */
+    public SearchDslSnapshot withFromSize(int from, int size) {
+        return new SearchDslSnapshot(source.copyWithNewFromSize(from, size));
+    }
+
+    /**
+     * Returns a snapshot sorted by the given sorts instead of the sorts of this snapshot, by score if none.
+     */
+    public SearchDslSnapshot withSort(SortBuilder<?>... sorts) {
+        return new SearchDslSnapshot(source.copyWithNewSorts(sorts.length == 0 ? null : copySorts(Arrays.asList(sorts))));
+    }
+
+    /**
+     * Returns a snapshot searching after the given sort values, or from the start if <code>null</code>.
+     */
+    public SearchDslSnapshot withSearchAfter(Object... values) {
+        return new SearchDslSnapshot(source.copyWithNewSearchAfter(values == null ? null : values.clone()));
+    }
+
+    /**
+     * Returns a snapshot with the given aggregations instead of the aggregations of this snapshot.
+     */
+    public SearchDslSnapshot withAggregations(AggregationBuilder... aggregations) {
+        AggregatorFactories.Builder builder = null;
+        if (aggregations.length > 0) {
+            builder = AggregatorFactories.builder();
+            for (AggregationBuilder aggregation : aggregations) {
+                builder.addAggregator(aggregation.deepCopy());
+            }
+        }
+        return new SearchDslSnapshot(source.copyWithNewAggregations(builder));
+    }
+
+    /**
+     * Returns a snapshot with the aggregations of this snapshot and the given one.
+     */
+    public SearchDslSnapshot withAggregation(AggregationBuilder aggregation) {
+        final AggregatorFactories.Builder builder = AggregatorFactories.builder();
+        final AggregatorFactories.Builder aggregations = source.aggregations();
+        if (aggregations != null) {
+            aggregations.getAggregatorFactories().forEach(builder::addAggregator);
+            aggregations.getPipelineAggregatorFactories().forEach(builder::addPipelineAggregator);
+        }
+        builder.addAggregator(aggregation.deepCopy());
+        return new SearchDslSnapshot(source.copyWithNewAggregations(builder));
+    }
+
+    /**
+     * Returns a deep copy of the query of this snapshot.
+     */
+    public QueryBuilder query() {
+        return source.query() == null ? null : source.query().deepCopy();
+    }
+
+    public int from() {
+        return source.from();
+    }
+
+    public int size() {
+        return source.size();
+    }
+
+    /**
+     * Returns deep copies of the sorts of this snapshot.
+     */
+    public List<SortBuilder<?>> sorts() {
+        return source.sorts() == null ? Collections.emptyList() : copySorts(source.sorts());
+    }
+
+    private static List<SortBuilder<?>> copySorts(List<SortBuilder<?>> sorts) {
+        final List<SortBuilder<?>> copies = new ArrayList<>(sorts.size());
+        for (SortBuilder<?> sort : sorts) {
+            copies.add(sort.deepCopy());
+        }
+        return Collections.unmodifiableList(copies);
+    }
+
+    public Object[] searchAfter() {
+        final Object[] values = source.searchAfter();
+        return values == null ? null : values.clone();
+    }
+
+    /**
+     * Returns a mutable builder initialized with a deep copy of this snapshot.
+     */
+    public SearchDslBuilder toBuilder() {
+        return new SearchDslBuilder(source.deepCopy());
+    }
+
+    public BytesReference buildAsBytes() {
+        return source.buildAsBytes();
+    }
+
+    public String build() {
+        try {
+            return XContentHelper.convertToJson(source.buildAsBytes(), true);
+        } catch (IOException e) {
+            throw new ElasticsearchException("Failed to build source.", e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source.toString();
+    }
+}
@@ -0,0 +1,473 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CollectionUtil;
+import org.codelibs.elasticsearch.common.joda.FormatDateTimeFormatter;
+import org.codelibs.elasticsearch.common.joda.Joda;
+import org.codelibs.elasticsearch.common.rounding.Rounding;
+import org.codelibs.elasticsearch.index.mapper.DateFieldMapper;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filter.InternalFilter;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.FiltersAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.FiltersAggregator;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.InternalFilters;
+import org.codelibs.elasticsearch.search.aggregations.bucket.global.GlobalAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.global.InternalGlobal;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.InternalDateHistogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.InternalHistogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.missing.InternalMissing;
+import org.codelibs.elasticsearch.search.aggregations.bucket.missing.MissingAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.AbstractRangeBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.InternalRange;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.Range;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.date.DateRangeAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.UnmappedTerms;
+import org.codelibs.elasticsearch.search.aggregations.metrics.max.InternalMax;
+import org.codelibs.elasticsearch.search.aggregations.metrics.max.MaxAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.min.InternalMin;
+import org.codelibs.elasticsearch.search.aggregations.metrics.min.MinAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.InternalStats;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.StatsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.SumAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.valuecount.InternalValueCount;
+import org.codelibs.elasticsearch.search.aggregations.metrics.valuecount.ValueCountAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.codelibs.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+import org.joda.time.DateTimeZone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Decodes the <code>aggregations</code> section of a search response into the {InternalAggregation}s it was
+ * rendered from. JSON does not carry the type of aggregations, so the response is decoded along the builders of
+ * the request.
+ * <p>
+ * Only aggregations whose response holds all the state needed to reduce them are supported: <code>terms</code>,
+ * <code>histogram</code>, <code>date_histogram</code>, <code>range</code>, <code>date_range</code>,
+ * <code>filter</code>, <code>filters</code>, <code>global</code>, <code>missing</code>, <code>sum</code>,
+ * <code>min</code>, <code>max</code>, <code>stats</code> and <code>value_count</code>. The response of an
+ * <code>avg</code> lacks its count, the ones of <code>cardinality</code> and <code>percentiles</code> lack their
+ * sketch.
+ */
+final class AggregationResponseDecoder {
+    private static final List<PipelineAggregator> NO_PIPELINE_AGGREGATORS = Collections.emptyList();
+
+    private final LongSupplier now;
+
+    AggregationResponseDecoder(LongSupplier now) {
+        this.now = now;
+    }
+
+    /**
+     * Checks that the given aggregations and their sub-aggregations can be decoded.
+     *
+     * @throws IllegalArgumentException if one of them is not supported
+     */
+    static void validate(List<AggregationBuilder> aggregations) {
+        for (AggregationBuilder aggregation : aggregations) {
+            if (aggregation.getPipelineAggregations().isEmpty() == false) {
+                throw new IllegalArgumentException("Pipeline aggregations of [" + aggregation.getName()
+                        + "] cannot be reduced across responses");
+            }
+            if (aggregation instanceof TermsAggregationBuilder || aggregation instanceof HistogramAggregationBuilder
+                    || aggregation instanceof DateHistogramAggregationBuilder || aggregation instanceof AbstractRangeBuilder
+                    || aggregation instanceof FilterAggregationBuilder || aggregation instanceof FiltersAggregationBuilder
+                    || aggregation instanceof GlobalAggregationBuilder || aggregation instanceof MissingAggregationBuilder
+                    || aggregation instanceof SumAggregationBuilder || aggregation instanceof MinAggregationBuilder
+                    || aggregation instanceof MaxAggregationBuilder || aggregation instanceof StatsAggregationBuilder
+                    || aggregation instanceof ValueCountAggregationBuilder) {
+                validate(aggregation.getSubAggregations());
+            } else {
+                throw new IllegalArgumentException("Aggregation [" + aggregation.getName() + "] of type ["
+                        + aggregation.getWriteableName() + "] cannot be reduced across responses");
+            }
+        }
+    }
+
+    /**
+     * Decodes the given aggregations from the given <code>aggregations</code> object of a response. An aggregation
+     * that is absent from the response is decoded as if no document was collected.
+     */
+    InternalAggregations decode(List<AggregationBuilder> aggregations, Map<String, ?> response) {
+        final List<InternalAggregation> decoded = new ArrayList<>(aggregations.size());
+        for (AggregationBuilder aggregation : aggregations) {
+            final Object value = response == null ? null : response.get(aggregation.getName());
+            if (value == null) {
+                decoded.add(empty(aggregation));
+            } else if (value instanceof Map) {
+                decoded.add(decode(aggregation, asMap(value, aggregation.getName())));
+            } else {
+                throw new IllegalArgumentException("Aggregation [" + aggregation.getName() + "] must be an object: " + value);
+            }
+        }
+        return new InternalAggregations(decoded);
+    }
+
+    private InternalAggregation decode(AggregationBuilder aggregation, Map<String, ?> response) {
+        final String name = aggregation.getName();
+        final Map<String, Object> metaData = aggregation.getMetaData();
+        if (aggregation instanceof TermsAggregationBuilder) {
+            return decodeTerms((TermsAggregationBuilder) aggregation, response);
+        } else if (aggregation instanceof HistogramAggregationBuilder) {
+            final HistogramAggregationBuilder histogram = (HistogramAggregationBuilder) aggregation;
+            final DocValueFormat format = numberFormat(histogram);
+            final List<Map<String, ?>> responseBuckets = buckets(response, name);
+            // the reduce phase merges the buckets of responses by ascending key
+            CollectionUtil.timSort(responseBuckets,
+                    (a, b) -> Double.compare(doubleValue(a, "key", Double.NaN, name), doubleValue(b, "key", Double.NaN, name)));
+            final List<InternalHistogram.Bucket> buckets = new ArrayList<>(responseBuckets.size());
+            for (Map<String, ?> bucket : responseBuckets) {
+                buckets.add(new InternalHistogram.Bucket(doubleValue(bucket, "key", Double.NaN, name), docCount(bucket, name),
+                        histogram.keyed(), format, decode(aggregation.getSubAggregations(), bucket)));
+            }
+            return new InternalHistogram(name, buckets, histogram.order(), histogram.minDocCount(), emptyBucketInfo(histogram),
+                    format, histogram.keyed(), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof DateHistogramAggregationBuilder) {
+            final DateHistogramAggregationBuilder histogram = (DateHistogramAggregationBuilder) aggregation;
+            final DocValueFormat format = dateFormat(histogram);
+            final List<Map<String, ?>> responseBuckets = buckets(response, name);
+            // the reduce phase merges the buckets of responses by ascending key
+            CollectionUtil.timSort(responseBuckets, (a, b) -> Long.compare(longValue(a, "key", name), longValue(b, "key", name)));
+            final List<InternalDateHistogram.Bucket> buckets = new ArrayList<>(responseBuckets.size());
+            for (Map<String, ?> bucket : responseBuckets) {
+                buckets.add(new InternalDateHistogram.Bucket(longValue(bucket, "key", name), docCount(bucket, name),
+                        histogram.keyed(), format, decode(aggregation.getSubAggregations(), bucket)));
+            }
+            return new InternalDateHistogram(name, buckets, histogram.order(), histogram.minDocCount(),
+                    (long) histogram.offset(), emptyBucketInfo(histogram, format), format, histogram.keyed(),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof AbstractRangeBuilder) {
+            return decodeRange((AbstractRangeBuilder<?, ?>) aggregation, response);
+        } else if (aggregation instanceof FilterAggregationBuilder) {
+            return new InternalFilter(name, docCount(response, name), decode(aggregation.getSubAggregations(), response),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof FiltersAggregationBuilder) {
+            final FiltersAggregationBuilder filters = (FiltersAggregationBuilder) aggregation;
+            final List<String> keys = filtersKeys(filters);
+            final List<Map<String, ?>> responseBuckets = buckets(response, name);
+            if (filters.keyed() == false && responseBuckets.size() != keys.size()) {
+                throw new IllegalArgumentException("Aggregation [" + name + "] must have " + keys.size() + " buckets: "
+                        + responseBuckets.size());
+            }
+            final List<InternalFilters.InternalBucket> buckets = new ArrayList<>(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                final Map<String, ?> bucket = filters.keyed() ? keyedBucket(response, keys.get(i), name) : responseBuckets.get(i);
+                buckets.add(new InternalFilters.InternalBucket(keys.get(i), docCount(bucket, name),
+                        decode(aggregation.getSubAggregations(), bucket), filters.keyed()));
+            }
+            return new InternalFilters(name, buckets, filters.keyed(), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof GlobalAggregationBuilder) {
+            return new InternalGlobal(name, docCount(response, name), decode(aggregation.getSubAggregations(), response),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MissingAggregationBuilder) {
+            return new InternalMissing(name, docCount(response, name), decode(aggregation.getSubAggregations(), response),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof SumAggregationBuilder) {
+            return new InternalSum(name, doubleValue(response, "value", 0, name), numberFormat((SumAggregationBuilder) aggregation),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MinAggregationBuilder) {
+            return new InternalMin(name, doubleValue(response, "value", Double.POSITIVE_INFINITY, name),
+                    numberFormat((MinAggregationBuilder) aggregation), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MaxAggregationBuilder) {
+            return new InternalMax(name, doubleValue(response, "value", Double.NEGATIVE_INFINITY, name),
+                    numberFormat((MaxAggregationBuilder) aggregation), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof StatsAggregationBuilder) {
+            return new InternalStats(name, longValue(response, "count", name), doubleValue(response, "sum", 0, name),
+                    doubleValue(response, "min", Double.POSITIVE_INFINITY, name),
+                    doubleValue(response, "max", Double.NEGATIVE_INFINITY, name),
+                    numberFormat((StatsAggregationBuilder) aggregation), NO_PIPELINE_AGGREGATORS, metaData);
+        } else {
+            return new InternalValueCount(name, longValue(response, "value", name), NO_PIPELINE_AGGREGATORS, metaData);
+        }
+    }
+
+    private InternalAggregation decodeTerms(TermsAggregationBuilder terms, Map<String, ?> response) {
+        final String name = terms.getName();
+        final List<Map<String, ?>> responseBuckets = buckets(response, name);
+        if (responseBuckets.isEmpty()) {
+            return emptyTerms(terms);
+        }
+        final long docCountError = longValue(response, "doc_count_error_upper_bound", 0, name);
+        final long otherDocCount = longValue(response, "sum_other_doc_count", 0, name);
+        // a response without other documents is complete, so reducing it must not add a truncation error
+        final int shardSize = otherDocCount == 0 ? Math.max(terms.size(), responseBuckets.size() + 1) : terms.size();
+        final Object firstKey = responseBuckets.get(0).get("key");
+        if (firstKey instanceof Number) {
+            final boolean floatingPoint = firstKey instanceof Double || firstKey instanceof Float;
+            final DocValueFormat format = termsFormat(terms, responseBuckets.get(0), floatingPoint);
+            if (floatingPoint) {
+                final List<DoubleTerms.Bucket> buckets = new ArrayList<>(responseBuckets.size());
+                for (Map<String, ?> bucket : responseBuckets) {
+                    buckets.add(new DoubleTerms.Bucket(doubleValue(bucket, "key", Double.NaN, name), docCount(bucket, name),
+                            decode(terms.getSubAggregations(), bucket), terms.showTermDocCountError(),
+                            longValue(bucket, "doc_count_error_upper_bound", docCountError, name), format));
+                }
+                return new DoubleTerms(name, terms.order(), terms.size(), terms.minDocCount(), NO_PIPELINE_AGGREGATORS,
+                        terms.getMetaData(), format, shardSize, terms.showTermDocCountError(), otherDocCount, buckets,
+                        docCountError);
+            }
+            final List<LongTerms.Bucket> buckets = new ArrayList<>(responseBuckets.size());
+            for (Map<String, ?> bucket : responseBuckets) {
+                buckets.add(new LongTerms.Bucket(longValue(bucket, "key", name), docCount(bucket, name),
+                        decode(terms.getSubAggregations(), bucket), terms.showTermDocCountError(),
+                        longValue(bucket, "doc_count_error_upper_bound", docCountError, name), format));
+            }
+            return new LongTerms(name, terms.order(), terms.size(), terms.minDocCount(), NO_PIPELINE_AGGREGATORS,
+                    terms.getMetaData(), format, shardSize, terms.showTermDocCountError(), otherDocCount, buckets, docCountError);
+        }
+        final List<StringTerms.Bucket> buckets = new ArrayList<>(responseBuckets.size());
+        for (Map<String, ?> bucket : responseBuckets) {
+            final Object key = bucket.get("key");
+            if (key == null) {
+                throw new IllegalArgumentException("A bucket of aggregation [" + name + "] has no key");
+            }
+            buckets.add(new StringTerms.Bucket(new BytesRef(key.toString()), docCount(bucket, name),
+                    decode(terms.getSubAggregations(), bucket), terms.showTermDocCountError(),
+                    longValue(bucket, "doc_count_error_upper_bound", docCountError, name), DocValueFormat.RAW));
+        }
+        return new StringTerms(name, terms.order(), terms.size(), terms.minDocCount(), NO_PIPELINE_AGGREGATORS,
+                terms.getMetaData(), DocValueFormat.RAW, shardSize, terms.showTermDocCountError(), otherDocCount, buckets,
+                docCountError);
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private InternalAggregation decodeRange(AbstractRangeBuilder<?, ?> range, Map<String, ?> response) {
+        final String name = range.getName();
+        final InternalRange.Factory factory = range.rangeFactory();
+        final DocValueFormat format = range instanceof DateRangeAggregationBuilder ? dateFormat(range) : numberFormat(range);
+        final List<Range.Bucket> buckets = new ArrayList<>();
+        if (range.keyed()) {
+            // keyed buckets are rendered in the order of the ranges, which is the order of the reduce
+            for (Map.Entry<String, ?> entry : asMap(response.get("buckets"), name).entrySet()) {
+                final Map<String, ?> bucket = asMap(entry.getValue(), name);
+                buckets.add(factory.createBucket(entry.getKey(), doubleValue(bucket, "from", Double.NEGATIVE_INFINITY, name),
+                        doubleValue(bucket, "to", Double.POSITIVE_INFINITY, name), docCount(bucket, name),
+                        decode(range.getSubAggregations(), bucket), true, format));
+            }
+        } else {
+            for (Map<String, ?> bucket : buckets(response, name)) {
+                final Object key = bucket.get("key");
+                buckets.add(factory.createBucket(key == null ? null : key.toString(),
+                        doubleValue(bucket, "from", Double.NEGATIVE_INFINITY, name),
+                        doubleValue(bucket, "to", Double.POSITIVE_INFINITY, name), docCount(bucket, name),
+                        decode(range.getSubAggregations(), bucket), false, format));
+            }
+        }
+        if (buckets.size() != range.ranges().size()) {
+            throw new IllegalArgumentException("Aggregation [" + name + "] must have " + range.ranges().size() + " buckets: "
+                    + buckets.size());
+        }
+        return factory.create(name, buckets, format, range.keyed(), NO_PIPELINE_AGGREGATORS, range.getMetaData());
+    }
+
+    /**
+     * Returns the result of the given aggregation when no document was collected.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private InternalAggregation empty(AggregationBuilder aggregation) {
+        final String name = aggregation.getName();
+        final Map<String, Object> metaData = aggregation.getMetaData();
+        if (aggregation instanceof TermsAggregationBuilder) {
+            return emptyTerms((TermsAggregationBuilder) aggregation);
+        } else if (aggregation instanceof HistogramAggregationBuilder) {
+            final HistogramAggregationBuilder histogram = (HistogramAggregationBuilder) aggregation;
+            return new InternalHistogram(name, Collections.emptyList(), histogram.order(), histogram.minDocCount(),
+                    emptyBucketInfo(histogram), numberFormat(histogram), histogram.keyed(), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof DateHistogramAggregationBuilder) {
+            final DateHistogramAggregationBuilder histogram = (DateHistogramAggregationBuilder) aggregation;
+            final DocValueFormat format = dateFormat(histogram);
+            return new InternalDateHistogram(name, Collections.emptyList(), histogram.order(), histogram.minDocCount(),
+                    (long) histogram.offset(), emptyBucketInfo(histogram, format), format, histogram.keyed(),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof AbstractRangeBuilder) {
+            final AbstractRangeBuilder<?, ?> range = (AbstractRangeBuilder<?, ?>) aggregation;
+            final InternalRange.Factory factory = range.rangeFactory();
+            final DocValueFormat format = range instanceof DateRangeAggregationBuilder ? dateFormat(range) : numberFormat(range);
+            final InternalAggregations subAggregations = empty(aggregation.getSubAggregations());
+            final List<Range.Bucket> buckets = new ArrayList<>();
+            for (RangeAggregator.Range r : range.processRanges(format, now)) {
+                buckets.add(factory.createBucket(r.getKey(), r.getFrom(), r.getTo(), 0, subAggregations, range.keyed(), format));
+            }
+            return factory.create(name, buckets, format, range.keyed(), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof FilterAggregationBuilder) {
+            return new InternalFilter(name, 0, empty(aggregation.getSubAggregations()), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof FiltersAggregationBuilder) {
+            final FiltersAggregationBuilder filters = (FiltersAggregationBuilder) aggregation;
+            final InternalAggregations subAggregations = empty(aggregation.getSubAggregations());
+            final List<InternalFilters.InternalBucket> buckets = new ArrayList<>();
+            for (String key : filtersKeys(filters)) {
+                buckets.add(new InternalFilters.InternalBucket(key, 0, subAggregations, filters.keyed()));
+            }
+            return new InternalFilters(name, buckets, filters.keyed(), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof GlobalAggregationBuilder) {
+            return new InternalGlobal(name, 0, empty(aggregation.getSubAggregations()), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MissingAggregationBuilder) {
+            return new InternalMissing(name, 0, empty(aggregation.getSubAggregations()), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof SumAggregationBuilder) {
+            return new InternalSum(name, 0, numberFormat((SumAggregationBuilder) aggregation), NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MinAggregationBuilder) {
+            return new InternalMin(name, Double.POSITIVE_INFINITY, numberFormat((MinAggregationBuilder) aggregation),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof MaxAggregationBuilder) {
+            return new InternalMax(name, Double.NEGATIVE_INFINITY, numberFormat((MaxAggregationBuilder) aggregation),
+                    NO_PIPELINE_AGGREGATORS, metaData);
+        } else if (aggregation instanceof StatsAggregationBuilder) {
+            return new InternalStats(name, 0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                    numberFormat((StatsAggregationBuilder) aggregation), NO_PIPELINE_AGGREGATORS, metaData);
+        } else {
+            return new InternalValueCount(name, 0, NO_PIPELINE_AGGREGATORS, metaData);
+        }
+    }
+
+    private InternalAggregations empty(List<AggregationBuilder> aggregations) {
+        return decode(aggregations, null);
+    }
+
+    private static InternalAggregation emptyTerms(TermsAggregationBuilder terms) {
+        return new UnmappedTerms(terms.getName(), terms.order(), terms.size(), terms.minDocCount(), NO_PIPELINE_AGGREGATORS,
+                terms.getMetaData());
+    }
+
+    private InternalHistogram.EmptyBucketInfo emptyBucketInfo(HistogramAggregationBuilder histogram) {
+        if (histogram.minDocCount() != 0) {
+            return null;
+        }
+        return new InternalHistogram.EmptyBucketInfo(histogram.interval(), histogram.offset(), histogram.minBound(),
+                histogram.maxBound(), empty(histogram.getSubAggregations()));
+    }
+
+    private InternalDateHistogram.EmptyBucketInfo emptyBucketInfo(DateHistogramAggregationBuilder histogram, DocValueFormat format) {
+        if (histogram.minDocCount() != 0) {
+            return null;
+        }
+        final Rounding rounding = histogram.createRounding();
+        final ExtendedBounds bounds = histogram.extendedBounds() == null ? null
+                : histogram.extendedBounds().parseAndValidate(histogram.getName(), now, format).round(rounding);
+        return new InternalDateHistogram.EmptyBucketInfo(rounding, empty(histogram.getSubAggregations()), bounds);
+    }
+
+    private static List<String> filtersKeys(FiltersAggregationBuilder filters) {
+        final List<String> keys = new ArrayList<>();
+        for (FiltersAggregator.KeyedFilter filter : filters.filters()) {
+            keys.add(filter.key());
+        }
+        if (filters.otherBucket()) {
+            keys.add(filters.otherBucketKey());
+        }
+        return keys;
+    }
+
+    private static DocValueFormat numberFormat(ValuesSourceAggregationBuilder<?, ?> aggregation) {
+        return aggregation.format() == null ? DocValueFormat.RAW : new DocValueFormat.Decimal(aggregation.format());
+    }
+
+    private static DocValueFormat dateFormat(ValuesSourceAggregationBuilder<?, ?> aggregation) {
+        final FormatDateTimeFormatter formatter = aggregation.format() == null ? DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER
+                : Joda.forPattern(aggregation.format());
+        return new DocValueFormat.DateTime(formatter, aggregation.timeZone() == null ? DateTimeZone.UTC : aggregation.timeZone());
+    }
+
+    /**
+     * Returns the format of numeric terms given their first bucket: without custom format, keys are only rendered
+     * as strings for booleans and dates.
+     */
+    private static DocValueFormat termsFormat(TermsAggregationBuilder terms, Map<String, ?> bucket, boolean floatingPoint) {
+        final Object keyAsString = bucket.get("key_as_string");
+        if (keyAsString == null) {
+            return numberFormat(terms);
+        } else if ("true".equals(keyAsString) || "false".equals(keyAsString)) {
+            return DocValueFormat.BOOLEAN;
+        } else if (terms.format() != null) {
+            final DocValueFormat format = numberFormat(terms);
+            final Number key = (Number) bucket.get("key");
+            final String formatted = floatingPoint ? format.format(key.doubleValue()) : format.format(key.longValue());
+            if (formatted.equals(keyAsString)) {
+                return format;
+            }
+        }
+        return dateFormat(terms);
+    }
+
+    private static List<Map<String, ?>> buckets(Map<String, ?> response, String name) {
+        final Object buckets = response.get("buckets");
+        if (buckets == null) {
+            return Collections.emptyList();
+        }
+        final List<Map<String, ?>> list = new ArrayList<>();
+        if (buckets instanceof Map) {
+            for (Object bucket : ((Map<?, ?>) buckets).values()) {
+                list.add(asMap(bucket, name));
+            }
+        } else if (buckets instanceof List) {
+            for (Object bucket : (List<?>) buckets) {
+                list.add(asMap(bucket, name));
+            }
+        } else {
+            throw new IllegalArgumentException("The buckets of aggregation [" + name + "] must be an array or an object: "
+                    + buckets);
+        }
+        return list;
+    }
+
+    private static Map<String, ?> keyedBucket(Map<String, ?> response, String key, String name) {
+        final Object bucket = asMap(response.get("buckets"), name).get(key);
+        if (bucket == null) {
+            throw new IllegalArgumentException("Aggregation [" + name + "] has no bucket [" + key + "]");
+        }
+        return asMap(bucket, name);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> asMap(Object value, String name) {
+        if (value instanceof Map == false) {
+            throw new IllegalArgumentException("Aggregation [" + name + "] must be an object: " + value);
+        }
+        return (Map<String, ?>) value;
+    }
+
+    private static long docCount(Map<String, ?> bucket, String name) {
+        return longValue(bucket, "doc_count", name);
+    }
+
+    private static long longValue(Map<String, ?> map, String field, String name) {
+        final Object value = map.get(field);
+        if (value instanceof Number == false) {
+            throw new IllegalArgumentException("[" + field + "] of aggregation [" + name + "] must be a number: " + value);
+        }
+        return ((Number) value).longValue();
+    }
+
+    private static long longValue(Map<String, ?> map, String field, long defaultValue, String name) {
+        return map.get(field) == null ? defaultValue : longValue(map, field, name);
+    }
+
+    private static double doubleValue(Map<String, ?> map, String field, double defaultValue, String name) {
+        final Object value = map.get(field);
+        if (value == null) {
+            if (Double.isNaN(defaultValue)) {
+                throw new IllegalArgumentException("[" + field + "] of aggregation [" + name + "] is missing");
+            }
+            return defaultValue;
+        } else if (value instanceof Number == false) {
+            throw new IllegalArgumentException("[" + field + "] of aggregation [" + name + "] must be a number: " + value);
+        }
+        return ((Number) value).doubleValue();
+    }
+}
@@ -0,0 +1,225 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.common.joda.Joda;
+import org.codelibs.elasticsearch.common.lucene.BytesRefs;
+import org.codelibs.elasticsearch.common.lucene.search.Queries;
+import org.codelibs.elasticsearch.common.regex.Regex;
+import org.codelibs.elasticsearch.index.mapper.DateFieldMapper;
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ExistsQueryBuilder;
+import org.codelibs.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.codelibs.elasticsearch.index.query.MatchNoneQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.RangeQueryBuilder;
+import org.codelibs.elasticsearch.index.query.TermQueryBuilder;
+import org.codelibs.elasticsearch.index.query.TermsQueryBuilder;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Evaluates filter queries against the columns of a {ColumnarBatch}. Only the queries that can be answered from
+ * the values of single-valued columns are supported: <code>match_all</code>, <code>match_none</code>,
+ * <code>term</code>, <code>terms</code>, <code>range</code>, <code>exists</code>, <code>bool</code> and
+ * <code>constant_score</code>.
+ */
+final class ColumnFilter {
+    private final ColumnarBatch batch;
+
+    private final LongSupplier now;
+
+    ColumnFilter(ColumnarBatch batch, LongSupplier now) {
+        this.batch = batch;
+        this.now = now;
+    }
+
+    /**
+     * Returns the documents of the batch matching the given query.
+     *
+     * @throws IllegalArgumentException if the query is not supported
+     */
+    FixedBitSet matches(QueryBuilder query) {
+        final int numDocs = batch.numDocs();
+        final FixedBitSet bits = new FixedBitSet(numDocs);
+        if (query instanceof MatchAllQueryBuilder) {
+            bits.set(0, numDocs);
+        } else if (query instanceof MatchNoneQueryBuilder) {
+            // nothing matches
+        } else if (query instanceof ConstantScoreQueryBuilder) {
+            return matches(((ConstantScoreQueryBuilder) query).innerQuery());
+        } else if (query instanceof TermQueryBuilder) {
+            final TermQueryBuilder term = (TermQueryBuilder) query;
+            matchValues(term.fieldName(), new Object[] { term.value() }, bits);
+        } else if (query instanceof TermsQueryBuilder) {
+            final TermsQueryBuilder terms = (TermsQueryBuilder) query;
+            matchValues(terms.fieldName(), terms.values().toArray(), bits);
+        } else if (query instanceof RangeQueryBuilder) {
+            matchRange((RangeQueryBuilder) query, bits);
+        } else if (query instanceof ExistsQueryBuilder) {
+            final String pattern = ((ExistsQueryBuilder) query).fieldName();
+            for (String field : batch.fields()) {
+                if (Regex.simpleMatch(pattern, field) || field.startsWith(pattern + ".")) {
+                    final ColumnarBatch.Column column = batch.column(field);
+                    for (int doc = 0; doc < numDocs; doc++) {
+                        if (column.hasValue(doc)) {
+                            bits.set(doc);
+                        }
+                    }
+                }
+            }
+        } else if (query instanceof BoolQueryBuilder) {
+            return matchBool((BoolQueryBuilder) query);
+        } else {
+            throw new IllegalArgumentException("Query [" + (query == null ? null : query.getName())
+                    + "] is not supported by local aggregations");
+        }
+        return bits;
+    }
+
+    private FixedBitSet matchBool(BoolQueryBuilder query) {
+        final int numDocs = batch.numDocs();
+        final FixedBitSet bits = new FixedBitSet(numDocs);
+        bits.set(0, numDocs);
+        final List<QueryBuilder> should = query.should();
+        boolean required = false;
+        for (List<QueryBuilder> clauses : Arrays.asList(query.must(), query.filter())) {
+            for (QueryBuilder clause : clauses) {
+                bits.and(matches(clause));
+                required = true;
+            }
+        }
+        for (QueryBuilder clause : query.mustNot()) {
+            bits.andNot(matches(clause));
+        }
+        int minimumShouldMatch = required ? 0 : 1;
+        if (query.minimumShouldMatch() != null) {
+            minimumShouldMatch = Queries.calculateMinShouldMatch(should.size(), query.minimumShouldMatch());
+        }
+        if (should.isEmpty() || minimumShouldMatch <= 0) {
+            return bits;
+        }
+        if (minimumShouldMatch > should.size()) {
+            bits.clear(0, numDocs);
+            return bits;
+        }
+        final int[] counts = new int[numDocs];
+        for (QueryBuilder clause : should) {
+            final FixedBitSet clauseBits = matches(clause);
+            for (int doc = 0; doc < numDocs; doc++) {
+                if (clauseBits.get(doc)) {
+                    counts[doc]++;
+                }
+            }
+        }
+        for (int doc = 0; doc < numDocs; doc++) {
+            if (counts[doc] < minimumShouldMatch) {
+                bits.clear(doc);
+            }
+        }
+        return bits;
+    }
+
+    private void matchValues(String field, Object[] values, FixedBitSet bits) {
+        final ColumnarBatch.Column column = batch.column(field);
+        final int numDocs = batch.numDocs();
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            final ColumnarBatch.KeywordColumn keywords = (ColumnarBatch.KeywordColumn) column;
+            final FixedBitSet ords = new FixedBitSet(keywords.valueCount());
+            for (Object value : values) {
+                final int ord = keywords.lookupTerm(BytesRefs.toBytesRef(value));
+                if (ord >= 0) {
+                    ords.set(ord);
+                }
+            }
+            for (int doc = 0; doc < numDocs; doc++) {
+                final int ord = keywords.ords[doc];
+                if (ord >= 0 && ords.get(ord)) {
+                    bits.set(doc);
+                }
+            }
+        } else if (column instanceof ColumnarBatch.NumericColumn) {
+            final ColumnarBatch.NumericColumn numbers = (ColumnarBatch.NumericColumn) column;
+            final double[] parsed = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                parsed[i] = parse(numbers, numbers.format(), values[i], false);
+            }
+            Arrays.sort(parsed);
+            for (int doc = 0; doc < numDocs; doc++) {
+                if (numbers.hasValue(doc) && Arrays.binarySearch(parsed, numbers.doubleValue(doc)) >= 0) {
+                    bits.set(doc);
+                }
+            }
+        }
+    }
+
+    private void matchRange(RangeQueryBuilder query, FixedBitSet bits) {
+        final ColumnarBatch.Column column = batch.column(query.fieldName());
+        final int numDocs = batch.numDocs();
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            final ColumnarBatch.KeywordColumn keywords = (ColumnarBatch.KeywordColumn) column;
+            int minOrd = 0;
+            int maxOrd = keywords.valueCount() - 1;
+            if (query.from() != null) {
+                final int ord = keywords.lookupTerm(BytesRefs.toBytesRef(query.from()));
+                minOrd = ord >= 0 ? (query.includeLower() ? ord : ord + 1) : -1 - ord;
+            }
+            if (query.to() != null) {
+                final int ord = keywords.lookupTerm(BytesRefs.toBytesRef(query.to()));
+                maxOrd = ord >= 0 ? (query.includeUpper() ? ord : ord - 1) : -2 - ord;
+            }
+            for (int doc = 0; doc < numDocs; doc++) {
+                final int ord = keywords.ords[doc];
+                if (ord >= minOrd && ord <= maxOrd) {
+                    bits.set(doc);
+                }
+            }
+        } else if (column instanceof ColumnarBatch.NumericColumn) {
+            final ColumnarBatch.NumericColumn numbers = (ColumnarBatch.NumericColumn) column;
+            DocValueFormat format = numbers.format();
+            if (query.format() != null || query.timeZone() != null) {
+                if (format instanceof DocValueFormat.DateTime == false) {
+                    throw new IllegalArgumentException("[range] query on field [" + query.fieldName()
+                            + "] of a numeric column does not support [format] and [time_zone]");
+                }
+                format = new DocValueFormat.DateTime(
+                        query.format() == null ? DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER : Joda.forPattern(query.format()),
+                        query.timeZone() == null ? DateTimeZone.UTC : DateTimeZone.forID(query.timeZone()));
+            }
+            double from = Double.NEGATIVE_INFINITY;
+            double to = Double.POSITIVE_INFINITY;
+            if (query.from() != null) {
+                from = parse(numbers, format, query.from(), query.includeLower() == false);
+            }
+            if (query.to() != null) {
+                to = parse(numbers, format, query.to(), query.includeUpper());
+            }
+            final boolean includeLower = query.includeLower();
+            final boolean includeUpper = query.includeUpper();
+            for (int doc = 0; doc < numDocs; doc++) {
+                if (numbers.hasValue(doc)) {
+                    final double value = numbers.doubleValue(doc);
+                    if ((includeLower ? value >= from : value > from) && (includeUpper ? value <= to : value < to)) {
+                        bits.set(doc);
+                    }
+                }
+            }
+        }
+    }
+
+    private double parse(ColumnarBatch.NumericColumn column, DocValueFormat format, Object value, boolean roundUp) {
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        final String string = value instanceof BytesRef ? ((BytesRef) value).utf8ToString() : value.toString();
+        if (format instanceof DocValueFormat.DateTime) {
+            return format.parseLong(string, roundUp, now);
+        }
+        return column.isFloatingPoint() ? Double.parseDouble(string) : Long.parseLong(string);
+    }
+}
@@ -0,0 +1,530 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.common.joda.FormatDateTimeFormatter;
+import org.codelibs.elasticsearch.common.joda.Joda;
+import org.codelibs.elasticsearch.common.lucene.BytesRefs;
+import org.codelibs.elasticsearch.index.mapper.DateFieldMapper;
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.mapper.KeywordFieldMapper;
+import org.codelibs.elasticsearch.index.mapper.MappedFieldType;
+import org.codelibs.elasticsearch.index.mapper.NumberFieldMapper;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable batch of documents stored column by column in primitive arrays, the input of a
+ * {LocalAggregationEngine}.
+ * <p>
+ * Each column holds at most one value per document: <code>long</code>, <code>double</code> and date columns keep
+ * their values in arrays indexed by document, keyword columns keep the ordinal of each value in a sorted dictionary
+ * of the distinct values. Missing values are recorded in a bit set. This class is thread-safe.
+ */
+public final class ColumnarBatch {
+    private final int numDocs;
+
+    private final Map<String, Column> columns;
+
+    private ColumnarBatch(int numDocs, Map<String, Column> columns) {
+        this.numDocs = numDocs;
+        this.columns = Collections.unmodifiableMap(columns);
+    }
+
+    /**
+     * @return the number of documents in this batch
+     */
+    public int numDocs() {
+        return numDocs;
+    }
+
+    /**
+     * Returns the column of the given field, or <tt>null</tt> if no document has a value for it.
+     */
+    public Column column(String field) {
+        return columns.get(field);
+    }
+
+    /**
+     * @return the names of the columns of this batch
+     */
+    public Set<String> fields() {
+        return columns.keySet();
+    }
+
+    public static Builder builder(int numDocs) {
+        return new Builder(numDocs);
+    }
+
+    /**
+     * Builds a batch from source documents. Objects are flattened to dotted field names and each field mapped as
+     * <code>keyword</code>, <code>date</code> or a numeric type becomes a column, other and unmapped fields are
+     * ignored. Integral numbers are stored as <code>long</code>, floating point numbers as <code>double</code>.
+     *
+     * @throws IllegalArgumentException if a field has several values or a value that its type cannot parse
+     */
+    public static ColumnarBatch fromDocuments(FieldTypeLookup fieldTypes, List<? extends Map<String, ?>> documents) {
+        final int numDocs = documents.size();
+        final Map<String, Object[]> values = new LinkedHashMap<>();
+        for (int doc = 0; doc < numDocs; doc++) {
+            flatten("", documents.get(doc), doc, numDocs, fieldTypes, values);
+        }
+        final Builder builder = new Builder(numDocs);
+        for (Map.Entry<String, Object[]> entry : values.entrySet()) {
+            final String field = entry.getKey();
+            final MappedFieldType fieldType = fieldTypes.get(field);
+            final Object[] fieldValues = entry.getValue();
+            try {
+                if (fieldType instanceof KeywordFieldMapper.KeywordFieldType) {
+                    final String[] strings = new String[numDocs];
+                    for (int doc = 0; doc < numDocs; doc++) {
+                        strings[doc] = fieldValues[doc] == null ? null : fieldValues[doc].toString();
+                    }
+                    builder.addKeywords(field, strings);
+                } else if (fieldType instanceof DateFieldMapper.DateFieldType) {
+                    final FormatDateTimeFormatter formatter = ((DateFieldMapper.DateFieldType) fieldType).dateTimeFormatter();
+                    final long[] millis = new long[numDocs];
+                    final FixedBitSet present = new FixedBitSet(numDocs);
+                    for (int doc = 0; doc < numDocs; doc++) {
+                        final Object value = fieldValues[doc];
+                        if (value != null) {
+                            millis[doc] = value instanceof Number ? ((Number) value).longValue()
+                                    : formatter.parser().parseMillis(value.toString());
+                            present.set(doc);
+                        }
+                    }
+                    builder.addDates(field, millis, present, formatter);
+                } else if (isFloatingPoint(fieldType)) {
+                    final double[] doubles = new double[numDocs];
+                    final FixedBitSet present = new FixedBitSet(numDocs);
+                    for (int doc = 0; doc < numDocs; doc++) {
+                        final Object value = fieldValues[doc];
+                        if (value != null) {
+                            doubles[doc] = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+                            present.set(doc);
+                        }
+                    }
+                    builder.addDoubles(field, doubles, present);
+                } else {
+                    final long[] longs = new long[numDocs];
+                    final FixedBitSet present = new FixedBitSet(numDocs);
+                    for (int doc = 0; doc < numDocs; doc++) {
+                        final Object value = fieldValues[doc];
+                        if (value != null) {
+                            longs[doc] = value instanceof Number ? ((Number) value).longValue() : Long.parseLong(value.toString());
+                            present.set(doc);
+                        }
+                    }
+                    builder.addLongs(field, longs, present);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Failed to parse the values of [" + field + "]", e);
+            }
+        }
+        return builder.build();
+    }
+
+    private static void flatten(String prefix, Map<?, ?> object, int doc, int numDocs, FieldTypeLookup fieldTypes,
+            Map<String, Object[]> values) {
+        for (Map.Entry<?, ?> entry : object.entrySet()) {
+            final String name = prefix + entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Map) {
+                flatten(name + ".", (Map<?, ?>) value, doc, numDocs, fieldTypes, values);
+                continue;
+            }
+            if (value instanceof List) {
+                final List<?> list = (List<?>) value;
+                if (list.size() > 1) {
+                    throw new IllegalArgumentException("Field [" + name + "] has " + list.size()
+                            + " values, only single-valued fields are supported");
+                }
+                value = list.isEmpty() ? null : list.get(0);
+            }
+            final MappedFieldType fieldType = fieldTypes.get(name);
+            if (value == null || isColumnType(fieldType) == false) {
+                continue;
+            }
+            Object[] fieldValues = values.get(name);
+            if (fieldValues == null) {
+                fieldValues = new Object[numDocs];
+                values.put(name, fieldValues);
+            }
+            fieldValues[doc] = value;
+        }
+    }
+
+    private static boolean isColumnType(MappedFieldType fieldType) {
+        return fieldType instanceof KeywordFieldMapper.KeywordFieldType || fieldType instanceof DateFieldMapper.DateFieldType
+                || fieldType instanceof NumberFieldMapper.NumberFieldType;
+    }
+
+    private static boolean isFloatingPoint(MappedFieldType fieldType) {
+        switch (fieldType.typeName()) {
+        case "double":
+        case "float":
+        case "half_float":
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * The values of one field.
+     */
+    public abstract static class Column {
+        private final String name;
+
+        final FixedBitSet present;
+
+        Column(String name, FixedBitSet present) {
+            this.name = name;
+            this.present = present;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Returns whether the given document has a value.
+         */
+        public boolean hasValue(int doc) {
+            return present == null || present.get(doc);
+        }
+
+        /**
+         * @return the format of the values in aggregation results
+         */
+        public abstract DocValueFormat format();
+
+        /**
+         * Returns the format of the values with the given pattern and time zone, like
+         * {MappedFieldType#docValueFormat(String, DateTimeZone)}.
+         */
+        DocValueFormat format(String format, DateTimeZone timeZone) {
+            if (format != null) {
+                throw new IllegalArgumentException("Field [" + name + "] does not support custom formats");
+            }
+            if (timeZone != null) {
+                throw new IllegalArgumentException("Field [" + name + "] does not support custom time zones");
+            }
+            return format();
+        }
+
+        /**
+         * Returns a column in which the documents without a value have the given value.
+         */
+        abstract Column withMissing(Object missing);
+    }
+
+    /**
+     * A column of <code>long</code> or <code>double</code> values.
+     */
+    public abstract static class NumericColumn extends Column {
+        NumericColumn(String name, FixedBitSet present) {
+            super(name, present);
+        }
+
+        /**
+         * Returns the value of the given document, which must have one.
+         */
+        public abstract double doubleValue(int doc);
+
+        /**
+         * @return whether the values are floating point numbers
+         */
+        public abstract boolean isFloatingPoint();
+
+        @Override
+        DocValueFormat format(String format, DateTimeZone timeZone) {
+            if (timeZone != null) {
+                throw new IllegalArgumentException("Field [" + name() + "] does not support custom time zones");
+            }
+            return format == null ? DocValueFormat.RAW : new DocValueFormat.Decimal(format);
+        }
+    }
+
+    /**
+     * A column of <code>long</code> values or of dates in milliseconds since the epoch.
+     */
+    public static final class LongColumn extends NumericColumn {
+        final long[] values;
+
+        private final FormatDateTimeFormatter dateFormatter;
+
+        LongColumn(String name, long[] values, FixedBitSet present, FormatDateTimeFormatter dateFormatter) {
+            super(name, present);
+            this.values = values;
+            this.dateFormatter = dateFormatter;
+        }
+
+        public long longValue(int doc) {
+            return values[doc];
+        }
+
+        @Override
+        public double doubleValue(int doc) {
+            return values[doc];
+        }
+
+        @Override
+        public boolean isFloatingPoint() {
+            return false;
+        }
+
+        /**
+         * @return whether the values are dates
+         */
+        public boolean isDate() {
+            return dateFormatter != null;
+        }
+
+        @Override
+        public DocValueFormat format() {
+            return dateFormatter == null ? DocValueFormat.RAW : new DocValueFormat.DateTime(dateFormatter, DateTimeZone.UTC);
+        }
+
+        @Override
+        DocValueFormat format(String format, DateTimeZone timeZone) {
+            if (dateFormatter == null) {
+                return super.format(format, timeZone);
+            }
+            return new DocValueFormat.DateTime(format == null ? dateFormatter : Joda.forPattern(format),
+                    timeZone == null ? DateTimeZone.UTC : timeZone);
+        }
+
+        @Override
+        LongColumn withMissing(Object missing) {
+            final long value;
+            if (missing instanceof Number) {
+                value = ((Number) missing).longValue();
+            } else if (dateFormatter != null) {
+                value = dateFormatter.parser().parseMillis(missing.toString());
+            } else {
+                value = Long.parseLong(missing.toString());
+            }
+            final long[] filled = values.clone();
+            for (int doc = 0; doc < filled.length; doc++) {
+                if (hasValue(doc) == false) {
+                    filled[doc] = value;
+                }
+            }
+            return new LongColumn(name(), filled, null, dateFormatter);
+        }
+    }
+
+    /**
+     * A column of <code>double</code> values.
+     */
+    public static final class DoubleColumn extends NumericColumn {
+        final double[] values;
+
+        DoubleColumn(String name, double[] values, FixedBitSet present) {
+            super(name, present);
+            this.values = values;
+        }
+
+        @Override
+        public double doubleValue(int doc) {
+            return values[doc];
+        }
+
+        @Override
+        public boolean isFloatingPoint() {
+            return true;
+        }
+
+        @Override
+        public DocValueFormat format() {
+            return DocValueFormat.RAW;
+        }
+
+        @Override
+        DoubleColumn withMissing(Object missing) {
+            final double value = missing instanceof Number ? ((Number) missing).doubleValue() : Double.parseDouble(missing.toString());
+            final double[] filled = values.clone();
+            for (int doc = 0; doc < filled.length; doc++) {
+                if (hasValue(doc) == false) {
+                    filled[doc] = value;
+                }
+            }
+            return new DoubleColumn(name(), filled, null);
+        }
+    }
+
+    /**
+     * A column of strings, stored as ordinals in a sorted dictionary of the distinct values.
+     */
+    public static final class KeywordColumn extends Column {
+        final BytesRef[] terms;
+
+        final int[] ords;
+
+        KeywordColumn(String name, BytesRef[] terms, int[] ords) {
+            super(name, null);
+            this.terms = terms;
+            this.ords = ords;
+        }
+
+        @Override
+        public boolean hasValue(int doc) {
+            return ords[doc] >= 0;
+        }
+
+        /**
+         * Returns the ordinal of the value of the given document, or <tt>-1</tt> if it has none.
+         */
+        public int ord(int doc) {
+            return ords[doc];
+        }
+
+        /**
+         * @return the number of distinct values
+         */
+        public int valueCount() {
+            return terms.length;
+        }
+
+        public BytesRef lookupOrd(int ord) {
+            return terms[ord];
+        }
+
+        /**
+         * Returns the ordinal of the given term, or <tt>-1 - insertionPoint</tt> if it is not in the dictionary.
+         */
+        public int lookupTerm(BytesRef term) {
+            return Arrays.binarySearch(terms, term);
+        }
+
+        @Override
+        public DocValueFormat format() {
+            return DocValueFormat.RAW;
+        }
+
+        @Override
+        KeywordColumn withMissing(Object missing) {
+            final BytesRef term = BytesRefs.toBytesRef(missing);
+            int missingOrd = lookupTerm(term);
+            BytesRef[] filledTerms = terms;
+            final int[] filledOrds = ords.clone();
+            if (missingOrd < 0) {
+                // insert the term into the dictionary and shift the ordinals that follow it
+                missingOrd = -1 - missingOrd;
+                filledTerms = new BytesRef[terms.length + 1];
+                System.arraycopy(terms, 0, filledTerms, 0, missingOrd);
+                filledTerms[missingOrd] = term;
+                System.arraycopy(terms, missingOrd, filledTerms, missingOrd + 1, terms.length - missingOrd);
+                for (int doc = 0; doc < filledOrds.length; doc++) {
+                    if (filledOrds[doc] >= missingOrd) {
+                        filledOrds[doc]++;
+                    }
+                }
+            }
+            for (int doc = 0; doc < filledOrds.length; doc++) {
+                if (filledOrds[doc] < 0) {
+                    filledOrds[doc] = missingOrd;
+                }
+            }
+            return new KeywordColumn(name(), filledTerms, filledOrds);
+        }
+    }
+
+    public static class Builder {
+        private final int numDocs;
+
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+
+        private Builder(int numDocs) {
+            if (numDocs < 0) {
+                throw new IllegalArgumentException("[numDocs] must not be negative: " + numDocs);
+            }
+            this.numDocs = numDocs;
+        }
+
+        /**
+         * Adds a column of <code>long</code> values. A <tt>null</tt> bit set means that every document has a value.
+         */
+        public Builder addLongs(String field, long[] values, FixedBitSet present) {
+            checkLength(field, values.length, present);
+            return add(new LongColumn(field, values, present, null));
+        }
+
+        /**
+         * Adds a column of <code>double</code> values. A <tt>null</tt> bit set means that every document has a value.
+         */
+        public Builder addDoubles(String field, double[] values, FixedBitSet present) {
+            checkLength(field, values.length, present);
+            return add(new DoubleColumn(field, values, present));
+        }
+
+        /**
+         * Adds a column of dates in milliseconds since the epoch, formatted with the given formatter or the default
+         * date format if it is <tt>null</tt>.
+         */
+        public Builder addDates(String field, long[] millis, FixedBitSet present, FormatDateTimeFormatter formatter) {
+            checkLength(field, millis.length, present);
+            return add(new LongColumn(field, millis, present,
+                    formatter == null ? DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER : formatter));
+        }
+
+        /**
+         * Adds a column of strings, <tt>null</tt> elements are missing values.
+         */
+        public Builder addKeywords(String field, String[] values) {
+            checkLength(field, values.length, null);
+            final Map<String, Integer> dictionary = new HashMap<>();
+            for (String value : values) {
+                if (value != null) {
+                    dictionary.putIfAbsent(value, 0);
+                }
+            }
+            final BytesRef[] terms = new BytesRef[dictionary.size()];
+            int i = 0;
+            for (String value : dictionary.keySet()) {
+                terms[i++] = new BytesRef(value);
+            }
+            Arrays.sort(terms);
+            for (i = 0; i < terms.length; i++) {
+                dictionary.put(terms[i].utf8ToString(), i);
+            }
+            final int[] ords = new int[values.length];
+            for (int doc = 0; doc < values.length; doc++) {
+                ords[doc] = values[doc] == null ? -1 : dictionary.get(values[doc]);
+            }
+            return add(new KeywordColumn(field, terms, ords));
+        }
+
+        private void checkLength(String field, int length, FixedBitSet present) {
+            if (field == null) {
+                throw new IllegalArgumentException("[field] must not be null.");
+            }
+            if (length != numDocs) {
+                throw new IllegalArgumentException("Column [" + field + "] has " + length + " values, expected " + numDocs);
+            }
+            if (present != null && present.length() < numDocs) {
+                throw new IllegalArgumentException("The bit set of column [" + field + "] is shorter than " + numDocs);
+            }
+        }
+
+        private Builder add(Column column) {
+            if (columns.putIfAbsent(column.name(), column) != null) {
+                throw new IllegalArgumentException("Column [" + column.name() + "] is already defined");
+            }
+            return this;
+        }
+
+        public ColumnarBatch build() {
+            return new ColumnarBatch(numDocs, new LinkedHashMap<>(columns));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.codelibs.elasticsearch.common.joda.Joda;
+import org.codelibs.elasticsearch.common.rounding.Rounding;
+import org.codelibs.elasticsearch.index.mapper.DateFieldMapper;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.joda.time.DateTimeZone;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * Generates the keys of the buckets of a <code>date_histogram</code> aggregation and aligns series of bucket values
+ * to them, on primitive arrays.
+ * <p>
+ * The keys are those of the buckets the aggregation returns with a <code>min_doc_count</code> of <tt>0</tt>: the
+ * key of every interval between the first and the last bucket, extended to the <code>extended_bounds</code> of the
+ * aggregation if any. The buckets of several responses, possibly with different first and last buckets, are
+ * aligned by filling their values into the keys spanning all of them:
+ * <pre>
+ * DateHistogramKeys histogram = DateHistogramKeys.of(builder);
+ * long[] keys = histogram.keys(keys1, keys2);
+ * long[] counts1 = histogram.fill(keys1, docCounts1, keys);
+ * double[] values2 = histogram.fill(keys2, values2, keys, Double.NaN);
+ * </pre>
+ * This class is thread-safe.
+ */
+public final class DateHistogramKeys {
+    private final Rounding rounding;
+
+    private final long offset;
+
+    private final ExtendedBounds bounds;
+
+    private DateHistogramKeys(Rounding rounding, long offset, ExtendedBounds bounds) {
+        this.rounding = rounding;
+        this.offset = offset;
+        this.bounds = bounds == null ? null : new ExtendedBounds(bounds.getMin() == null ? null : key(bounds.getMin()),
+                bounds.getMax() == null ? null : key(bounds.getMax()));
+    }
+
+    /**
+     * Returns the key of the bucket the given time falls in.
+     */
+    public long key(long utcMillis) {
+        return rounding.round(utcMillis - offset) + offset;
+    }
+
+    /**
+     * Sets the key of the bucket each of the given times falls in, <code>keys</code> may be <code>utcMillis</code>.
+     */
+    public void round(long[] utcMillis, long[] keys) {
+        if (keys.length < utcMillis.length) {
+            throw new IllegalArgumentException("[keys] is shorter than [utcMillis]: " + keys.length + " < " + utcMillis.length);
+        }
+        for (int i = 0; i < utcMillis.length; i++) {
+            keys[i] = utcMillis[i] - offset;
+        }
+        rounding.round(keys, keys);
+        for (int i = 0; i < utcMillis.length; i++) {
+            keys[i] += offset;
+        }
+    }
+
+    /**
+     * Returns the key of the bucket following the bucket of the given key.
+     */
+    public long nextKey(long key) {
+        return rounding.nextRoundingValue(key - offset) + offset;
+    }
+
+    /**
+     * Returns the keys of the buckets from the bucket <code>min</code> falls in to the bucket <code>max</code> falls
+     * in, both included.
+     */
+    public long[] keys(long min, long max) {
+        if (min > max) {
+            throw new IllegalArgumentException("[min] must be lower than or equal to [max]: " + min + " > " + max);
+        }
+        long[] keys = new long[16];
+        int count = 0;
+        final long last = key(max);
+        for (long key = key(min); key <= last; key = nextKey(key)) {
+            if (count == keys.length) {
+                keys = ArrayUtil.grow(keys, count + 1);
+            }
+            keys[count++] = key;
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Returns the keys of the buckets of a response with empty buckets, given the keys of the buckets of one or
+     * several responses in ascending order: the keys from the first to the last bucket of all responses, extended
+     * to the <code>extended_bounds</code> of the aggregation.
+     */
+    public long[] keys(long[]... keys) {
+        long min = bounds == null || bounds.getMin() == null ? Long.MAX_VALUE : bounds.getMin();
+        long max = bounds == null || bounds.getMax() == null ? Long.MIN_VALUE : bounds.getMax();
+        boolean empty = true;
+        for (long[] response : keys) {
+            if (response.length > 0) {
+                min = Math.min(min, response[0]);
+                max = Math.max(max, response[response.length - 1]);
+                empty = false;
+            }
+        }
+        // like the aggregation, no buckets are added to an empty response unless both bounds are set
+        if (empty && (bounds == null || bounds.getMin() == null || bounds.getMax() == null)) {
+            return new long[0];
+        }
+        return keys(min, max);
+    }
+
+    /**
+     * Returns the given counts of the buckets of the given keys aligned to the given keys of all buckets, the
+     * count of the buckets that are missing being <tt>0</tt>.
+     *
+     * @param keys       the keys of the buckets, in ascending order
+     * @param counts     the count of each bucket
+     * @param filledKeys the keys of all buckets, in ascending order, as returned by {#keys(long[]...)}
+     * @throws IllegalArgumentException if one of the keys is not one of <code>filledKeys</code>
+     */
+    public long[] fill(long[] keys, long[] counts, long[] filledKeys) {
+        checkLength(keys, counts.length);
+        final long[] filled = new long[filledKeys.length];
+        int index = -1;
+        for (int i = 0; i < keys.length; i++) {
+            index = indexOf(filledKeys, keys, i, index);
+            filled[index] = counts[i];
+        }
+        return filled;
+    }
+
+    /**
+     * Returns the given values of the buckets of the given keys aligned to the given keys of all buckets, the
+     * value of the buckets that are missing being <code>missing</code>.
+     *
+     * @see #fill(long[], long[], long[])
+     */
+    public double[] fill(long[] keys, double[] values, long[] filledKeys, double missing) {
+        checkLength(keys, values.length);
+        final double[] filled = new double[filledKeys.length];
+        Arrays.fill(filled, missing);
+        int index = -1;
+        for (int i = 0; i < keys.length; i++) {
+            index = indexOf(filledKeys, keys, i, index);
+            filled[index] = values[i];
+        }
+        return filled;
+    }
+
+    private static void checkLength(long[] keys, int length) {
+        if (keys.length != length) {
+            throw new IllegalArgumentException("[keys] and the values must have the same length: " + keys.length + " != " + length);
+        }
+    }
+
+    /**
+     * Returns the index of the <code>i</code>th key in <code>filledKeys</code>, searching after the index of the
+     * previous key.
+     */
+    private static int indexOf(long[] filledKeys, long[] keys, int i, int previous) {
+        if (i > 0 && keys[i] <= keys[i - 1]) {
+            throw new IllegalArgumentException("[keys] must be in ascending order: " + keys[i - 1] + " >= " + keys[i]);
+        }
+        int index = previous + 1;
+        while (index < filledKeys.length && filledKeys[index] < keys[i]) {
+            index++;
+        }
+        if (index == filledKeys.length || filledKeys[index] != keys[i]) {
+            throw new IllegalArgumentException("Key [" + keys[i] + "] is not the key of a bucket of the histogram");
+        }
+        return index;
+    }
+
+    /**
+     * Returns the keys of the buckets of the given aggregation, its string <code>extended_bounds</code> being
+     * resolved with the current time.
+     */
+    public static DateHistogramKeys of(DateHistogramAggregationBuilder builder) {
+        final long nowInMillis = System.currentTimeMillis();
+        return of(builder, () -> nowInMillis);
+    }
+
+    /**
+     * Returns the keys of the buckets of the given aggregation: its interval, time zone, <code>offset</code> and
+     * <code>extended_bounds</code>, whose string bounds are parsed with its <code>format</code>.
+     *
+     * @param now the supplier of the current time for date math in the <code>extended_bounds</code>
+     */
+    public static DateHistogramKeys of(DateHistogramAggregationBuilder builder, LongSupplier now) {
+        final Rounding rounding = builder.createRounding();
+        ExtendedBounds bounds = builder.extendedBounds();
+        if (bounds != null) {
+            final DateTimeZone timeZone = builder.timeZone() == null ? DateTimeZone.UTC : builder.timeZone();
+            final DocValueFormat format = new DocValueFormat.DateTime(builder.format() == null
+                    ? DateFieldMapper.DEFAULT_DATE_TIME_FORMATTER : Joda.forPattern(builder.format()), timeZone);
+            bounds = bounds.parseAndValidate(builder.getName(), now, format);
+        }
+        return new DateHistogramKeys(rounding, (long) builder.offset(), bounds);
+    }
+
+    /**
+     * Returns the keys of the buckets of the given rounding shifted by the given offset, without extended bounds.
+     */
+    public static DateHistogramKeys of(Rounding rounding, long offset) {
+        if (rounding == null) {
+            throw new IllegalArgumentException("[rounding] must not be null.");
+        }
+        return new DateHistogramKeys(rounding, offset, null);
+    }
+}
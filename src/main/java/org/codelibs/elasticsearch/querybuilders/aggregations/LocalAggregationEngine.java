@@ -0,0 +1,187 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+/**
+ * Executes aggregations over a {ColumnarBatch} in-process, without a cluster.
+ * <p>
+ * The batch is split into partitions that play the role of shards: each partition is collected in parallel on the
+ * configured executor into the same shard level results as a search, which are then merged with
+ * {InternalAggregations#reduce(List, InternalAggregation.ReduceContext)}. The results are thus exactly those a
+ * search over an index with as many shards would return, including the <code>doc_count_error_upper_bound</code> of
+ * <code>terms</code> aggregations.
+ * <p>
+ * Results therefore depend on the number of partitions: a <code>terms</code> aggregation truncated by its
+ * <code>shard_size</code> may return different buckets, counts and error bounds for different partition counts,
+ * just as for different shard counts. The partition count is fixed, {#DEFAULT_PARTITIONS} unless set with
+ * {#partitions(int)}, and independent of the executor, so that the same batch yields the same results on every
+ * machine.
+ * <p>
+ * The following aggregations are supported: <code>terms</code>, <code>histogram</code>, <code>date_histogram</code>,
+ * <code>range</code>, <code>date_range</code>, <code>filters</code>, <code>sum</code>, <code>avg</code>,
+ * <code>min</code>, <code>max</code>, <code>stats</code>, <code>cardinality</code> and <code>percentiles</code>
+ * with the <code>tdigest</code> method. Scripts, pipeline aggregations and <code>include</code>/<code>exclude</code>
+ * are not. This class is thread-safe.
+ */
+public class LocalAggregationEngine {
+    /**
+     * The default number of partitions, the default number of shards of an index.
+     */
+    public static final int DEFAULT_PARTITIONS = 5;
+
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    private volatile int partitions = DEFAULT_PARTITIONS;
+
+    private volatile BigArrays bigArrays = BigArrays.NON_RECYCLING_INSTANCE;
+
+    private LocalAggregationEngine() {
+    }
+
+    /**
+     * Sets the executor partitions are collected on, the common fork join pool by default.
+     */
+    public LocalAggregationEngine executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("[executor] must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the number of partitions a batch is split into, {#DEFAULT_PARTITIONS} by default. Batches with fewer
+     * documents are split into one partition per document. Results depend on this number like search results depend
+     * on the number of shards, while how many partitions are collected at once only depends on the executor.
+     */
+    public LocalAggregationEngine partitions(int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("[partitions] must be greater than 0: " + partitions);
+        }
+        this.partitions = partitions;
+        return this;
+    }
+
+    /**
+     * Sets the arrays the aggregators allocate their state from, {BigArrays#NON_RECYCLING_INSTANCE} by default.
+     */
+    public LocalAggregationEngine bigArrays(BigArrays bigArrays) {
+        if (bigArrays == null) {
+            throw new IllegalArgumentException("[bigArrays] must not be null.");
+        }
+        this.bigArrays = bigArrays;
+        return this;
+    }
+
+    /**
+     * Executes the given aggregations over all documents of the batch.
+     */
+    public InternalAggregations execute(ColumnarBatch batch, List<AggregationBuilder> aggregations) {
+        return execute(batch, null, aggregations);
+    }
+
+    /**
+     * Executes the given aggregations over the documents of the batch that match the given query.
+     *
+     * @param query the query, or <tt>null</tt> to match all documents
+     * @return the reduced aggregations, in the order of the given builders
+     * @throws IllegalArgumentException if the query, an aggregation or one of its options is not supported
+     */
+    public InternalAggregations execute(ColumnarBatch batch, QueryBuilder query, List<AggregationBuilder> aggregations) {
+        if (batch == null) {
+            throw new IllegalArgumentException("[batch] must not be null.");
+        }
+        final long nowInMillis = System.currentTimeMillis();
+        final LongSupplier now = () -> nowInMillis;
+        final int numDocs = batch.numDocs();
+        final int partitions = Math.max(1, Math.min(this.partitions, numDocs));
+        final LocalAggregatorFactory.Context context = new LocalAggregatorFactory.Context(batch, bigArrays, partitions, now);
+        final FixedBitSet matches = query == null ? null : context.filter.matches(query);
+
+        final Set<String> names = new HashSet<>();
+        final LocalAggregatorFactory[] factories = new LocalAggregatorFactory[aggregations.size()];
+        for (int i = 0; i < factories.length; i++) {
+            final AggregationBuilder aggregation = aggregations.get(i);
+            if (names.add(aggregation.getName()) == false) {
+                throw new IllegalArgumentException("Two sibling aggregations cannot have the same name: [" + aggregation.getName()
+                        + "]");
+            }
+            factories[i] = LocalAggregatorFactory.of(aggregation, context);
+        }
+
+        final InternalAggregations[] results = new InternalAggregations[partitions];
+        if (partitions == 1) {
+            results[0] = collectPartition(factories, matches, 0, numDocs);
+        } else {
+            final CompletableFuture<?>[] futures = new CompletableFuture<?>[partitions];
+            for (int i = 0; i < partitions; i++) {
+                final int partition = i;
+                final int from = (int) ((long) numDocs * i / partitions);
+                final int to = (int) ((long) numDocs * (i + 1) / partitions);
+                futures[i] = CompletableFuture.runAsync(
+                        () -> results[partition] = collectPartition(factories, matches, from, to), executor);
+            }
+            try {
+                CompletableFuture.allOf(futures).join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+
+        final InternalAggregations reduced = InternalAggregations.reduce(Arrays.asList(results),
+                new InternalAggregation.ReduceContext(bigArrays));
+        final List<InternalAggregation> ordered = new ArrayList<>(factories.length);
+        for (AggregationBuilder aggregation : aggregations) {
+            ordered.add(reduced.get(aggregation.getName()));
+        }
+        return new InternalAggregations(ordered);
+    }
+
+    private static InternalAggregations collectPartition(LocalAggregatorFactory[] factories, FixedBitSet matches, int from,
+            int to) {
+        final LocalAggregator[] aggregators = new LocalAggregator[factories.length];
+        try {
+            for (int i = 0; i < aggregators.length; i++) {
+                aggregators[i] = factories[i].create(true);
+            }
+            for (int doc = from; doc < to; doc++) {
+                if (matches == null || matches.get(doc)) {
+                    for (LocalAggregator aggregator : aggregators) {
+                        aggregator.collect(doc, 0);
+                    }
+                }
+            }
+            final List<InternalAggregation> results = new ArrayList<>(aggregators.length);
+            for (LocalAggregator aggregator : aggregators) {
+                results.add(aggregator.buildAggregation(0));
+            }
+            return new InternalAggregations(results);
+        } finally {
+            Releasables.close(aggregators);
+        }
+    }
+
+    public static LocalAggregationEngine engine() {
+        return new LocalAggregationEngine();
+    }
+}
@@ -0,0 +1,46 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasable;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the documents of one partition of a {ColumnarBatch} into buckets identified by <code>long</code>
+ * ordinals, and builds the shard level result of each bucket. Like the aggregators of a shard, an instance is
+ * used by a single thread.
+ */
+abstract class LocalAggregator implements Releasable {
+    static final List<PipelineAggregator> NO_PIPELINE_AGGREGATORS = Collections.emptyList();
+
+    protected final String name;
+
+    protected final Map<String, Object> metaData;
+
+    LocalAggregator(LocalAggregatorFactory factory) {
+        this.name = factory.name();
+        this.metaData = factory.metaData();
+    }
+
+    /**
+     * Collects the given document into the bucket with the given ordinal of the parent aggregation.
+     */
+    abstract void collect(int doc, long owningBucketOrd);
+
+    /**
+     * Builds the result of the given bucket of the parent aggregation.
+     */
+    abstract InternalAggregation buildAggregation(long owningBucketOrd);
+
+    /**
+     * Builds the result of a bucket that no document was collected into.
+     */
+    abstract InternalAggregation buildEmptyAggregation();
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,264 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.common.rounding.Rounding;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.FiltersAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.FiltersAggregator;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.AbstractRangeBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.avg.AvgAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.cardinality.CardinalityAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.cardinality.HyperLogLogPlusPlus;
+import org.codelibs.elasticsearch.search.aggregations.metrics.max.MaxAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.min.MinAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.PercentilesAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.PercentilesMethod;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.StatsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.SumAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.support.ValuesSourceAggregationBuilder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Creates the {LocalAggregator}s of an {AggregationBuilder}. The builder is validated and its field resolved once,
+ * so that the aggregators of every partition can be created cheaply.
+ */
+final class LocalAggregatorFactory {
+    /**
+     * The state shared by the factories of one execution.
+     */
+    static final class Context {
+        final ColumnarBatch batch;
+
+        final ColumnFilter filter;
+
+        final BigArrays bigArrays;
+
+        final int partitions;
+
+        final LongSupplier now;
+
+        Context(ColumnarBatch batch, BigArrays bigArrays, int partitions, LongSupplier now) {
+            this.batch = batch;
+            this.filter = new ColumnFilter(batch, now);
+            this.bigArrays = bigArrays;
+            this.partitions = partitions;
+            this.now = now;
+        }
+    }
+
+    @FunctionalInterface
+    interface AggregatorConstructor {
+        LocalAggregator create(LocalAggregatorFactory factory);
+    }
+
+    private final String name;
+
+    private final Map<String, Object> metaData;
+
+    private final BigArrays bigArrays;
+
+    private final LocalAggregatorFactory[] subFactories;
+
+    private final boolean singleBucketOnly;
+
+    private final AggregatorConstructor constructor;
+
+    private LocalAggregatorFactory(AggregationBuilder builder, Context context, boolean singleBucketOnly,
+            AggregatorConstructor constructor) {
+        this.name = builder.getName();
+        this.metaData = builder.getMetaData();
+        this.bigArrays = context.bigArrays;
+        this.singleBucketOnly = singleBucketOnly;
+        this.constructor = constructor;
+        final List<AggregationBuilder> subAggregations = builder.getSubAggregations();
+        this.subFactories = new LocalAggregatorFactory[subAggregations.size()];
+        for (int i = 0; i < subFactories.length; i++) {
+            subFactories[i] = of(subAggregations.get(i), context);
+        }
+    }
+
+    String name() {
+        return name;
+    }
+
+    Map<String, Object> metaData() {
+        return metaData;
+    }
+
+    BigArrays bigArrays() {
+        return bigArrays;
+    }
+
+    /**
+     * Creates an aggregator. Aggregators that only support a single owning bucket are wrapped into one instance
+     * per owning bucket unless <code>collectsFromSingleBucket</code> is set.
+     */
+    LocalAggregator create(boolean collectsFromSingleBucket) {
+        if (singleBucketOnly && collectsFromSingleBucket == false) {
+            return new MultiBucketAggregatorWrapper(this);
+        }
+        return constructor.create(this);
+    }
+
+    LocalAggregator[] createSubAggregators() {
+        final LocalAggregator[] subAggregators = new LocalAggregator[subFactories.length];
+        for (int i = 0; i < subAggregators.length; i++) {
+            subAggregators[i] = subFactories[i].create(false);
+        }
+        return subAggregators;
+    }
+
+    /**
+     * Returns the factory of the given aggregation.
+     *
+     * @throws IllegalArgumentException if the aggregation or one of its options is not supported
+     */
+    static LocalAggregatorFactory of(AggregationBuilder builder, Context context) {
+        if (builder.getPipelineAggregations().isEmpty() == false) {
+            throw new IllegalArgumentException("Pipeline aggregations of [" + builder.getName()
+                    + "] are not supported by local aggregations");
+        }
+        if (builder instanceof TermsAggregationBuilder) {
+            final TermsAggregationBuilder terms = (TermsAggregationBuilder) builder;
+            if (terms.includeExclude() != null) {
+                throw new IllegalArgumentException("[include] and [exclude] of [" + builder.getName()
+                        + "] are not supported by local aggregations");
+            }
+            final ColumnarBatch.Column column = column(terms, context);
+            final DocValueFormat format = format(terms, column);
+            return new LocalAggregatorFactory(builder, context, true,
+                    f -> new LocalTermsAggregator(f, terms, column, format, context.partitions));
+        } else if (builder instanceof HistogramAggregationBuilder) {
+            final HistogramAggregationBuilder histogram = (HistogramAggregationBuilder) builder;
+            final ColumnarBatch.NumericColumn column = numericColumn(histogram, context);
+            final DocValueFormat format = format(histogram, column);
+            return new LocalAggregatorFactory(builder, context, true,
+                    f -> new LocalHistogramAggregator(f, histogram, column, format));
+        } else if (builder instanceof DateHistogramAggregationBuilder) {
+            final DateHistogramAggregationBuilder histogram = (DateHistogramAggregationBuilder) builder;
+            final ColumnarBatch.NumericColumn column = numericColumn(histogram, context);
+            if (column != null && column.isFloatingPoint()) {
+                throw new IllegalArgumentException("[" + builder.getName() + "] requires a date or long field: " + histogram.field());
+            }
+            final DocValueFormat format = format(histogram, column);
+            // once prepared for the range of the values of the batch, the rounding needs no time zone lookups
+            final Rounding rounding = column == null ? histogram.createRounding()
+                    : prepare(histogram.createRounding(), (ColumnarBatch.LongColumn) column, (long) histogram.offset());
+            final ExtendedBounds extendedBounds = histogram.extendedBounds() == null ? null
+                    : histogram.extendedBounds().parseAndValidate(builder.getName(), context.now, format).round(rounding);
+            return new LocalAggregatorFactory(builder, context, true, f -> new LocalDateHistogramAggregator(f, histogram,
+                    (ColumnarBatch.LongColumn) column, format, rounding, extendedBounds));
+        } else if (builder instanceof AbstractRangeBuilder) {
+            final AbstractRangeBuilder<?, ?> range = (AbstractRangeBuilder<?, ?>) builder;
+            if (range.ranges().isEmpty()) {
+                throw new IllegalArgumentException("No [ranges] specified for the [" + builder.getName() + "] aggregation");
+            }
+            final ColumnarBatch.NumericColumn column = numericColumn(range, context);
+            final DocValueFormat format = format(range, column);
+            final RangeAggregator.Range[] ranges = range.processRanges(format, context.now);
+            final double[] maxTo = LocalRangeAggregator.maxTo(ranges);
+            return new LocalAggregatorFactory(builder, context, false,
+                    f -> new LocalRangeAggregator(f, range.rangeFactory(), ranges, maxTo, range.keyed(), column, format));
+        } else if (builder instanceof FiltersAggregationBuilder) {
+            final FiltersAggregationBuilder filters = (FiltersAggregationBuilder) builder;
+            final List<FiltersAggregator.KeyedFilter> keyedFilters = filters.filters();
+            final String[] keys = new String[keyedFilters.size()];
+            final FixedBitSet[] matches = new FixedBitSet[keyedFilters.size()];
+            for (int i = 0; i < matches.length; i++) {
+                keys[i] = keyedFilters.get(i).key();
+                matches[i] = context.filter.matches(keyedFilters.get(i).filter());
+            }
+            final String otherBucketKey = filters.otherBucket() ? filters.otherBucketKey() : null;
+            return new LocalAggregatorFactory(builder, context, false,
+                    f -> new LocalFiltersAggregator(f, keys, matches, filters.keyed(), otherBucketKey));
+        } else if (builder instanceof SumAggregationBuilder || builder instanceof AvgAggregationBuilder
+                || builder instanceof MinAggregationBuilder || builder instanceof MaxAggregationBuilder
+                || builder instanceof StatsAggregationBuilder) {
+            final ValuesSourceAggregationBuilder<?, ?> stats = (ValuesSourceAggregationBuilder<?, ?>) builder;
+            final LocalStatsAggregator.Metric metric = builder instanceof SumAggregationBuilder ? LocalStatsAggregator.Metric.SUM
+                    : builder instanceof AvgAggregationBuilder ? LocalStatsAggregator.Metric.AVG
+                            : builder instanceof MinAggregationBuilder ? LocalStatsAggregator.Metric.MIN
+                                    : builder instanceof MaxAggregationBuilder ? LocalStatsAggregator.Metric.MAX
+                                            : LocalStatsAggregator.Metric.STATS;
+            final ColumnarBatch.NumericColumn column = numericColumn(stats, context);
+            final DocValueFormat format = format(stats, column);
+            return new LocalAggregatorFactory(builder, context, false, f -> new LocalStatsAggregator(f, metric, column, format));
+        } else if (builder instanceof CardinalityAggregationBuilder) {
+            final CardinalityAggregationBuilder cardinality = (CardinalityAggregationBuilder) builder;
+            final int precision = cardinality.precisionThreshold() == null ? HyperLogLogPlusPlus.DEFAULT_PRECISION
+                    : HyperLogLogPlusPlus.precisionFromThreshold(cardinality.precisionThreshold());
+            final LocalCardinalityAggregator.Hashes hashes = LocalCardinalityAggregator.hashes(column(cardinality, context));
+            return new LocalAggregatorFactory(builder, context, false, f -> new LocalCardinalityAggregator(f, precision, hashes));
+        } else if (builder instanceof PercentilesAggregationBuilder) {
+            final PercentilesAggregationBuilder percentiles = (PercentilesAggregationBuilder) builder;
+            if (percentiles.method() != PercentilesMethod.TDIGEST) {
+                throw new IllegalArgumentException("Method [" + percentiles.method() + "] of [" + builder.getName()
+                        + "] is not supported by local aggregations");
+            }
+            final ColumnarBatch.NumericColumn column = numericColumn(percentiles, context);
+            final DocValueFormat format = format(percentiles, column);
+            return new LocalAggregatorFactory(builder, context, false, f -> new LocalPercentilesAggregator(f,
+                    percentiles.percentiles(), percentiles.compression(), percentiles.keyed(), column, format));
+        }
+        throw new IllegalArgumentException("Aggregation [" + builder.getName() + "] of type [" + builder.getWriteableName()
+                + "] is not supported by local aggregations");
+    }
+
+    /**
+     * Returns the column of the field of the given aggregation with its <code>missing</code> value applied, or
+     * <tt>null</tt> if the batch has no such column.
+     */
+    private static ColumnarBatch.Column column(ValuesSourceAggregationBuilder<?, ?> builder, Context context) {
+        if (builder.script() != null) {
+            throw new IllegalArgumentException("Scripts of [" + builder.getName() + "] are not supported by local aggregations");
+        }
+        if (builder.field() == null) {
+            throw new IllegalArgumentException("[" + builder.getName() + "] requires a field");
+        }
+        final ColumnarBatch.Column column = context.batch.column(builder.field());
+        if (column == null || builder.missing() == null) {
+            return column;
+        }
+        return column.withMissing(builder.missing());
+    }
+
+    /**
+     * Returns the format of the results of the given aggregation, which is {DocValueFormat#RAW} for missing fields.
+     */
+    private static DocValueFormat format(ValuesSourceAggregationBuilder<?, ?> builder, ColumnarBatch.Column column) {
+        return column == null ? DocValueFormat.RAW : column.format(builder.format(), builder.timeZone());
+    }
+
+    private static ColumnarBatch.NumericColumn numericColumn(ValuesSourceAggregationBuilder<?, ?> builder, Context context) {
+        final ColumnarBatch.Column column = column(builder, context);
+        if (column != null && column instanceof ColumnarBatch.NumericColumn == false) {
+            throw new IllegalArgumentException("[" + builder.getName() + "] requires a numeric field: " + builder.field());
+        }
+        return (ColumnarBatch.NumericColumn) column;
+    }
+
+    /**
+     * Prepares the given rounding for the values of the given column, shifted by the offset of the histogram.
+     */
+    private static Rounding prepare(Rounding rounding, ColumnarBatch.LongColumn column, long offset) {
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int doc = 0; doc < column.values.length; doc++) {
+            if (column.hasValue(doc)) {
+                min = Math.min(min, column.values[doc]);
+                max = Math.max(max, column.values[doc]);
+            }
+        }
+        return min > max ? rounding : rounding.prepare(min - offset, max - offset);
+    }
+}
@@ -0,0 +1,65 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.LongArray;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base class of the aggregators that count documents per bucket and pass them on to sub-aggregators.
+ */
+abstract class LocalBucketsAggregator extends LocalAggregator {
+    protected final BigArrays bigArrays;
+
+    private final LocalAggregator[] subAggregators;
+
+    private LongArray docCounts;
+
+    LocalBucketsAggregator(LocalAggregatorFactory factory) {
+        super(factory);
+        this.bigArrays = factory.bigArrays();
+        this.subAggregators = factory.createSubAggregators();
+        this.docCounts = bigArrays.newLongArray(1, true);
+    }
+
+    /**
+     * Counts the document in the given bucket and collects it with the sub-aggregators.
+     */
+    protected final void collectBucket(int doc, long bucketOrd) {
+        docCounts = bigArrays.grow(docCounts, bucketOrd + 1);
+        docCounts.increment(bucketOrd, 1);
+        for (LocalAggregator subAggregator : subAggregators) {
+            subAggregator.collect(doc, bucketOrd);
+        }
+    }
+
+    protected final long bucketDocCount(long bucketOrd) {
+        return bucketOrd < docCounts.size() ? docCounts.get(bucketOrd) : 0;
+    }
+
+    protected final InternalAggregations bucketAggregations(long bucketOrd) {
+        final List<InternalAggregation> aggregations = new ArrayList<>(subAggregators.length);
+        for (LocalAggregator subAggregator : subAggregators) {
+            aggregations.add(subAggregator.buildAggregation(bucketOrd));
+        }
+        return new InternalAggregations(aggregations);
+    }
+
+    protected final InternalAggregations buildEmptySubAggregations() {
+        final List<InternalAggregation> aggregations = new ArrayList<>(subAggregators.length);
+        for (LocalAggregator subAggregator : subAggregators) {
+            aggregations.add(subAggregator.buildEmptyAggregation());
+        }
+        return new InternalAggregations(aggregations);
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(docCounts);
+        Releasables.close(subAggregators);
+    }
+}
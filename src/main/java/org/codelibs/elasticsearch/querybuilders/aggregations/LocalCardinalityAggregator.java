@@ -0,0 +1,120 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import com.carrotsearch.hppc.BitMixer;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.metrics.cardinality.HyperLogLogPlusPlus;
+import org.codelibs.elasticsearch.search.aggregations.metrics.cardinality.InternalCardinality;
+
+/**
+ * A <code>cardinality</code> aggregation. The hash of every value is computed once per batch by
+ * {#hashes(ColumnarBatch.Column)}, so collecting a document only updates a {HyperLogLogPlusPlus} sketch.
+ */
+final class LocalCardinalityAggregator extends LocalAggregator {
+    /**
+     * The 64 bits hash of the value of each document of a column.
+     */
+    static final class Hashes {
+        private final ColumnarBatch.Column column;
+
+        private final long[] hashes;
+
+        private Hashes(ColumnarBatch.Column column, long[] hashes) {
+            this.column = column;
+            this.hashes = hashes;
+        }
+    }
+
+    private final int precision;
+
+    private final BigArrays bigArrays;
+
+    private final Hashes hashes;
+
+    private final HyperLogLogPlusPlus counts;
+
+    LocalCardinalityAggregator(LocalAggregatorFactory factory, int precision, Hashes hashes) {
+        super(factory);
+        this.precision = precision;
+        this.bigArrays = factory.bigArrays();
+        this.hashes = hashes;
+        this.counts = hashes == null ? null : new HyperLogLogPlusPlus(precision, bigArrays, 1);
+    }
+
+    /**
+     * Hashes the values of the given column like {CardinalityAggregator} does: numbers are mixed with
+     * {BitMixer#mix64(long)}, keywords are hashed with two seeded murmur3 hashes of their bytes.
+     *
+     * @return the hashes, or <tt>null</tt> if the column is <tt>null</tt>
+     */
+    static Hashes hashes(ColumnarBatch.Column column) {
+        if (column == null) {
+            return null;
+        }
+        final int numDocs = column instanceof ColumnarBatch.KeywordColumn ? ((ColumnarBatch.KeywordColumn) column).ords.length
+                : column instanceof ColumnarBatch.LongColumn ? ((ColumnarBatch.LongColumn) column).values.length
+                        : ((ColumnarBatch.DoubleColumn) column).values.length;
+        final long[] hashes = new long[numDocs];
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            final ColumnarBatch.KeywordColumn keywords = (ColumnarBatch.KeywordColumn) column;
+            final long[] termHashes = new long[keywords.valueCount()];
+            for (int ord = 0; ord < termHashes.length; ord++) {
+                termHashes[ord] = hash(keywords.terms[ord]);
+            }
+            for (int doc = 0; doc < numDocs; doc++) {
+                final int ord = keywords.ords[doc];
+                if (ord >= 0) {
+                    hashes[doc] = termHashes[ord];
+                }
+            }
+        } else if (column instanceof ColumnarBatch.LongColumn) {
+            final long[] values = ((ColumnarBatch.LongColumn) column).values;
+            for (int doc = 0; doc < numDocs; doc++) {
+                hashes[doc] = BitMixer.mix64(values[doc]);
+            }
+        } else {
+            final double[] values = ((ColumnarBatch.DoubleColumn) column).values;
+            for (int doc = 0; doc < numDocs; doc++) {
+                hashes[doc] = BitMixer.mix64(Double.doubleToLongBits(values[doc]));
+            }
+        }
+        return new Hashes(column, hashes);
+    }
+
+    private static long hash(BytesRef term) {
+        final long h1 = StringHelper.murmurhash3_x86_32(term, 0) & 0xFFFFFFFFL;
+        final long h2 = StringHelper.murmurhash3_x86_32(term, 1) & 0xFFFFFFFFL;
+        return BitMixer.mix64(h1 << 32 | h2);
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        if (hashes != null && hashes.column.hasValue(doc)) {
+            counts.collect(owningBucketOrd, hashes.hashes[doc]);
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        if (counts == null || owningBucketOrd >= counts.maxBucket()) {
+            return buildEmptyAggregation();
+        }
+        // like on a shard, the result gets a copy of the sketch of its bucket
+        final HyperLogLogPlusPlus copy = new HyperLogLogPlusPlus(precision, bigArrays, 1);
+        copy.merge(0, counts, owningBucketOrd);
+        return new InternalCardinality(name, copy, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return new InternalCardinality(name, null, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(counts);
+    }
+}
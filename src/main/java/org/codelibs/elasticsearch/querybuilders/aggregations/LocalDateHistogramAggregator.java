@@ -0,0 +1,105 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.rounding.Rounding;
+import org.codelibs.elasticsearch.common.util.LongHash;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.InternalDateHistogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <code>date_histogram</code> aggregation over a single owning bucket. The rounding and the extended bounds are
+ * resolved once by the factory and shared by the aggregators of all partitions.
+ */
+final class LocalDateHistogramAggregator extends LocalBucketsAggregator {
+    private final ColumnarBatch.LongColumn column;
+
+    private final DocValueFormat format;
+
+    private final Rounding rounding;
+
+    private final ExtendedBounds extendedBounds;
+
+    private final long offset;
+
+    private final Histogram.Order order;
+
+    private final boolean keyed;
+
+    private final long minDocCount;
+
+    private final LongHash bucketOrds;
+
+    LocalDateHistogramAggregator(LocalAggregatorFactory factory, DateHistogramAggregationBuilder builder,
+            ColumnarBatch.LongColumn column, DocValueFormat format, Rounding rounding, ExtendedBounds extendedBounds) {
+        super(factory);
+        this.column = column;
+        this.format = format;
+        this.rounding = rounding;
+        this.extendedBounds = extendedBounds;
+        this.offset = (long) builder.offset();
+        this.order = builder.order();
+        this.keyed = builder.keyed();
+        this.minDocCount = builder.minDocCount();
+        this.bucketOrds = new LongHash(1, bigArrays);
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        if (column != null && column.hasValue(doc)) {
+            final long key = rounding.round(column.values[doc] - offset) + offset;
+            long bucketOrd = bucketOrds.add(key);
+            if (bucketOrd < 0) {
+                bucketOrd = -1 - bucketOrd;
+            }
+            collectBucket(doc, bucketOrd);
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        // the reduce phase merges the buckets of partitions by ascending key
+        final long[] keys = new long[(int) bucketOrds.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = bucketOrds.get(i);
+        }
+        Arrays.sort(keys);
+        final List<InternalDateHistogram.Bucket> buckets = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            final long bucketOrd = bucketOrds.find(key);
+            buckets.add(new InternalDateHistogram.Bucket(key, bucketDocCount(bucketOrd), keyed, format,
+                    bucketAggregations(bucketOrd)));
+        }
+        return new InternalDateHistogram(name, buckets, order, minDocCount, offset, emptyBucketInfo(), format, keyed,
+                NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return new InternalDateHistogram(name, Collections.emptyList(), order, minDocCount, offset, emptyBucketInfo(),
+                format, keyed, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    private InternalDateHistogram.EmptyBucketInfo emptyBucketInfo() {
+        if (minDocCount != 0) {
+            return null;
+        }
+        return new InternalDateHistogram.EmptyBucketInfo(rounding, buildEmptySubAggregations(), extendedBounds);
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(bucketOrds);
+        super.close();
+    }
+}
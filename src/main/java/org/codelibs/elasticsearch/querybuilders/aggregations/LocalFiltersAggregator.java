@@ -0,0 +1,82 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.InternalFilters;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A <code>filters</code> aggregation. The documents matching each filter are computed once for the whole batch by
+ * the factory, so collecting a document only tests bits.
+ */
+final class LocalFiltersAggregator extends LocalBucketsAggregator {
+    private final String[] keys;
+
+    private final FixedBitSet[] matches;
+
+    private final boolean keyed;
+
+    private final String otherBucketKey;
+
+    private final int totalNumKeys;
+
+    /**
+     * @param otherBucketKey the key of the bucket of the documents that match no filter, or <tt>null</tt> to not
+     *            build such a bucket
+     */
+    LocalFiltersAggregator(LocalAggregatorFactory factory, String[] keys, FixedBitSet[] matches, boolean keyed,
+            String otherBucketKey) {
+        super(factory);
+        this.keys = keys;
+        this.matches = matches;
+        this.keyed = keyed;
+        this.otherBucketKey = otherBucketKey;
+        this.totalNumKeys = otherBucketKey == null ? keys.length : keys.length + 1;
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        boolean matched = false;
+        for (int i = 0; i < matches.length; i++) {
+            if (matches[i].get(doc)) {
+                collectBucket(doc, owningBucketOrd * totalNumKeys + i);
+                matched = true;
+            }
+        }
+        if (otherBucketKey != null && matched == false) {
+            collectBucket(doc, owningBucketOrd * totalNumKeys + keys.length);
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        final List<InternalFilters.InternalBucket> buckets = new ArrayList<>(totalNumKeys);
+        for (int i = 0; i < keys.length; i++) {
+            final long bucketOrd = owningBucketOrd * totalNumKeys + i;
+            buckets.add(new InternalFilters.InternalBucket(keys[i], bucketDocCount(bucketOrd), bucketAggregations(bucketOrd),
+                    keyed));
+        }
+        if (otherBucketKey != null) {
+            final long bucketOrd = owningBucketOrd * totalNumKeys + keys.length;
+            buckets.add(new InternalFilters.InternalBucket(otherBucketKey, bucketDocCount(bucketOrd),
+                    bucketAggregations(bucketOrd), keyed));
+        }
+        return new InternalFilters(name, buckets, keyed, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        final InternalAggregations subAggregations = buildEmptySubAggregations();
+        final List<InternalFilters.InternalBucket> buckets = new ArrayList<>(totalNumKeys);
+        for (String key : keys) {
+            buckets.add(new InternalFilters.InternalBucket(key, 0, subAggregations, keyed));
+        }
+        if (otherBucketKey != null) {
+            buckets.add(new InternalFilters.InternalBucket(otherBucketKey, 0, subAggregations, keyed));
+        }
+        return new InternalFilters(name, buckets, keyed, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+}
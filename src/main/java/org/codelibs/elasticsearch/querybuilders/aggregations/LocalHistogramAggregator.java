@@ -0,0 +1,106 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.LongHash;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.HistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.InternalHistogram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <code>histogram</code> aggregation over a single owning bucket. Like on a shard, buckets are identified by the
+ * bits of their rounded key in a {LongHash} and returned in ascending key order.
+ */
+final class LocalHistogramAggregator extends LocalBucketsAggregator {
+    private final ColumnarBatch.NumericColumn column;
+
+    private final DocValueFormat format;
+
+    private final double interval;
+
+    private final double offset;
+
+    private final Histogram.Order order;
+
+    private final boolean keyed;
+
+    private final long minDocCount;
+
+    private final double minBound;
+
+    private final double maxBound;
+
+    private final LongHash bucketOrds;
+
+    LocalHistogramAggregator(LocalAggregatorFactory factory, HistogramAggregationBuilder builder,
+            ColumnarBatch.NumericColumn column, DocValueFormat format) {
+        super(factory);
+        this.column = column;
+        this.format = format;
+        this.interval = builder.interval();
+        this.offset = builder.offset();
+        this.order = builder.order();
+        this.keyed = builder.keyed();
+        this.minDocCount = builder.minDocCount();
+        this.minBound = builder.minBound();
+        this.maxBound = builder.maxBound();
+        this.bucketOrds = new LongHash(1, bigArrays);
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        if (column != null && column.hasValue(doc)) {
+            final double key = Math.floor((column.doubleValue(doc) - offset) / interval);
+            long bucketOrd = bucketOrds.add(Double.doubleToLongBits(key));
+            if (bucketOrd < 0) {
+                bucketOrd = -1 - bucketOrd;
+            }
+            collectBucket(doc, bucketOrd);
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        // the reduce phase merges the buckets of partitions by ascending key
+        final double[] roundKeys = new double[(int) bucketOrds.size()];
+        for (int i = 0; i < roundKeys.length; i++) {
+            roundKeys[i] = Double.longBitsToDouble(bucketOrds.get(i));
+        }
+        Arrays.sort(roundKeys);
+        final List<InternalHistogram.Bucket> buckets = new ArrayList<>(roundKeys.length);
+        for (double roundKey : roundKeys) {
+            final long bucketOrd = bucketOrds.find(Double.doubleToLongBits(roundKey));
+            buckets.add(new InternalHistogram.Bucket(roundKey * interval + offset, bucketDocCount(bucketOrd), keyed, format,
+                    bucketAggregations(bucketOrd)));
+        }
+        return new InternalHistogram(name, buckets, order, minDocCount, emptyBucketInfo(), format, keyed,
+                NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return new InternalHistogram(name, Collections.emptyList(), order, minDocCount, emptyBucketInfo(), format, keyed,
+                NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    private InternalHistogram.EmptyBucketInfo emptyBucketInfo() {
+        if (minDocCount != 0) {
+            return null;
+        }
+        return new InternalHistogram.EmptyBucketInfo(interval, offset, minBound, maxBound, buildEmptySubAggregations());
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(bucketOrds);
+        super.close();
+    }
+}
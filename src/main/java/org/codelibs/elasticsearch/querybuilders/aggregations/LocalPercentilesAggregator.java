@@ -0,0 +1,75 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.ObjectArray;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.tdigest.InternalTDigestPercentiles;
+import org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.tdigest.TDigestState;
+
+/**
+ * A <code>percentiles</code> aggregation with the <code>tdigest</code> method, which keeps a {TDigestState} per
+ * bucket like {TDigestPercentilesAggregator}.
+ */
+final class LocalPercentilesAggregator extends LocalAggregator {
+    private final ColumnarBatch.NumericColumn column;
+
+    private final DocValueFormat format;
+
+    private final double[] percents;
+
+    private final double compression;
+
+    private final boolean keyed;
+
+    private final BigArrays bigArrays;
+
+    private ObjectArray<TDigestState> states;
+
+    LocalPercentilesAggregator(LocalAggregatorFactory factory, double[] percents, double compression, boolean keyed,
+            ColumnarBatch.NumericColumn column, DocValueFormat format) {
+        super(factory);
+        this.column = column;
+        this.format = format;
+        this.percents = percents;
+        this.compression = compression;
+        this.keyed = keyed;
+        this.bigArrays = factory.bigArrays();
+        this.states = bigArrays.newObjectArray(1);
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        if (column == null || column.hasValue(doc) == false) {
+            return;
+        }
+        states = bigArrays.grow(states, owningBucketOrd + 1);
+        TDigestState state = states.get(owningBucketOrd);
+        if (state == null) {
+            state = new TDigestState(compression);
+            states.set(owningBucketOrd, state);
+        }
+        state.add(column.doubleValue(doc));
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        final TDigestState state = owningBucketOrd < states.size() ? states.get(owningBucketOrd) : null;
+        if (state == null) {
+            return buildEmptyAggregation();
+        }
+        return new InternalTDigestPercentiles(name, percents, state, keyed, format, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return new InternalTDigestPercentiles(name, percents, new TDigestState(compression), keyed, format,
+                NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(states);
+    }
+}
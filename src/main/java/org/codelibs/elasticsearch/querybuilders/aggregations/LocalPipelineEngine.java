@@ -0,0 +1,427 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.rounding.DateTimeUnit;
+import org.codelibs.elasticsearch.common.unit.TimeValue;
+import org.codelibs.elasticsearch.search.aggregations.PipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.BucketHelpers.GapPolicy;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.cumulativesum.CumulativeSumPipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.derivative.DerivativePipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.MovAvgPipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.SimulatedAnealingMinimizer;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.MovAvgModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.serialdiff.SerialDiffPipelineAggregationBuilder;
+import org.joda.time.DateTimeZone;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Evaluates <code>moving_avg</code>, <code>derivative</code>, <code>cumulative_sum</code> and
+ * <code>serial_diff</code> pipeline aggregations on the client, over the series of values of the buckets of a
+ * histogram.
+ * <p>
+ * A series is given as a <code>double[]</code> holding the value the <code>buckets_path</code> of the pipeline
+ * resolves to in each bucket, in the order of the buckets. An empty bucket is given as <code>NaN</code> (or an
+ * infinite value): the gap policy of the pipeline then applies to it as it would in a search. The result holds the
+ * value the pipeline adds to each bucket, <code>NaN</code> for the buckets it adds no value to. The values are
+ * computed with the same arithmetic, in the same order, as the pipeline aggregators, and so are exactly those
+ * Elasticsearch returns.
+ * <p>
+ * Fitting the parameters of a moving average model is expensive, so the cost of many models over the same series
+ * can be computed in parallel on the configured executor with {#costs(double[], GapPolicy, int, List)}, and
+ * {#minimize(double[], GapPolicy, int, MovAvgModel, int)} runs several simulated annealings in parallel and keeps
+ * the best model. This class is thread-safe.
+ */
+public class LocalPipelineEngine {
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private LocalPipelineEngine() {
+    }
+
+    /**
+     * Sets the executor models are evaluated on, the common fork join pool by default.
+     */
+    public LocalPipelineEngine executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("[executor] must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of tasks models are evaluated in, the number of processors by default.
+     */
+    public LocalPipelineEngine parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("[parallelism] must be greater than 0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * Evaluates the given pipeline aggregation over the values of the buckets.
+     *
+     * @throws IllegalArgumentException if the pipeline is not supported, or is a <code>derivative</code> with a
+     *                                  <code>unit</code>, which requires the keys of the buckets
+     */
+    public double[] evaluate(PipelineAggregationBuilder pipeline, double[] values) {
+        return evaluate(pipeline, null, values);
+    }
+
+    /**
+     * Evaluates the given pipeline aggregation over the values of the buckets with the given keys. The result of a
+     * <code>derivative</code> with a <code>unit</code> is its <code>normalized_value</code>.
+     *
+     * @param keys the keys of the buckets, or <tt>null</tt> if the pipeline does not need them
+     * @throws IllegalArgumentException if the pipeline is not supported
+     */
+    public double[] evaluate(PipelineAggregationBuilder pipeline, long[] keys, double[] values) {
+        if (pipeline == null) {
+            throw new IllegalArgumentException("[pipeline] must not be null.");
+        }
+        if (values == null) {
+            throw new IllegalArgumentException("[values] must not be null.");
+        }
+        if (keys != null && keys.length != values.length) {
+            throw new IllegalArgumentException("[keys] and [values] must have the same length: " + keys.length + " != "
+                    + values.length);
+        }
+        if (pipeline instanceof MovAvgPipelineAggregationBuilder) {
+            final MovAvgPipelineAggregationBuilder movAvg = (MovAvgPipelineAggregationBuilder) pipeline;
+            MovAvgModel model = movAvg.model();
+            final boolean minimize = movAvg.minimize() == null ? model.minimizeByDefault() : movAvg.minimize();
+            if (minimize) {
+                if (model.canBeMinimized() == false) {
+                    throw new IllegalArgumentException("The [" + model.getWriteableName() + "] model cannot be minimized.");
+                }
+                final Series series = new Series(values, movAvg.gapPolicy());
+                if (series.size >= 2 * movAvg.window()) {
+                    model = SimulatedAnealingMinimizer.minimize(model, series.train(movAvg.window()), series.test(movAvg.window()));
+                }
+            }
+            return movingAverage(values, movAvg.gapPolicy(), movAvg.window(), model, movAvg.predict());
+        } else if (pipeline instanceof DerivativePipelineAggregationBuilder) {
+            final DerivativePipelineAggregationBuilder derivative = (DerivativePipelineAggregationBuilder) pipeline;
+            final Long xAxisUnits = xAxisUnits(derivative.unit());
+            if (xAxisUnits == null) {
+                return derivative(values, derivative.gapPolicy());
+            }
+            if (keys == null) {
+                throw new IllegalArgumentException("The keys of the buckets are required by a [derivative] with a unit.");
+            }
+            return derivative(keys, values, derivative.gapPolicy(), xAxisUnits);
+        } else if (pipeline instanceof CumulativeSumPipelineAggregationBuilder) {
+            return cumulativeSum(values);
+        } else if (pipeline instanceof SerialDiffPipelineAggregationBuilder) {
+            final SerialDiffPipelineAggregationBuilder serialDiff = (SerialDiffPipelineAggregationBuilder) pipeline;
+            return serialDiff(values, serialDiff.gapPolicy(), serialDiff.lag());
+        }
+        throw new IllegalArgumentException("Pipeline aggregation [" + pipeline.getName() + "] of type ["
+                + pipeline.getClass().getSimpleName() + "] is not supported.");
+    }
+
+    /**
+     * Returns the moving average of the values with the given model, and <code>predict</code> predictions after
+     * the last bucket with a value, which may extend the result past the last bucket.
+     */
+    public double[] movingAverage(double[] values, GapPolicy gapPolicy, int window, MovAvgModel model, int predict) {
+        if (window < 1) {
+            throw new IllegalArgumentException("[window] must be greater than 0: " + window);
+        }
+        if (predict < 0) {
+            throw new IllegalArgumentException("[predict] must not be negative: " + predict);
+        }
+        final double[] resolved = new double[values.length];
+        double[] result = new double[values.length];
+        int count = 0;
+        int lastValidPosition = 0;
+        for (int i = 0; i < values.length; i++) {
+            final double value = resolve(values[i], gapPolicy);
+            result[i] = Double.NaN;
+            if (Double.isNaN(value) == false) {
+                final int size = Math.min(count, window);
+                if (model.hasValue(size)) {
+                    result[i] = model.next(new Window(resolved, count - size, count));
+                }
+                lastValidPosition = i;
+                resolved[count++] = value;
+            }
+        }
+        if (values.length > 0 && predict > 0) {
+            final double[] predictions = model.predict(new Window(resolved, count - Math.min(count, window), count), predict);
+            result = Arrays.copyOf(result, Math.max(result.length, lastValidPosition + 1 + predictions.length));
+            for (int i = 0; i < predictions.length; i++) {
+                result[lastValidPosition + i + 1] = predictions[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the difference between the value of each bucket and the value of the previous bucket.
+     */
+    public double[] derivative(double[] values, GapPolicy gapPolicy) {
+        final double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = i == 0 ? Double.NaN : resolve(values[i], gapPolicy) - resolve(values[i - 1], gapPolicy);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the difference between the value of each bucket and the value of the previous bucket, divided by the
+     * difference of their keys in <code>xAxisUnits</code>.
+     */
+    public double[] derivative(long[] keys, double[] values, GapPolicy gapPolicy, double xAxisUnits) {
+        final double[] result = derivative(values, gapPolicy);
+        for (int i = 1; i < values.length; i++) {
+            final double xDiff = ((double) keys[i] - (double) keys[i - 1]) / xAxisUnits;
+            result[i] = xDiff > 0 ? result[i] / xDiff : result[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns the sum of the values of each bucket and all the buckets before it, empty buckets counting as zero.
+     */
+    public double[] cumulativeSum(double[] values) {
+        final double[] result = new double[values.length];
+        double sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += resolve(values[i], GapPolicy.INSERT_ZEROS);
+            result[i] = sum;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the difference between the value of each bucket and the value of the bucket <code>lag</code> buckets
+     * before it.
+     */
+    public double[] serialDiff(double[] values, GapPolicy gapPolicy, int lag) {
+        if (lag < 1) {
+            throw new IllegalArgumentException("[lag] must be greater than 0: " + lag);
+        }
+        final double[] result = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = i < lag ? Double.NaN : resolve(values[i], gapPolicy) - resolve(values[i - lag], gapPolicy);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the cost of the given model over the values, as computed when a moving average is minimized: the sum
+     * of the absolute errors of the predictions of the model trained on the <code>window</code> values before the
+     * last <code>window</code> values.
+     *
+     * @return the cost, or <code>NaN</code> if there are less than <code>2 * window</code> values
+     */
+    public double cost(double[] values, GapPolicy gapPolicy, int window, MovAvgModel model) {
+        return costs(values, gapPolicy, window, Arrays.asList(model))[0];
+    }
+
+    /**
+     * Returns the cost of each of the given models over the values, the models being evaluated in parallel.
+     *
+     * @see #cost(double[], GapPolicy, int, MovAvgModel)
+     */
+    public double[] costs(double[] values, GapPolicy gapPolicy, int window, List<MovAvgModel> models) {
+        if (window < 1) {
+            throw new IllegalArgumentException("[window] must be greater than 0: " + window);
+        }
+        final double[] costs = new double[models.size()];
+        final Series series = new Series(values, gapPolicy);
+        if (series.size < 2 * window) {
+            Arrays.fill(costs, Double.NaN);
+            return costs;
+        }
+        final Window train = series.train(window);
+        final double[] test = series.test(window);
+        run(costs.length, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                costs[i] = SimulatedAnealingMinimizer.cost(models.get(i), train, test);
+            }
+        });
+        return costs;
+    }
+
+    /**
+     * Fits the parameters of the given model to the values with <code>restarts</code> simulated annealings run in
+     * parallel, and returns the model of the lowest cost. With a single restart this is the minimization of a
+     * <code>moving_avg</code> aggregation.
+     *
+     * @return the fitted model, or the given model if there are less than <code>2 * window</code> values
+     */
+    public MovAvgModel minimize(double[] values, GapPolicy gapPolicy, int window, MovAvgModel model, int restarts) {
+        if (window < 1) {
+            throw new IllegalArgumentException("[window] must be greater than 0: " + window);
+        }
+        if (restarts < 1) {
+            throw new IllegalArgumentException("[restarts] must be greater than 0: " + restarts);
+        }
+        if (model.canBeMinimized() == false) {
+            throw new IllegalArgumentException("The [" + model.getWriteableName() + "] model cannot be minimized.");
+        }
+        final Series series = new Series(values, gapPolicy);
+        if (series.size < 2 * window) {
+            return model;
+        }
+        final Window train = series.train(window);
+        final double[] test = series.test(window);
+        final MovAvgModel[] models = new MovAvgModel[restarts];
+        final double[] costs = new double[restarts];
+        run(restarts, (from, to) -> {
+            for (int i = from; i < to; i++) {
+                models[i] = SimulatedAnealingMinimizer.minimize(model, train, test);
+                costs[i] = SimulatedAnealingMinimizer.cost(models[i], train, test);
+            }
+        });
+        int best = 0;
+        for (int i = 1; i < restarts; i++) {
+            if (costs[i] < costs[best]) {
+                best = i;
+            }
+        }
+        return models[best];
+    }
+
+    @FunctionalInterface
+    private interface RangeTask {
+        void run(int from, int to);
+    }
+
+    /**
+     * Runs the given task over <code>[0, count)</code> split into at most <code>parallelism</code> ranges.
+     */
+    private void run(int count, RangeTask task) {
+        final int tasks = Math.max(1, Math.min(parallelism, count));
+        if (tasks == 1) {
+            task.run(0, count);
+            return;
+        }
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[tasks];
+        for (int i = 0; i < tasks; i++) {
+            final int from = (int) ((long) count * i / tasks);
+            final int to = (int) ((long) count * (i + 1) / tasks);
+            futures[i] = CompletableFuture.runAsync(() -> task.run(from, to), executor);
+        }
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Applies the gap policy to the value of a bucket, like {BucketHelpers#resolveBucketValue}.
+     */
+    private static double resolve(double value, GapPolicy gapPolicy) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return gapPolicy == GapPolicy.INSERT_ZEROS ? 0.0 : Double.NaN;
+        }
+        return value;
+    }
+
+    /**
+     * Converts the <code>unit</code> of a derivative to milliseconds, like the derivative builder does.
+     */
+    private static Long xAxisUnits(String unit) {
+        if (unit == null) {
+            return null;
+        }
+        final DateTimeUnit dateTimeUnit = DateHistogramAggregationBuilder.DATE_FIELD_UNITS.get(unit);
+        if (dateTimeUnit != null) {
+            return dateTimeUnit.field(DateTimeZone.UTC).getDurationField().getUnitMillis();
+        }
+        final TimeValue timeValue = TimeValue.parseTimeValue(unit, null, DerivativePipelineAggregationBuilder.class.getSimpleName()
+                + ".unit");
+        return timeValue == null ? null : timeValue.getMillis();
+    }
+
+    /**
+     * The values of a series that are not skipped by the gap policy.
+     */
+    private static final class Series {
+        private final double[] values;
+        private final int size;
+
+        Series(double[] values, GapPolicy gapPolicy) {
+            this.values = new double[values.length];
+            int size = 0;
+            for (double value : values) {
+                final double resolved = resolve(value, gapPolicy);
+                if (Double.isNaN(resolved) == false) {
+                    this.values[size++] = resolved;
+                }
+            }
+            this.size = size;
+        }
+
+        Window train(int window) {
+            return new Window(values, size - 2 * window, size - window);
+        }
+
+        double[] test(int window) {
+            return Arrays.copyOfRange(values, size - window, size);
+        }
+    }
+
+    /**
+     * A read-only view of a range of an array, which the models iterate like the window of a moving average.
+     */
+    private static final class Window extends AbstractCollection<Double> {
+        private final double[] values;
+        private final int from;
+        private final int to;
+
+        Window(double[] values, int from, int to) {
+            this.values = values;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public Iterator<Double> iterator() {
+            return new Iterator<Double>() {
+                private int index = from;
+
+                @Override
+                public boolean hasNext() {
+                    return index < to;
+                }
+
+                @Override
+                public Double next() {
+                    if (index >= to) {
+                        throw new NoSuchElementException();
+                    }
+                    return values[index++];
+                }
+            };
+        }
+    }
+
+    public static LocalPipelineEngine engine() {
+        return new LocalPipelineEngine();
+    }
+}
@@ -0,0 +1,127 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.InternalRange;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.Range;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.RangeAggregator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A <code>range</code>, <code>date_range</code> or <code>geo_distance</code> aggregation. The ranges are parsed and
+ * sorted once by the factory, and the ranges matching a value are found with the binary search of
+ * {RangeAggregator}.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+final class LocalRangeAggregator extends LocalBucketsAggregator {
+    private final ColumnarBatch.NumericColumn column;
+
+    private final DocValueFormat format;
+
+    private final InternalRange.Factory rangeFactory;
+
+    private final RangeAggregator.Range[] ranges;
+
+    private final double[] maxTo;
+
+    private final boolean keyed;
+
+    LocalRangeAggregator(LocalAggregatorFactory factory, InternalRange.Factory<?, ?> rangeFactory, RangeAggregator.Range[] ranges,
+            double[] maxTo, boolean keyed, ColumnarBatch.NumericColumn column, DocValueFormat format) {
+        super(factory);
+        this.column = column;
+        this.format = format;
+        this.rangeFactory = rangeFactory;
+        this.ranges = ranges;
+        this.maxTo = maxTo;
+        this.keyed = keyed;
+    }
+
+    /**
+     * Returns the running maximum of the upper bounds of the given sorted ranges.
+     */
+    static double[] maxTo(RangeAggregator.Range[] ranges) {
+        final double[] maxTo = new double[ranges.length];
+        for (int i = 0; i < ranges.length; i++) {
+            maxTo[i] = i == 0 ? ranges[i].getTo() : Math.max(ranges[i].getTo(), maxTo[i - 1]);
+        }
+        return maxTo;
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        if (column == null || column.hasValue(doc) == false) {
+            return;
+        }
+        final double value = column.doubleValue(doc);
+        int lo = 0, hi = ranges.length - 1; // all candidates are between these indexes
+        int mid = (lo + hi) >>> 1;
+        while (lo <= hi) {
+            if (value < ranges[mid].getFrom()) {
+                hi = mid - 1;
+            } else if (value >= maxTo[mid]) {
+                lo = mid + 1;
+            } else {
+                break;
+            }
+            mid = (lo + hi) >>> 1;
+        }
+        if (lo > hi) {
+            return; // no potential candidate
+        }
+
+        // binary search the lower bound
+        int startLo = lo, startHi = mid;
+        while (startLo <= startHi) {
+            final int startMid = (startLo + startHi) >>> 1;
+            if (value >= maxTo[startMid]) {
+                startLo = startMid + 1;
+            } else {
+                startHi = startMid - 1;
+            }
+        }
+
+        // binary search the upper bound
+        int endLo = mid, endHi = hi;
+        while (endLo <= endHi) {
+            final int endMid = (endLo + endHi) >>> 1;
+            if (value < ranges[endMid].getFrom()) {
+                endHi = endMid - 1;
+            } else {
+                endLo = endMid + 1;
+            }
+        }
+
+        for (int i = startLo; i <= endHi; ++i) {
+            if (value >= ranges[i].getFrom() && value < ranges[i].getTo()) {
+                collectBucket(doc, owningBucketOrd * ranges.length + i);
+            }
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        final List<Range.Bucket> buckets = new ArrayList<>(ranges.length);
+        for (int i = 0; i < ranges.length; i++) {
+            final RangeAggregator.Range range = ranges[i];
+            final long bucketOrd = owningBucketOrd * ranges.length + i;
+            buckets.add(rangeFactory.createBucket(range.getKey(), range.getFrom(), range.getTo(), bucketDocCount(bucketOrd),
+                    bucketAggregations(bucketOrd), keyed, format));
+        }
+        return rangeFactory.create(name, buckets, format, keyed, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        final InternalAggregations subAggregations = buildEmptySubAggregations();
+        final List<Range.Bucket> buckets = new ArrayList<>(ranges.length);
+        for (RangeAggregator.Range range : ranges) {
+            buckets.add(rangeFactory.createBucket(range.getKey(), range.getFrom(), range.getTo(), 0, subAggregations, keyed,
+                    format));
+        }
+        return rangeFactory.create(name, buckets, format, keyed, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+}
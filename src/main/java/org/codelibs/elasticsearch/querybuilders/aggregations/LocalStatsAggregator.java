@@ -0,0 +1,112 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.DoubleArray;
+import org.codelibs.elasticsearch.common.util.LongArray;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.metrics.avg.InternalAvg;
+import org.codelibs.elasticsearch.search.aggregations.metrics.max.InternalMax;
+import org.codelibs.elasticsearch.search.aggregations.metrics.min.InternalMin;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.InternalStats;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+
+/**
+ * The <code>sum</code>, <code>avg</code>, <code>min</code>, <code>max</code> and <code>stats</code> aggregations,
+ * which all keep the same per bucket state as {StatsAggregator}.
+ */
+final class LocalStatsAggregator extends LocalAggregator {
+    enum Metric {
+        SUM, AVG, MIN, MAX, STATS
+    }
+
+    private final Metric metric;
+
+    private final ColumnarBatch.NumericColumn column;
+
+    private final DocValueFormat format;
+
+    private final BigArrays bigArrays;
+
+    private LongArray counts;
+
+    private DoubleArray sums;
+
+    private DoubleArray mins;
+
+    private DoubleArray maxes;
+
+    LocalStatsAggregator(LocalAggregatorFactory factory, Metric metric, ColumnarBatch.NumericColumn column,
+            DocValueFormat format) {
+        super(factory);
+        this.metric = metric;
+        this.column = column;
+        this.format = format;
+        this.bigArrays = factory.bigArrays();
+        if (column != null) {
+            counts = bigArrays.newLongArray(1, true);
+            sums = bigArrays.newDoubleArray(1, true);
+            mins = bigArrays.newDoubleArray(1, false);
+            mins.fill(0, mins.size(), Double.POSITIVE_INFINITY);
+            maxes = bigArrays.newDoubleArray(1, false);
+            maxes.fill(0, maxes.size(), Double.NEGATIVE_INFINITY);
+        }
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        if (column == null || column.hasValue(doc) == false) {
+            return;
+        }
+        if (owningBucketOrd >= counts.size()) {
+            final long from = counts.size();
+            final long overSize = BigArrays.overSize(owningBucketOrd + 1);
+            counts = bigArrays.resize(counts, overSize);
+            sums = bigArrays.resize(sums, overSize);
+            mins = bigArrays.resize(mins, overSize);
+            maxes = bigArrays.resize(maxes, overSize);
+            mins.fill(from, overSize, Double.POSITIVE_INFINITY);
+            maxes.fill(from, overSize, Double.NEGATIVE_INFINITY);
+        }
+        final double value = column.doubleValue(doc);
+        counts.increment(owningBucketOrd, 1);
+        sums.increment(owningBucketOrd, value);
+        mins.set(owningBucketOrd, Math.min(mins.get(owningBucketOrd), value));
+        maxes.set(owningBucketOrd, Math.max(maxes.get(owningBucketOrd), value));
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        if (column == null || owningBucketOrd >= counts.size()) {
+            return buildEmptyAggregation();
+        }
+        return build(counts.get(owningBucketOrd), sums.get(owningBucketOrd), mins.get(owningBucketOrd),
+                maxes.get(owningBucketOrd));
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return build(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+    }
+
+    private InternalAggregation build(long count, double sum, double min, double max) {
+        switch (metric) {
+        case SUM:
+            return new InternalSum(name, sum, format, NO_PIPELINE_AGGREGATORS, metaData);
+        case AVG:
+            return new InternalAvg(name, sum, count, format, NO_PIPELINE_AGGREGATORS, metaData);
+        case MIN:
+            return new InternalMin(name, min, format, NO_PIPELINE_AGGREGATORS, metaData);
+        case MAX:
+            return new InternalMax(name, max, format, NO_PIPELINE_AGGREGATORS, metaData);
+        default:
+            return new InternalStats(name, count, sum, min, max, format, NO_PIPELINE_AGGREGATORS, metaData);
+        }
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(counts, sums, mins, maxes);
+    }
+}
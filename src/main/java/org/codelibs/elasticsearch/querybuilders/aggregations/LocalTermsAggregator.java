@@ -0,0 +1,244 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.apache.lucene.util.IntroSelector;
+import org.apache.lucene.util.IntroSorter;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.LongHash;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.bucket.BucketUtils;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.DoubleTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.InternalOrder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.LongTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.StringTerms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.UnmappedTerms;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A <code>terms</code> aggregation over a single owning bucket. Keyword values are counted per ordinal of the
+ * dictionary of their column, numbers per entry of a {LongHash}.
+ * <p>
+ * When buckets are ordered by descending count, each partition returns its <code>shard_size</code> top buckets like
+ * a shard does, otherwise all of them so that the reduce phase can order them exactly.
+ */
+final class LocalTermsAggregator extends LocalBucketsAggregator {
+    private final ColumnarBatch.Column column;
+
+    private final DocValueFormat format;
+
+    private final Terms.Order order;
+
+    private final int requiredSize;
+
+    private final int shardSize;
+
+    private final long minDocCount;
+
+    private final long shardMinDocCount;
+
+    private final boolean showTermDocCountError;
+
+    private final LongHash bucketOrds;
+
+    LocalTermsAggregator(LocalAggregatorFactory factory, TermsAggregationBuilder builder, ColumnarBatch.Column column,
+            DocValueFormat format, int partitions) {
+        super(factory);
+        this.column = column;
+        this.format = format;
+        this.order = builder.order();
+        this.requiredSize = builder.size();
+        final int shardSize = builder.shardSize() < 0 ? BucketUtils.suggestShardSideQueueSize(requiredSize, partitions)
+                : builder.shardSize();
+        this.shardSize = Math.max(shardSize, requiredSize);
+        this.minDocCount = builder.minDocCount();
+        this.shardMinDocCount = Math.min(builder.shardMinDocCount(), minDocCount);
+        this.showTermDocCountError = builder.showTermDocCountError();
+        this.bucketOrds = column instanceof ColumnarBatch.NumericColumn ? new LongHash(1, bigArrays) : null;
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            final int ord = ((ColumnarBatch.KeywordColumn) column).ords[doc];
+            if (ord >= 0) {
+                collectBucket(doc, ord);
+            }
+        } else if (column != null && column.hasValue(doc)) {
+            final long key;
+            if (column instanceof ColumnarBatch.LongColumn) {
+                key = ((ColumnarBatch.LongColumn) column).values[doc];
+            } else {
+                key = Double.doubleToLongBits(((ColumnarBatch.DoubleColumn) column).values[doc]);
+            }
+            long bucketOrd = bucketOrds.add(key);
+            if (bucketOrd < 0) {
+                bucketOrd = -1 - bucketOrd;
+            }
+            collectBucket(doc, bucketOrd);
+        }
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        assert owningBucketOrd == 0;
+        if (column == null) {
+            return buildEmptyAggregation();
+        }
+        final long bucketCount = bucketOrds == null ? ((ColumnarBatch.KeywordColumn) column).valueCount() : bucketOrds.size();
+        int[] ords = new int[(int) Math.min(bucketCount, 16)];
+        int size = 0;
+        long otherDocCount = 0;
+        for (int ord = 0; ord < bucketCount; ord++) {
+            final long docCount = bucketDocCount(ord);
+            if ((docCount > 0 || minDocCount == 0) && docCount >= shardMinDocCount) {
+                if (size == ords.length) {
+                    ords = Arrays.copyOf(ords, size + (size >>> 1) + 1);
+                }
+                ords[size++] = ord;
+            } else {
+                otherDocCount += docCount;
+            }
+        }
+
+        final boolean pruned = InternalOrder.isCountDesc(order) && size > shardSize;
+        if (InternalOrder.isCountDesc(order)) {
+            final int[] candidates = ords;
+            if (pruned) {
+                new OrdSelector(candidates).select(0, size, shardSize);
+                for (int i = shardSize; i < size; i++) {
+                    otherDocCount += bucketDocCount(candidates[i]);
+                }
+                size = shardSize;
+            }
+            new OrdSorter(candidates).sort(0, size);
+        }
+
+        final int reportedShardSize = pruned ? shardSize : Math.max(shardSize, size + 1);
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            final ColumnarBatch.KeywordColumn keywords = (ColumnarBatch.KeywordColumn) column;
+            final List<StringTerms.Bucket> buckets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final int ord = ords[i];
+                buckets.add(new StringTerms.Bucket(keywords.terms[ord], bucketDocCount(ord), bucketAggregations(ord),
+                        showTermDocCountError, 0, format));
+            }
+            return new StringTerms(name, order, requiredSize, minDocCount, NO_PIPELINE_AGGREGATORS, metaData, format,
+                    reportedShardSize, showTermDocCountError, otherDocCount, buckets, 0);
+        } else if (column instanceof ColumnarBatch.LongColumn) {
+            final List<LongTerms.Bucket> buckets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final int ord = ords[i];
+                buckets.add(new LongTerms.Bucket(bucketOrds.get(ord), bucketDocCount(ord), bucketAggregations(ord),
+                        showTermDocCountError, 0, format));
+            }
+            return new LongTerms(name, order, requiredSize, minDocCount, NO_PIPELINE_AGGREGATORS, metaData, format,
+                    reportedShardSize, showTermDocCountError, otherDocCount, buckets, 0);
+        } else {
+            final List<DoubleTerms.Bucket> buckets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final int ord = ords[i];
+                buckets.add(new DoubleTerms.Bucket(Double.longBitsToDouble(bucketOrds.get(ord)), bucketDocCount(ord),
+                        bucketAggregations(ord), showTermDocCountError, 0, format));
+            }
+            return new DoubleTerms(name, order, requiredSize, minDocCount, NO_PIPELINE_AGGREGATORS, metaData, format,
+                    reportedShardSize, showTermDocCountError, otherDocCount, buckets, 0);
+        }
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        return new UnmappedTerms(name, order, requiredSize, minDocCount, NO_PIPELINE_AGGREGATORS, metaData);
+    }
+
+    /**
+     * Compares two bucket ordinals by descending count, then by ascending term.
+     */
+    private int compareOrds(int ord1, int ord2) {
+        final int cmp = Long.compare(bucketDocCount(ord2), bucketDocCount(ord1));
+        if (cmp != 0) {
+            return cmp;
+        }
+        if (column instanceof ColumnarBatch.KeywordColumn) {
+            return Integer.compare(ord1, ord2);
+        } else if (column instanceof ColumnarBatch.LongColumn) {
+            return Long.compare(bucketOrds.get(ord1), bucketOrds.get(ord2));
+        }
+        return Double.compare(Double.longBitsToDouble(bucketOrds.get(ord1)), Double.longBitsToDouble(bucketOrds.get(ord2)));
+    }
+
+    private final class OrdSelector extends IntroSelector {
+        private final int[] ords;
+
+        private int pivot;
+
+        OrdSelector(int[] ords) {
+            this.ords = ords;
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            final int tmp = ords[i];
+            ords[i] = ords[j];
+            ords[j] = tmp;
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            pivot = ords[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            return compareOrds(pivot, ords[j]);
+        }
+
+        @Override
+        protected int compare(int i, int j) {
+            return compareOrds(ords[i], ords[j]);
+        }
+    }
+
+    private final class OrdSorter extends IntroSorter {
+        private final int[] ords;
+
+        private int pivot;
+
+        OrdSorter(int[] ords) {
+            this.ords = ords;
+        }
+
+        @Override
+        protected void swap(int i, int j) {
+            final int tmp = ords[i];
+            ords[i] = ords[j];
+            ords[j] = tmp;
+        }
+
+        @Override
+        protected void setPivot(int i) {
+            pivot = ords[i];
+        }
+
+        @Override
+        protected int comparePivot(int j) {
+            return compareOrds(pivot, ords[j]);
+        }
+
+        @Override
+        protected int compare(int i, int j) {
+            return compareOrds(ords[i], ords[j]);
+        }
+    }
+
+    @Override
+    public void close() {
+        Releasables.close(bucketOrds);
+        super.close();
+    }
+}
@@ -0,0 +1,58 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.ObjectArray;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+
+/**
+ * Collects each owning bucket into its own instance of an aggregator that only supports a single owning bucket.
+ */
+final class MultiBucketAggregatorWrapper extends LocalAggregator {
+    private final LocalAggregatorFactory factory;
+
+    private final BigArrays bigArrays;
+
+    private ObjectArray<LocalAggregator> aggregators;
+
+    MultiBucketAggregatorWrapper(LocalAggregatorFactory factory) {
+        super(factory);
+        this.factory = factory;
+        this.bigArrays = factory.bigArrays();
+        this.aggregators = bigArrays.newObjectArray(1);
+    }
+
+    @Override
+    void collect(int doc, long owningBucketOrd) {
+        aggregators = bigArrays.grow(aggregators, owningBucketOrd + 1);
+        LocalAggregator aggregator = aggregators.get(owningBucketOrd);
+        if (aggregator == null) {
+            aggregator = factory.create(true);
+            aggregators.set(owningBucketOrd, aggregator);
+        }
+        aggregator.collect(doc, 0);
+    }
+
+    @Override
+    InternalAggregation buildAggregation(long owningBucketOrd) {
+        if (owningBucketOrd >= aggregators.size() || aggregators.get(owningBucketOrd) == null) {
+            return buildEmptyAggregation();
+        }
+        return aggregators.get(owningBucketOrd).buildAggregation(0);
+    }
+
+    @Override
+    InternalAggregation buildEmptyAggregation() {
+        try (LocalAggregator aggregator = factory.create(true)) {
+            return aggregator.buildEmptyAggregation();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (long i = 0; i < aggregators.size(); i++) {
+            Releasables.close(aggregators.get(i));
+        }
+        Releasables.close(aggregators);
+    }
+}
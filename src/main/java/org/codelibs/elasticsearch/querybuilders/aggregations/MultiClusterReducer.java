@@ -0,0 +1,161 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.xcontent.XContentHelper;
+import org.codelibs.elasticsearch.common.xcontent.json.JsonXContent;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.LongSupplier;
+
+/**
+ * Merges the aggregations of search responses of several clusters on the client, like the coordinating node of a
+ * cross-cluster search would.
+ * <p>
+ * The response of each cluster is decoded along the aggregations of the request into {InternalAggregation}s, which
+ * are merged with their <code>reduce</code> implementation. Sibling aggregations are reduced in parallel on the
+ * configured executor. The <code>doc_count_error_upper_bound</code> of a merged <code>terms</code> aggregation
+ * accounts for both the error reported by each cluster and the buckets each cluster truncated.
+ * <p>
+ * See {AggregationResponseDecoder} for the supported aggregations. This class is thread-safe.
+ */
+public class MultiClusterReducer {
+    private final List<AggregationBuilder> aggregations;
+
+    private volatile Executor executor = ForkJoinPool.commonPool();
+
+    private volatile BigArrays bigArrays = BigArrays.NON_RECYCLING_INSTANCE;
+
+    private MultiClusterReducer(List<AggregationBuilder> aggregations) {
+        AggregationResponseDecoder.validate(aggregations);
+        this.aggregations = Collections.unmodifiableList(new ArrayList<>(aggregations));
+    }
+
+    /**
+     * Sets the executor responses are decoded and sibling aggregations reduced on, the common fork join pool by
+     * default.
+     */
+    public MultiClusterReducer executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("[executor] must not be null.");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Sets the arrays reduce phases allocate from, {BigArrays#NON_RECYCLING_INSTANCE} by default.
+     */
+    public MultiClusterReducer bigArrays(BigArrays bigArrays) {
+        if (bigArrays == null) {
+            throw new IllegalArgumentException("[bigArrays] must not be null.");
+        }
+        this.bigArrays = bigArrays;
+        return this;
+    }
+
+    /**
+     * Decodes the aggregations of the given search response body.
+     *
+     * @throws IllegalArgumentException if the response does not match the aggregations of the request
+     */
+    public InternalAggregations decode(String response) {
+        final Map<String, Object> map = XContentHelper.convertToMap(JsonXContent.jsonXContent, response, false);
+        final Object aggregations = map.get("aggregations");
+        if (aggregations != null && aggregations instanceof Map == false) {
+            throw new IllegalArgumentException("[aggregations] must be an object: " + aggregations);
+        }
+        @SuppressWarnings("unchecked")
+        final Map<String, ?> section = (Map<String, ?>) aggregations;
+        return decodeAggregations(section);
+    }
+
+    /**
+     * Decodes the given <code>aggregations</code> section of a search response.
+     *
+     * @param aggregations the section, or <tt>null</tt> if the response has none
+     * @throws IllegalArgumentException if the section does not match the aggregations of the request
+     */
+    public InternalAggregations decodeAggregations(Map<String, ?> aggregations) {
+        return new AggregationResponseDecoder(nowSupplier()).decode(this.aggregations, aggregations);
+    }
+
+    /**
+     * Decodes the given search response bodies in parallel and merges their aggregations.
+     */
+    public InternalAggregations merge(List<String> responses) {
+        final InternalAggregations[] decoded = new InternalAggregations[responses.size()];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[decoded.length];
+        for (int i = 0; i < decoded.length; i++) {
+            final int index = i;
+            futures[i] = CompletableFuture.runAsync(() -> decoded[index] = decode(responses.get(index)), executor);
+        }
+        join(futures);
+        return reduce(Arrays.asList(decoded));
+    }
+
+    /**
+     * Merges the given decoded aggregations of each cluster.
+     *
+     * @return the merged aggregations, in the order of the aggregations of the request
+     */
+    public InternalAggregations reduce(List<InternalAggregations> clusters) {
+        if (clusters.isEmpty()) {
+            throw new IllegalArgumentException("[clusters] must not be empty.");
+        }
+        final InternalAggregation.ReduceContext context = new InternalAggregation.ReduceContext(bigArrays);
+        final InternalAggregation[] reduced = new InternalAggregation[aggregations.size()];
+        final CompletableFuture<?>[] futures = new CompletableFuture<?>[reduced.length];
+        for (int i = 0; i < reduced.length; i++) {
+            final int index = i;
+            final String name = aggregations.get(i).getName();
+            final List<InternalAggregation> siblings = new ArrayList<>(clusters.size());
+            for (InternalAggregations cluster : clusters) {
+                final InternalAggregation aggregation = cluster.get(name);
+                if (aggregation == null) {
+                    throw new IllegalArgumentException("Aggregation [" + name + "] is missing from a response");
+                }
+                siblings.add(aggregation);
+            }
+            // each sibling is reduced as one task, buckets of the same aggregation are merged together
+            futures[i] = CompletableFuture.runAsync(() -> reduced[index] = siblings.get(0).reduce(siblings, context), executor);
+        }
+        join(futures);
+        return new InternalAggregations(Arrays.asList(reduced));
+    }
+
+    private static LongSupplier nowSupplier() {
+        final long nowInMillis = System.currentTimeMillis();
+        return () -> nowInMillis;
+    }
+
+    private static void join(CompletableFuture<?>[] futures) {
+        try {
+            CompletableFuture.allOf(futures).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns a reducer of the responses to the given aggregations.
+     *
+     * @throws IllegalArgumentException if one of the aggregations cannot be reduced from its response
+     */
+    public static MultiClusterReducer reducer(List<AggregationBuilder> aggregations) {
+        return new MultiClusterReducer(aggregations);
+    }
+}
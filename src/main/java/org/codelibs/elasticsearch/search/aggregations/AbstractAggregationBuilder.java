@@ -25,6 +25,8 @@ import org.codelibs.elasticsearch.search.aggregations.InternalAggregation.Type;
 import org.codelibs.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
 
@@ -57,8 +59,13 @@ public abstract class AbstractAggregationBuilder<AB extends AbstractAggregationB
 
     @Override
     public final void writeTo(StreamOutput out) throws IOException {
+        writeTo(out, (o, factories) -> factories.writeTo(o));
+    }
+
+    @Override
+    public final void writeTo(StreamOutput out, Writer<AggregatorFactories.Builder> subAggregations) throws IOException {
         out.writeString(name);
-        factoriesBuilder.writeTo(out);
+        subAggregations.write(out, factoriesBuilder);
         out.writeMap(metaData);
         doWriteTo(out);
     }
@@ -107,6 +114,22 @@ public abstract class AbstractAggregationBuilder<AB extends AbstractAggregationB
         return (AB) this;
     }
 
+    @SuppressWarnings("unchecked")
+    @Override
+    public AB deepCopy() {
+        return (AB) super.deepCopy();
+    }
+
+    /**
+     * Copies the metadata and deep copies of the sub aggregations of this aggregation into the given one, for the
+     * {#deepCopy()} of subclasses. The metadata values are shared.
+     */
+    protected AB copyCommonTo(AB copy) {
+        copy.factoriesBuilder = factoriesBuilder.deepCopy();
+        copy.metaData = metaData == null ? null : new HashMap<>(metaData);
+        return copy;
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public AB setMetaData(Map<String, Object> metaData) {
@@ -117,6 +140,11 @@ public abstract class AbstractAggregationBuilder<AB extends AbstractAggregationB
         return (AB) this;
     }
 
+    @Override
+    public Map<String, Object> getMetaData() {
+        return metaData == null ? null : Collections.unmodifiableMap(metaData);
+    }
+
     public String getType() {
         return type.name();
     }
@@ -22,11 +22,15 @@ package org.codelibs.elasticsearch.search.aggregations;
 import org.codelibs.elasticsearch.action.support.ToXContentToBytes;
 import org.codelibs.elasticsearch.common.ParseField;
 import org.codelibs.elasticsearch.common.io.stream.NamedWriteable;
+import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.io.stream.Writeable;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.xcontent.ToXContent;
 import org.codelibs.elasticsearch.search.aggregations.InternalAggregation.Type;
 import org.codelibs.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -62,12 +66,48 @@ public abstract class AggregationBuilder
         return name;
     }
 
+    /** Return the sub aggregations of this builder. */
+    public List<AggregationBuilder> getSubAggregations() {
+        return factoriesBuilder.getAggregatorFactories();
+    }
+
+    /** Return the pipeline sub aggregations of this builder. */
+    public List<PipelineAggregationBuilder> getPipelineAggregations() {
+        return factoriesBuilder.getPipelineAggregatorFactories();
+    }
+
+    /**
+     * Replaces the sub aggregation at the given index with one of the same name, typically an equal instance that is
+     * shared with other requests.
+     */
+    public void setSubAggregation(int index, AggregationBuilder aggregation) {
+        factoriesBuilder.setAggregator(index, aggregation);
+    }
+
+    /**
+     * Writes this aggregation like {#writeTo(StreamOutput)}, with the given writer in place of its sub aggregations.
+     */
+    public abstract void writeTo(StreamOutput out, Writeable.Writer<AggregatorFactories.Builder> subAggregations)
+            throws IOException;
+
+    /**
+     * Returns a deep copy of this aggregation, including its sub aggregations, that can be modified without
+     * affecting this aggregation. Common aggregations override this with a field by field copy, the others are copied
+     * through their stream serialization, which costs about as much as sending them to a cluster.
+     */
+    public AggregationBuilder deepCopy() {
+        return WriteableCopier.copy(this);
+    }
+
     /** Internal: build an {AggregatorFactory} based on the configuration of this builder. */
     protected abstract AggregatorFactory<?> build(SearchContext context, AggregatorFactory<?> parent) throws IOException;
 
     /** Associate metadata with this {AggregationBuilder}. */
     public abstract AggregationBuilder setMetaData(Map<String, Object> metaData);
 
+    /** Return any associated metadata with this {AggregationBuilder}. */
+    public abstract Map<String, Object> getMetaData();
+
     /** Add a sub aggregation to this builder. */
     public abstract AggregationBuilder subAggregation(AggregationBuilder aggregation);
 
@@ -22,6 +22,7 @@ import org.codelibs.elasticsearch.action.support.ToXContentToBytes;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
 import org.codelibs.elasticsearch.common.io.stream.Writeable;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
 import org.codelibs.elasticsearch.search.aggregations.support.AggregationPath;
@@ -143,6 +144,22 @@ public class AggregatorFactories {
             }
         }
 
+        /**
+         * Returns a deep copy of these aggregations. Pipeline aggregations are copied through their stream
+         * serialization.
+         */
+        public Builder deepCopy() {
+            Builder copy = new Builder();
+            for (AggregationBuilder aggregation : aggregationBuilders) {
+                copy.addAggregator(aggregation.deepCopy());
+            }
+            for (PipelineAggregationBuilder pipeline : pipelineAggregatorBuilders) {
+                copy.addPipelineAggregator(WriteableCopier.copy(pipeline));
+            }
+            copy.skipResolveOrder = skipResolveOrder;
+            return copy;
+        }
+
         public Builder addAggregators(AggregatorFactories factories) {
             throw new UnsupportedOperationException("This needs to be removed");
         }
@@ -155,6 +172,19 @@ public class AggregatorFactories {
             return this;
         }
 
+        /**
+         * Replaces the aggregation at the given index with one of the same name, typically an equal instance that
+         * is shared with other requests.
+         */
+        public Builder setAggregator(int index, AggregationBuilder factory) {
+            if (!aggregationBuilders.get(index).name.equals(factory.name)) {
+                throw new IllegalArgumentException("Aggregation [" + aggregationBuilders.get(index).name
+                        + "] cannot be replaced by [" + factory.name + "]");
+            }
+            aggregationBuilders.set(index, factory);
+            return this;
+        }
+
         public Builder addPipelineAggregator(PipelineAggregationBuilder pipelineAggregatorFactory) {
             this.pipelineAggregatorBuilders.add(pipelineAggregatorFactory);
             return this;
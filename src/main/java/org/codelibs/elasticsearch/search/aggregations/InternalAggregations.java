@@ -66,6 +66,13 @@ public class InternalAggregations implements Aggregations, ToXContent, Streamabl
         return aggregations.stream().map((p) -> (Aggregation) p).iterator();
     }
 
+    /**
+     * Returns <tt>true</tt> if there are no aggregations, without copying them.
+     */
+    public boolean isEmpty() {
+        return aggregations.isEmpty();
+    }
+
     /**
      * The list of {Aggregation}s.
      */
@@ -69,6 +69,18 @@ public class FilterAggregationBuilder extends AbstractAggregationBuilder<FilterA
         out.writeNamedWriteable(filter);
     }
 
+    /**
+     * Gets the filter of this aggregation.
+     */
+    public QueryBuilder getFilter() {
+        return filter;
+    }
+
+    @Override
+    public FilterAggregationBuilder deepCopy() {
+        return copyCommonTo(new FilterAggregationBuilder(name, filter.deepCopy()));
+    }
+
     @Override
     protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
             AggregatorFactories.Builder subFactoriesBuilder) throws IOException {
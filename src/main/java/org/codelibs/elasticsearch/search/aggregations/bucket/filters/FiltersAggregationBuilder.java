@@ -90,6 +90,12 @@ public class FiltersAggregationBuilder extends AbstractAggregationBuilder<Filter
         this.keyed = false;
     }
 
+    private FiltersAggregationBuilder(String name, List<KeyedFilter> filters, boolean keyed) {
+        super(name, TYPE);
+        this.filters = filters;
+        this.keyed = keyed;
+    }
+
     /**
      * Read from a stream.
      */
@@ -128,6 +134,18 @@ public class FiltersAggregationBuilder extends AbstractAggregationBuilder<Filter
         out.writeString(otherBucketKey);
     }
 
+    @Override
+    public FiltersAggregationBuilder deepCopy() {
+        List<KeyedFilter> copies = new ArrayList<>(filters.size());
+        for (KeyedFilter filter : filters) {
+            copies.add(new KeyedFilter(filter.key(), filter.filter().deepCopy()));
+        }
+        FiltersAggregationBuilder copy = copyCommonTo(new FiltersAggregationBuilder(name, copies, keyed));
+        copy.otherBucket = otherBucket;
+        copy.otherBucketKey = otherBucketKey;
+        return copy;
+    }
+
     /**
      * Set whether to include a bucket for documents not matching any filter
      */
@@ -150,6 +168,13 @@ public class FiltersAggregationBuilder extends AbstractAggregationBuilder<Filter
         return Collections.unmodifiableList(this.filters);
     }
 
+    /**
+     * Get whether the buckets are keyed by the keys of the filters or returned as an array
+     */
+    public boolean keyed() {
+        return keyed;
+    }
+
     /**
      * Set the key to use for the bucket for documents not matching any
      * filter.
@@ -163,6 +163,19 @@ public class DateHistogramAggregationBuilder
         out.writeOptionalWriteable(extendedBounds);
     }
 
+    @Override
+    public DateHistogramAggregationBuilder deepCopy() {
+        DateHistogramAggregationBuilder copy = copyCommonTo(new DateHistogramAggregationBuilder(name));
+        copy.interval = interval;
+        copy.dateHistogramInterval = dateHistogramInterval;
+        copy.offset = offset;
+        copy.extendedBounds = extendedBounds;
+        copy.order = order;
+        copy.keyed = keyed;
+        copy.minDocCount = minDocCount;
+        return copy;
+    }
+
     /** Get the current interval in milliseconds that is set on this builder. */
     public double interval() {
         return interval;
@@ -332,7 +345,10 @@ public class DateHistogramAggregationBuilder
                 rounding, roundedBounds, context, parent, subFactoriesBuilder, metaData);
     }
 
-    private Rounding createRounding() {
+    /**
+     * Returns the rounding of timestamps to bucket keys for the interval and time zone of this aggregation.
+     */
+    public Rounding createRounding() {
         Rounding.Builder tzRoundingBuilder;
         if (dateHistogramInterval != null) {
             DateTimeUnit dateTimeUnit = DATE_FIELD_UNITS.get(dateHistogramInterval.toString());
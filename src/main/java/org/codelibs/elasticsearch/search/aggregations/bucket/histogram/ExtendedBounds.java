@@ -37,6 +37,7 @@ import org.codelibs.elasticsearch.search.internal.SearchContext;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.function.LongSupplier;
 
 import static org.codelibs.elasticsearch.common.xcontent.ConstructingObjectParser.optionalConstructorArg;
 
@@ -166,7 +167,32 @@ public class ExtendedBounds implements ToXContent, Writeable {
         return new ExtendedBounds(min, max, minAsStr, maxAsStr);
     }
 
-    ExtendedBounds round(Rounding rounding) {
+    /**
+     * Parse the bounds without a search context, resolving <code>now</code> with the given supplier.
+     *
+     * @throws IllegalArgumentException if <code>min</code> is greater than <code>max</code>
+     */
+    public ExtendedBounds parseAndValidate(String aggName, LongSupplier now, DocValueFormat format) {
+        Long min = this.min;
+        Long max = this.max;
+        assert format != null;
+        if (minAsStr != null) {
+            min = format.parseLong(minAsStr, false, now);
+        }
+        if (maxAsStr != null) {
+            max = format.parseLong(maxAsStr, false, now);
+        }
+        if (min != null && max != null && min.compareTo(max) > 0) {
+            throw new IllegalArgumentException("[extended_bounds.min][" + min + "] cannot be greater than " +
+                    "[extended_bounds.max][" + max + "] for histogram aggregation [" + aggName + "]");
+        }
+        return new ExtendedBounds(min, max, minAsStr, maxAsStr);
+    }
+
+    /**
+     * Returns these bounds rounded down to the keys of the buckets they fall in.
+     */
+    public ExtendedBounds round(Rounding rounding) {
         return new ExtendedBounds(min != null ? rounding.round(min) : null, max != null ? rounding.round(max) : null);
     }
 
@@ -126,6 +126,19 @@ public class HistogramAggregationBuilder
         out.writeDouble(maxBound);
     }
 
+    @Override
+    public HistogramAggregationBuilder deepCopy() {
+        HistogramAggregationBuilder copy = copyCommonTo(new HistogramAggregationBuilder(name));
+        copy.interval = interval;
+        copy.offset = offset;
+        copy.minBound = minBound;
+        copy.maxBound = maxBound;
+        copy.order = order;
+        copy.keyed = keyed;
+        copy.minDocCount = minDocCount;
+        return copy;
+    }
+
     /** Get the current interval that is set on this builder. */
     public double interval() {
         return interval;
@@ -143,17 +143,17 @@ public final class InternalDateHistogram extends InternalMultiBucketAggregation<
         }
     }
 
-    static class EmptyBucketInfo {
+    public static class EmptyBucketInfo {
 
         final Rounding rounding;
         final InternalAggregations subAggregations;
         final ExtendedBounds bounds;
 
-        EmptyBucketInfo(Rounding rounding, InternalAggregations subAggregations) {
+        public EmptyBucketInfo(Rounding rounding, InternalAggregations subAggregations) {
             this(rounding, subAggregations, null);
         }
 
-        EmptyBucketInfo(Rounding rounding, InternalAggregations subAggregations, ExtendedBounds bounds) {
+        public EmptyBucketInfo(Rounding rounding, InternalAggregations subAggregations, ExtendedBounds bounds) {
             this.rounding = rounding;
             this.subAggregations = subAggregations;
             this.bounds = bounds;
@@ -181,13 +181,13 @@ public final class InternalDateHistogram extends InternalMultiBucketAggregation<
     private final long offset;
     private final EmptyBucketInfo emptyBucketInfo;
 
-    InternalDateHistogram(String name, List<Bucket> buckets, InternalOrder order, long minDocCount, long offset,
+    public InternalDateHistogram(String name, List<Bucket> buckets, Histogram.Order order, long minDocCount, long offset,
             EmptyBucketInfo emptyBucketInfo,
             DocValueFormat formatter, boolean keyed, List<PipelineAggregator> pipelineAggregators,
             Map<String, Object> metaData) {
         super(name, pipelineAggregators, metaData);
         this.buckets = buckets;
-        this.order = order;
+        this.order = (InternalOrder) order;
         this.offset = offset;
         assert (minDocCount == 0) == (emptyBucketInfo != null);
         this.minDocCount = minDocCount;
@@ -24,6 +24,7 @@ import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
 import org.codelibs.elasticsearch.common.io.stream.Writeable;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
+import org.codelibs.elasticsearch.search.DocValueFormat;
 import org.codelibs.elasticsearch.search.aggregations.bucket.range.RangeAggregator.Range;
 import org.codelibs.elasticsearch.search.aggregations.support.ValuesSource;
 import org.codelibs.elasticsearch.search.aggregations.support.ValuesSource.Numeric;
@@ -35,6 +36,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.LongSupplier;
 
 public abstract class AbstractRangeBuilder<AB extends AbstractRangeBuilder<AB, R>, R extends Range>
         extends ValuesSourceAggregationBuilder<ValuesSource.Numeric, AB> {
@@ -59,6 +61,19 @@ public abstract class AbstractRangeBuilder<AB extends AbstractRangeBuilder<AB, R
         keyed = in.readBoolean();
     }
 
+    /**
+     * Copies the ranges of this aggregation into the given one, on top of the values source settings. Ranges are
+     * immutable and shared.
+     */
+    @Override
+    protected AB copyCommonTo(AB copy) {
+        super.copyCommonTo(copy);
+        AbstractRangeBuilder<?, R> target = copy;
+        target.ranges = new ArrayList<>(ranges);
+        target.keyed = keyed;
+        return copy;
+    }
+
     /**
      * Resolve any strings in the ranges so we have a number value for the from
      * and to of each range. The ranges are also sorted before being returned.
@@ -72,6 +87,25 @@ public abstract class AbstractRangeBuilder<AB extends AbstractRangeBuilder<AB, R
         return ranges;
     }
 
+    /**
+     * Resolve any strings in the ranges without a search context, see {#processRanges(SearchContext, ValuesSourceConfig)}.
+     */
+    public Range[] processRanges(DocValueFormat format, LongSupplier now) {
+        Range[] ranges = new Range[this.ranges.size()];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = this.ranges.get(i).process(format, now);
+        }
+        sortRanges(ranges);
+        return ranges;
+    }
+
+    /**
+     * @return the factory of the result of this aggregation
+     */
+    public InternalRange.Factory<?, ?> rangeFactory() {
+        return rangeFactory;
+    }
+
     private static void sortRanges(final Range[] ranges) {
         new InPlaceMergeSorter() {
 
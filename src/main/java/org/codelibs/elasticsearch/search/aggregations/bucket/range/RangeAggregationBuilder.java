@@ -71,6 +71,11 @@ public class RangeAggregationBuilder extends AbstractRangeBuilder<RangeAggregati
         super(in, InternalRange.FACTORY, Range::new);
     }
 
+    @Override
+    public RangeAggregationBuilder deepCopy() {
+        return copyCommonTo(new RangeAggregationBuilder(name));
+    }
+
     /**
      * Add a new range to this aggregation.
      *
@@ -46,6 +46,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.function.LongSupplier;
 
 /**
  *
@@ -103,6 +104,26 @@ public class RangeAggregator extends BucketsAggregator {
             this.toAsStr = toAsStr;
         }
 
+        public String getKey() {
+            return key;
+        }
+
+        public double getFrom() {
+            return from;
+        }
+
+        public String getFromAsString() {
+            return fromAsStr;
+        }
+
+        public double getTo() {
+            return to;
+        }
+
+        public String getToAsString() {
+            return toAsStr;
+        }
+
         boolean matches(double value) {
             return value >= from && value < to;
         }
@@ -125,6 +146,22 @@ public class RangeAggregator extends BucketsAggregator {
             return new Range(key, from, fromAsStr, to, toAsStr);
         }
 
+        /**
+         * Resolves the string bounds with the given format, <code>now</code> is read from the given supplier.
+         */
+        public Range process(DocValueFormat parser, LongSupplier now) {
+            assert parser != null;
+            Double from = this.from;
+            Double to = this.to;
+            if (fromAsStr != null) {
+                from = parser.parseDouble(fromAsStr, false, now);
+            }
+            if (toAsStr != null) {
+                to = parser.parseDouble(toAsStr, false, now);
+            }
+            return new Range(key, from, fromAsStr, to, toAsStr);
+        }
+
         public static Range fromXContent(XContentParser parser, ParseFieldMatcher parseFieldMatcher) throws IOException {
             XContentParser.Token token;
             String currentFieldName = null;
@@ -20,6 +20,8 @@ package org.codelibs.elasticsearch.search.aggregations.bucket.terms;
 
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.LongHash;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.search.DocValueFormat;
 import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
@@ -35,7 +37,7 @@ import java.util.Map;
 public class DoubleTerms extends InternalMappedTerms<DoubleTerms, DoubleTerms.Bucket> {
     public static final String NAME = "dterms";
 
-    static class Bucket extends InternalTerms.Bucket<Bucket> {
+    public static class Bucket extends InternalTerms.Bucket<Bucket> {
         private final double term;
 
         public Bucket(double term, long docCount, InternalAggregations aggregations, boolean showDocCountError, long docCountError,
@@ -148,6 +150,27 @@ public class DoubleTerms extends InternalMappedTerms<DoubleTerms, DoubleTerms.Bu
         return builder;
     }
 
+    @Override
+    TermsHash<Bucket> newTermsHash(long capacity, BigArrays bigArrays) {
+        final LongHash hash = new LongHash(capacity, bigArrays);
+        return new TermsHash<Bucket>() {
+            @Override
+            long add(Bucket bucket) {
+                return hash.add(Double.doubleToLongBits(bucket.term));
+            }
+
+            @Override
+            long size() {
+                return hash.size();
+            }
+
+            @Override
+            public void close() {
+                hash.close();
+            }
+        };
+    }
+
     @Override
     protected Bucket[] createBucketsArray(int size) {
         return new Bucket[size];
@@ -43,7 +43,7 @@ import java.util.Objects;
 /**
  *
  */
-class InternalOrder extends Terms.Order {
+public class InternalOrder extends Terms.Order {
 
     private static final byte COUNT_DESC_ID = 1;
     private static final byte COUNT_ASC_ID = 2;
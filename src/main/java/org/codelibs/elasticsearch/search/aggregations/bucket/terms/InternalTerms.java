@@ -20,6 +20,11 @@ package org.codelibs.elasticsearch.search.aggregations.bucket.terms;
 
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.lease.Releasable;
+import org.codelibs.elasticsearch.common.lease.Releasables;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.LongArray;
+import org.codelibs.elasticsearch.common.util.ObjectArray;
 import org.codelibs.elasticsearch.common.xcontent.ToXContent;
 import org.codelibs.elasticsearch.search.DocValueFormat;
 import org.codelibs.elasticsearch.search.aggregations.AggregationExecutionException;
@@ -33,6 +38,7 @@ import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregato
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -181,82 +187,190 @@ public abstract class InternalTerms<A extends InternalTerms<A, B>, B extends Int
 
     @Override
     public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
-        Map<Object, List<B>> buckets = new HashMap<>();
+        final BigArrays bigArrays = reduceContext.bigArrays();
         long sumDocCountError = 0;
+        long singleDocCountError = 0;
         long otherDocCount = 0;
         InternalTerms<A, B> referenceTerms = null;
+        int maxBuckets = 1;
         for (InternalAggregation aggregation : aggregations) {
-            @SuppressWarnings("unchecked")
-            InternalTerms<A, B> terms = (InternalTerms<A, B>) aggregation;
-            if (referenceTerms == null && !aggregation.getClass().equals(UnmappedTerms.class)) {
-                referenceTerms = terms;
-            }
-            if (referenceTerms != null &&
-                    !referenceTerms.getClass().equals(terms.getClass()) &&
-                    !terms.getClass().equals(UnmappedTerms.class)) {
-                // control gets into this loop when the same field name against which the query is executed
-                // is of different types in different indices.
-                throw new AggregationExecutionException("Merging/Reducing the aggregations failed when computing the aggregation ["
-                        + referenceTerms.getName() + "] because the field you gave in the aggregation query existed as two different "
-                        + "types in two different indices");
-            }
-            otherDocCount += terms.getSumOfOtherDocCounts();
-            final long thisAggDocCountError;
-            if (terms.getBucketsInternal().size() < getShardSize() || InternalOrder.isTermOrder(order)) {
-                thisAggDocCountError = 0;
-            } else if (InternalOrder.isCountDesc(this.order)) {
-                thisAggDocCountError = terms.getBucketsInternal().get(terms.getBucketsInternal().size() - 1).docCount;
-            } else {
-                thisAggDocCountError = -1;
-            }
-            if (sumDocCountError != -1) {
-                if (thisAggDocCountError == -1) {
-                    sumDocCountError = -1;
+            maxBuckets = Math.max(maxBuckets, ((InternalTerms<?, ?>) aggregation).getBucketsInternal().size());
+        }
+        // buckets of the same term are merged in place: their counts add up in arrays indexed by the id of the term,
+        // the first bucket of each term is kept as a prototype and sub-aggregations are only listed if there are any.
+        // The given aggregations and their buckets are not modified, so that they can be reduced again.
+        TermsHash<B> termsHash = null;
+        LongArray docCounts = null;
+        LongArray docCountErrors = null;
+        ObjectArray<B> prototypes = null;
+        ObjectArray<List<InternalAggregations>> subAggregations = null;
+        try {
+            termsHash = newTermsHash(maxBuckets, bigArrays);
+            docCounts = bigArrays.newLongArray(maxBuckets, false);
+            docCountErrors = bigArrays.newLongArray(maxBuckets, false);
+            prototypes = bigArrays.newObjectArray(maxBuckets);
+            subAggregations = bigArrays.newObjectArray(maxBuckets);
+            for (InternalAggregation aggregation : aggregations) {
+                @SuppressWarnings("unchecked")
+                InternalTerms<A, B> terms = (InternalTerms<A, B>) aggregation;
+                if (referenceTerms == null && !aggregation.getClass().equals(UnmappedTerms.class)) {
+                    referenceTerms = terms;
+                }
+                if (referenceTerms != null &&
+                        !referenceTerms.getClass().equals(terms.getClass()) &&
+                        !terms.getClass().equals(UnmappedTerms.class)) {
+                    // control gets into this loop when the same field name against which the query is executed
+                    // is of different types in different indices.
+                    throw new AggregationExecutionException("Merging/Reducing the aggregations failed when computing the aggregation ["
+                            + referenceTerms.getName() + "] because the field you gave in the aggregation query existed as two different "
+                            + "types in two different indices");
+                }
+                otherDocCount += terms.getSumOfOtherDocCounts();
+                // the error of an aggregation that is already the result of a reduce, e.g. the response of another
+                // cluster, adds up with the error of the truncation of its buckets
+                final long previousDocCountError = terms.getDocCountError();
+                final List<B> buckets = terms.getBucketsInternal();
+                final long thisAggDocCountError;
+                if (previousDocCountError == -1) {
+                    thisAggDocCountError = -1;
+                } else if (buckets.isEmpty() || buckets.size() < terms.getShardSize() || InternalOrder.isTermOrder(order)) {
+                    thisAggDocCountError = previousDocCountError;
+                } else if (InternalOrder.isCountDesc(this.order)) {
+                    thisAggDocCountError = buckets.get(buckets.size() - 1).docCount + previousDocCountError;
                 } else {
-                    sumDocCountError += thisAggDocCountError;
+                    thisAggDocCountError = -1;
                 }
-            }
-            setDocCountError(thisAggDocCountError);
-            for (B bucket : terms.getBucketsInternal()) {
-                bucket.docCountError = thisAggDocCountError;
-                List<B> bucketList = buckets.get(bucket.getKey());
-                if (bucketList == null) {
-                    bucketList = new ArrayList<>();
-                    buckets.put(bucket.getKey(), bucketList);
+                if (aggregations.size() == 1) {
+                    singleDocCountError = previousDocCountError;
+                }
+                if (sumDocCountError != -1) {
+                    if (thisAggDocCountError == -1) {
+                        sumDocCountError = -1;
+                    } else {
+                        sumDocCountError += thisAggDocCountError;
+                    }
+                }
+                for (B bucket : buckets) {
+                    // a bucket is only missing the error of the aggregations it is not part of, and its own one
+                    final long previousBucketDocCountError = bucket.docCountError > 0 ? bucket.docCountError : 0;
+                    final long bucketDocCountError = thisAggDocCountError == -1 ? -1
+                            : thisAggDocCountError - previousBucketDocCountError;
+                    long id = termsHash.add(bucket);
+                    if (id >= 0) {
+                        docCounts = bigArrays.grow(docCounts, id + 1);
+                        docCountErrors = bigArrays.grow(docCountErrors, id + 1);
+                        prototypes = bigArrays.grow(prototypes, id + 1);
+                        subAggregations = bigArrays.grow(subAggregations, id + 1);
+                        docCounts.set(id, bucket.docCount);
+                        docCountErrors.set(id, bucketDocCountError);
+                        prototypes.set(id, bucket);
+                    } else {
+                        id = -1 - id;
+                        docCounts.increment(id, bucket.docCount);
+                        final long docCountError = docCountErrors.get(id);
+                        if (docCountError != -1) {
+                            docCountErrors.set(id, bucketDocCountError == -1 ? -1 : docCountError + bucketDocCountError);
+                        }
+                        if (bucket.aggregations.isEmpty() == false) {
+                            List<InternalAggregations> sameTermAggregations = subAggregations.get(id);
+                            if (sameTermAggregations == null) {
+                                sameTermAggregations = new ArrayList<>();
+                                sameTermAggregations.add(prototypes.get(id).aggregations);
+                                subAggregations.set(id, sameTermAggregations);
+                            }
+                            sameTermAggregations.add(bucket.aggregations);
+                        }
+                    }
                 }
-                bucketList.add(bucket);
             }
-        }
 
-        final int size = Math.min(requiredSize, buckets.size());
-        BucketPriorityQueue<B> ordered = new BucketPriorityQueue<>(size, order.comparator(null));
-        for (List<B> sameTermBuckets : buckets.values()) {
-            final B b = sameTermBuckets.get(0).reduce(sameTermBuckets, reduceContext);
-            if (b.docCountError != -1) {
-                if (sumDocCountError == -1) {
-                    b.docCountError = -1;
+            final long numTerms = termsHash.size();
+            final int size = (int) Math.min(requiredSize, numTerms);
+            final boolean countDesc = InternalOrder.isCountDesc(order);
+            BucketPriorityQueue<B> ordered = new BucketPriorityQueue<>(size, order.comparator(null));
+            for (long id = 0; id < numTerms; id++) {
+                final long docCount = docCounts.get(id);
+                if (docCount < minDocCount) {
+                    continue;
+                }
+                if (countDesc && ordered.size() == size && (size == 0 || docCount < ordered.top().docCount)) {
+                    // cannot make it to the top buckets, no need to build it
+                    otherDocCount += docCount;
+                    continue;
+                }
+                final B prototype = prototypes.get(id);
+                final List<InternalAggregations> sameTermAggregations = subAggregations.get(id);
+                final InternalAggregations aggs;
+                if (sameTermAggregations != null) {
+                    aggs = InternalAggregations.reduce(sameTermAggregations, reduceContext);
+                } else if (prototype.aggregations.isEmpty()) {
+                    aggs = prototype.aggregations;
                 } else {
-                    b.docCountError = sumDocCountError - b.docCountError;
+                    aggs = InternalAggregations.reduce(Collections.singletonList(prototype.aggregations), reduceContext);
                 }
-            }
-            if (b.docCount >= minDocCount) {
+                long docCountError = docCountErrors.get(id);
+                if (docCountError != -1) {
+                    docCountError = sumDocCountError == -1 ? -1 : sumDocCountError - docCountError;
+                }
+                final B b = prototype.newBucket(docCount, aggs, docCountError);
                 B removed = ordered.insertWithOverflow(b);
                 if (removed != null) {
                     otherDocCount += removed.getDocCount();
                 }
             }
+            B[] list = createBucketsArray(ordered.size());
+            for (int i = ordered.size() - 1; i >= 0; i--) {
+                list[i] = ordered.pop();
+            }
+            long docCountError;
+            if (sumDocCountError == -1) {
+                docCountError = -1;
+            } else {
+                docCountError = aggregations.size() == 1 ? singleDocCountError : sumDocCountError;
+            }
+            return create(name, Arrays.asList(list), docCountError, otherDocCount);
+        } finally {
+            Releasables.close(termsHash, docCounts, docCountErrors, prototypes, subAggregations);
         }
-        B[] list = createBucketsArray(ordered.size());
-        for (int i = ordered.size() - 1; i >= 0; i--) {
-            list[i] = ordered.pop();
-        }
-        long docCountError;
-        if (sumDocCountError == -1) {
-            docCountError = -1;
-        } else {
-            docCountError = aggregations.size() == 1 ? 0 : sumDocCountError;
-        }
-        return create(name, Arrays.asList(list), docCountError, otherDocCount);
+    }
+
+    /**
+     * Assigns consecutive ids to the terms of the buckets that are reduced together.
+     */
+    abstract static class TermsHash<B extends Bucket<B>> implements Releasable {
+        /**
+         * Adds the term of the given bucket. Returns its id, or <code>-1-id</code> if it was already added.
+         */
+        abstract long add(B bucket);
+
+        /**
+         * Returns the number of distinct terms.
+         */
+        abstract long size();
+    }
+
+    /**
+     * Returns the hash the terms of the buckets are merged with, which groups them by key by default. Implementations
+     * should hash the term of their buckets without boxing it.
+     */
+    TermsHash<B> newTermsHash(long capacity, BigArrays bigArrays) {
+        final Map<Object, Long> ids = new HashMap<>();
+        return new TermsHash<B>() {
+            @Override
+            long add(B bucket) {
+                final Long id = ids.putIfAbsent(bucket.getKey(), (long) ids.size());
+                return id == null ? ids.size() - 1 : -1 - id;
+            }
+
+            @Override
+            long size() {
+                return ids.size();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
     }
 
     protected abstract void setDocCountError(long docCountError);
@@ -20,6 +20,8 @@ package org.codelibs.elasticsearch.search.aggregations.bucket.terms;
 
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.LongHash;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.search.DocValueFormat;
 import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
@@ -148,6 +150,27 @@ public class LongTerms extends InternalMappedTerms<LongTerms, LongTerms.Bucket>
         return builder;
     }
 
+    @Override
+    TermsHash<Bucket> newTermsHash(long capacity, BigArrays bigArrays) {
+        final LongHash hash = new LongHash(capacity, bigArrays);
+        return new TermsHash<Bucket>() {
+            @Override
+            long add(Bucket bucket) {
+                return hash.add(bucket.term);
+            }
+
+            @Override
+            long size() {
+                return hash.size();
+            }
+
+            @Override
+            public void close() {
+                hash.close();
+            }
+        };
+    }
+
     @Override
     protected Bucket[] createBucketsArray(int size) {
         return new Bucket[size];
@@ -21,6 +21,8 @@ package org.codelibs.elasticsearch.search.aggregations.bucket.terms;
 import org.apache.lucene.util.BytesRef;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.BytesRefHash;
 import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
 import org.codelibs.elasticsearch.search.DocValueFormat;
 import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
@@ -146,6 +148,27 @@ public class StringTerms extends InternalMappedTerms<StringTerms, StringTerms.Bu
         return builder;
     }
 
+    @Override
+    TermsHash<Bucket> newTermsHash(long capacity, BigArrays bigArrays) {
+        final BytesRefHash hash = new BytesRefHash(capacity, bigArrays);
+        return new TermsHash<Bucket>() {
+            @Override
+            long add(Bucket bucket) {
+                return hash.add(bucket.termBytes);
+            }
+
+            @Override
+            long size() {
+                return hash.size();
+            }
+
+            @Override
+            public void close() {
+                hash.close();
+            }
+        };
+    }
+
     @Override
     protected Bucket[] createBucketsArray(int size) {
         return new Bucket[size];
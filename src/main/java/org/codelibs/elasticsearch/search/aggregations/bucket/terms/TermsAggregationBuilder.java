@@ -139,6 +139,18 @@ public class TermsAggregationBuilder extends ValuesSourceAggregationBuilder<Valu
         out.writeBoolean(showTermDocCountError);
     }
 
+    @Override
+    public TermsAggregationBuilder deepCopy() {
+        TermsAggregationBuilder copy = copyCommonTo(new TermsAggregationBuilder(name, targetValueType()));
+        copy.order = order;
+        copy.includeExclude = includeExclude;
+        copy.executionHint = executionHint;
+        copy.collectMode = collectMode;
+        copy.bucketCountThresholds = new BucketCountThresholds(bucketCountThresholds);
+        copy.showTermDocCountError = showTermDocCountError;
+        return copy;
+    }
+
     /**
      * Sets the size - indicating how many term buckets should be returned
      * (defaults to 10)
@@ -151,6 +163,13 @@ public class TermsAggregationBuilder extends ValuesSourceAggregationBuilder<Valu
         return this;
     }
 
+    /**
+     * Returns the number of term buckets currently configured
+     */
+    public int size() {
+        return bucketCountThresholds.getRequiredSize();
+    }
+
     /**
      * Sets the shard_size - indicating the number of term buckets each shard
      * will return to the coordinating node (the node that coordinates the
@@ -166,6 +185,13 @@ public class TermsAggregationBuilder extends ValuesSourceAggregationBuilder<Valu
         return this;
     }
 
+    /**
+     * Returns the number of term buckets per shard that are currently configured
+     */
+    public int shardSize() {
+        return bucketCountThresholds.getShardSize();
+    }
+
     /**
      * Set the minimum document count terms should have in order to appear in
      * the response.
@@ -179,6 +205,13 @@ public class TermsAggregationBuilder extends ValuesSourceAggregationBuilder<Valu
         return this;
     }
 
+    /**
+     * Returns the minimum document count required per term
+     */
+    public long minDocCount() {
+        return bucketCountThresholds.getMinDocCount();
+    }
+
     /**
      * Set the minimum document count terms should have on the shard in order to
      * appear in the response.
@@ -192,6 +225,13 @@ public class TermsAggregationBuilder extends ValuesSourceAggregationBuilder<Valu
         return this;
     }
 
+    /**
+     * Returns the minimum document count required per term, per shard
+     */
+    public long shardMinDocCount() {
+        return bucketCountThresholds.getShardMinDocCount();
+    }
+
     /**
      * Sets the order in which the buckets will be returned.
      */
@@ -69,6 +69,11 @@ public class AvgAggregationBuilder extends ValuesSourceAggregationBuilder.LeafOn
         // Do nothing, no extra state to write to stream
     }
 
+    @Override
+    public AvgAggregationBuilder deepCopy() {
+        return copyCommonTo(new AvgAggregationBuilder(name));
+    }
+
     @Override
     protected AvgAggregatorFactory innerBuild(SearchContext context, ValuesSourceConfig<Numeric> config,
             AggregatorFactory<?> parent, Builder subFactoriesBuilder) throws IOException {
@@ -86,6 +86,13 @@ public final class CardinalityAggregationBuilder
         }
     }
 
+    @Override
+    public CardinalityAggregationBuilder deepCopy() {
+        CardinalityAggregationBuilder copy = copyCommonTo(new CardinalityAggregationBuilder(name, targetValueType()));
+        copy.precisionThreshold = precisionThreshold;
+        return copy;
+    }
+
     @Override
     protected boolean serializeTargetValueType() {
         return true;
@@ -56,7 +56,7 @@ public final class HyperLogLogPlusPlus implements Releasable {
     public static final int MAX_PRECISION = 18;
     private static final boolean LINEAR_COUNTING = false;
     private static final boolean HYPERLOGLOG = true;
-    private static final float MAX_LOAD_FACTOR = 0.75f;
+    static final float MAX_LOAD_FACTOR = 0.75f;
     private static final int P2 = 25;
     private static final int BIAS_K = 6;
 
@@ -170,6 +170,11 @@ public final class HyperLogLogPlusPlus implements Releasable {
         algorithm = new OpenBitSet();
         runLens = bigArrays.newByteArray(initialBucketCount << p);
         hashSet = new Hashset(initialBucketCount);
+        alphaMM = alphaMM(p);
+    }
+
+    static double alphaMM(int p) {
+        final int m = 1 << p;
         final double alpha;
         switch (p) {
         case 4:
@@ -182,7 +187,7 @@ public final class HyperLogLogPlusPlus implements Releasable {
             alpha = 0.7213 / (1 + 1.079 / m);
             break;
         }
-        alphaMM = alpha * m * m;
+        return alpha * m * m;
     }
 
     public int precision() {
@@ -275,8 +280,15 @@ public final class HyperLogLogPlusPlus implements Releasable {
     }
 
     private long cardinalityLc(long bucket) {
+        return cardinalityLc(hashSet.size(bucket));
+    }
+
+    /**
+     * Returns the cardinality of a linear counting hash set of the given size.
+     */
+    static long cardinalityLc(int size) {
         final long m = 1 << P2;
-        final long v = m - hashSet.size(bucket);
+        final long v = m - size;
         return linearCounting(m, v);
     }
 
@@ -290,15 +302,24 @@ public final class HyperLogLogPlusPlus implements Releasable {
                 ++zeros;
             }
         }
+        return cardinalityHll(p, alphaMM, inverseSum, zeros);
+    }
+
+    /**
+     * Returns the cardinality of the registers of the given precision, from the sum of the inverses of
+     * <code>2^runLen</code> and the number of registers that are <code>0</code>.
+     */
+    static long cardinalityHll(int p, double alphaMM, double inverseSum, int zeros) {
+        final int m = 1 << p;
         double e1 = alphaMM / inverseSum;
-        double e2 = e1 <= 5 * m ? e1 - estimateBias(e1) : e1;
+        double e2 = e1 <= 5 * m ? e1 - estimateBias(p, e1) : e1;
         long h;
         if (zeros != 0) {
             h = linearCounting(m, zeros);
         } else {
             h = Math.round(e2);
         }
-        if (h <= threshold()) {
+        if (h <= THRESHOLDS[p - 4]) {
             return h;
         } else {
             return Math.round(e2);
@@ -374,9 +395,9 @@ public final class HyperLogLogPlusPlus implements Releasable {
     }
 
 
-    private double estimateBias(double e) {
-        final double[] rawEstimateData = rawEstimateData();
-        final double[] biasData = biasData();
+    private static double estimateBias(int p, double e) {
+        final double[] rawEstimateData = RAW_ESTIMATE_DATA[p - 4];
+        final double[] biasData = BIAS_DATA[p - 4];
 
         final double[] weights = new double[BIAS_K];
         int index = biasData.length - BIAS_K;
@@ -403,18 +424,6 @@ public final class HyperLogLogPlusPlus implements Releasable {
         return biasSum / weightSum;
     }
 
-    private double[] biasData() {
-        return BIAS_DATA[p - 4];
-    }
-
-    private double[] rawEstimateData() {
-        return RAW_ESTIMATE_DATA[p - 4];
-    }
-
-    private long threshold() {
-        return THRESHOLDS[p - 4];
-    }
-
     @Override
     public void close() {
         Releasables.close(runLens, hashSet.sizes);
@@ -0,0 +1,473 @@
+package org.codelibs.elasticsearch.search.aggregations.metrics.cardinality;
+
+import org.codelibs.elasticsearch.common.io.stream.StreamInput;
+import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
+import org.codelibs.elasticsearch.common.lease.Releasable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A fixed number of HyperLogLog++ sketches of the same precision, outside of {BigArrays}.
+ * <p>
+ * Sketches are stored in fixed-size slots of {ByteBuffer} pages that are either on the heap ({#onHeap(int, int)}),
+ * direct ({#offHeap(int, int)}) or mapped from a file ({#create(Path, int, int)} and {#open(Path)}). A slot
+ * counts exactly like a bucket of {HyperLogLogPlusPlus}: it starts with linear counting over a hash set that is
+ * stored in the space of its registers and upgrades to HyperLogLog once the set is full, so both estimate the same
+ * cardinalities and exchange sketches through the same serialization, see {#writeTo(int, StreamOutput)} and
+ * {#readFrom(int, StreamInput)}.
+ * <p>
+ * Registers of HyperLogLog sketches are merged eight at a time, with a byte-wise maximum of 64 bits words.
+ * This class is not thread-safe.
+ */
+public final class HyperLogLogSketches implements Releasable {
+    private static final int MAGIC = 0x484c4c53; // "HLLS"
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_BYTES = 16;
+    /** Size of the header of a slot, the size of its hash set or <code>-1</code> once upgraded to HyperLogLog. */
+    private static final int SLOT_HEADER_BYTES = 8;
+    private static final int HYPERLOGLOG = -1;
+    private static final int MAX_PAGE_BYTES = 1 << 30;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    private static final double[] INVERSE_POWERS_OF_TWO = new double[65];
+
+    static {
+        for (int i = 0; i < INVERSE_POWERS_OF_TWO.length; i++) {
+            INVERSE_POWERS_OF_TWO[i] = 1. / (1L << i);
+        }
+    }
+
+    private final int p, m;
+    private final double alphaMM;
+    private final int capacity, threshold, mask;
+    private final int size;
+    private final int slotBytes;
+    private final int slotsPerPage;
+    private ByteBuffer[] pages;
+
+    private HyperLogLogSketches(int precision, int size, ByteBuffer[] pages) {
+        this.p = precision;
+        this.m = 1 << precision;
+        this.alphaMM = HyperLogLogPlusPlus.alphaMM(precision);
+        this.capacity = m / 4; // because ints take 4 bytes
+        this.threshold = (int) (capacity * HyperLogLogPlusPlus.MAX_LOAD_FACTOR);
+        this.mask = capacity - 1;
+        this.size = size;
+        this.slotBytes = slotBytes(precision);
+        this.slotsPerPage = MAX_PAGE_BYTES / slotBytes;
+        this.pages = pages;
+    }
+
+    private static int slotBytes(int precision) {
+        return SLOT_HEADER_BYTES + (1 << precision);
+    }
+
+    private static void checkArguments(int precision, int size) {
+        if (precision < HyperLogLogPlusPlus.MIN_PRECISION || precision > HyperLogLogPlusPlus.MAX_PRECISION) {
+            throw new IllegalArgumentException("[precision] must be between " + HyperLogLogPlusPlus.MIN_PRECISION + " and "
+                    + HyperLogLogPlusPlus.MAX_PRECISION + ": " + precision);
+        }
+        if (size < 0) {
+            throw new IllegalArgumentException("[size] must not be negative: " + size);
+        }
+    }
+
+    private static int numPages(int precision, int size) {
+        final int slotsPerPage = MAX_PAGE_BYTES / slotBytes(precision);
+        return (size + slotsPerPage - 1) / slotsPerPage;
+    }
+
+    private static int pageBytes(int precision, int size, int page) {
+        final int slotsPerPage = MAX_PAGE_BYTES / slotBytes(precision);
+        return Math.min(slotsPerPage, size - page * slotsPerPage) * slotBytes(precision);
+    }
+
+    /**
+     * Returns <code>size</code> empty sketches stored on the heap.
+     */
+    public static HyperLogLogSketches onHeap(int precision, int size) {
+        checkArguments(precision, size);
+        final ByteBuffer[] pages = new ByteBuffer[numPages(precision, size)];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = ByteBuffer.allocate(pageBytes(precision, size, i)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new HyperLogLogSketches(precision, size, pages);
+    }
+
+    /**
+     * Returns <code>size</code> empty sketches stored in direct buffers, out of the heap.
+     */
+    public static HyperLogLogSketches offHeap(int precision, int size) {
+        checkArguments(precision, size);
+        final ByteBuffer[] pages = new ByteBuffer[numPages(precision, size)];
+        for (int i = 0; i < pages.length; i++) {
+            pages[i] = ByteBuffer.allocateDirect(pageBytes(precision, size, i)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return new HyperLogLogSketches(precision, size, pages);
+    }
+
+    /**
+     * Creates a file of <code>size</code> empty sketches, replacing any existing one, and maps it into memory.
+     * Changes are written back to the file by the operating system, or on {#force()}.
+     */
+    public static HyperLogLogSketches create(Path path, int precision, int size) throws IOException {
+        checkArguments(precision, size);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = header(precision, size);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            return map(channel, precision, size);
+        }
+    }
+
+    /**
+     * Maps a file of sketches written by {#save(Path)} or {#create(Path, int, int)} into memory, for reading
+     * and writing.
+     *
+     * @throws IllegalArgumentException if the file does not contain sketches
+     */
+    public static HyperLogLogSketches open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IllegalArgumentException("[" + path + "] is not a file of sketches");
+                }
+            }
+            if (header.getInt(0) != MAGIC) {
+                throw new IllegalArgumentException("[" + path + "] is not a file of sketches");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("[" + path + "] has an unsupported version: " + header.getInt(4));
+            }
+            final int precision = header.getInt(8);
+            final int size = header.getInt(12);
+            checkArguments(precision, size);
+            if (channel.size() != FILE_HEADER_BYTES + (long) size * slotBytes(precision)) {
+                throw new IllegalArgumentException("[" + path + "] is truncated");
+            }
+            return map(channel, precision, size);
+        }
+    }
+
+    private static ByteBuffer header(int precision, int size) {
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(precision).putInt(size);
+        header.flip();
+        return header;
+    }
+
+    private static HyperLogLogSketches map(FileChannel channel, int precision, int size) throws IOException {
+        final ByteBuffer[] pages = new ByteBuffer[numPages(precision, size)];
+        long position = FILE_HEADER_BYTES;
+        for (int i = 0; i < pages.length; i++) {
+            final int pageBytes = pageBytes(precision, size, i);
+            pages[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, pageBytes).order(ByteOrder.LITTLE_ENDIAN);
+            position += pageBytes;
+        }
+        return new HyperLogLogSketches(precision, size, pages);
+    }
+
+    /**
+     * Writes all sketches to the given file, in the format of {#open(Path)}.
+     */
+    public void save(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer header = header(p, size);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (ByteBuffer page : pages) {
+                final ByteBuffer duplicate = page.duplicate();
+                duplicate.clear();
+                while (duplicate.hasRemaining()) {
+                    channel.write(duplicate);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the changes of mapped sketches back to their file, does nothing for other sketches.
+     */
+    public void force() {
+        for (ByteBuffer page : pages) {
+            if (page instanceof MappedByteBuffer) {
+                ((MappedByteBuffer) page).force();
+            }
+        }
+    }
+
+    public int precision() {
+        return p;
+    }
+
+    /**
+     * Returns the number of sketches.
+     */
+    public int size() {
+        return size;
+    }
+
+    private ByteBuffer page(int sketch) {
+        if (sketch < 0 || sketch >= size) {
+            throw new IllegalArgumentException("[sketch] must be between 0 and " + (size - 1) + ": " + sketch);
+        }
+        return pages[sketch / slotsPerPage];
+    }
+
+    private int offset(int sketch) {
+        return (sketch % slotsPerPage) * slotBytes;
+    }
+
+    /**
+     * Adds the given 64 bits hash of a value to a sketch.
+     */
+    public void collect(int sketch, long hash) {
+        final ByteBuffer page = page(sketch);
+        final int offset = offset(sketch);
+        if (page.getInt(offset) == HYPERLOGLOG) {
+            collectHll(page, offset, (int) HyperLogLogPlusPlus.index(hash, p), HyperLogLogPlusPlus.runLen(hash, p));
+        } else {
+            collectLcEncoded(page, offset, HyperLogLogPlusPlus.encodeHash(hash, p));
+        }
+    }
+
+    private void collectLcEncoded(ByteBuffer page, int offset, int encoded) {
+        final int registers = offset + SLOT_HEADER_BYTES;
+        for (int i = (encoded & mask); ; i = (i + 1) & mask) {
+            final int v = page.getInt(registers + (i << 2));
+            if (v == 0) {
+                page.putInt(registers + (i << 2), encoded);
+                final int newSize = page.getInt(offset) + 1;
+                page.putInt(offset, newSize);
+                if (newSize > threshold) {
+                    upgradeToHll(page, offset);
+                }
+                return;
+            } else if (v == encoded) {
+                return;
+            }
+        }
+    }
+
+    private void collectHllEncoded(ByteBuffer page, int offset, int encoded) {
+        collectHll(page, offset, HyperLogLogPlusPlus.decodeIndex(encoded, p), HyperLogLogPlusPlus.decodeRunLen(encoded, p));
+    }
+
+    private static void collectHll(ByteBuffer page, int offset, int index, int runLen) {
+        final int register = offset + SLOT_HEADER_BYTES + index;
+        if (runLen > page.get(register)) {
+            page.put(register, (byte) runLen);
+        }
+    }
+
+    private int[] lcValues(ByteBuffer page, int offset) {
+        final int registers = offset + SLOT_HEADER_BYTES;
+        final int[] values = new int[page.getInt(offset)];
+        int i = 0;
+        for (int j = 0; j < capacity; ++j) {
+            final int k = page.getInt(registers + (j << 2));
+            if (k != 0) {
+                values[i++] = k;
+            }
+        }
+        assert i == values.length;
+        return values;
+    }
+
+    private void upgradeToHll(ByteBuffer page, int offset) {
+        final int[] values = lcValues(page, offset);
+        clear(page, offset);
+        page.putInt(offset, HYPERLOGLOG);
+        for (int encoded : values) {
+            collectHllEncoded(page, offset, encoded);
+        }
+    }
+
+    private void clear(ByteBuffer page, int offset) {
+        for (int i = offset, end = offset + slotBytes; i < end; i += Long.BYTES) {
+            page.putLong(i, 0L);
+        }
+    }
+
+    /**
+     * Resets a sketch to an empty one.
+     */
+    public void clear(int sketch) {
+        clear(page(sketch), offset(sketch));
+    }
+
+    /**
+     * Returns the estimated number of distinct values of a sketch.
+     */
+    public long cardinality(int sketch) {
+        final ByteBuffer page = page(sketch);
+        final int offset = offset(sketch);
+        final int header = page.getInt(offset);
+        if (header != HYPERLOGLOG) {
+            return HyperLogLogPlusPlus.cardinalityLc(header);
+        }
+        double inverseSum = 0;
+        int zeros = 0;
+        for (int i = offset + SLOT_HEADER_BYTES, end = i + m; i < end; ++i) {
+            final int runLen = page.get(i);
+            inverseSum += INVERSE_POWERS_OF_TWO[runLen];
+            if (runLen == 0) {
+                ++zeros;
+            }
+        }
+        return HyperLogLogPlusPlus.cardinalityHll(p, alphaMM, inverseSum, zeros);
+    }
+
+    /**
+     * Merges a sketch of the given sketches into a sketch of these ones.
+     *
+     * @throws IllegalArgumentException if the sketches do not have the same precision
+     */
+    public void merge(int sketch, HyperLogLogSketches other, int otherSketch) {
+        checkPrecision(other);
+        merge(page(sketch), offset(sketch), other.page(otherSketch), other.offset(otherSketch));
+    }
+
+    /**
+     * Merges several sketches of the given sketches into one sketch of these ones.
+     *
+     * @throws IllegalArgumentException if the sketches do not have the same precision
+     */
+    public void merge(int sketch, HyperLogLogSketches other, int[] otherSketches) {
+        checkPrecision(other);
+        final ByteBuffer page = page(sketch);
+        final int offset = offset(sketch);
+        for (int otherSketch : otherSketches) {
+            merge(page, offset, other.page(otherSketch), other.offset(otherSketch));
+        }
+    }
+
+    /**
+     * Merges each sketch of the given sketches into the sketch of these ones at the same index.
+     *
+     * @throws IllegalArgumentException if the sketches do not have the same precision and size
+     */
+    public void merge(HyperLogLogSketches other) {
+        checkPrecision(other);
+        if (size != other.size) {
+            throw new IllegalArgumentException("Cannot merge [" + other.size + "] sketches into [" + size + "] sketches");
+        }
+        for (int sketch = 0; sketch < size; sketch++) {
+            merge(pages[sketch / slotsPerPage], offset(sketch), other.pages[sketch / slotsPerPage], offset(sketch));
+        }
+    }
+
+    private void checkPrecision(HyperLogLogSketches other) {
+        if (p != other.p) {
+            throw new IllegalArgumentException("Cannot merge sketches of precision [" + other.p + "] into sketches of precision ["
+                    + p + "]");
+        }
+    }
+
+    private void merge(ByteBuffer page, int offset, ByteBuffer otherPage, int otherOffset) {
+        final int otherHeader = otherPage.getInt(otherOffset);
+        if (otherHeader != HYPERLOGLOG) {
+            final int[] values = otherHeader == 0 ? null : lcValues(otherPage, otherOffset);
+            for (int i = 0; i < otherHeader; i++) {
+                if (page.getInt(offset) == HYPERLOGLOG) {
+                    collectHllEncoded(page, offset, values[i]);
+                } else {
+                    collectLcEncoded(page, offset, values[i]);
+                }
+            }
+            return;
+        }
+        if (page.getInt(offset) != HYPERLOGLOG) {
+            upgradeToHll(page, offset);
+        }
+        final int registers = offset + SLOT_HEADER_BYTES;
+        final int otherRegisters = otherOffset + SLOT_HEADER_BYTES;
+        for (int i = 0; i < m; i += Long.BYTES) {
+            page.putLong(registers + i, max(page.getLong(registers + i), otherPage.getLong(otherRegisters + i)));
+        }
+    }
+
+    /**
+     * Returns the byte-wise maximum of two words of registers, which are all lower than <code>128</code>.
+     */
+    static long max(long a, long b) {
+        // the high bit of each byte of the difference is set if the byte of a is greater than or equal to the one
+        // of b, and no byte borrows from the next one
+        final long greaterOrEqual = (((a | HIGH_BITS) - b) & HIGH_BITS) >>> 7;
+        final long mask = greaterOrEqual * 0xFF;
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * Writes a sketch in the format of {HyperLogLogPlusPlus#writeTo(long, StreamOutput)}.
+     */
+    public void writeTo(int sketch, StreamOutput out) throws IOException {
+        final ByteBuffer page = page(sketch);
+        final int offset = offset(sketch);
+        out.writeVInt(p);
+        final int header = page.getInt(offset);
+        if (header != HYPERLOGLOG) {
+            out.writeBoolean(false);
+            out.writeVLong(header);
+            for (int encoded : lcValues(page, offset)) {
+                out.writeInt(encoded);
+            }
+        } else {
+            out.writeBoolean(true);
+            final byte[] registers = new byte[m];
+            final ByteBuffer duplicate = page.duplicate();
+            duplicate.position(offset + SLOT_HEADER_BYTES);
+            duplicate.get(registers);
+            out.writeBytes(registers, 0, m);
+        }
+    }
+
+    /**
+     * Replaces a sketch with one written by {#writeTo(int, StreamOutput)} or
+     * {HyperLogLogPlusPlus#writeTo(long, StreamOutput)}.
+     *
+     * @throws IllegalArgumentException if the sketch that is read does not have the precision of these ones
+     */
+    public void readFrom(int sketch, StreamInput in) throws IOException {
+        final ByteBuffer page = page(sketch);
+        final int offset = offset(sketch);
+        final int precision = in.readVInt();
+        if (precision != p) {
+            throw new IllegalArgumentException("Cannot read a sketch of precision [" + precision + "] into sketches of precision ["
+                    + p + "]");
+        }
+        clear(page, offset);
+        if (in.readBoolean() == false) {
+            final long size = in.readVLong();
+            for (long i = 0; i < size; ++i) {
+                collectLcEncoded(page, offset, in.readInt());
+            }
+        } else {
+            final byte[] registers = new byte[m];
+            in.readBytes(registers, 0, m);
+            page.putInt(offset, HYPERLOGLOG);
+            final ByteBuffer duplicate = page.duplicate();
+            duplicate.position(offset + SLOT_HEADER_BYTES);
+            duplicate.put(registers);
+        }
+    }
+
+    /**
+     * Releases the pages of the sketches, which must not be used anymore. Mapped sketches are not forced to their
+     * file.
+     */
+    @Override
+    public void close() {
+        pages = null;
+    }
+}
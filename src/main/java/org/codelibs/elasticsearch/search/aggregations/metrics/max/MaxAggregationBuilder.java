@@ -69,6 +69,11 @@ public class MaxAggregationBuilder extends ValuesSourceAggregationBuilder.LeafOn
         // Do nothing, no extra state to write to stream
     }
 
+    @Override
+    public MaxAggregationBuilder deepCopy() {
+        return copyCommonTo(new MaxAggregationBuilder(name));
+    }
+
     @Override
     protected MaxAggregatorFactory innerBuild(SearchContext context, ValuesSourceConfig<Numeric> config,
             AggregatorFactory<?> parent, Builder subFactoriesBuilder) throws IOException {
@@ -70,6 +70,11 @@ public class MinAggregationBuilder extends ValuesSourceAggregationBuilder.LeafOn
         // Do nothing, no extra state to write to stream
     }
 
+    @Override
+    public MinAggregationBuilder deepCopy() {
+        return copyCommonTo(new MinAggregationBuilder(name));
+    }
+
     @Override
     protected MinAggregatorFactory innerBuild(SearchContext context, ValuesSourceConfig<Numeric> config,
             AggregatorFactory<?> parent, Builder subFactoriesBuilder) throws IOException {
@@ -77,7 +77,13 @@ public class InternalTDigestPercentileRanks extends AbstractInternalTDigestPerce
     }
 
     static double percentileRank(TDigestState state, double value) {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        double percentileRank = state.cdf(value);
+        if (percentileRank < 0) {
+            percentileRank = 0;
+        } else if (percentileRank > 1) {
+            percentileRank = 1;
+        }
+        return percentileRank * 100;
     }
 
     public static class Iter implements Iterator<Percentile> {
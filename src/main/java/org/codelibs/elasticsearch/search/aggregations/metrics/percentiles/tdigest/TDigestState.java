@@ -18,23 +18,389 @@
  */
 package org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.tdigest;
 
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.InPlaceMergeSorter;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * A merging t-digest: an approximation of the distribution of a stream of values as a sorted array of weighted
+ * centroids, from which quantiles and cumulative probabilities can be estimated. Added values are buffered and
+ * merged into the centroids in sorted batches, centroids near the tails are kept small so that extreme quantiles
+ * stay accurate. The <tt>compression</tt> bounds the number of centroids. This class is not thread-safe.
+ */
 public class TDigestState {
 
+    private final double compression;
+
+    private double[] means;
+    private long[] weights;
+    private int centroidCount;
+    private long totalWeight;
+
+    private final double[] buffer;
+    private int bufferSize;
+
+    // scratch space the centroids are merged into before being compressed back into means and weights
+    private double[] mergedMeans = new double[0];
+    private long[] mergedWeights = new long[0];
+
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
     public TDigestState(double compression) {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        if (compression <= 0 || Double.isNaN(compression)) {
+            throw new IllegalArgumentException("[compression] must be greater than 0. Found [" + compression + "]");
+        }
+        this.compression = compression;
+        final int capacity = (int) Math.ceil(compression) + 8;
+        this.means = new double[capacity];
+        this.weights = new long[capacity];
+        this.buffer = new double[(int) Math.ceil(compression) * 5 + 16];
+    }
+
+    public double compression() {
+        return compression;
+    }
+
+    /**
+     * Adds a single value.
+     */
+    public void add(double x) {
+        if (Double.isNaN(x)) {
+            throw new IllegalArgumentException("Cannot add NaN to a t-digest");
+        }
+        if (bufferSize == buffer.length) {
+            flush();
+        }
+        buffer[bufferSize++] = x;
+        if (x < min) {
+            min = x;
+        }
+        if (x > max) {
+            max = x;
+        }
+    }
+
+    /**
+     * Adds all given values.
+     */
+    public void add(double[] values) {
+        add(values, 0, values.length);
+    }
+
+    /**
+     * Adds <code>length</code> values of the given array, starting at <code>offset</code>. This is equivalent to,
+     * but much faster than adding them one by one.
+     */
+    public void add(double[] values, int offset, int length) {
+        double min = this.min;
+        double max = this.max;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            final double x = values[i];
+            if (Double.isNaN(x)) {
+                throw new IllegalArgumentException("Cannot add NaN to a t-digest");
+            }
+            if (x < min) {
+                min = x;
+            }
+            if (x > max) {
+                max = x;
+            }
+        }
+        this.min = min;
+        this.max = max;
+        while (length > 0) {
+            if (bufferSize == buffer.length) {
+                flush();
+            }
+            final int count = Math.min(length, buffer.length - bufferSize);
+            System.arraycopy(values, offset, buffer, bufferSize, count);
+            bufferSize += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Merges the values summarized by the given digest into this one.
+     */
+    public void add(TDigestState other) {
+        other.flush();
+        if (other.centroidCount == 0) {
+            return;
+        }
+        flush();
+        merge(other.means, other.weights, other.centroidCount);
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return the number of values added to this digest
+     */
+    public long size() {
+        return totalWeight + bufferSize;
+    }
+
+    /**
+     * @return the number of centroids after merging the buffered values
+     */
+    public int centroidCount() {
+        flush();
+        return centroidCount;
+    }
+
+    /**
+     * @return the approximate number of bytes this digest uses once serialized
+     */
+    public int byteSize() {
+        return 16 + centroidCount() * 12;
+    }
+
+    /**
+     * Returns the estimated value at the given quantile, between <tt>0</tt> and <tt>1</tt>, or <tt>NaN</tt> if
+     * the digest is empty.
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q should be in [0,1], got " + q);
+        }
+        flush();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        } else if (centroidCount == 1) {
+            return means[0];
+        }
+        final double index = q * totalWeight;
+        // the values are assumed to be spread evenly around the centre of each centroid, the space between the
+        // extreme values and the first and last centre is interpolated from min and max
+        double left = weights[0] / 2.0;
+        if (index < left) {
+            return min + (means[0] - min) * (index / left);
+        }
+        for (int i = 1; i < centroidCount; i++) {
+            final double right = left + (weights[i - 1] + weights[i]) / 2.0;
+            if (index < right) {
+                return means[i - 1] + (means[i] - means[i - 1]) * ((index - left) / (right - left));
+            }
+            left = right;
+        }
+        final double last = weights[centroidCount - 1] / 2.0;
+        return means[centroidCount - 1] + (max - means[centroidCount - 1]) * Math.min(1, (index - left) / last);
+    }
+
+    /**
+     * Returns the estimated values at each of the given quantiles, like {#quantile(double)} but walking the
+     * centroids only once.
+     */
+    public double[] quantiles(double[] qs) {
+        for (double q : qs) {
+            if (q < 0 || q > 1) {
+                throw new IllegalArgumentException("q should be in [0,1], got " + q);
+            }
+        }
+        flush();
+        final double[] values = new double[qs.length];
+        if (centroidCount <= 1) {
+            Arrays.fill(values, centroidCount == 0 ? Double.NaN : means[0]);
+            return values;
+        }
+        final int[] order = ascendingOrder(qs);
+        final double first = weights[0] / 2.0;
+        double left = first;
+        int i = 1;
+        for (int k = 0; k < qs.length; k++) {
+            final int query = order == null ? k : order[k];
+            final double index = qs[query] * totalWeight;
+            if (index < first) {
+                values[query] = min + (means[0] - min) * (index / first);
+                continue;
+            }
+            for (; i < centroidCount; i++) {
+                final double right = left + (weights[i - 1] + weights[i]) / 2.0;
+                if (index < right) {
+                    break;
+                }
+                left = right;
+            }
+            if (i < centroidCount) {
+                final double right = left + (weights[i - 1] + weights[i]) / 2.0;
+                values[query] = means[i - 1] + (means[i] - means[i - 1]) * ((index - left) / (right - left));
+            } else {
+                final double last = weights[centroidCount - 1] / 2.0;
+                values[query] = means[centroidCount - 1] + (max - means[centroidCount - 1]) * Math.min(1, (index - left) / last);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the indices of the given values in ascending order of values, or <tt>null</tt> if they already are.
+     */
+    private static int[] ascendingOrder(double[] values) {
+        boolean sorted = true;
+        for (int i = 1; i < values.length && sorted; i++) {
+            sorted = values[i - 1] <= values[i];
+        }
+        if (sorted) {
+            return null;
+        }
+        final int[] order = new int[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        new InPlaceMergeSorter() {
+            @Override
+            protected int compare(int i, int j) {
+                return Double.compare(values[order[i]], values[order[j]]);
+            }
+
+            @Override
+            protected void swap(int i, int j) {
+                final int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+            }
+        }.sort(0, order.length);
+        return order;
+    }
+
+    /**
+     * Returns the estimated fraction of the values that are less than or equal to the given value, or <tt>NaN</tt>
+     * if the digest is empty.
+     */
+    public double cdf(double x) {
+        flush();
+        if (centroidCount == 0) {
+            return Double.NaN;
+        } else if (x < min) {
+            return 0;
+        } else if (x >= max) {
+            return 1;
+        } else if (centroidCount == 1) {
+            return (x - min) / (max - min);
+        }
+        if (x < means[0]) {
+            return (weights[0] / 2.0) * ((x - min) / (means[0] - min)) / totalWeight;
+        }
+        double left = weights[0] / 2.0;
+        for (int i = 1; i < centroidCount; i++) {
+            final double right = left + (weights[i - 1] + weights[i]) / 2.0;
+            if (x < means[i]) {
+                return (left + (right - left) * ((x - means[i - 1]) / (means[i] - means[i - 1]))) / totalWeight;
+            }
+            left = right;
+        }
+        final double last = weights[centroidCount - 1] / 2.0;
+        return (left + last * ((x - means[centroidCount - 1]) / (max - means[centroidCount - 1]))) / totalWeight;
+    }
+
+    private void flush() {
+        if (bufferSize == 0) {
+            return;
+        }
+        Arrays.sort(buffer, 0, bufferSize);
+        final int count = bufferSize;
+        bufferSize = 0;
+        merge(buffer, null, count);
+    }
+
+    /**
+     * Merges sorted weighted centroids with the current centroids and compresses the result.
+     *
+     * @param otherWeights the weights of the centroids, or <tt>null</tt> if they all weigh <tt>1</tt>
+     */
+    private void merge(double[] otherMeans, long[] otherWeights, int otherCount) {
+        final int total = centroidCount + otherCount;
+        if (mergedMeans.length < total) {
+            mergedMeans = new double[ArrayUtil.oversize(total, Double.BYTES)];
+            mergedWeights = new long[mergedMeans.length];
+        }
+        int i = 0, j = 0, k = 0;
+        while (i < centroidCount || j < otherCount) {
+            if (j == otherCount || (i < centroidCount && means[i] <= otherMeans[j])) {
+                mergedMeans[k] = means[i];
+                mergedWeights[k++] = weights[i++];
+            } else {
+                mergedMeans[k] = otherMeans[j];
+                mergedWeights[k++] = otherWeights == null ? 1 : otherWeights[j];
+                j++;
+            }
+        }
+        if (otherWeights == null) {
+            totalWeight += otherCount;
+        } else {
+            for (int w = 0; w < otherCount; w++) {
+                totalWeight += otherWeights[w];
+            }
+        }
+        compress(mergedMeans, mergedWeights, total);
+    }
+
+    private void compress(double[] sortedMeans, long[] sortedWeights, int count) {
+        if (means.length < count) {
+            means = new double[ArrayUtil.oversize(count, Double.BYTES)];
+            weights = new long[means.length];
+        }
+        final double normalizer = 4.0 * totalWeight / compression;
+        int n = 0;
+        double mean = sortedMeans[0];
+        long weight = sortedWeights[0];
+        long weightSoFar = 0;
+        for (int i = 1; i < count; i++) {
+            final long proposed = weight + sortedWeights[i];
+            final double q = (weightSoFar + proposed / 2.0) / totalWeight;
+            if (proposed <= Math.max(1, normalizer * q * (1 - q))) {
+                weight = proposed;
+                mean += (sortedMeans[i] - mean) * sortedWeights[i] / proposed;
+            } else {
+                means[n] = mean;
+                weights[n++] = weight;
+                weightSoFar += weight;
+                mean = sortedMeans[i];
+                weight = sortedWeights[i];
+            }
+        }
+        means[n] = mean;
+        weights[n++] = weight;
+        centroidCount = n;
     }
 
     public static void write(TDigestState state, StreamOutput out) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        out.writeDouble(state.compression);
+        out.writeVInt(state.centroidCount());
+        for (int i = 0; i < state.centroidCount; i++) {
+            out.writeDouble(state.means[i]);
+            out.writeVLong(state.weights[i]);
+        }
     }
 
     public static TDigestState read(StreamInput in) throws IOException {
-        throw new UnsupportedOperationException("querybuilders does not support this operation.");
+        final double compression = in.readDouble();
+        final TDigestState state = new TDigestState(compression);
+        final int n = in.readVInt();
+        if (n == 0) {
+            return state;
+        }
+        final double[] means = new double[n];
+        final long[] weights = new long[n];
+        for (int i = 0; i < n; i++) {
+            means[i] = in.readDouble();
+            // counts are written as vlongs, which are encoded like vints below 2^31
+            weights[i] = in.readVLong();
+            if (i > 0 && means[i] < means[i - 1]) {
+                throw new IllegalArgumentException("Centroids of a t-digest must be sorted by mean");
+            }
+        }
+        // the stream format has no extreme values, the first and last centroids are the best bounds available
+        state.min = means[0];
+        state.max = means[n - 1];
+        state.merge(means, weights, n);
+        return state;
     }
 
 }
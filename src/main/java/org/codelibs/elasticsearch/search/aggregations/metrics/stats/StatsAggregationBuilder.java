@@ -69,6 +69,11 @@ public class StatsAggregationBuilder extends ValuesSourceAggregationBuilder.Leaf
         // Do nothing, no extra state to write to stream
     }
 
+    @Override
+    public StatsAggregationBuilder deepCopy() {
+        return copyCommonTo(new StatsAggregationBuilder(name));
+    }
+
     @Override
     protected StatsAggregatorFactory innerBuild(SearchContext context, ValuesSourceConfig<Numeric> config,
             AggregatorFactory<?> parent, Builder subFactoriesBuilder) throws IOException {
@@ -69,6 +69,11 @@ public class SumAggregationBuilder extends ValuesSourceAggregationBuilder.LeafOn
         // Do nothing, no extra state to write to stream
     }
 
+    @Override
+    public SumAggregationBuilder deepCopy() {
+        return copyCommonTo(new SumAggregationBuilder(name));
+    }
+
     @Override
     protected SumAggregatorFactory innerBuild(SearchContext context, ValuesSourceConfig<Numeric> config,
             AggregatorFactory<?> parent, Builder subFactoriesBuilder) throws IOException {
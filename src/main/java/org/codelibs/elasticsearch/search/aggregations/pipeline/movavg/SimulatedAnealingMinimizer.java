@@ -19,9 +19,10 @@
 
 package org.codelibs.elasticsearch.search.aggregations.pipeline.movavg;
 
-import org.codelibs.elasticsearch.common.collect.EvictingQueue;
 import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.MovAvgModel;
 
+import java.util.Collection;
+
 /**
  * A cost minimizer which will fit a MovAvgModel to the data.
  *
@@ -48,7 +49,7 @@ public class SimulatedAnealingMinimizer {
      *                      a cost for the model
      * @return              A new, minimized model that (theoretically) better fits the data
      */
-    public static MovAvgModel minimize(MovAvgModel model, EvictingQueue<Double> train, double[] test) {
+    public static MovAvgModel minimize(MovAvgModel model, Collection<Double> train, double[] test) {
 
         double temp = 1;
         double minTemp = 0.0001;
@@ -109,7 +110,7 @@ public class SimulatedAnealingMinimizer {
      * @param test      A test set of data to compare against the predictions
      * @return          A cost, or error, of the model
      */
-    private static double cost(MovAvgModel model, EvictingQueue<Double> train, double[] test) {
+    public static double cost(MovAvgModel model, Collection<Double> train, double[] test) {
         double error = 0;
         double[] predictions = model.predict(train, test.length);
 
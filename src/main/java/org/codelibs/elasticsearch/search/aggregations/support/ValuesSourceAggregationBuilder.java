@@ -155,6 +155,29 @@ public abstract class ValuesSourceAggregationBuilder<VS extends ValuesSource, AB
         innerWriteTo(out);
     }
 
+    /**
+     * Copies the values source settings of this aggregation into the given one, on top of the common settings.
+     */
+    @Override
+    protected AB copyCommonTo(AB copy) {
+        super.copyCommonTo(copy);
+        ValuesSourceAggregationBuilder<?, ?> target = copy;
+        target.field = field;
+        target.script = script;
+        target.valueType = valueType;
+        target.format = format;
+        target.missing = missing;
+        target.timeZone = timeZone;
+        return copy;
+    }
+
+    /**
+     * Gets the {ValueType} this aggregation was created with, used when no value type is set.
+     */
+    protected ValueType targetValueType() {
+        return targetValueType;
+    }
+
     /**
      * Write subclass's state to the stream.
      */
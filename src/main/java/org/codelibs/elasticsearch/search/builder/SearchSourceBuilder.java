@@ -24,9 +24,11 @@ import org.codelibs.elasticsearch.common.Nullable;
 import org.codelibs.elasticsearch.common.ParseField;
 import org.codelibs.elasticsearch.common.ParsingException;
 import org.codelibs.elasticsearch.common.Strings;
+import org.codelibs.elasticsearch.common.io.stream.NamedWriteable;
 import org.codelibs.elasticsearch.common.io.stream.StreamInput;
 import org.codelibs.elasticsearch.common.io.stream.StreamOutput;
 import org.codelibs.elasticsearch.common.io.stream.Writeable;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.logging.DeprecationLogger;
 import org.codelibs.elasticsearch.common.logging.Loggers;
 import org.codelibs.elasticsearch.common.unit.TimeValue;
@@ -874,9 +876,105 @@ public final class SearchSourceBuilder extends ToXContentToBytes implements Writ
         return shallowCopy(queryBuilder, postQueryBuilder, slice);
     }
 
+    /**
+     * Create a shallow copy of this builder with a new query.
+     */
+    public SearchSourceBuilder copyWithNewQuery(QueryBuilder query) {
+        return shallowCopy(query, postQueryBuilder, sliceBuilder);
+    }
+
+    /**
+     * Create a shallow copy of this builder with a new from and size.
+     */
+    public SearchSourceBuilder copyWithNewFromSize(int from, int size) {
+        SearchSourceBuilder copy = shallowCopy(queryBuilder, postQueryBuilder, sliceBuilder);
+        copy.from = from;
+        copy.size = size;
+        return copy;
+    }
+
+    /**
+     * Create a shallow copy of this builder with new sorts, <code>null</code> for none.
+     */
+    public SearchSourceBuilder copyWithNewSorts(List<SortBuilder<?>> sorts) {
+        SearchSourceBuilder copy = shallowCopy(queryBuilder, postQueryBuilder, sliceBuilder);
+        copy.sorts = sorts;
+        return copy;
+    }
+
+    /**
+     * Create a shallow copy of this builder with new search after values, <code>null</code> for none.
+     */
+    public SearchSourceBuilder copyWithNewSearchAfter(Object[] values) {
+        SearchSourceBuilder copy = shallowCopy(queryBuilder, postQueryBuilder, sliceBuilder);
+        copy.searchAfterBuilder = values == null ? null : new SearchAfterBuilder().setSortValues(values);
+        return copy;
+    }
+
+    /**
+     * Create a shallow copy of this builder with new aggregations, <code>null</code> for none.
+     */
+    public SearchSourceBuilder copyWithNewAggregations(AggregatorFactories.Builder aggregations) {
+        SearchSourceBuilder copy = shallowCopy(queryBuilder, postQueryBuilder, sliceBuilder);
+        copy.aggregations = aggregations;
+        return copy;
+    }
+
+    /**
+     * Returns a deep copy of this source that can be modified without affecting this source. Queries, aggregations,
+     * sorts and the highlighter are copied structurally where their builders support it, immutable parts such as
+     * strings, fetch source contexts and script fields are shared with the copy. Rescorers, suggesters and the other
+     * sections are copied through their stream serialization, see {WriteableCopier}.
+     */
+    public SearchSourceBuilder deepCopy() {
+        SearchSourceBuilder copy = new SearchSourceBuilder();
+        copy.queryBuilder = queryBuilder == null ? null : queryBuilder.deepCopy();
+        copy.postQueryBuilder = postQueryBuilder == null ? null : postQueryBuilder.deepCopy();
+        copy.aggregations = aggregations == null ? null : aggregations.deepCopy();
+        copy.explain = explain;
+        copy.extBuilders = copyAll(extBuilders);
+        copy.fetchSourceContext = fetchSourceContext;
+        copy.docValueFields = docValueFields == null ? null : new ArrayList<>(docValueFields);
+        copy.storedFieldsContext = WriteableCopier.copy(storedFieldsContext, StoredFieldsContext::new);
+        copy.from = from;
+        copy.highlightBuilder = highlightBuilder == null ? null : highlightBuilder.deepCopy();
+        copy.indexBoosts = new ArrayList<>(indexBoosts);
+        copy.minScore = minScore;
+        copy.profile = profile;
+        copy.rescoreBuilders = copyAll(rescoreBuilders);
+        copy.scriptFields = scriptFields == null ? null : new ArrayList<>(scriptFields);
+        copy.searchAfterBuilder = WriteableCopier.copy(searchAfterBuilder, SearchAfterBuilder::new);
+        copy.sliceBuilder = WriteableCopier.copy(sliceBuilder, SliceBuilder::new);
+        copy.size = size;
+        if (sorts != null) {
+            copy.sorts = new ArrayList<>(sorts.size());
+            for (SortBuilder<?> sort : sorts) {
+                copy.sorts.add(sort.deepCopy());
+            }
+        }
+        copy.stats = stats == null ? null : new ArrayList<>(stats);
+        copy.suggestBuilder = WriteableCopier.copy(suggestBuilder, SuggestBuilder::new);
+        copy.terminateAfter = terminateAfter;
+        copy.timeout = timeout;
+        copy.trackScores = trackScores;
+        copy.version = version;
+        return copy;
+    }
+
+    private static <T extends NamedWriteable> List<T> copyAll(List<T> writeables) {
+        if (writeables == null) {
+            return null;
+        }
+        List<T> copies = new ArrayList<>(writeables.size());
+        for (T writeable : writeables) {
+            copies.add(WriteableCopier.copy(writeable));
+        }
+        return copies;
+    }
+
     /**
      * Create a shallow copy of this source replaced {#queryBuilder}, {#postQueryBuilder}, and {@linkplain slice}. Used by
-     * {#rewrite(QueryShardContext)} and {#copyWithNewSlice(SliceBuilder)}.
+     * {#rewrite(QueryShardContext)} and the <code>copyWithNew</code> methods.
      */
     private SearchSourceBuilder shallowCopy(QueryBuilder queryBuilder, QueryBuilder postQueryBuilder, SliceBuilder slice) {
         SearchSourceBuilder rewrittenBuilder = new SearchSourceBuilder();
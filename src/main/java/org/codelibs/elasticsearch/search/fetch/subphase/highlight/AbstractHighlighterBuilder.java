@@ -36,6 +36,7 @@ import org.codelibs.elasticsearch.search.fetch.subphase.highlight.HighlightBuild
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
 import java.util.function.BiFunction;
@@ -131,6 +132,30 @@ public abstract class AbstractHighlighterBuilder<HB extends AbstractHighlighterB
         requireFieldMatch(in.readOptionalBoolean());
     }
 
+    /**
+     * Copies the common parameters of this highlighter into the given one. Arrays, options and the highlight query are
+     * copied, the option values are shared.
+     */
+    protected HB copyCommonTo(HB copy) {
+        copy.preTags = preTags == null ? null : preTags.clone();
+        copy.postTags = postTags == null ? null : postTags.clone();
+        copy.fragmentSize = fragmentSize;
+        copy.numOfFragments = numOfFragments;
+        copy.highlighterType = highlighterType;
+        copy.fragmenter = fragmenter;
+        copy.highlightQuery = highlightQuery == null ? null : highlightQuery.deepCopy();
+        copy.order = order;
+        copy.highlightFilter = highlightFilter;
+        copy.forceSource = forceSource;
+        copy.boundaryMaxScan = boundaryMaxScan;
+        copy.boundaryChars = boundaryChars == null ? null : boundaryChars.clone();
+        copy.noMatchSize = noMatchSize;
+        copy.phraseLimit = phraseLimit;
+        copy.options = options == null ? null : new LinkedHashMap<>(options);
+        copy.requireFieldMatch = requireFieldMatch;
+        return copy;
+    }
+
     /**
      * write common parameters to {StreamOutput}
      */
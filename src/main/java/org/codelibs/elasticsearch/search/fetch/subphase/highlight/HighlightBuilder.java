@@ -121,6 +121,19 @@ public class HighlightBuilder extends AbstractHighlighterBuilder<HighlightBuilde
         }
     }
 
+    /**
+     * Returns a deep copy of this highlighter that can be modified without affecting this highlighter.
+     */
+    public HighlightBuilder deepCopy() {
+        HighlightBuilder copy = copyCommonTo(new HighlightBuilder());
+        copy.encoder = encoder;
+        copy.useExplicitFieldOrder = useExplicitFieldOrder;
+        for (Field field : fields) {
+            copy.fields.add(field.deepCopy());
+        }
+        return copy;
+    }
+
     @Override
     protected void doWriteTo(StreamOutput out) throws IOException {
         out.writeOptionalString(encoder);
@@ -447,6 +460,16 @@ public class HighlightBuilder extends AbstractHighlighterBuilder<HighlightBuilde
             out.writeOptionalStringArray(matchedFields);
         }
 
+        /**
+         * Returns a deep copy of this field that can be modified without affecting this field.
+         */
+        public Field deepCopy() {
+            Field copy = copyCommonTo(new Field(name));
+            copy.fragmentOffset = fragmentOffset;
+            copy.matchedFields = matchedFields == null ? null : matchedFields.clone();
+            return copy;
+        }
+
         public String name() {
             return name;
         }
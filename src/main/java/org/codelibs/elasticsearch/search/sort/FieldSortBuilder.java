@@ -77,6 +77,15 @@ public class FieldSortBuilder extends SortBuilder<FieldSortBuilder> {
         this.setNestedPath(template.getNestedPath());
     }
 
+    @Override
+    public FieldSortBuilder deepCopy() {
+        FieldSortBuilder copy = new FieldSortBuilder(this);
+        if (nestedFilter != null) {
+            copy.setNestedFilter(nestedFilter.deepCopy());
+        }
+        return copy;
+    }
+
     /**
      * Constructs a new sort based on a document field.
      *
@@ -57,6 +57,11 @@ public class ScoreSortBuilder extends SortBuilder<ScoreSortBuilder> {
         order(SortOrder.readFromStream(in));
     }
 
+    @Override
+    public ScoreSortBuilder deepCopy() {
+        return new ScoreSortBuilder().order(order);
+    }
+
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         order.writeTo(out);
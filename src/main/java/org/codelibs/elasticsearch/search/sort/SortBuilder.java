@@ -25,6 +25,7 @@ import org.codelibs.elasticsearch.action.support.ToXContentToBytes;
 import org.codelibs.elasticsearch.common.ParseField;
 import org.codelibs.elasticsearch.common.ParsingException;
 import org.codelibs.elasticsearch.common.io.stream.NamedWriteable;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.xcontent.XContentParser;
 import org.codelibs.elasticsearch.index.fielddata.IndexFieldData.XFieldComparatorSource.Nested;
 import org.codelibs.elasticsearch.index.query.QueryBuilder;
@@ -70,6 +71,14 @@ public abstract class SortBuilder<T extends SortBuilder<T>> extends ToXContentTo
      */
     protected abstract SortFieldAndFormat build(QueryShardContext context) throws IOException;
 
+    /**
+     * Returns a deep copy of this sort that can be modified without affecting this sort.
+     */
+    @SuppressWarnings("unchecked")
+    public T deepCopy() {
+        return (T) WriteableCopier.copy(this);
+    }
+
     /**
      * Set the order of sorting.
      */
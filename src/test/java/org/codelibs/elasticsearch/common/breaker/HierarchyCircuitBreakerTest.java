@@ -0,0 +1,177 @@
+package org.codelibs.elasticsearch.common.breaker;
+
+import org.codelibs.elasticsearch.common.bytes.ReleasablePagedBytesReference;
+import org.codelibs.elasticsearch.common.settings.Settings;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.common.util.LongArray;
+import org.codelibs.elasticsearch.common.util.PageCacheRecycler;
+import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
+import org.codelibs.elasticsearch.common.xcontent.XContentFactory;
+import org.codelibs.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class HierarchyCircuitBreakerTest {
+
+    @Test
+    public void test_limits() {
+        HierarchyCircuitBreaker parent = HierarchyCircuitBreaker.parent(1000);
+        ChildMemoryCircuitBreaker request = parent.child(CircuitBreaker.REQUEST, 800, 1.0);
+        ChildMemoryCircuitBreaker fielddata = parent.child(CircuitBreaker.FIELDDATA, 600, 2.0);
+        assertSame(request, parent.getBreaker(CircuitBreaker.REQUEST));
+
+        assertEquals(500.0, request.addEstimateBytesAndMaybeBreak(500, "terms"), 0.0);
+        try {
+            request.addEstimateBytesAndMaybeBreak(301, "terms");
+            fail();
+        } catch (CircuitBreakingException e) {
+            assertEquals("[request] Data too large, data for [terms] would be [801/801b], which is larger than the limit of [800/800b]",
+                    e.getMessage());
+        }
+        assertEquals(500, request.getUsed());
+
+        // the overhead applies to the limit of the child
+        try {
+            fielddata.addEstimateBytesAndMaybeBreak(301, "field");
+            fail();
+        } catch (CircuitBreakingException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("[fielddata] Data too large, data for [field] would be [602/602b]"));
+        }
+        fielddata.addEstimateBytesAndMaybeBreak(300, "field");
+
+        // both children are within their limits, but not within the limit of the parent
+        assertEquals(800, parent.getUsed());
+        try {
+            request.addEstimateBytesAndMaybeBreak(201, "terms");
+            fail();
+        } catch (CircuitBreakingException e) {
+            assertEquals("[parent] Data too large, data for [terms] would be [1001/1001b], which is larger than the limit of [1000/1000b]",
+                    e.getMessage());
+        }
+        assertEquals(500, request.getUsed());
+        assertEquals(800, parent.getUsed());
+        request.addEstimateBytesAndMaybeBreak(200, "aggs");
+
+        assertEquals(2, request.getTrippedCount());
+        assertEquals(1, fielddata.getTrippedCount());
+        assertEquals(1, parent.getTrippedCount());
+        assertEquals(Long.valueOf(500), request.getUsedByLabel().get("terms"));
+        assertEquals(Long.valueOf(200), request.getUsedByLabel().get("aggs"));
+        assertEquals(Long.valueOf(2), request.getTrippedCountByLabel().get("terms"));
+
+        request.addWithoutBreaking(-500, "terms");
+        assertEquals(Long.valueOf(0), request.getUsedByLabel().get("terms"));
+        assertEquals(200, request.getUsed());
+        assertEquals(500, parent.getUsed());
+
+        // no limit of its own
+        ChildMemoryCircuitBreaker inFlight = parent.child(CircuitBreaker.IN_FLIGHT_REQUESTS, -1, 1.0);
+        inFlight.addEstimateBytesAndMaybeBreak(500, "transport");
+        try {
+            inFlight.addEstimateBytesAndMaybeBreak(1, "transport");
+            fail();
+        } catch (CircuitBreakingException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("[parent]"));
+        }
+        try {
+            parent.child(CircuitBreaker.REQUEST, 1, 1.0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Child breaker [request] already exists", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_settings() {
+        HierarchyCircuitBreaker parent = HierarchyCircuitBreaker.parent(Settings.builder().put("indices.breaker.total.limit", "10mb")
+                .put("indices.breaker.request.limit", "1mb").build());
+        assertEquals(10 * 1024 * 1024, parent.getLimit());
+        assertEquals(1024 * 1024, parent.getBreaker(CircuitBreaker.REQUEST).getLimit());
+        assertEquals(1.03, parent.getBreaker(CircuitBreaker.FIELDDATA).getOverhead(), 0.0);
+        assertEquals(3, parent.getBreakers().size());
+    }
+
+    @Test
+    public void test_bigArrays() throws Exception {
+        HierarchyCircuitBreaker parent = HierarchyCircuitBreaker.parent(-1);
+        ChildMemoryCircuitBreaker request = parent.child(CircuitBreaker.REQUEST, 1024 * 1024, 1.0);
+        try (PageCacheRecycler recycler = new PageCacheRecycler(Settings.EMPTY)) {
+            BigArrays bigArrays = new BigArrays(recycler, request, false);
+            LongArray longs = bigArrays.newLongArray(1024 * 1024);
+            // accounted for but not checked
+            assertTrue(request.getUsed() > 1024 * 1024);
+            longs.close();
+            assertEquals(0, request.getUsed());
+
+            BigArrays breaking = bigArrays.withCircuitBreaking();
+            longs = breaking.newLongArray(1000);
+            try {
+                longs = breaking.grow(longs, 1024 * 1024);
+                fail();
+            } catch (CircuitBreakingException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("[request] Data too large, data for [<reused_arrays>]"));
+            }
+            longs.close();
+            assertEquals(0, request.getUsed());
+            assertEquals(Long.valueOf(0), request.getUsedByLabel().get(BigArrays.BREAKER_LABEL));
+
+            XContentBuilder builder = XContentFactory.contentBuilder(XContentType.JSON, breaking);
+            builder.startObject().field("field", "value").endObject();
+            assertTrue(request.getUsed() > 0);
+            ReleasablePagedBytesReference bytes = (ReleasablePagedBytesReference) builder.bytes();
+            assertEquals("{\"field\":\"value\"}", bytes.utf8ToString());
+            bytes.close();
+            assertEquals(0, request.getUsed());
+
+            builder = XContentFactory.contentBuilder(XContentType.JSON, breaking);
+            try {
+                builder.startArray();
+                for (int i = 0; i < 1024 * 1024; i++) {
+                    builder.value("a runaway value");
+                }
+                fail();
+            } catch (CircuitBreakingException e) {
+                assertEquals(2, request.getTrippedCount());
+            }
+        }
+    }
+
+    @Test
+    public void test_concurrency() throws InterruptedException {
+        HierarchyCircuitBreaker parent = HierarchyCircuitBreaker.parent(1000);
+        ChildMemoryCircuitBreaker first = parent.child("first", 800, 1.0);
+        ChildMemoryCircuitBreaker second = parent.child("second", 800, 1.0);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final ChildMemoryCircuitBreaker breaker = t % 2 == 0 ? first : second;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 10000; i++) {
+                        try {
+                            breaker.addEstimateBytesAndMaybeBreak(100, "label");
+                        } catch (CircuitBreakingException e) {
+                            continue;
+                        }
+                        assertTrue(parent.getUsed() <= 1000);
+                        assertTrue(breaker.getUsed() <= 800);
+                        breaker.addWithoutBreaking(-100, "label");
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, first.getUsed());
+        assertEquals(0, second.getUsed());
+        assertEquals(0, parent.getUsed());
+    }
+}
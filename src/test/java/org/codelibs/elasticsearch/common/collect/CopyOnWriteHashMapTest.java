@@ -0,0 +1,178 @@
+package org.codelibs.elasticsearch.common.collect;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CopyOnWriteHashMapTest {
+
+    /** A key whose hash only takes a few values, to exercise collisions and leaves. */
+    private static final class Key {
+        private final int id;
+        private final int hash;
+
+        Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return "k" + id;
+        }
+    }
+
+    private static Key randomKey(Random random, int maxId) {
+        final int id = random.nextInt(maxId);
+        // ids sharing their low bits collide on the whole hash
+        return new Key(id, random.nextBoolean() ? id * 0x9E3779B9 : (id & 0xF) << 30);
+    }
+
+    @Test
+    public void test_copyOf() {
+        Random random = new Random(0);
+        for (int size : new int[] { 0, 1, 2, 65, 1000, 20000 }) {
+            Map<Key, Integer> expected = new HashMap<>();
+            for (int i = 0; i < size; i++) {
+                Key key = new Key(i, i % 3 == 0 ? (i & 0x7) << 29 : random.nextInt());
+                expected.put(key, i);
+            }
+            CopyOnWriteHashMap<Key, Integer> map = CopyOnWriteHashMap.copyOf(expected);
+            assertEquals(expected, map);
+            assertEquals(expected.size(), map.size());
+            assertEquals(expected.size(), new ArrayList<>(map.entrySet()).size());
+
+            // the trie must have the same shape as the one built with single puts
+            CopyOnWriteHashMap<Key, Integer> copy = new CopyOnWriteHashMap<>();
+            for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+                copy = copy.copyAndPut(entry.getKey(), entry.getValue());
+            }
+            for (Key key : expected.keySet()) {
+                map = map.copyAndRemove(key);
+                copy = copy.copyAndRemove(key);
+                assertEquals(copy.size(), map.size());
+            }
+            assertTrue(map.isEmpty());
+        }
+
+        // equal keys of an identity map are stored once, with the last value
+        Map<Key, Integer> identity = new IdentityHashMap<>();
+        identity.put(new Key(1, 42), 1);
+        identity.put(new Key(1, 42), 2);
+        identity.put(new Key(2, 42), 3);
+        CopyOnWriteHashMap<Key, Integer> map = CopyOnWriteHashMap.copyOf(identity);
+        assertEquals(2, map.size());
+        assertEquals(Integer.valueOf(3), map.get(new Key(2, 42)));
+        assertTrue(map.get(new Key(1, 42)) == 1 || map.get(new Key(1, 42)) == 2);
+
+        try {
+            Map<Key, Integer> nulls = new HashMap<>();
+            nulls.put(new Key(1, 1), null);
+            CopyOnWriteHashMap.copyOf(nulls);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("null values are not supported", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_builder() {
+        Random random = new Random(1);
+        Map<Key, Integer> expected = new HashMap<>();
+        CopyOnWriteHashMap<Key, Integer> map = new CopyOnWriteHashMap<>();
+        List<Map<Key, Integer>> expectedSnapshots = new ArrayList<>();
+        List<CopyOnWriteHashMap<Key, Integer>> snapshots = new ArrayList<>();
+        CopyOnWriteHashMap.Builder<Key, Integer> builder = CopyOnWriteHashMap.builder(map);
+        for (int round = 0; round < 50; round++) {
+            for (int i = 0; i < 200; i++) {
+                Key key = randomKey(random, 2000);
+                if (random.nextInt(4) == 0) {
+                    expected.remove(key);
+                    builder.remove(key);
+                } else {
+                    expected.put(key, i);
+                    builder.put(key, i);
+                }
+                assertEquals(expected.size(), builder.size());
+                assertEquals(expected.get(key), builder.get(key));
+            }
+            expectedSnapshots.add(new HashMap<>(expected));
+            snapshots.add(builder.build());
+        }
+        assertTrue(map.isEmpty());
+        // maps that were built are not modified by the writes that happened later
+        for (int i = 0; i < snapshots.size(); i++) {
+            assertEquals(expectedSnapshots.get(i), snapshots.get(i));
+            assertEquals(expectedSnapshots.get(i).size(), snapshots.get(i).size());
+        }
+
+        CopyOnWriteHashMap<Key, Integer> last = snapshots.get(snapshots.size() - 1);
+        CopyOnWriteHashMap<Key, Integer> removed = last.copyAndRemoveAll(new ArrayList<>(expected.keySet()).subList(0, 10));
+        assertEquals(expected.size() - 10, removed.size());
+        assertEquals(expected, last);
+        assertSame(last, last.copyAndRemoveAll(Collections.singleton(new Key(-1, -1))));
+
+        Map<Key, Integer> more = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            more.put(randomKey(random, 4000), -i);
+        }
+        CopyOnWriteHashMap<Key, Integer> added = last.copyAndPutAll(more);
+        expected.putAll(more);
+        assertEquals(expected, added);
+        assertEquals(expected.size(), added.size());
+        assertEquals(expectedSnapshots.get(snapshots.size() - 1), last);
+    }
+
+    @Test
+    public void test_concurrentReads() throws Exception {
+        Map<Key, Integer> initial = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            initial.put(new Key(i, i * 31), i);
+        }
+        final CopyOnWriteHashMap<Key, Integer> map = CopyOnWriteHashMap.copyOf(initial);
+        final List<Throwable> failures = new ArrayList<>();
+        Thread reader = new Thread(() -> {
+            try {
+                for (int round = 0; round < 200; round++) {
+                    for (int i = 0; i < 1000; i++) {
+                        assertEquals(Integer.valueOf(i), map.get(new Key(i, i * 31)));
+                    }
+                }
+            } catch (Throwable t) {
+                synchronized (failures) {
+                    failures.add(t);
+                }
+            }
+        });
+        reader.start();
+        CopyOnWriteHashMap.Builder<Key, Integer> builder = CopyOnWriteHashMap.builder(map);
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 1000; i++) {
+                builder.put(new Key(i, i * 31), -round);
+            }
+            builder.remove(new Key(round, round * 31));
+            builder.build();
+        }
+        reader.join();
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertEquals(initial, map);
+    }
+}
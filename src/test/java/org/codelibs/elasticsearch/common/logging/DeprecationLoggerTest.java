@@ -0,0 +1,123 @@
+package org.codelibs.elasticsearch.common.logging;
+
+import org.codelibs.elasticsearch.common.ParseField;
+import org.codelibs.elasticsearch.common.settings.Setting;
+import org.codelibs.elasticsearch.common.settings.Settings;
+import org.codelibs.elasticsearch.common.util.concurrent.ThreadContext;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeprecationLoggerTest {
+
+    @After
+    public void tearDown() {
+        DeprecationLogger.setSink(null);
+        DeprecationLogger.resetDeprecations();
+    }
+
+    private static long count(String key) {
+        for (DeprecationLogger.Deprecation deprecation : DeprecationLogger.getDeprecations()) {
+            if (deprecation.key().equals(key)) {
+                return deprecation.count();
+            }
+        }
+        return 0;
+    }
+
+    @Test
+    public void test_sink() throws Exception {
+        ParseField field = new ParseField("minimum_should_match", "minimum_number_should_match");
+        DeprecationLogger.resetDeprecations();
+        assertFalse(DeprecationLogger.isEnabled());
+        assertTrue(field.match("minimum_number_should_match"));
+        assertEquals(0, count("minimum_number_should_match"));
+
+        List<String> messages = Collections.synchronizedList(new ArrayList<>());
+        DeprecationLogger.setSink((key, message) -> messages.add(key + ": " + message));
+        assertTrue(DeprecationLogger.isEnabled());
+        for (int i = 0; i < 3; i++) {
+            assertTrue(field.match("minimum_number_should_match"));
+        }
+        assertTrue(new ParseField("slop", "phrase_slop").withAllDeprecated("match_phrase query").match("slop"));
+        assertTrue(field.match("minimum_should_match"));
+        assertEquals(Arrays.asList(
+                "minimum_number_should_match: Deprecated field [minimum_number_should_match] used, expected [minimum_should_match] instead",
+                "slop: Deprecated field [slop] used, replaced by [match_phrase query]"), messages);
+        assertEquals(3, count("minimum_number_should_match"));
+        assertEquals(1, count("slop"));
+        for (DeprecationLogger.Deprecation deprecation : DeprecationLogger.getDeprecations()) {
+            if (deprecation.key().equals("slop")) {
+                assertEquals("Deprecated field [slop] used, replaced by [match_phrase query]", deprecation.message());
+            }
+        }
+
+        // counted concurrently, reported once
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    field.match("minimum_number_should_match");
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4003, count("minimum_number_should_match"));
+        assertEquals(2, messages.size());
+
+        DeprecationLogger.resetDeprecations();
+        field.match("minimum_number_should_match");
+        assertEquals(3, messages.size());
+        assertEquals(1, count("minimum_number_should_match"));
+
+        DeprecationLogger.setSink(null);
+        assertFalse(DeprecationLogger.isEnabled());
+        field.match("minimum_number_should_match");
+        assertEquals(1, count("minimum_number_should_match"));
+    }
+
+    @Test
+    public void test_settings() {
+        List<String> keys = Collections.synchronizedList(new ArrayList<>());
+        DeprecationLogger.setSink((key, message) -> keys.add(key));
+        Setting<String> first = Setting.simpleString("index.first", Setting.Property.Deprecated);
+        Setting<String> second = Setting.simpleString("index.second", Setting.Property.Deprecated);
+        Settings settings = Settings.builder().put("index.first", "a").put("index.second", "b").build();
+        first.get(settings);
+        second.get(settings);
+        second.get(settings);
+        // settings share one message pattern but are reported and counted one by one
+        assertEquals(Arrays.asList("index.first", "index.second"), keys);
+        assertEquals(1, count("index.first"));
+        assertEquals(2, count("index.second"));
+    }
+
+    @Test
+    public void test_threadContext() {
+        DeprecationLogger deprecationLogger = new DeprecationLogger(Loggers.getLogger(DeprecationLoggerTest.class));
+        ThreadContext threadContext = new ThreadContext(Collections.emptyMap(), true);
+        DeprecationLogger.setThreadContext(threadContext);
+        try {
+            assertTrue(DeprecationLogger.isEnabled());
+            // every notice reaches the response headers, not only the first one of its key
+            for (String name : new String[] { "a", "b", "a" }) {
+                deprecationLogger.deprecatedAndMaybeLog("key", "[{}] is deprecated", name);
+            }
+            assertEquals(Arrays.asList("[a] is deprecated", "[b] is deprecated"),
+                    threadContext.getResponseHeaders().get(DeprecationLogger.WARNING_HEADER));
+            assertEquals(3, count("key"));
+        } finally {
+            DeprecationLogger.removeThreadContext(threadContext);
+        }
+        assertFalse(DeprecationLogger.isEnabled());
+    }
+}
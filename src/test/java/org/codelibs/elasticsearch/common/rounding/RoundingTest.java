@@ -0,0 +1,128 @@
+package org.codelibs.elasticsearch.common.rounding;
+
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.codelibs.elasticsearch.common.unit.TimeValue;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RoundingTest {
+    private static final String[] TIME_ZONES = { "UTC", "Europe/Berlin", "America/New_York", "Australia/Lord_Howe",
+            "Asia/Kolkata", "America/St_Johns", "Pacific/Chatham", "Asia/Tehran" };
+
+    // 2015-01-01 to 2018-01-01
+    private static final long MIN = 1420070400000L;
+    private static final long MAX = 1514764800000L;
+
+    /**
+     * Random values of the range, and values around each transition of the range.
+     */
+    private static long[] values(DateTimeZone timeZone, Random random) {
+        long[] values = new long[20000];
+        int count = 0;
+        for (long transition = timeZone.nextTransition(MIN); transition < MAX && transition != timeZone.nextTransition(transition)
+                && count + 200 < values.length; transition = timeZone.nextTransition(transition)) {
+            for (int i = 0; i < 100; i++) {
+                values[count++] = transition - 2 + i;
+                values[count++] = transition + random.nextInt((int) TimeUnit.HOURS.toMillis(6)) - TimeUnit.HOURS.toMillis(3);
+            }
+        }
+        while (count < values.length) {
+            values[count++] = MIN + (long) (random.nextDouble() * (MAX - MIN));
+        }
+        return values;
+    }
+
+    private static void assertPrepared(Rounding rounding, long[] values) {
+        Rounding prepared = rounding.prepare(MIN, MAX);
+        long[] rounded = new long[values.length];
+        prepared.round(values, rounded);
+        for (int i = 0; i < values.length; i++) {
+            long expected = rounding.round(values[i]);
+            assertEquals(rounding + " " + values[i], expected, prepared.round(values[i]));
+            assertEquals(rounding + " " + values[i], expected, rounded[i]);
+        }
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        prepared.round(sorted, sorted);
+        for (int i = 1; i < sorted.length; i++) {
+            assertTrue(sorted[i - 1] <= sorted[i]);
+        }
+    }
+
+    @Test
+    public void test_prepareTimeUnit() {
+        Random random = new Random(0);
+        for (String id : TIME_ZONES) {
+            DateTimeZone timeZone = DateTimeZone.forID(id);
+            long[] values = values(timeZone, random);
+            for (DateTimeUnit unit : DateTimeUnit.values()) {
+                assertPrepared(Rounding.builder(unit).timeZone(timeZone).build(), values);
+            }
+        }
+    }
+
+    @Test
+    public void test_prepareTimeInterval() {
+        Random random = new Random(0);
+        for (String id : TIME_ZONES) {
+            DateTimeZone timeZone = DateTimeZone.forID(id);
+            long[] values = values(timeZone, random);
+            for (TimeValue interval : new TimeValue[] { TimeValue.timeValueMinutes(1), TimeValue.timeValueMinutes(20),
+                    TimeValue.timeValueMinutes(90), TimeValue.timeValueHours(7), TimeValue.timeValueHours(24),
+                    TimeValue.timeValueHours(24 * 10) }) {
+                assertPrepared(Rounding.builder(interval).timeZone(timeZone).build(), values);
+            }
+        }
+    }
+
+    @Test
+    public void test_outOfRange() {
+        Rounding rounding = Rounding.builder(DateTimeUnit.DAY_OF_MONTH).timeZone(DateTimeZone.forID("Europe/Berlin")).build();
+        Rounding prepared = rounding.prepare(MIN, MAX);
+        assertEquals(rounding.round(MIN - 1), prepared.round(MIN - 1));
+        assertEquals(rounding.round(MAX + 1), prepared.round(MAX + 1));
+        assertSame(prepared, prepared.prepare(MIN + 1, MAX - 1));
+        // too many rounded values
+        Rounding seconds = Rounding.builder(DateTimeUnit.SECOND_OF_MINUTE).build();
+        assertSame(seconds, seconds.prepare(MIN, MAX));
+        try {
+            rounding.prepare(MAX, MIN);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[min] must be lower than or equal to [max]: " + MAX + " > " + MIN, e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_serializePrepared() throws IOException {
+        long[] values = values(DateTimeZone.forID("America/New_York"), new Random(0));
+        for (Rounding rounding : new Rounding[] {
+                Rounding.builder(DateTimeUnit.HOUR_OF_DAY).timeZone(DateTimeZone.forID("America/New_York")).build(),
+                Rounding.builder(TimeValue.timeValueMinutes(90)).timeZone(DateTimeZone.forID("America/New_York")).build(),
+                Rounding.builder(TimeValue.timeValueHours(1)).build() }) {
+            Rounding prepared = rounding.prepare(MIN, MAX);
+            assertNotSame(rounding, prepared);
+            Rounding read = copy(prepared);
+            assertEquals(prepared.getClass(), read.getClass());
+            assertEquals(prepared, read);
+            for (long value : values) {
+                assertEquals(prepared.round(value), read.round(value));
+            }
+            assertEquals(rounding, copy(rounding));
+        }
+    }
+
+    private static Rounding copy(Rounding rounding) throws IOException {
+        try (BytesStreamOutput out = new BytesStreamOutput()) {
+            Rounding.Streams.write(rounding, out);
+            return Rounding.Streams.read(out.bytes().streamInput());
+        }
+    }
+}
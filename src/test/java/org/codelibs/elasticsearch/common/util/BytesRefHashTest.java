@@ -0,0 +1,41 @@
+package org.codelibs.elasticsearch.common.util;
+
+import org.apache.lucene.util.BytesRef;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BytesRefHashTest {
+
+    @Test
+    public void test_addAndFind() {
+        Random random = new Random(0);
+        for (float loadFactor : new float[] { 0.3f, 0.95f }) {
+            List<String> inserted = new ArrayList<>();
+            try (BytesRefHash hash = new BytesRefHash(1, loadFactor, BigArrays.NON_RECYCLING_INSTANCE)) {
+                for (int i = 0; i < 20000; i++) {
+                    // long common prefixes, keys that only differ by their last bytes
+                    String term = "common/prefix/of/the/terms/" + random.nextInt(5000);
+                    long id = hash.add(new BytesRef(term));
+                    if (id >= 0) {
+                        assertEquals(inserted.size(), id);
+                        inserted.add(term);
+                    } else {
+                        assertEquals(term, inserted.get((int) (-1 - id)));
+                    }
+                }
+                assertEquals(inserted.size(), hash.size());
+                BytesRef spare = new BytesRef();
+                for (int id = 0; id < inserted.size(); id++) {
+                    assertEquals(inserted.get(id), hash.get(id, spare).utf8ToString());
+                    assertEquals(id, hash.find(new BytesRef(inserted.get(id))));
+                }
+                assertEquals(-1, hash.find(new BytesRef("common/prefix/of/the/terms/5000")));
+            }
+        }
+    }
+}
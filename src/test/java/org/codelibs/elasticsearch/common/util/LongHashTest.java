@@ -0,0 +1,62 @@
+package org.codelibs.elasticsearch.common.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongHashTest {
+
+    @Test
+    public void test_bulk() {
+        Random random = new Random(0);
+        for (float loadFactor : new float[] { 0.3f, 0.6f, 0.95f }) {
+            long[] keys = new long[50000];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = random.nextInt(20000) - 10000;
+            }
+            // runs of equal keys within and across batches
+            Arrays.sort(keys, 0, 10000);
+            try (LongHash single = new LongHash(1, loadFactor, BigArrays.NON_RECYCLING_INSTANCE);
+                 LongHash bulk = new LongHash(1, loadFactor, BigArrays.NON_RECYCLING_INSTANCE)) {
+                long[] ids = new long[1000];
+                for (int offset = 0; offset < keys.length; offset += 1000) {
+                    bulk.add(keys, offset, 1000, ids);
+                    for (int i = 0; i < 1000; i++) {
+                        assertEquals(single.add(keys[offset + i]), ids[i]);
+                    }
+                }
+                assertEquals(single.size(), bulk.size());
+
+                // ids follow insertion order, whatever the load factor
+                Map<Long, Long> firstIds = new HashMap<>();
+                for (long key : keys) {
+                    firstIds.putIfAbsent(key, (long) firstIds.size());
+                }
+                for (long id = 0; id < bulk.size(); id++) {
+                    assertEquals(Long.valueOf(id), firstIds.get(bulk.get(id)));
+                }
+
+                long[] lookups = new long[] { keys[0], keys[0], 10001, keys[keys.length - 1], -10001 };
+                long[] found = new long[lookups.length];
+                bulk.find(lookups, found);
+                for (int i = 0; i < lookups.length; i++) {
+                    assertEquals(single.find(lookups[i]), found[i]);
+                }
+                assertEquals(-1, found[2]);
+                assertEquals(-1, found[4]);
+            }
+        }
+
+        try (LongHash hash = new LongHash(1, BigArrays.NON_RECYCLING_INSTANCE)) {
+            hash.add(new long[3], 1, 3, new long[3]);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[offset] and [length] must be within the bounds of [keys], got [1] and [3] for [3] keys", e.getMessage());
+        }
+    }
+}
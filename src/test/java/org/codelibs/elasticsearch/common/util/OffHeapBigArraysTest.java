@@ -0,0 +1,141 @@
+package org.codelibs.elasticsearch.common.util;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.common.breaker.CircuitBreaker;
+import org.codelibs.elasticsearch.common.breaker.ChildMemoryCircuitBreaker;
+import org.codelibs.elasticsearch.common.breaker.CircuitBreakingException;
+import org.codelibs.elasticsearch.common.breaker.HierarchyCircuitBreaker;
+import org.codelibs.elasticsearch.common.bytes.BytesReference;
+import org.codelibs.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.codelibs.elasticsearch.common.unit.ByteSizeUnit;
+import org.codelibs.elasticsearch.common.unit.ByteSizeValue;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class OffHeapBigArraysTest {
+
+    private static void assertSameContent(BigArrays heap, BigArrays offHeap, Random random) {
+        final long size = 3 * BigArrays.LONG_PAGE_SIZE + random.nextInt(1000);
+        LongArray expectedLongs = heap.newLongArray(size);
+        LongArray longs = offHeap.newLongArray(size);
+        DoubleArray expectedDoubles = heap.newDoubleArray(size);
+        DoubleArray doubles = offHeap.newDoubleArray(size);
+        IntArray expectedInts = heap.newIntArray(size);
+        IntArray ints = offHeap.newIntArray(size);
+        FloatArray expectedFloats = heap.newFloatArray(size);
+        FloatArray floats = offHeap.newFloatArray(size);
+        for (int i = 0; i < 10000; i++) {
+            final long index = (long) (random.nextDouble() * size);
+            final long value = random.nextLong();
+            assertEquals(expectedLongs.set(index, value), longs.set(index, value));
+            assertEquals(expectedLongs.increment(index, 3), longs.increment(index, 3));
+            assertEquals(expectedDoubles.increment(index, value), doubles.increment(index, value), 0.0);
+            assertEquals(expectedInts.set(index, (int) value), ints.set(index, (int) value));
+            assertEquals(expectedFloats.increment(index, value), floats.increment(index, value), 0.0f);
+        }
+        expectedLongs.fill(10, BigArrays.LONG_PAGE_SIZE + 10, 42);
+        longs.fill(10, BigArrays.LONG_PAGE_SIZE + 10, 42);
+
+        // shrink to one page, then grow across pages again
+        expectedLongs = heap.grow(heap.resize(expectedLongs, 100), 2 * size);
+        longs = offHeap.grow(offHeap.resize(longs, 100), 2 * size);
+        expectedInts = heap.resize(expectedInts, 2 * size);
+        ints = offHeap.resize(ints, 2 * size);
+        assertEquals(expectedLongs.size(), longs.size());
+        for (long i = 0; i < longs.size(); i++) {
+            assertEquals(expectedLongs.get(i), longs.get(i));
+        }
+        for (long i = 0; i < size; i++) {
+            assertEquals(expectedDoubles.get(i), doubles.get(i), 0.0);
+            assertEquals(expectedInts.get(i), ints.get(i));
+            assertEquals(expectedFloats.get(i), floats.get(i), 0.0f);
+        }
+        for (long i = size; i < 2 * size; i++) {
+            assertEquals(0, ints.get(i));
+        }
+
+        final byte[] bytes = new byte[3 * BigArrays.BYTE_PAGE_SIZE];
+        random.nextBytes(bytes);
+        ByteArray byteArray = offHeap.newByteArray(bytes.length + 10);
+        byteArray.set(5, bytes, 0, bytes.length);
+        BytesRef ref = new BytesRef();
+        assertTrue(byteArray.get(5, bytes.length, ref));
+        assertEquals(new BytesRef(bytes), ref);
+        assertEquals(bytes[7], byteArray.get(12));
+        byteArray.fill(0, 5, (byte) 1);
+        assertEquals(1, byteArray.get(4));
+
+        for (BigArray array : new BigArray[] { expectedLongs, longs, expectedDoubles, doubles, expectedInts, ints, expectedFloats, floats,
+                byteArray }) {
+            array.close();
+        }
+    }
+
+    @Test
+    public void test_direct() throws Exception {
+        HierarchyCircuitBreaker parent = HierarchyCircuitBreaker.parent(-1);
+        ChildMemoryCircuitBreaker request = parent.child(CircuitBreaker.REQUEST, 16 * 1024 * 1024, 1.0);
+        Random random = new Random(0);
+        try (OffHeapBigArrays offHeap = OffHeapBigArrays.builder().pageCacheSize(new ByteSizeValue(64, ByteSizeUnit.KB))
+                .breaker(request).build()) {
+            for (int round = 0; round < 3; round++) {
+                assertSameContent(BigArrays.NON_RECYCLING_INSTANCE, offHeap, random);
+                assertEquals(0, request.getUsed());
+            }
+
+            LongArray longs = offHeap.newLongArray(2 * BigArrays.LONG_PAGE_SIZE);
+            assertTrue(request.getUsed() >= 2 * BigArrays.PAGE_SIZE_IN_BYTES);
+            longs.set(1, 1);
+            longs.close();
+            // recycled pages are cleared
+            longs = offHeap.newLongArray(2 * BigArrays.LONG_PAGE_SIZE);
+            assertEquals(0, longs.get(1));
+            longs.close();
+
+            try {
+                offHeap.withCircuitBreaking().newLongArray(4 * 1024 * 1024);
+                fail();
+            } catch (CircuitBreakingException e) {
+                assertEquals(0, request.getUsed());
+            }
+
+            try (ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(offHeap)) {
+                for (int i = 0; i < 10000; i++) {
+                    out.writeString("value" + i);
+                }
+                BytesReference bytes = out.bytes();
+                assertTrue(bytes.length() > BigArrays.BYTE_PAGE_SIZE);
+                assertEquals(out.bytes().toBytesRef(), new BytesRef(BytesReference.toBytes(bytes)));
+                out.bytes().close();
+            }
+            assertEquals(0, request.getUsed());
+
+            try (LongHash hash = new LongHash(1, offHeap)) {
+                for (long i = 0; i < 100000; i++) {
+                    assertEquals(i, hash.add(i * 31));
+                }
+                assertEquals(42, hash.find(42 * 31));
+            }
+            assertEquals(0, request.getUsed());
+        }
+    }
+
+    @Test
+    public void test_mapped() throws Exception {
+        Path file = Files.createTempFile("offheap", ".bin");
+        Random random = new Random(1);
+        // long and double arrays are mapped, int and float arrays are direct
+        try (OffHeapBigArrays offHeap = OffHeapBigArrays.builder().scratchFile(file, new ByteSizeValue(32, ByteSizeUnit.KB)).build()) {
+            for (int round = 0; round < 3; round++) {
+                assertSameContent(BigArrays.NON_RECYCLING_INSTANCE, offHeap, random);
+            }
+            assertTrue(Files.size(file) > 0);
+        }
+        assertFalse(Files.exists(file));
+    }
+}
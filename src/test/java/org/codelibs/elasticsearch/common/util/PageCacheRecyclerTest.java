@@ -0,0 +1,142 @@
+package org.codelibs.elasticsearch.common.util;
+
+import org.codelibs.elasticsearch.common.io.stream.ReleasableBytesStreamOutput;
+import org.codelibs.elasticsearch.common.recycler.Recycler;
+import org.codelibs.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PageCacheRecyclerTest {
+    private static PageCacheRecycler recycler(String type, String limit) {
+        return new PageCacheRecycler(Settings.builder().put(PageCacheRecycler.TYPE_SETTING.getKey(), type)
+                .put(PageCacheRecycler.LIMIT_HEAP_SETTING.getKey(), limit).build());
+    }
+
+    @Test
+    public void test_recycle() {
+        for (String type : new String[] { "queue", "concurrent" }) {
+            try (PageCacheRecycler recycler = recycler(type, "10mb")) {
+                Recycler.V<long[]> page = recycler.longPage(true);
+                assertFalse(page.isRecycled());
+                long[] longs = page.v();
+                longs[0] = 42;
+                page.close();
+                try {
+                    page.close();
+                    fail();
+                } catch (IllegalStateException e) {
+                    assertEquals("recycler entry already released", e.getMessage());
+                }
+
+                page = recycler.longPage(false);
+                assertTrue(page.isRecycled());
+                assertSame(longs, page.v());
+                assertEquals(42, page.v()[0]);
+                page.close();
+                page = recycler.longPage(true);
+                assertSame(longs, page.v());
+                assertEquals(0, page.v()[0]);
+                page.close();
+
+                Recycler.V<Object[]> objects = recycler.objectPage();
+                objects.v()[0] = "value";
+                objects.close();
+                objects = recycler.objectPage();
+                assertTrue(objects.isRecycled());
+                assertNull(objects.v()[0]);
+                objects.close();
+            }
+        }
+        try (PageCacheRecycler recycler = recycler("none", "10mb")) {
+            recycler.bytePage(true).close();
+            assertFalse(recycler.bytePage(true).isRecycled());
+        }
+    }
+
+    @Test
+    public void test_limit() {
+        // 16 pages, 16 * 1 / 3.1 = 5 for bytes with the default weights
+        try (PageCacheRecycler recycler = recycler("queue", "256kb")) {
+            List<Recycler.V<byte[]>> pages = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                pages.add(recycler.bytePage(false));
+            }
+            pages.forEach(Recycler.V::close);
+            int recycled = 0;
+            for (int i = 0; i < 10; i++) {
+                if (recycler.bytePage(false).isRecycled()) {
+                    recycled++;
+                }
+            }
+            assertEquals(5, recycled);
+        }
+    }
+
+    @Test
+    public void test_bigArrays() {
+        try (PageCacheRecycler recycler = recycler("concurrent", "10mb")) {
+            BigArrays bigArrays = new BigArrays(recycler, false);
+            for (int round = 0; round < 3; round++) {
+                LongArray longs = bigArrays.newLongArray(3 * BigArrays.LONG_PAGE_SIZE + 1);
+                for (long i = 0; i < longs.size(); i++) {
+                    assertEquals(0, longs.get(i));
+                    longs.set(i, i + 1);
+                }
+                longs = bigArrays.resize(longs, BigArrays.LONG_PAGE_SIZE);
+                longs = bigArrays.grow(longs, 2 * BigArrays.LONG_PAGE_SIZE);
+                assertEquals(0, longs.get(BigArrays.LONG_PAGE_SIZE + 1));
+                longs.close();
+
+                ObjectArray<String> objects = bigArrays.newObjectArray(BigArrays.OBJECT_PAGE_SIZE / 2);
+                assertNull(objects.get(0));
+                objects.set(0, "value");
+                objects.close();
+            }
+            assertTrue(recycler.longPage(false).isRecycled());
+
+            try (ReleasableBytesStreamOutput out = new ReleasableBytesStreamOutput(bigArrays)) {
+                out.writeBytes(new byte[3 * BigArrays.BYTE_PAGE_SIZE], 0, 3 * BigArrays.BYTE_PAGE_SIZE);
+                out.bytes().close();
+            }
+            assertTrue(recycler.bytePage(false).isRecycled());
+        }
+    }
+
+    @Test
+    public void test_concurrency() throws InterruptedException {
+        try (PageCacheRecycler recycler = recycler("concurrent", "1mb")) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                final int value = t + 1;
+                threads[t] = new Thread(() -> {
+                    try {
+                        for (int i = 0; i < 2000; i++) {
+                            Recycler.V<int[]> page = recycler.intPage(false);
+                            int[] ints = page.v();
+                            ints[0] = value;
+                            ints[ints.length - 1] = value;
+                            Thread.yield();
+                            // no other thread may have obtained the same page
+                            assertEquals(value, ints[0]);
+                            assertEquals(value, ints[ints.length - 1]);
+                            page.close();
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertNull(failure.get());
+        }
+    }
+}
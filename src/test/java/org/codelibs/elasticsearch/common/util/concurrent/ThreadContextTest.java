@@ -0,0 +1,131 @@
+package org.codelibs.elasticsearch.common.util.concurrent;
+
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.codelibs.elasticsearch.common.logging.DeprecationLogger;
+import org.codelibs.elasticsearch.common.logging.Loggers;
+import org.codelibs.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class ThreadContextTest {
+
+    @Test
+    public void test_headers() throws Exception {
+        ThreadContext threadContext = new ThreadContext(Settings.builder().put("request.headers.default", "1").build());
+        threadContext.putHeader("foo", "bar");
+        threadContext.putTransient("ctx", 42);
+        try {
+            threadContext.putHeader("foo", "baz");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("value for key [foo] already present", e.getMessage());
+        }
+        assertEquals("bar", threadContext.getHeader("foo"));
+        assertEquals("1", threadContext.getHeader("default"));
+        assertEquals(Integer.valueOf(42), threadContext.getTransient("ctx"));
+
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            assertTrue(threadContext.isDefaultContext());
+            assertNull(threadContext.getHeader("foo"));
+            assertNull(threadContext.getTransient("ctx"));
+            threadContext.putHeader("foo", "other");
+        }
+        assertEquals("bar", threadContext.getHeader("foo"));
+
+        // existing headers win over merged ones, transients are dropped
+        Map<String, String> merged = new HashMap<>();
+        merged.put("foo", "merged");
+        merged.put("new", "value");
+        try (ThreadContext.StoredContext ignored = threadContext.stashAndMergeHeaders(merged)) {
+            assertEquals("bar", threadContext.getHeader("foo"));
+            assertEquals("value", threadContext.getHeader("new"));
+            assertNull(threadContext.getTransient("ctx"));
+        }
+
+        threadContext.copyHeaders(Arrays.asList(new AbstractMap.SimpleEntry<>("foo", "copied"),
+                new AbstractMap.SimpleEntry<>("copy", "1"), new AbstractMap.SimpleEntry<>("copy", "2")));
+        Map<String, String> expected = new HashMap<>();
+        expected.put("default", "1");
+        expected.put("foo", "bar");
+        expected.put("copy", "2");
+        assertEquals(expected, threadContext.getHeaders());
+
+        threadContext.addResponseHeader("Warning", "a");
+        threadContext.addResponseHeader("Warning", "b");
+        threadContext.addResponseHeader("Warning", "a");
+        assertEquals(Collections.singletonMap("Warning", Arrays.asList("a", "b")), threadContext.getResponseHeaders());
+
+        // response headers of the restoring thread are merged into the restored context
+        ThreadContext.StoredContext stored = threadContext.newStoredContext(true);
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.addResponseHeader("Warning", "c");
+            threadContext.addResponseHeader("Other", "d");
+            stored.restore();
+            assertEquals("bar", threadContext.getHeader("foo"));
+            assertEquals(Arrays.asList("c", "a", "b"), threadContext.getResponseHeaders().get("Warning"));
+            assertEquals(Collections.singletonList("d"), threadContext.getResponseHeaders().get("Other"));
+        }
+
+        BytesStreamOutput out = new BytesStreamOutput();
+        threadContext.writeTo(out);
+        ThreadContext other = new ThreadContext(Collections.emptyMap(), true);
+        other.readHeaders(out.bytes().streamInput());
+        assertEquals(expected, other.getHeaders());
+        assertEquals(threadContext.getResponseHeaders(), other.getResponseHeaders());
+        assertNull(other.getTransient("ctx"));
+
+        threadContext.close();
+        assertTrue(threadContext.isClosed());
+        try {
+            threadContext.getHeader("foo");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("threadcontext is already closed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_preserveContext() throws Exception {
+        ThreadContext threadContext = new ThreadContext(Collections.emptyMap(), true);
+        AtomicReference<String> header = new AtomicReference<>();
+        Runnable runnable;
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putHeader("foo", "bar");
+            runnable = threadContext.preserveContext(() -> header.set(threadContext.getHeader("foo")));
+        }
+        assertSame(runnable, threadContext.preserveContext(runnable));
+        Thread thread = new Thread(runnable);
+        thread.start();
+        thread.join();
+        assertEquals("bar", header.get());
+        assertNull(threadContext.getHeader("foo"));
+    }
+
+    @Test
+    public void test_warnings() throws Exception {
+        DeprecationLogger deprecationLogger = new DeprecationLogger(Loggers.getLogger(ThreadContextTest.class));
+        ThreadContext collecting = new ThreadContext(Collections.emptyMap(), true);
+        ThreadContext silent = new ThreadContext(Collections.emptyMap(), false);
+        assertTrue(collecting.isCollectingWarnings());
+        assertFalse(silent.isCollectingWarnings());
+        DeprecationLogger.setThreadContext(collecting);
+        DeprecationLogger.setThreadContext(silent);
+        try {
+            deprecationLogger.deprecated("[{}] is deprecated", "foo");
+            assertEquals(Collections.singletonMap(DeprecationLogger.WARNING_HEADER, Collections.singletonList("[foo] is deprecated")),
+                    collecting.getResponseHeaders());
+            assertTrue(silent.getResponseHeaders().isEmpty());
+        } finally {
+            DeprecationLogger.removeThreadContext(collecting);
+            DeprecationLogger.removeThreadContext(silent);
+        }
+    }
+}
@@ -190,6 +190,33 @@ public class QueryBuildersTest {
         assertEquals("{\"bool\":{\"must\":[{\"term\":{\"field1\":{\"value\":\"term1\",\"boost\":1.0}}},{\"term\":{\"field2\":{\"value\":\"term2\",\"boost\":1.0}}}],\"must_not\":[{\"term\":{\"field4\":{\"value\":\"term4\",\"boost\":1.0}}}],\"should\":[{\"term\":{\"field3\":{\"value\":\"term3\",\"boost\":1.0}}}],\"disable_coord\":false,\"adjust_pure_negative\":true,\"minimum_should_match\":\"1\",\"boost\":1.0}}", toJsonDsl(queryBuilder));
     }
 
+    @Test
+    public void test_boolQueryBuilderClauses() throws Exception {
+        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery();
+        assertTrue(queryBuilder.filter().isEmpty());
+        assertFalse(queryBuilder.hasClauses());
+        queryBuilder.filter().add(QueryBuilders.termQuery("field1", "term1"));
+        queryBuilder.filter(QueryBuilders.termQuery("field2", "term2"));
+        queryBuilder.filter().add(0, QueryBuilders.termQuery("field0", "term0"));
+        queryBuilder.filter().remove(1);
+        assertEquals(2, queryBuilder.filter().size());
+        assertEquals(QueryBuilders.termQuery("field0", "term0"), queryBuilder.filter().get(0));
+        assertEquals(QueryBuilders.termQuery("field2", "term2"), queryBuilder.filter().get(1));
+        assertEquals(QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("field0", "term0"))
+                .filter(QueryBuilders.termQuery("field2", "term2")), queryBuilder);
+
+        String json = toJsonDsl(queryBuilder);
+        queryBuilder.freeze();
+        assertTrue(queryBuilder.isFrozen());
+        assertEquals(json, toJsonDsl(queryBuilder));
+        try {
+            queryBuilder.must(QueryBuilders.termQuery("field3", "term3"));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
     @Test
     public void test_disMaxQuery() throws Exception {
         DisMaxQueryBuilder queryBuilder = QueryBuilders.disMaxQuery()
@@ -334,6 +361,36 @@ public class QueryBuildersTest {
         assertEquals("{\"field_masking_span\":{\"query\":{\"span_term\":{\"field1\":{\"value\":\"term2\",\"boost\":1.0}}},\"field\":\"field1\",\"boost\":1.0}}", toJsonDsl(queryBuilder));
     }
 
+    @Test
+    public void test_deepCopy() throws Exception {
+        BoolQueryBuilder frozen = QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("tenant", "tenant1"))
+                .filter(QueryBuilders.termsQuery("acl", "group1", "group2"))
+                .freeze();
+        BoolQueryBuilder queryBuilder = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text1").operator(Operator.AND))
+                .must(QueryBuilders.nestedQuery("path1", QueryBuilders.rangeQuery("path1.field2").gte(1), ScoreMode.Avg))
+                .should(QueryBuilders.functionScoreQuery(QueryBuilders.termQuery("field3", "term3"),
+                        ScoreFunctionBuilders.weightFactorFunction(2)))
+                .filter(frozen)
+                .minimumShouldMatch(1)
+                .boost(2)
+                .queryName("query1");
+        BoolQueryBuilder copy = queryBuilder.deepCopy();
+        assertNotSame(queryBuilder, copy);
+        assertEquals(queryBuilder, copy);
+        assertEquals(toJsonDsl(queryBuilder), toJsonDsl(copy));
+        assertNotSame(queryBuilder.must().get(0), copy.must().get(0));
+        assertNotSame(queryBuilder.must().get(1), copy.must().get(1));
+        assertNotSame(frozen, copy.filter().get(0));
+        assertSame(frozen.filter(), ((BoolQueryBuilder) copy.filter().get(0)).filter());
+
+        copy.must(QueryBuilders.existsQuery("field4"));
+        ((MatchQueryBuilder) copy.must().get(0)).operator(Operator.OR);
+        assertEquals(2, queryBuilder.must().size());
+        assertEquals(Operator.AND, ((MatchQueryBuilder) queryBuilder.must().get(0)).operator());
+    }
+
     private static String toJsonDsl(final AbstractQueryBuilder queryBuilder) {
         return queryBuilder.buildAsBytes().utf8ToString();
     }
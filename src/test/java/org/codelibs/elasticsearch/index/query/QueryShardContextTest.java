@@ -0,0 +1,118 @@
+package org.codelibs.elasticsearch.index.query;
+
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.mapper.MapperParsingException;
+import org.codelibs.elasticsearch.index.search.MatchQuery;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryShardContextTest {
+    private static final String MAPPING = "{\"doc\":{\"properties\":{"
+            + "\"title\":{\"type\":\"text\",\"fields\":{\"raw\":{\"type\":\"keyword\"}}},"
+            + "\"body\":{\"type\":\"text\",\"analyzer\":\"whitespace\"},"
+            + "\"tag\":{\"type\":\"keyword\"},"
+            + "\"count\":{\"type\":\"long\"},"
+            + "\"created\":{\"type\":\"date\",\"format\":\"yyyy-MM-dd\"},"
+            + "\"user\":{\"properties\":{\"name\":{\"type\":\"keyword\"}}}"
+            + "}}}";
+
+    private final QueryShardContext context = new QueryShardContext(FieldTypeLookup.fromMapping(MAPPING));
+
+    @Test
+    public void test_fromMapping() {
+        FieldTypeLookup lookup = FieldTypeLookup.fromMapping(MAPPING);
+        assertEquals(7, lookup.size());
+        assertEquals("keyword", lookup.get("title.raw").typeName());
+        assertEquals("keyword", lookup.get("user.name").typeName());
+        assertEquals("whitespace", lookup.get("body").searchAnalyzer().name());
+        assertEquals(2, lookup.simpleMatchToFullName("title*").size());
+        assertNull(lookup.get("user"));
+        try {
+            FieldTypeLookup.fromMapping("{\"properties\":{\"f\":{\"type\":\"unknown\"}}}");
+            fail();
+        } catch (MapperParsingException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_termQuery() throws Exception {
+        assertEquals(new TermQuery(new Term("tag", "a")), QueryBuilders.termQuery("tag", "a").toQuery(context));
+        assertEquals(LongPoint.newExactQuery("count", 5), QueryBuilders.termQuery("count", 5).toQuery(context));
+        assertEquals(new TermQuery(new Term("unmapped", "a")), QueryBuilders.termQuery("unmapped", "a").toQuery(context));
+        assertEquals(new BoostQuery(new TermQuery(new Term("tag", "a")), 2f),
+                QueryBuilders.termQuery("tag", "a").boost(2f).toQuery(context));
+    }
+
+    @Test
+    public void test_matchQuery() throws Exception {
+        Query query = QueryBuilders.matchQuery("title", "Quick Fox").toQuery(context);
+        assertTrue(query instanceof BooleanQuery);
+        BooleanQuery booleanQuery = (BooleanQuery) query;
+        assertEquals(2, booleanQuery.clauses().size());
+        assertEquals(new TermQuery(new Term("title", "quick")), booleanQuery.clauses().get(0).getQuery());
+        assertEquals(BooleanClause.Occur.SHOULD, booleanQuery.clauses().get(0).getOccur());
+
+        assertEquals(new TermQuery(new Term("tag", "Quick Fox")),
+                QueryBuilders.matchQuery("tag", "Quick Fox").toQuery(context));
+        assertEquals(new TermQuery(new Term("body", "Quick")), QueryBuilders.matchQuery("body", "Quick").toQuery(context));
+        assertEquals(new PhraseQuery("title", "quick", "fox"), QueryBuilders.matchPhraseQuery("title", "Quick Fox").toQuery(context));
+        assertTrue(QueryBuilders.matchQuery("title", "the").analyzer("stop").zeroTermsQuery(MatchQuery.ZeroTermsQuery.ALL)
+                .toQuery(context) instanceof MatchAllDocsQuery);
+    }
+
+    @Test
+    public void test_boolQuery() throws Exception {
+        BoolQueryBuilder builder = QueryBuilders.boolQuery()
+                .must(QueryBuilders.termQuery("tag", "a"))
+                .filter(QueryBuilders.rangeQuery("count").gte(1).lt(10))
+                .should(QueryBuilders.prefixQuery("title.raw", "qu"))
+                .should(QueryBuilders.wildcardQuery("user.name", "j*n"));
+        BooleanQuery query = (BooleanQuery) builder.toQuery(context);
+        assertEquals(4, query.clauses().size());
+        assertEquals(LongPoint.newRangeQuery("count", 1, 9), query.clauses().get(3).getQuery());
+        assertEquals(BooleanClause.Occur.FILTER, query.clauses().get(3).getOccur());
+        assertTrue(query.clauses().get(1).getQuery() instanceof PrefixQuery);
+        assertTrue(query.clauses().get(2).getQuery() instanceof WildcardQuery);
+        assertEquals(0, query.getMinimumNumberShouldMatch());
+
+        BooleanQuery filter = (BooleanQuery) builder.toFilter(context);
+        assertEquals(1, filter.getMinimumNumberShouldMatch());
+        assertFalse(context.isFilter());
+
+        assertTrue(QueryBuilders.boolQuery().toQuery(context) instanceof MatchAllDocsQuery);
+    }
+
+    @Test
+    public void test_rangeAndExistsQuery() throws Exception {
+        assertEquals(new TermRangeQuery("unmapped", null, null, true, true),
+                QueryBuilders.rangeQuery("unmapped").toQuery(context));
+        assertNotNull(QueryBuilders.rangeQuery("created").gte("2017-01-01").toQuery(context));
+        try {
+            QueryBuilders.rangeQuery("count").gte(1).timeZone("+01:00").toQuery(context);
+            fail();
+        } catch (QueryShardException e) {
+            // expected
+        }
+
+        assertEquals(new ConstantScoreQuery(new TermQuery(new Term("_field_names", "tag"))),
+                QueryBuilders.existsQuery("tag").toQuery(context));
+        assertTrue(QueryBuilders.existsQuery("user").toQuery(context) instanceof ConstantScoreQuery);
+        assertEquals(2, ((BooleanQuery) ((ConstantScoreQuery) QueryBuilders.existsQuery("title*").toQuery(context))
+                .getQuery()).clauses().size());
+    }
+}
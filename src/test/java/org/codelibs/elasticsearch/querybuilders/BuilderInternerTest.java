@@ -0,0 +1,114 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.DisMaxQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BuilderInternerTest {
+    @Test
+    public void test_intern() {
+        BuilderInterner interner = BuilderInterner.interner();
+        BoolQueryBuilder query1 = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text1"))
+                .filter(tenantFilter("tenant1"));
+        BoolQueryBuilder query2 = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text2"))
+                .filter(tenantFilter("tenant1"));
+        assertSame(query1, interner.intern(query1));
+        assertSame(query2, interner.intern(query2));
+        assertSame(query1.filter().get(0), query2.filter().get(0));
+        assertNotSame(query1.must().get(0), query2.must().get(0));
+
+        QueryBuilder query3 = interner.intern(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text1"))
+                .filter(tenantFilter("tenant1")));
+        assertSame(query1, query3);
+        assertNotSame(query1.filter().get(0), interner.intern(tenantFilter("tenant2")));
+
+        AggregationBuilder aggregation = interner.intern(AggregationBuilders.terms("test").field("field1"));
+        assertSame(aggregation, interner.intern(AggregationBuilders.terms("test").field("field1")));
+        assertTrue(interner.hits() > 0);
+    }
+
+    @Test
+    public void test_internFrozen() {
+        BuilderInterner interner = BuilderInterner.interner();
+        QueryBuilder filter = interner.intern(tenantFilter("tenant1"));
+        BoolQueryBuilder frozen = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text1"))
+                .filter(tenantFilter("tenant1"))
+                .queryName("q")
+                .freeze();
+        BoolQueryBuilder interned = (BoolQueryBuilder) interner.intern(frozen);
+        assertNotSame(frozen, interned);
+        assertTrue(interned.isFrozen());
+        assertSame(filter, interned.filter().get(0));
+        assertNotSame(filter, frozen.filter().get(0));
+        assertEquals(frozen, interned);
+        assertSame(interned, interner.intern(QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text1"))
+                .filter(tenantFilter("tenant1"))
+                .queryName("q")));
+
+        DisMaxQueryBuilder disMax = QueryBuilders.disMaxQuery().add(tenantFilter("tenant1")).freeze();
+        assertSame(filter, ((DisMaxQueryBuilder) interner.intern(disMax)).innerQueries().get(0));
+
+        // settings of compound queries are part of their keys
+        assertNotSame(filter, interner.intern(((BoolQueryBuilder) tenantFilter("tenant1")).boost(2.0f)));
+        assertNotSame(filter, interner.intern(((BoolQueryBuilder) tenantFilter("tenant1")).minimumShouldMatch(1)));
+    }
+
+    @Test
+    public void test_internAggregations() {
+        BuilderInterner interner = BuilderInterner.interner();
+        AggregationBuilder terms1 = AggregationBuilders.terms("test").field("field1")
+                .subAggregation(AggregationBuilders.avg("avg").field("field2"))
+                .subAggregation(AggregationBuilders.max("max").field("field2"));
+        AggregationBuilder terms2 = AggregationBuilders.terms("test").field("field1")
+                .subAggregation(AggregationBuilders.avg("avg").field("field2"))
+                .subAggregation(AggregationBuilders.max("max").field("field3"));
+        assertSame(terms1, interner.intern(terms1));
+        assertSame(terms2, interner.intern(terms2));
+        assertSame(terms1.getSubAggregations().get(0), terms2.getSubAggregations().get(0));
+        assertNotSame(terms1.getSubAggregations().get(1), terms2.getSubAggregations().get(1));
+
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(tenantFilter("tenant1"))
+                .aggregation(AggregationBuilders.terms("test").field("field1")
+                        .subAggregation(AggregationBuilders.avg("avg").field("field2"))
+                        .subAggregation(AggregationBuilders.max("max").field("field2")));
+        interner.intern(source);
+        assertSame(terms1, source.aggregations().getAggregatorFactories().get(0));
+    }
+
+    @Test
+    public void test_internDeep() {
+        BuilderInterner interner = BuilderInterner.interner();
+        QueryBuilder query1 = nested(200);
+        QueryBuilder query2 = nested(200);
+        assertSame(query1, interner.intern(query1));
+        assertSame(query1, interner.intern(query2));
+        assertEquals(201, interner.size());
+    }
+
+    private static QueryBuilder nested(int depth) {
+        QueryBuilder query = QueryBuilders.termQuery("field1", "value1");
+        for (int i = 0; i < depth; i++) {
+            query = QueryBuilders.boolQuery().filter(query);
+        }
+        return query;
+    }
+
+    private static QueryBuilder tenantFilter(String tenant) {
+        return QueryBuilders.boolQuery()
+                .filter(QueryBuilders.termQuery("tenant", tenant))
+                .filter(QueryBuilders.termsQuery("acl", "group1", "group2", "group3"));
+    }
+}
@@ -0,0 +1,116 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.ConstantScoreQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.index.query.TermsQueryBuilder;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class ClauseLimitRewriterTest {
+    @Test
+    public void test_rewriteTerms() {
+        ClauseLimitRewriter rewriter = ClauseLimitRewriter.rewriter().maxTermsCount(3).termsChunkSize(2);
+        TermsQueryBuilder terms = QueryBuilders.termsQuery("field1", "a", "b", "c", "d", "e").boost(2.0f);
+        assertTrue(rewriter.exceedsLimits(terms));
+        QueryBuilder rewritten = rewriter.rewrite(terms);
+        assertFalse(rewriter.exceedsLimits(rewritten));
+        assertEquals("{\"constant_score\":{\"filter\":{\"bool\":{\"should\":["
+                + "{\"terms\":{\"field1\":[\"a\",\"b\"],\"boost\":1.0}},"
+                + "{\"terms\":{\"field1\":[\"c\",\"d\"],\"boost\":1.0}},"
+                + "{\"terms\":{\"field1\":[\"e\"],\"boost\":1.0}}],"
+                + "\"disable_coord\":false,\"adjust_pure_negative\":true,\"boost\":1.0}},\"boost\":2.0}}",
+                ((ConstantScoreQueryBuilder) rewritten).buildAsBytes().utf8ToString());
+
+        TermsQueryBuilder small = QueryBuilders.termsQuery("field1", "a", "b");
+        assertSame(small, rewriter.rewrite(small));
+    }
+
+    @Test
+    public void test_rewriteBool() {
+        ClauseLimitRewriter rewriter = ClauseLimitRewriter.rewriter().maxClauseCount(4).clauseChunkSize(2);
+        BoolQueryBuilder bool = QueryBuilders.boolQuery().queryName("q");
+        for (int i = 0; i < 9; i++) {
+            bool.filter(QueryBuilders.termQuery("field" + i, "v"));
+        }
+        bool.mustNot(QueryBuilders.termQuery("field1", "x")).mustNot(QueryBuilders.termQuery("field2", "x"));
+        assertTrue(rewriter.exceedsLimits(bool));
+        BoolQueryBuilder rewritten = (BoolQueryBuilder) rewriter.rewrite(bool);
+        assertFalse(rewriter.exceedsLimits(rewritten));
+        assertEquals("q", rewritten.queryName());
+        assertEquals(2, rewritten.filter().size());
+        assertEquals(2, rewritten.mustNot().size());
+        assertEquals(9, countLeaves(rewritten.filter().get(0)) + countLeaves(rewritten.filter().get(1)));
+
+        // clause lists that were never populated must not count as changes
+        BoolQueryBuilder small = QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("field1", "v"));
+        assertSame(small, rewriter.rewrite(small));
+
+        BoolQueryBuilder restricted = QueryBuilders.boolQuery().minimumShouldMatch(2);
+        for (int i = 0; i < 5; i++) {
+            restricted.should(QueryBuilders.termQuery("field" + i, "v"));
+        }
+        try {
+            rewriter.rewrite(restricted);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void test_split() {
+        ClauseLimitRewriter rewriter = ClauseLimitRewriter.rewriter().maxTermsCount(100000);
+        Object[] ids = IntStream.range(0, 250000).mapToObj(i -> "id" + i).toArray();
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("field1", "text"))
+                        .filter(QueryBuilders.termsQuery("id", ids)))
+                .from(10).size(20);
+        ClauseLimitRewriter.MultiSearchPlan plan = rewriter.split(source);
+        assertTrue(plan.requiresMerge());
+        assertEquals(3, plan.searches().size());
+        assertEquals(10, plan.from());
+        assertEquals(20, plan.size());
+        int total = 0;
+        for (SearchSourceBuilder search : plan.searches()) {
+            assertEquals(0, search.from());
+            assertEquals(30, search.size());
+            BoolQueryBuilder bool = (BoolQueryBuilder) search.query();
+            assertEquals(1, bool.must().size());
+            total += ((TermsQueryBuilder) bool.filter().get(0)).size();
+        }
+        assertEquals(ids.length, total);
+        assertEquals(10, source.from());
+
+        // the post filter is not split but still has to fit the limits
+        Object[] tags = IntStream.range(0, 150000).mapToObj(i -> "tag" + i).toArray();
+        source.postFilter(QueryBuilders.termsQuery("tag", tags));
+        plan = rewriter.split(source);
+        assertEquals(3, plan.searches().size());
+        for (SearchSourceBuilder search : plan.searches()) {
+            assertFalse(rewriter.exceedsLimits(search.postFilter()));
+            assertSame(plan.searches().get(0).postFilter(), search.postFilter());
+        }
+        assertTrue(rewriter.exceedsLimits(source.postFilter()));
+    }
+
+    private static int countLeaves(QueryBuilder query) {
+        if (query instanceof BoolQueryBuilder) {
+            BoolQueryBuilder bool = (BoolQueryBuilder) query;
+            int count = 0;
+            for (QueryBuilder clause : bool.must()) {
+                count += countLeaves(clause);
+            }
+            for (QueryBuilder clause : bool.filter()) {
+                count += countLeaves(clause);
+            }
+            return count;
+        }
+        return 1;
+    }
+}
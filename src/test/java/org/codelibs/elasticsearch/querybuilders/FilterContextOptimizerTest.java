@@ -0,0 +1,83 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FilterContextOptimizerTest {
+    @Test
+    public void test_scoresIgnored() {
+        assertFalse(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder()));
+        assertTrue(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder().size(0)));
+        assertTrue(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder().sort("field1", SortOrder.ASC)));
+        assertFalse(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder().sort("field1").trackScores(true)));
+        assertFalse(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder().sort("field1").sort("_score")));
+        assertFalse(FilterContextOptimizer.scoresIgnored(new SearchSourceBuilder().size(0)
+                .aggregation(AggregationBuilders.terms("test").field("field1").subAggregation(AggregationBuilders.topHits("top")))));
+    }
+
+    @Test
+    public void test_optimize() {
+        List<FilterContextOptimizer.Change> changes = new ArrayList<>();
+        SearchSourceBuilder source = new SearchSourceBuilder().size(0).query(QueryBuilders.boolQuery()
+                .must(QueryBuilders.termQuery("field1", "value1"))
+                .must(QueryBuilders.rangeQuery("field2").gte(1)));
+        SearchSourceBuilder optimized = FilterContextOptimizer.optimizer(changes::add).optimize(source);
+        BoolQueryBuilder bool = (BoolQueryBuilder) optimized.query();
+        assertEquals(0, bool.must().size());
+        assertEquals(2, bool.filter().size());
+        assertEquals(2, changes.size());
+        assertEquals("query.bool.must[1]", changes.get(1).path());
+        assertEquals(2, ((BoolQueryBuilder) source.query()).must().size());
+
+        BoolQueryBuilder filtered = QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("field1", "value1"));
+        assertSame(filtered, FilterContextOptimizer.optimizer(changes::add).optimize(filtered, false));
+
+        changes.clear();
+        BoolQueryBuilder scored = QueryBuilders.boolQuery()
+                .must(QueryBuilders.matchQuery("field1", "text"))
+                .must(QueryBuilders.rangeQuery("field2").gte(1))
+                .filter(QueryBuilders.boolQuery().must(QueryBuilders.termQuery("field3", "value3")));
+        bool = (BoolQueryBuilder) FilterContextOptimizer.optimizer(changes::add).optimize(scored, false);
+        assertEquals(2, bool.must().size());
+        assertEquals(1, ((BoolQueryBuilder) bool.filter().get(0)).filter().size());
+        assertEquals("query.bool.filter[0].bool.must[0]", changes.get(0).path());
+
+        changes.clear();
+        bool = (BoolQueryBuilder) FilterContextOptimizer.optimizer(changes::add).allowScoreShift(true).optimize(scored, false);
+        assertEquals(1, bool.must().size());
+        assertEquals(2, bool.filter().size());
+        assertEquals(FilterContextOptimizer.Reason.CONSTANT_SCORE_SHIFT, changes.get(1).reason());
+
+        // with coord, the score of a hit depends on how many clauses it matches
+        BoolQueryBuilder coord = QueryBuilders.boolQuery()
+                .must(QueryBuilders.rangeQuery("field2").gte(1))
+                .should(QueryBuilders.matchQuery("field1", "text"));
+        FilterContextOptimizer shifting = FilterContextOptimizer.optimizer().allowScoreShift(true);
+        assertSame(coord, shifting.optimize(coord, false));
+        bool = (BoolQueryBuilder) shifting.optimize(coord.disableCoord(true), false);
+        assertEquals(0, bool.must().size());
+        assertEquals(1, bool.filter().size());
+        assertTrue(bool.disableCoord());
+
+        // the coord factor of the parent also scales the score of nested must clauses
+        BoolQueryBuilder nested = QueryBuilders.boolQuery()
+                .must(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.rangeQuery("field2").gte(1))
+                        .must(QueryBuilders.matchQuery("field1", "text")))
+                .should(QueryBuilders.matchQuery("field3", "text"));
+        assertSame(nested, shifting.optimize(nested, false));
+        nested.disableCoord(true);
+        bool = (BoolQueryBuilder) shifting.optimize(nested, false);
+        assertEquals(1, ((BoolQueryBuilder) bool.must().get(0)).must().size());
+        assertEquals(1, ((BoolQueryBuilder) bool.must().get(0)).filter().size());
+    }
+}
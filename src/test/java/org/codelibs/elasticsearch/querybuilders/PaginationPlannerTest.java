@@ -0,0 +1,85 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.common.text.Text;
+import org.codelibs.elasticsearch.common.xcontent.XContentType;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.codelibs.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PaginationPlannerTest {
+
+    private static String expected(PaginationPlanner.Cursor cursor, Object... sortValues) {
+        return cursor.source().copyWithNewSearchAfter(sortValues).buildAsBytes(XContentType.JSON).utf8ToString();
+    }
+
+    @Test
+    public void test_plan() {
+        SearchSourceBuilder source = new SearchSourceBuilder().query(QueryBuilders.termQuery("user", "kimchy")).size(500)
+                .sort("timestamp", SortOrder.ASC).sort("name", SortOrder.DESC).sort("_uid", SortOrder.ASC)
+                .aggregation(AggregationBuilders.terms("users").field("user"));
+
+        List<PaginationPlanner.Cursor> cursors = PaginationPlanner.planner(source).slices(3).sliceField("date").plan();
+        assertEquals(3, cursors.size());
+        for (int i = 0; i < cursors.size(); i++) {
+            PaginationPlanner.Cursor cursor = cursors.get(i);
+            assertEquals(i, cursor.slice());
+            String first = cursor.first().utf8ToString();
+            assertTrue(first, first.contains("\"slice\":{\"field\":\"date\",\"id\":" + i + ",\"max\":3}"));
+            assertFalse(first, first.contains("search_after"));
+            assertEquals(cursor.source().buildAsBytes(XContentType.JSON).utf8ToString(), first);
+
+            assertEquals(expected(cursor, 1486000000000L, "user_1", "type#1"),
+                    cursor.next(1486000000000L, "user_1", "type#1").utf8ToString());
+            assertEquals(expected(cursor, -42, "quote \" back\\slash \n\t\u0001 \u00e9 \u2603 \ud83d\ude00", null),
+                    cursor.next(-42, "quote \" back\\slash \n\t\u0001 \u00e9 \u2603 \ud83d\ude00", null).utf8ToString());
+            assertEquals(expected(cursor, Long.MIN_VALUE, (short) 7, (byte) -1),
+                    cursor.next(Long.MIN_VALUE, (short) 7, (byte) -1).utf8ToString());
+            assertEquals(expected(cursor, 1.5d, 0.1f, new Text("text")),
+                    cursor.next(1.5d, 0.1f, new Text("text")).utf8ToString());
+            assertEquals(expected(cursor, true, false, ""), cursor.next(true, false, "").utf8ToString());
+            assertEquals(5, cursor.pages());
+        }
+        // the source is not modified
+        assertNull(source.slice());
+        assertNull(source.searchAfter());
+
+        PaginationPlanner.Cursor single = PaginationPlanner.planner(source).plan().get(0);
+        assertEquals(source.buildAsBytes(XContentType.JSON).utf8ToString(), single.first().utf8ToString());
+        assertEquals(expected(single, 1, "a", "b"), single.next(1, "a", "b").utf8ToString());
+    }
+
+    @Test
+    public void test_invalid() {
+        try {
+            PaginationPlanner.planner(new SearchSourceBuilder().size(10));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[sort] must be set to paginate with search_after.", e.getMessage());
+        }
+        try {
+            PaginationPlanner.planner(new SearchSourceBuilder().from(10).sort("_uid"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[from] must not be set to paginate with search_after.", e.getMessage());
+        }
+        PaginationPlanner.Cursor cursor = PaginationPlanner.planner(new SearchSourceBuilder().sort("_uid")).plan().get(0);
+        try {
+            cursor.next("a", "b");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[search_after] must have [1] values, one per sort, got [2].", e.getMessage());
+        }
+        try {
+            cursor.next(new Object());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Can't handle search_after field value of type"));
+        }
+    }
+}
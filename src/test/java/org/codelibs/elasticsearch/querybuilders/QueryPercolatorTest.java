@@ -0,0 +1,101 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class QueryPercolatorTest {
+    private static final FieldTypeLookup FIELD_TYPES = FieldTypeLookup.fromMapping("{\"properties\":{"
+            + "\"message\":{\"type\":\"text\"},"
+            + "\"level\":{\"type\":\"keyword\"},"
+            + "\"status\":{\"type\":\"integer\"},"
+            + "\"timestamp\":{\"type\":\"date\"},"
+            + "\"host\":{\"properties\":{\"ip\":{\"type\":\"ip\"}}}"
+            + "}}");
+
+    private static Map<String, Object> event(String message, String level, int status, String ip) {
+        Map<String, Object> event = new HashMap<>();
+        event.put("message", message);
+        event.put("level", level);
+        event.put("status", status);
+        if (ip != null) {
+            event.put("host", Collections.singletonMap("ip", ip));
+        }
+        return event;
+    }
+
+    @Test
+    public void test_match() {
+        QueryPercolator percolator = QueryPercolator.percolator(FIELD_TYPES)
+                .register("errors", QueryBuilders.termQuery("level", "ERROR"))
+                .register("timeouts", QueryBuilders.matchQuery("message", "timeout exceeded"))
+                .register("server", QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.rangeQuery("status").gte(500))
+                        .mustNot(QueryBuilders.termQuery("level", "DEBUG")))
+                .register("phrase", QueryBuilders.matchPhraseQuery("message", "connection reset"))
+                .register("subnet", QueryBuilders.termQuery("host.ip", "10.0.0.0/8"))
+                .register("located", QueryBuilders.existsQuery("host"))
+                .register("unmapped", QueryBuilders.existsQuery("tag"));
+        assertEquals(7, percolator.size());
+
+        assertEquals(Arrays.asList("errors", "timeouts", "server", "subnet", "located"),
+                percolator.match(event("Read timeout on upstream", "ERROR", 504, "10.1.2.3")));
+        assertEquals(Arrays.asList("phrase", "located"),
+                percolator.match(event("Connection reset by peer", "INFO", 200, "192.168.0.1")));
+        assertEquals(Collections.emptyList(),
+                percolator.match(event("connection was reset", "DEBUG", 503, null)));
+
+        // exists on a field that is not mapped matches nothing, like on a cluster
+        Map<String, Object> tagged = event("ok", "INFO", 200, null);
+        tagged.put("tag", Arrays.asList("a", "b"));
+        assertEquals(Collections.emptyList(), percolator.match(tagged));
+
+        assertTrue(percolator.unregister("errors"));
+        assertFalse(percolator.unregister("errors"));
+        assertEquals(Arrays.asList("timeouts", "server", "subnet", "located"),
+                percolator.match(event("Read timeout on upstream", "ERROR", 504, "10.1.2.3")));
+    }
+
+    @Test
+    public void test_matchBatch() {
+        QueryPercolator percolator = QueryPercolator.percolator(FIELD_TYPES).parallelism(3);
+        for (int i = 0; i < 100; i++) {
+            percolator.register("status" + i, QueryBuilders.termQuery("status", i));
+        }
+        percolator.register("all", QueryBuilders.rangeQuery("status").gte(0));
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            events.add(event("message " + i, "INFO", i * 10, "127.0.0.1"));
+        }
+        List<List<String>> matches = percolator.matchBatch(events);
+        assertEquals(10, matches.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Arrays.asList("status" + i * 10, "all"), matches.get(i));
+            assertEquals(matches.get(i), percolator.match(events.get(i)));
+        }
+    }
+
+    @Test
+    public void test_registerNow() {
+        long[] now = { 1_000_000_000_000L };
+        QueryPercolator percolator = QueryPercolator.percolator(FIELD_TYPES).clock(() -> now[0])
+                .register("early", QueryBuilders.rangeQuery("timestamp").gte("now-1h"));
+        now[0] += 2 * 3_600_000L;
+        percolator.register("late", QueryBuilders.rangeQuery("timestamp").gte("now-1h"));
+
+        Map<String, Object> event = event("ok", "INFO", 200, null);
+        event.put("timestamp", 1_000_000_000_000L + 1_800_000L);
+        assertEquals(Collections.singletonList("early"), percolator.match(event));
+        event.put("timestamp", now[0]);
+        assertEquals(Arrays.asList("early", "late"), percolator.match(event));
+    }
+}
@@ -0,0 +1,94 @@
+package org.codelibs.elasticsearch.querybuilders;
+
+import org.codelibs.elasticsearch.ElasticsearchException;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class RequestPipelineTest {
+
+    @Test
+    public void test_run() {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        AtomicInteger submitted = new AtomicInteger();
+        try {
+            RequestPipeline<Integer> pipeline = RequestPipeline.pipeline((Integer id) -> new SearchSourceBuilder()
+                    .query(QueryBuilders.boolQuery().must(QueryBuilders.termQuery("id", id))).size(0))
+                    .optimizer(FilterContextOptimizer.optimizer()::optimize).header(id -> "{\"index\":\"index" + id % 2 + "\"}")
+                    .executor(task -> {
+                        submitted.incrementAndGet();
+                        executor.execute(task);
+                    }).batchSize(7).maxPendingBatches(3);
+
+            List<Integer> inputs = new ArrayList<>();
+            StringBuilder body = new StringBuilder();
+            AtomicInteger delivered = new AtomicInteger();
+            long count = pipeline.run(IntStream.range(0, 100).boxed(), batch -> {
+                // the caller stops reading inputs while the window of pending batches is full
+                assertTrue(submitted.get() - delivered.incrementAndGet() < 3);
+                assertTrue(batch.size() <= 7);
+                inputs.addAll(batch.inputs());
+                body.append(batch.body().utf8ToString());
+            });
+            assertEquals(100, count);
+            assertEquals(15, delivered.get());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(Integer.valueOf(i), inputs.get(i));
+            }
+            String[] lines = body.toString().split("\n");
+            assertEquals(200, lines.length);
+            assertEquals("{\"index\":\"index1\"}", lines[2]);
+            assertEquals("{\"size\":0,\"query\":{\"bool\":{\"filter\":[{\"term\":{\"id\":{\"value\":1,\"boost\":1.0}}}],"
+                    + "\"disable_coord\":false,\"adjust_pure_negative\":true,\"boost\":1.0}}}", lines[3]);
+
+            RequestPipeline.Stats stats = pipeline.stats();
+            assertEquals(100, stats.requests());
+            assertEquals(15, stats.batches());
+            assertEquals(100, stats.stage(RequestPipeline.Stage.BUILD).count());
+            assertEquals(100, stats.stage(RequestPipeline.Stage.SERIALIZE).count());
+            assertEquals(15, stats.stage(RequestPipeline.Stage.SINK).count());
+            assertTrue(stats.stage(RequestPipeline.Stage.OPTIMIZE).maxNanos() > 0);
+            assertTrue(stats.requestsPerSecond() > 0);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void test_failures() {
+        RequestPipeline<Integer> pipeline = RequestPipeline.pipeline((Integer id) -> {
+            if (id % 10 == 3) {
+                throw new IllegalArgumentException("invalid id " + id);
+            }
+            return new SearchSourceBuilder().query(QueryBuilders.termQuery("id", id));
+        }).batchSize(10).header(id -> id == 25 ? "{\n}" : "{}");
+
+        try {
+            pipeline.run(IntStream.range(0, 30).boxed(), batch -> {});
+            fail();
+        } catch (ElasticsearchException e) {
+            assertEquals("Failed to process input [3]", e.getMessage());
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        List<Integer> failed = new ArrayList<>();
+        List<Integer> sent = new ArrayList<>();
+        long count = pipeline.onFailure((id, e) -> failed.add(id)).run(IntStream.range(0, 30).boxed(), batch -> {
+            sent.addAll(batch.inputs());
+            assertEquals(2 * batch.size(), batch.body().utf8ToString().split("\n").length);
+        });
+        assertEquals(26, count);
+        assertEquals(26, sent.size());
+        assertEquals("[3, 13, 23, 25]", failed.toString());
+        assertEquals(5, pipeline.stats().failures());
+    }
+}
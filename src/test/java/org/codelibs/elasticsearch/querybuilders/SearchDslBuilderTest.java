@@ -1,10 +1,15 @@
 package org.codelibs.elasticsearch.querybuilders;
 
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
 import org.codelibs.elasticsearch.index.query.QueryBuilders;
 import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.sort.FieldSortBuilder;
+import org.codelibs.elasticsearch.search.sort.SortBuilders;
 import org.codelibs.elasticsearch.search.sort.SortOrder;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.*;
 
 public class SearchDslBuilderTest {
@@ -17,4 +22,76 @@ public class SearchDslBuilderTest {
                 AggregationBuilders.terms("test").field("field1")
             ).from(0).size(20).sort("field1", SortOrder.DESC).build());
     }
+
+    @Test
+    public void test_snapshot() throws InterruptedException {
+        SearchDslBuilder builder = SearchDslBuilder.builder().query(QueryBuilders.termQuery("field1", "value1"))
+                .aggregation(AggregationBuilders.terms("test").field("field1")).size(20).sort("field2", SortOrder.ASC);
+        SearchDslSnapshot template = builder.snapshot();
+        String expected = builder.build();
+        // later changes to the builder do not affect the snapshot
+        builder.from(10).sort("field3").query(QueryBuilders.matchAllQuery());
+        assertEquals(expected, template.build());
+
+        SearchDslSnapshot page = template.withFrom(40).withSearchAfter(1L, "a");
+        assertEquals(template.query(), page.query());
+        assertEquals(40, page.from());
+        assertEquals(20, page.size());
+        assertArrayEquals(new Object[] { 1L, "a" }, page.searchAfter());
+        assertNull(template.searchAfter());
+        assertEquals(-1, template.from());
+        assertEquals(SearchDslBuilder.builder().query(QueryBuilders.termQuery("field1", "value1"))
+                .aggregation(AggregationBuilders.terms("test").field("field1")).from(40).size(20).sort("field2", SortOrder.ASC)
+                .searchAfter(new Object[] { 1L, "a" }).build(), page.build());
+
+        SearchDslSnapshot variant = template.withQuery(QueryBuilders.matchAllQuery()).withSort(SortBuilders.scoreSort())
+                .withAggregation(AggregationBuilders.max("max").field("field4")).withFromSize(0, 5);
+        assertEquals(SearchDslBuilder.builder().query(QueryBuilders.matchAllQuery())
+                .aggregation(AggregationBuilders.terms("test").field("field1")).aggregation(AggregationBuilders.max("max").field("field4"))
+                .from(0).size(5).sort(SortBuilders.scoreSort()).build(), variant.build());
+        String replaced = template.withAggregations(AggregationBuilders.min("min").field("field4")).withSort().build();
+        assertTrue(replaced.contains("\"min\""));
+        assertFalse(replaced.contains("\"test\""));
+        assertFalse(replaced.contains("\"sort\""));
+        assertTrue(template.withSort().sorts().isEmpty());
+        assertEquals(expected, template.build());
+
+        // builders given to or returned by a snapshot can be modified without affecting it
+        BoolQueryBuilder bool = QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("field1", "value1"));
+        SearchDslSnapshot filtered = template.withQuery(bool);
+        String filteredJson = filtered.build();
+        bool.filter(QueryBuilders.termQuery("field2", "value2"));
+        ((BoolQueryBuilder) filtered.query()).filter(QueryBuilders.termQuery("field3", "value3"));
+        ((FieldSortBuilder) filtered.sorts().get(0)).order(SortOrder.DESC);
+        assertEquals(filteredJson, filtered.build());
+
+        SearchDslBuilder copy = variant.toBuilder().size(100);
+        assertEquals(5, variant.size());
+        assertEquals(100, copy.searchSourceBuilder.size());
+
+        // variants derived concurrently from the same template
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int from = t * 100;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 200; i++) {
+                        SearchDslSnapshot derived = template.withFrom(from + i).withSearchAfter((long) i);
+                        assertEquals(from + i, derived.from());
+                        assertEquals((long) i, derived.searchAfter()[0]);
+                        assertTrue(derived.build().contains("\"from\":" + (from + i) + ","));
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(expected, template.build());
+    }
 }
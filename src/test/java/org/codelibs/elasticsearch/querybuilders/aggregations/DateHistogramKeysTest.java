@@ -0,0 +1,87 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.rounding.DateTimeUnit;
+import org.codelibs.elasticsearch.common.rounding.Rounding;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DateHistogramKeysTest {
+    private static final long HOUR = 60L * 60 * 1000;
+
+    // 2017-03-01T00:00:00Z
+    private static final long START = 1488326400000L;
+
+    private static long[] keys(Histogram histogram) {
+        List<? extends Histogram.Bucket> buckets = histogram.getBuckets();
+        long[] keys = new long[buckets.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = ((DateTime) buckets.get(i).getKey()).getMillis();
+        }
+        return keys;
+    }
+
+    @Test
+    public void test_keys() {
+        long[] timestamps = new long[500];
+        for (int i = 0; i < timestamps.length; i++) {
+            // a few days a month, across a daylight saving time change
+            timestamps[i] = START + (i % 50) * 24 * HOUR + i * 7;
+        }
+        ColumnarBatch batch = ColumnarBatch.builder(timestamps.length).addDates("timestamp", timestamps, null, null).build();
+        for (DateHistogramInterval interval : new DateHistogramInterval[] { DateHistogramInterval.DAY, DateHistogramInterval.hours(5),
+                DateHistogramInterval.WEEK, DateHistogramInterval.MONTH }) {
+            DateHistogramAggregationBuilder builder = AggregationBuilders.dateHistogram("histogram").field("timestamp")
+                    .dateHistogramInterval(interval).timeZone(DateTimeZone.forID("Europe/Paris")).minDocCount(0)
+                    .extendedBounds(new ExtendedBounds("2017-02-20", "2017-05-01"));
+            Histogram histogram = LocalAggregationEngine.engine().execute(batch, Collections.singletonList(builder)).get("histogram");
+            DateHistogramKeys keys = DateHistogramKeys.of(builder);
+            long[] expected = keys(histogram);
+            assertArrayEquals(expected, keys.keys(new long[] { keys.key(timestamps[0]), keys.key(timestamps[49]) }));
+
+            long[] rounded = new long[timestamps.length];
+            keys.round(timestamps, rounded);
+            for (int i = 0; i < timestamps.length; i++) {
+                assertEquals(keys.key(timestamps[i]), rounded[i]);
+                assertTrue(rounded[i] <= timestamps[i] && timestamps[i] < keys.nextKey(rounded[i]));
+            }
+        }
+        DateHistogramKeys keys = DateHistogramKeys.of(Rounding.builder(DateTimeUnit.DAY_OF_MONTH).build(), HOUR);
+        assertArrayEquals(new long[] { START - 23 * HOUR, START + HOUR, START + 25 * HOUR }, keys.keys(START, START + 25 * HOUR));
+        assertEquals(0, keys.keys(new long[0]).length);
+    }
+
+    @Test
+    public void test_fill() {
+        DateHistogramKeys keys = DateHistogramKeys.of(Rounding.builder(DateTimeUnit.HOUR_OF_DAY).build(), 0);
+        long[] first = { START + HOUR, START + 3 * HOUR };
+        long[] second = { START, START + 3 * HOUR, START + 5 * HOUR };
+        long[] filledKeys = keys.keys(first, second);
+        assertEquals(6, filledKeys.length);
+        assertArrayEquals(new long[] { 0, 10, 0, 30, 0, 0 }, keys.fill(first, new long[] { 10, 30 }, filledKeys));
+        assertArrayEquals(new double[] { 1, Double.NaN, Double.NaN, 3, Double.NaN, 5 },
+                keys.fill(second, new double[] { 1, 3, 5 }, filledKeys, Double.NaN), 0.0);
+        try {
+            keys.fill(new long[] { START + 1 }, new long[] { 1 }, filledKeys);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Key [" + (START + 1) + "] is not the key of a bucket of the histogram", e.getMessage());
+        }
+        try {
+            keys.fill(new long[] { START + HOUR, START }, new long[] { 1, 2 }, filledKeys);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[keys] must be in ascending order: " + (START + HOUR) + " >= " + START, e.getMessage());
+        }
+    }
+}
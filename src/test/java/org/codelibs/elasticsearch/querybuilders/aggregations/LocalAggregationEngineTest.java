@@ -0,0 +1,224 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.index.mapper.FieldTypeLookup;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filters.Filters;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.range.Range;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.codelibs.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.Sum;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class LocalAggregationEngineTest {
+    private static final FieldTypeLookup FIELD_TYPES = FieldTypeLookup.fromMapping("{\"properties\":{"
+            + "\"level\":{\"type\":\"keyword\"},"
+            + "\"status\":{\"type\":\"integer\"},"
+            + "\"latency\":{\"type\":\"double\"},"
+            + "\"timestamp\":{\"type\":\"date\"}"
+            + "}}");
+
+    private static final String[] LEVELS = { "DEBUG", "INFO", "WARN", "ERROR" };
+
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static final int NUM_DOCS = 1000;
+
+    private static ColumnarBatch events() {
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (int i = 0; i < NUM_DOCS; i++) {
+            Map<String, Object> event = new HashMap<>();
+            event.put("level", LEVELS[i * i % LEVELS.length]);
+            event.put("status", 200 + i % 7 * 50);
+            if (i % 10 != 0) {
+                event.put("latency", i / 10.0);
+            }
+            // 2017-01-01, 2017-01-02, 2017-01-04 and 2017-01-05
+            event.put("timestamp", 1483228800000L + DAY * (i % 4 < 2 ? i % 4 : i % 4 + 1) + i);
+            events.add(event);
+        }
+        return ColumnarBatch.fromDocuments(FIELD_TYPES, events);
+    }
+
+    @Test
+    public void test_terms() {
+        ColumnarBatch batch = events();
+        List<AggregationBuilder> aggregations = Collections.singletonList(AggregationBuilders.terms("levels").field("level")
+                .size(3).subAggregation(AggregationBuilders.sum("status").field("status")));
+        for (int partitions : new int[] { 1, 4 }) {
+            InternalAggregations result = LocalAggregationEngine.engine().partitions(partitions).execute(batch, aggregations);
+            Terms levels = result.get("levels");
+            Map<String, Long> counts = new HashMap<>();
+            Map<String, Double> sums = new HashMap<>();
+            for (int i = 0; i < NUM_DOCS; i++) {
+                counts.merge(LEVELS[i * i % LEVELS.length], 1L, Long::sum);
+                sums.merge(LEVELS[i * i % LEVELS.length], (double) (200 + i % 7 * 50), Double::sum);
+            }
+            // squares are 0 or 1 modulo 4: DEBUG and INFO only
+            assertEquals(2, counts.size());
+            assertEquals(2, levels.getBuckets().size());
+            for (Terms.Bucket bucket : levels.getBuckets()) {
+                assertEquals(counts.get(bucket.getKeyAsString()).longValue(), bucket.getDocCount());
+                Sum sum = bucket.getAggregations().get("status");
+                assertEquals(sums.get(bucket.getKeyAsString()), sum.getValue(), 0.0001);
+            }
+            assertEquals(0, levels.getSumOfOtherDocCounts());
+        }
+
+        InternalAggregations result = LocalAggregationEngine.engine().partitions(4).execute(batch,
+                Collections.singletonList(AggregationBuilders.terms("statuses").field("status").size(2)));
+        Terms statuses = result.get("statuses");
+        assertEquals(2, statuses.getBuckets().size());
+        // 1000 = 7 * 142 + 6, so every status but the last one has 143 documents
+        assertEquals(143, statuses.getBuckets().get(0).getDocCount());
+        assertEquals(200L, statuses.getBuckets().get(0).getKey());
+        assertEquals(250L, statuses.getBuckets().get(1).getKey());
+        assertEquals(NUM_DOCS - 2 * 143, statuses.getSumOfOtherDocCounts());
+    }
+
+    @Test
+    public void test_histograms() {
+        ColumnarBatch batch = events();
+        List<AggregationBuilder> aggregations = Arrays.asList(
+                AggregationBuilders.histogram("latency").field("latency").interval(25),
+                AggregationBuilders.dateHistogram("days").field("timestamp").dateHistogramInterval(DateHistogramInterval.DAY)
+                        .minDocCount(0).extendedBounds(new ExtendedBounds("2016-12-31", "2017-01-06")));
+        InternalAggregations result = LocalAggregationEngine.engine().partitions(3).execute(batch, aggregations);
+        assertEquals("latency", result.asList().get(0).getName());
+
+        Histogram latency = result.get("latency");
+        assertEquals(4, latency.getBuckets().size());
+        assertEquals(0.0, latency.getBuckets().get(0).getKey());
+        assertEquals(225, latency.getBuckets().get(0).getDocCount());
+        assertEquals(75.0, latency.getBuckets().get(3).getKey());
+        assertEquals(225, latency.getBuckets().get(3).getDocCount());
+
+        Histogram days = result.get("days");
+        assertEquals(7, days.getBuckets().size());
+        long[] expected = { 0, 250, 250, 0, 250, 250, 0 };
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], days.getBuckets().get(i).getDocCount());
+        }
+        assertEquals("2017-01-03T00:00:00.000Z", days.getBuckets().get(3).getKeyAsString());
+    }
+
+    @Test
+    public void test_rangeAndFilters() {
+        ColumnarBatch batch = events();
+        List<AggregationBuilder> aggregations = Arrays.asList(
+                AggregationBuilders.range("latency").field("latency").addUnboundedTo(10).addRange(5, 50).addUnboundedFrom(50),
+                AggregationBuilders.filters("levels", QueryBuilders.termQuery("level", "DEBUG"),
+                        QueryBuilders.rangeQuery("status").gte(400)).otherBucket(true));
+        InternalAggregations result = LocalAggregationEngine.engine().partitions(2).execute(batch, aggregations);
+
+        Range latency = result.get("latency");
+        assertEquals(3, latency.getBuckets().size());
+        assertEquals("*-10.0", latency.getBuckets().get(0).getKeyAsString());
+        assertEquals(90, latency.getBuckets().get(0).getDocCount());
+        assertEquals(405, latency.getBuckets().get(1).getDocCount());
+        assertEquals(450, latency.getBuckets().get(2).getDocCount());
+
+        Filters levels = result.get("levels");
+        assertEquals(3, levels.getBuckets().size());
+        long debug = 0, server = 0, other = 0;
+        for (int i = 0; i < NUM_DOCS; i++) {
+            boolean isDebug = i % 2 == 0;
+            boolean isServer = 200 + i % 7 * 50 >= 400;
+            debug += isDebug ? 1 : 0;
+            server += isServer ? 1 : 0;
+            other += isDebug || isServer ? 0 : 1;
+        }
+        assertEquals(debug, levels.getBuckets().get(0).getDocCount());
+        assertEquals(server, levels.getBuckets().get(1).getDocCount());
+        assertEquals("_other_", levels.getBuckets().get(2).getKeyAsString());
+        assertEquals(other, levels.getBuckets().get(2).getDocCount());
+    }
+
+    @Test
+    public void test_metrics() {
+        ColumnarBatch batch = events();
+        List<AggregationBuilder> aggregations = Arrays.asList(
+                AggregationBuilders.stats("latency").field("latency"),
+                AggregationBuilders.cardinality("levels").field("level"),
+                AggregationBuilders.cardinality("statuses").field("status"),
+                AggregationBuilders.percentiles("percentiles").field("latency").percentiles(50, 99));
+        InternalAggregations result = LocalAggregationEngine.engine().partitions(4)
+                .execute(batch, QueryBuilders.termQuery("level", "INFO"), aggregations);
+
+        // odd documents, of which those with a latency are not multiples of 10
+        Stats latency = result.get("latency");
+        assertEquals(500, latency.getCount());
+        assertEquals(0.1, latency.getMin(), 0.0);
+        assertEquals(99.9, latency.getMax(), 0.0);
+        assertEquals(50.0, latency.getAvg(), 0.0001);
+
+        Cardinality levels = result.get("levels");
+        assertEquals(1, levels.getValue());
+        Cardinality statuses = result.get("statuses");
+        assertEquals(7, statuses.getValue());
+
+        Percentiles percentiles = result.get("percentiles");
+        assertEquals(50.0, percentiles.percentile(50), 1.0);
+        assertEquals(99.0, percentiles.percentile(99), 1.0);
+    }
+
+    @Test
+    public void test_partitions() {
+        ColumnarBatch batch = events();
+        List<AggregationBuilder> aggregations = Collections.singletonList(AggregationBuilders.terms("statuses").field("status")
+                .size(2).shardSize(2));
+        // the partitions do not depend on the executor, so neither do truncated terms
+        Terms expected = LocalAggregationEngine.engine().partitions(LocalAggregationEngine.DEFAULT_PARTITIONS)
+                .execute(batch, aggregations).get("statuses");
+        Terms actual = LocalAggregationEngine.engine().executor(Runnable::run).execute(batch, aggregations).get("statuses");
+        assertEquals(expected.getDocCountError(), actual.getDocCountError());
+        assertEquals(expected.getSumOfOtherDocCounts(), actual.getSumOfOtherDocCounts());
+        assertEquals(expected.getBuckets().size(), actual.getBuckets().size());
+        for (int i = 0; i < expected.getBuckets().size(); i++) {
+            assertEquals(expected.getBuckets().get(i).getKey(), actual.getBuckets().get(i).getKey());
+            assertEquals(expected.getBuckets().get(i).getDocCount(), actual.getBuckets().get(i).getDocCount());
+        }
+
+        try {
+            LocalAggregationEngine.engine().partitions(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[partitions] must be greater than 0: 0", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_unsupported() {
+        ColumnarBatch batch = events();
+        try {
+            LocalAggregationEngine.engine().execute(batch,
+                    Collections.singletonList(AggregationBuilders.count("count").field("status")));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Aggregation [count] of type [value_count] is not supported by local aggregations", e.getMessage());
+        }
+        try {
+            LocalAggregationEngine.engine().execute(batch,
+                    Collections.singletonList(AggregationBuilders.histogram("levels").field("level").interval(1)));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("[levels] requires a numeric field: level", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.PipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.InternalHistogram;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.AbstractPipelineAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.BucketHelpers.GapPolicy;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.InternalSimpleValue;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.derivative.InternalDerivative;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.EwmaModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.HoltLinearModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.HoltWintersModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.LinearModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.MovAvgModel;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.movavg.models.SimpleModel;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LocalPipelineEngineTest {
+    private static final long HOUR = 60L * 60 * 1000;
+
+    private static double[] values(int count) {
+        Random random = new Random(0);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            // a seasonal series with empty buckets
+            values[i] = i % 11 == 5 ? Double.NaN : 100 + 10 * Math.sin(i / 4.0) + i + random.nextInt(5);
+        }
+        return values;
+    }
+
+    /**
+     * Runs the pipeline aggregator over a histogram of the values, and returns the value it adds to each bucket.
+     */
+    private static double[] reduce(PipelineAggregationBuilder pipeline, double[] values) throws IOException {
+        List<InternalHistogram.Bucket> buckets = new ArrayList<>();
+        for (int i = 0; i < values.length; i++) {
+            InternalSum sum = new InternalSum("sum", Double.isNaN(values[i]) ? 0 : values[i], DocValueFormat.RAW,
+                    Collections.emptyList(), null);
+            buckets.add(new InternalHistogram.Bucket(i * HOUR, Double.isNaN(values[i]) ? 0 : 1, false, DocValueFormat.RAW,
+                    new InternalAggregations(Collections.singletonList(sum))));
+        }
+        InternalHistogram histogram = new InternalHistogram("histogram", buckets, Histogram.Order.KEY_ASC, 0,
+                new InternalHistogram.EmptyBucketInfo(HOUR, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, InternalAggregations.EMPTY),
+                DocValueFormat.RAW, false, Collections.emptyList(), null);
+        InternalHistogram reduced = (InternalHistogram) ((AbstractPipelineAggregationBuilder<?>) pipeline).create().reduce(histogram,
+                new InternalAggregation.ReduceContext(BigArrays.NON_RECYCLING_INSTANCE));
+        double[] result = new double[reduced.getBuckets().size()];
+        for (int i = 0; i < result.length; i++) {
+            InternalAggregation value = (InternalAggregation) reduced.getBuckets().get(i).getAggregations().get(pipeline.getName());
+            if (value instanceof InternalDerivative) {
+                result[i] = ((InternalDerivative) value).normalizedValue();
+            } else {
+                result[i] = value == null ? Double.NaN : ((InternalSimpleValue) value).value();
+            }
+        }
+        return result;
+    }
+
+    private static void assertSameValues(PipelineAggregationBuilder pipeline, double[] values) throws IOException {
+        long[] keys = new long[values.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = i * HOUR;
+        }
+        assertArrayEquals(reduce(pipeline, values), LocalPipelineEngine.engine().evaluate(pipeline, keys, values), 0.0);
+    }
+
+    @Test
+    public void test_evaluate() throws IOException {
+        double[] values = values(200);
+        for (GapPolicy gapPolicy : GapPolicy.values()) {
+            for (MovAvgModel model : new MovAvgModel[] { new SimpleModel(), new LinearModel(), new EwmaModel(0.4),
+                    new HoltLinearModel(0.5, 0.2), new HoltWintersModel(0.4, 0.1, 0.6, 12, HoltWintersModel.SeasonalityType.ADDITIVE, false),
+                    new HoltWintersModel(0.4, 0.1, 0.6, 12, HoltWintersModel.SeasonalityType.MULTIPLICATIVE, true) }) {
+                assertSameValues(PipelineAggregatorBuilders.movingAvg("movavg", "sum").window(30).model(model).minimize(false)
+                        .predict(5).gapPolicy(gapPolicy), values);
+            }
+            assertSameValues(PipelineAggregatorBuilders.derivative("derivative", "sum").gapPolicy(gapPolicy), values);
+            assertSameValues(PipelineAggregatorBuilders.derivative("derivative", "sum").unit("1m").gapPolicy(gapPolicy), values);
+            assertSameValues(PipelineAggregatorBuilders.diff("diff", "sum").lag(7).gapPolicy(gapPolicy), values);
+        }
+        assertSameValues(PipelineAggregatorBuilders.cumulativeSum("sum", "sum"), values);
+        // predictions past the last bucket
+        assertSameValues(PipelineAggregatorBuilders.movingAvg("movavg", "sum").window(5).predict(10), new double[] { 1, 2, 3, Double.NaN });
+        assertSameValues(PipelineAggregatorBuilders.movingAvg("movavg", "sum").window(5).predict(2), new double[0]);
+    }
+
+    @Test
+    public void test_costs() {
+        double[] values = values(200);
+        LocalPipelineEngine engine = LocalPipelineEngine.engine().parallelism(4);
+        List<MovAvgModel> models = new ArrayList<>();
+        for (int i = 0; i <= 10; i++) {
+            models.add(new EwmaModel(i / 10.0));
+        }
+        double[] costs = engine.costs(values, GapPolicy.SKIP, 20, models);
+        for (int i = 0; i < costs.length; i++) {
+            assertEquals(LocalPipelineEngine.engine().parallelism(1).cost(values, GapPolicy.SKIP, 20, models.get(i)), costs[i], 0.0);
+        }
+        assertTrue(Double.isNaN(engine.cost(values, GapPolicy.SKIP, 100, models.get(0))));
+
+        MovAvgModel model = new HoltWintersModel(0.1, 0.1, 0.1, 12, HoltWintersModel.SeasonalityType.ADDITIVE, false);
+        MovAvgModel minimized = engine.minimize(values, GapPolicy.INSERT_ZEROS, 48, model, 4);
+        assertTrue(engine.cost(values, GapPolicy.INSERT_ZEROS, 48, minimized) <= engine.cost(values, GapPolicy.INSERT_ZEROS, 48, model));
+        try {
+            engine.minimize(values, GapPolicy.SKIP, 20, new SimpleModel(), 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("The [simple] model cannot be minimized.", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.codelibs.elasticsearch.querybuilders.aggregations;
+
+import org.codelibs.elasticsearch.common.xcontent.ToXContent;
+import org.codelibs.elasticsearch.common.xcontent.XContentBuilder;
+import org.codelibs.elasticsearch.common.xcontent.json.JsonXContent;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.codelibs.elasticsearch.search.aggregations.metrics.stats.Stats;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MultiClusterReducerTest {
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    private static ColumnarBatch cluster(int offset, int numDocs) {
+        String[] hosts = new String[numDocs];
+        long[] bytes = new long[numDocs];
+        long[] timestamps = new long[numDocs];
+        for (int i = 0; i < numDocs; i++) {
+            int doc = offset + i;
+            hosts[i] = "host-" + doc % 13;
+            bytes[i] = doc % 100;
+            timestamps[i] = 1483228800000L + DAY * (doc % 5);
+        }
+        return ColumnarBatch.builder(numDocs).addKeywords("host", hosts).addLongs("bytes", bytes, null)
+                .addDates("timestamp", timestamps, null, null).build();
+    }
+
+    private static String render(InternalAggregations aggregations) throws IOException {
+        XContentBuilder builder = JsonXContent.contentBuilder();
+        builder.startObject();
+        aggregations.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return builder.endObject().string();
+    }
+
+    private static String render(InternalAggregation aggregation) throws IOException {
+        return render(new InternalAggregations(Collections.singletonList(aggregation)));
+    }
+
+    @Test
+    public void test_merge() throws IOException {
+        List<AggregationBuilder> aggregations = Arrays.asList(
+                AggregationBuilders.terms("hosts").field("host").size(20)
+                        .subAggregation(AggregationBuilders.stats("bytes").field("bytes")),
+                AggregationBuilders.dateHistogram("days").field("timestamp").dateHistogramInterval(DateHistogramInterval.DAY)
+                        .subAggregation(AggregationBuilders.sum("bytes").field("bytes")),
+                AggregationBuilders.range("bytes").field("bytes").addUnboundedTo(10).addRange(10, 90).addUnboundedFrom(90),
+                AggregationBuilders.filters("large", QueryBuilders.rangeQuery("bytes").gte(50)).otherBucket(true),
+                AggregationBuilders.max("max").field("bytes"));
+        LocalAggregationEngine engine = LocalAggregationEngine.engine().partitions(1);
+        List<String> responses = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            responses.add(render(engine.execute(cluster(i * 1000, 1000), aggregations)));
+        }
+
+        InternalAggregations merged = MultiClusterReducer.reducer(aggregations).merge(responses);
+        InternalAggregations expected = engine.execute(cluster(0, 3000), aggregations);
+        assertEquals(5, merged.asList().size());
+        for (AggregationBuilder aggregation : aggregations) {
+            assertEquals(render((InternalAggregation) expected.get(aggregation.getName())),
+                    render((InternalAggregation) merged.get(aggregation.getName())));
+        }
+        Stats bytes = ((Terms) merged.get("hosts")).getBucketByKey("host-0").getAggregations().get("bytes");
+        assertEquals(231, bytes.getCount());
+    }
+
+    @Test
+    public void test_docCountError() {
+        List<AggregationBuilder> aggregations = Collections.singletonList(
+                AggregationBuilders.terms("tags").field("tag").size(2).showTermDocCountError(true));
+        MultiClusterReducer reducer = MultiClusterReducer.reducer(aggregations);
+        InternalAggregations merged = reducer.merge(Arrays.asList(
+                "{\"aggregations\":{\"tags\":{\"doc_count_error_upper_bound\":0,\"sum_other_doc_count\":5,\"buckets\":["
+                        + "{\"key\":\"a\",\"doc_count\":10},{\"key\":\"b\",\"doc_count\":8}]}}}",
+                "{\"aggregations\":{\"tags\":{\"doc_count_error_upper_bound\":1,\"sum_other_doc_count\":4,\"buckets\":["
+                        + "{\"key\":\"c\",\"doc_count\":9,\"doc_count_error_upper_bound\":0},"
+                        + "{\"key\":\"a\",\"doc_count\":7,\"doc_count_error_upper_bound\":1}]}}}",
+                "{\"hits\":{\"total\":0}}"));
+        Terms tags = merged.get("tags");
+        assertEquals(2, tags.getBuckets().size());
+        assertEquals("a", tags.getBuckets().get(0).getKeyAsString());
+        assertEquals(17, tags.getBuckets().get(0).getDocCount());
+        // a is in the top buckets of both clusters, so it is only missing the error of the second one
+        assertEquals(1, tags.getBuckets().get(0).getDocCountError());
+        assertEquals("c", tags.getBuckets().get(1).getKeyAsString());
+        assertEquals(9, tags.getBuckets().get(1).getDocCount());
+        // c may have up to 8 documents in the first cluster
+        assertEquals(8, tags.getBuckets().get(1).getDocCountError());
+        // the last bucket of the first cluster, plus the last bucket and the error of the second one
+        assertEquals(8 + 7 + 1, tags.getDocCountError());
+        assertEquals(5 + 4 + 8, tags.getSumOfOtherDocCounts());
+    }
+
+    @Test
+    public void test_unsupported() {
+        try {
+            MultiClusterReducer.reducer(Collections.singletonList(AggregationBuilders.terms("hosts").field("host")
+                    .subAggregation(AggregationBuilders.avg("bytes").field("bytes"))));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Aggregation [bytes] of type [avg] cannot be reduced across responses", e.getMessage());
+        }
+    }
+}
@@ -1,15 +1,28 @@
 package org.codelibs.elasticsearch.search.aggregations;
 
 import org.codelibs.elasticsearch.common.geo.GeoPoint;
+import org.codelibs.elasticsearch.common.io.stream.WriteableCopier;
 import org.codelibs.elasticsearch.common.xcontent.XContentHelper;
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
 import org.codelibs.elasticsearch.index.query.QueryBuilders;
 import org.codelibs.elasticsearch.script.Script;
+import org.codelibs.elasticsearch.search.aggregations.bucket.filter.FilterAggregationBuilder;
 import org.codelibs.elasticsearch.search.aggregations.bucket.filters.FiltersAggregator;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.DateHistogramInterval;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.ExtendedBounds;
+import org.codelibs.elasticsearch.search.aggregations.bucket.histogram.Histogram;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.TermsAggregationBuilder;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.support.IncludeExclude;
+import org.codelibs.elasticsearch.search.aggregations.pipeline.PipelineAggregatorBuilders;
 import org.codelibs.elasticsearch.search.builder.SearchSourceBuilder;
 import org.codelibs.elasticsearch.search.sort.SortOrder;
+import org.joda.time.DateTimeZone;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.junit.Assert.*;
 
@@ -21,6 +34,60 @@ public class AggregationBuildersTest {
         assertEquals("{\"query\":{\"match_all\":{\"boost\":1.0}},\"aggregations\":{\"children\":{\"children\":{\"type\":\"child\"},\"aggregations\":{\"genre\":{\"terms\":{\"field\":\"genre\",\"size\":10,\"min_doc_count\":1,\"shard_min_doc_count\":0,\"show_term_doc_count_error\":false,\"order\":[{\"_count\":\"desc\"},{\"_term\":\"asc\"}]}}}}}}", createSource(aggregationBuilder));
     }
 
+    @Test
+    public void test_deepCopy() throws Exception {
+        Map<String, Object> meta = new HashMap<>();
+        meta.put("key", "value");
+        AggregationBuilder[] aggregations = {
+                AggregationBuilders.terms("terms").field("genre").size(5).shardSize(20).minDocCount(2).missing("none")
+                        .order(Terms.Order.term(false)).includeExclude(new IncludeExclude("a.*", null)).executionHint("map")
+                        .collectMode(Aggregator.SubAggCollectionMode.BREADTH_FIRST).showTermDocCountError(true)
+                        .subAggregation(AggregationBuilders.avg("avg").field("price"))
+                        .subAggregation(PipelineAggregatorBuilders.maxBucket("max_avg", "avg")).setMetaData(meta),
+                AggregationBuilders.histogram("histogram").field("price").interval(50).offset(5).extendedBounds(0, 500)
+                        .order(Histogram.Order.COUNT_DESC).keyed(true).minDocCount(1),
+                AggregationBuilders.dateHistogram("dateHistogram").field("date").dateHistogramInterval(DateHistogramInterval.DAY)
+                        .timeZone(DateTimeZone.forID("Asia/Tokyo")).offset(3600000).extendedBounds(new ExtendedBounds("now-1d", "now"))
+                        .format("yyyy-MM-dd").minDocCount(1)
+                        .subAggregation(AggregationBuilders.sum("sum").script(new Script("doc['price'].value * 2"))),
+                AggregationBuilders.range("range").field("price").addUnboundedTo(50).addRange("mid", 50, 100).addUnboundedFrom(100)
+                        .keyed(true),
+                AggregationBuilders.filter("filter", QueryBuilders.boolQuery().filter(QueryBuilders.termQuery("color", "red")))
+                        .subAggregation(AggregationBuilders.min("min").field("price"))
+                        .subAggregation(AggregationBuilders.max("max").field("price")),
+                AggregationBuilders.filters("filters", new FiltersAggregator.KeyedFilter("errors", QueryBuilders.termQuery("body", "error")),
+                        new FiltersAggregator.KeyedFilter("warnings", QueryBuilders.termQuery("body", "warning"))).otherBucket(true),
+                AggregationBuilders.filters("anonymous", QueryBuilders.termQuery("body", "error"), QueryBuilders.termQuery("body", "info")),
+                AggregationBuilders.stats("stats").field("price").missing(0),
+                AggregationBuilders.cardinality("cardinality").field("user").precisionThreshold(100) };
+        for (AggregationBuilder aggregation : aggregations) {
+            AggregationBuilder copy = aggregation.deepCopy();
+            assertNotSame(aggregation, copy);
+            assertSame(aggregation.getClass(), copy.getClass());
+            assertEquals(aggregation, copy);
+            assertEquals(WriteableCopier.copy(aggregation), copy);
+            assertEquals(aggregation.toString(), copy.toString());
+        }
+
+        TermsAggregationBuilder terms = (TermsAggregationBuilder) aggregations[0];
+        TermsAggregationBuilder termsCopy = terms.deepCopy();
+        assertNotSame(terms.getSubAggregations().get(0), termsCopy.getSubAggregations().get(0));
+        termsCopy.size(50).subAggregation(AggregationBuilders.sum("sum").field("price"));
+        assertEquals(5, terms.size());
+        assertEquals(1, terms.getSubAggregations().size());
+        assertEquals("value", terms.getMetaData().get("key"));
+
+        FilterAggregationBuilder filter = (FilterAggregationBuilder) aggregations[4];
+        FilterAggregationBuilder filterCopy = filter.deepCopy();
+        ((BoolQueryBuilder) filterCopy.getFilter()).filter(QueryBuilders.existsQuery("size"));
+        assertEquals(1, ((BoolQueryBuilder) filter.getFilter()).filter().size());
+
+        AggregatorFactories.Builder factories = AggregatorFactories.builder().addAggregator(terms);
+        AggregatorFactories.Builder factoriesCopy = factories.deepCopy();
+        assertEquals(factories, factoriesCopy);
+        assertNotSame(terms, factoriesCopy.getAggregatorFactories().get(0));
+    }
+
     @Test
     public void test_dateHistgramAggregation() throws Exception {
         AggregationBuilder aggregationBuilder = AggregationBuilders.dateHistogram("dateHistogram")
@@ -0,0 +1,216 @@
+package org.codelibs.elasticsearch.search.aggregations.bucket.terms;
+
+import org.apache.lucene.util.BytesRef;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.codelibs.elasticsearch.search.DocValueFormat;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregation.ReduceContext;
+import org.codelibs.elasticsearch.search.aggregations.InternalAggregations;
+import org.codelibs.elasticsearch.search.aggregations.bucket.terms.support.BucketPriorityQueue;
+import org.codelibs.elasticsearch.search.aggregations.metrics.max.InternalMax;
+import org.codelibs.elasticsearch.search.aggregations.metrics.sum.InternalSum;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class InternalTermsTest {
+    private static final ReduceContext CONTEXT = new ReduceContext(BigArrays.NON_RECYCLING_INSTANCE);
+
+    // orders by count break ties by term, the order of tied buckets depended on hash map iteration before
+    private static final Terms.Order[] ORDERS = { Terms.Order.compound(Terms.Order.count(false), Terms.Order.term(true)),
+            Terms.Order.compound(Terms.Order.count(false), Terms.Order.term(false)),
+            Terms.Order.compound(Terms.Order.count(true), Terms.Order.term(true)), Terms.Order.term(true),
+            Terms.Order.term(false) };
+
+    @Test
+    public void test_reduceLongTerms() {
+        assertReduce(true);
+    }
+
+    @Test
+    public void test_reduceStringTerms() {
+        assertReduce(false);
+    }
+
+    private static void assertReduce(boolean longTerms) {
+        for (int seed = 0; seed < 200; seed++) {
+            Terms.Order order = ORDERS[seed % ORDERS.length];
+            long minDocCount = seed % 3 == 0 ? 3 : 1;
+            // the buckets are modified by a reduce, each one gets its own shard results
+            InternalTerms<?, ?> expected = referenceReduce(shards(seed, longTerms, order, minDocCount));
+            List<InternalAggregation> shards = shards(seed, longTerms, order, minDocCount);
+            InternalTerms<?, ?> actual = (InternalTerms<?, ?>) ((InternalTerms<?, ?>) shards.get(0)).doReduce(shards, CONTEXT);
+            assertSameTerms("seed " + seed + " " + order, expected, actual);
+        }
+    }
+
+    @Test
+    public void test_reduceTwice() {
+        for (int seed = 0; seed < 200; seed++) {
+            boolean longTerms = seed % 2 == 0;
+            Terms.Order order = ORDERS[seed % ORDERS.length];
+            long minDocCount = seed % 3 == 0 ? 3 : 1;
+            // a retried merge reduces the same responses again, the inputs must not keep state from the first reduce
+            List<InternalAggregation> shards = shards(seed, longTerms, order, minDocCount);
+            InternalTerms<?, ?> reducer = (InternalTerms<?, ?>) shards.get(0);
+            InternalTerms<?, ?> first = (InternalTerms<?, ?>) reducer.doReduce(shards, CONTEXT);
+            InternalTerms<?, ?> second = (InternalTerms<?, ?>) reducer.doReduce(shards, CONTEXT);
+            assertSameTerms("seed " + seed + " " + order, first, second);
+            InternalTerms<?, ?> fresh = (InternalTerms<?, ?>) reducer.doReduce(shards(seed, longTerms, order, minDocCount), CONTEXT);
+            assertSameTerms("seed " + seed + " " + order, fresh, second);
+        }
+    }
+
+    private static void assertSameTerms(String message, InternalTerms<?, ?> expected, InternalTerms<?, ?> actual) {
+        assertEquals(message, expected.getDocCountError(), actual.getDocCountError());
+        assertEquals(message, expected.getSumOfOtherDocCounts(), actual.getSumOfOtherDocCounts());
+        List<? extends InternalTerms.Bucket<?>> expectedBuckets = expected.getBucketsInternal();
+        List<? extends InternalTerms.Bucket<?>> actualBuckets = actual.getBucketsInternal();
+        assertEquals(message, expectedBuckets.size(), actualBuckets.size());
+        for (int i = 0; i < expectedBuckets.size(); i++) {
+            InternalTerms.Bucket<?> expectedBucket = expectedBuckets.get(i);
+            InternalTerms.Bucket<?> actualBucket = actualBuckets.get(i);
+            String bucketMessage = message + " bucket " + i;
+            assertEquals(bucketMessage, expectedBucket.getKey(), actualBucket.getKey());
+            assertEquals(bucketMessage, expectedBucket.getDocCount(), actualBucket.getDocCount());
+            assertEquals(bucketMessage, expectedBucket.getDocCountError(), actualBucket.getDocCountError());
+            assertEquals(bucketMessage, ((InternalSum) expectedBucket.getAggregations().get("sum")).getValue(),
+                    ((InternalSum) actualBucket.getAggregations().get("sum")).getValue(), 0.0);
+            assertEquals(bucketMessage, ((InternalMax) expectedBucket.getAggregations().get("max")).getValue(),
+                    ((InternalMax) actualBucket.getAggregations().get("max")).getValue(), 0.0);
+        }
+    }
+
+    /**
+     * Shard results of the same terms aggregation, sorted and truncated to the shard size like a shard would. Some
+     * seeds add a result that was already reduced, with doc count errors, or with an unknown doc count error.
+     */
+    private static List<InternalAggregation> shards(int seed, boolean longTerms, Terms.Order order, long minDocCount) {
+        Random random = new Random(seed);
+        int requiredSize = 1 + random.nextInt(10);
+        int shardSize = requiredSize + random.nextInt(10);
+        int numShards = 2 + random.nextInt(5);
+        int numTerms = 1 + random.nextInt(60);
+        List<InternalAggregation> shards = new ArrayList<>(numShards);
+        for (int shard = 0; shard < numShards; shard++) {
+            boolean reduced = shard == numShards - 1 && seed % 4 == 1;
+            long docCountError = reduced ? (seed % 8 == 1 ? -1 : random.nextInt(20)) : 0;
+            int maxCount = random.nextBoolean() ? 5 : 100;
+            List<InternalTerms.Bucket<?>> buckets = new ArrayList<>();
+            for (int term = 0; term < numTerms; term++) {
+                if (random.nextInt(10) < 4) {
+                    continue;
+                }
+                long docCount = 1 + random.nextInt(maxCount);
+                InternalAggregations aggregations = new InternalAggregations(Arrays.asList(
+                        new InternalSum("sum", docCount * 2 + term, DocValueFormat.RAW, Collections.emptyList(), null),
+                        new InternalMax("max", random.nextInt(1000), DocValueFormat.RAW, Collections.emptyList(), null)));
+                long bucketDocCountError = reduced && docCountError > 0 ? random.nextInt((int) docCountError + 1) : 0;
+                if (longTerms) {
+                    buckets.add(new LongTerms.Bucket(term, docCount, aggregations, true, bucketDocCountError, DocValueFormat.RAW));
+                } else {
+                    buckets.add(new StringTerms.Bucket(new BytesRef(String.format("term%02d", term)), docCount, aggregations, true,
+                            bucketDocCountError, DocValueFormat.RAW));
+                }
+            }
+            buckets.sort(order.comparator(null));
+            long otherDocCount = random.nextInt(3);
+            while (buckets.size() > shardSize) {
+                otherDocCount += buckets.remove(buckets.size() - 1).getDocCount();
+            }
+            shards.add(create(longTerms, order, requiredSize, minDocCount, shardSize, otherDocCount, buckets, docCountError));
+        }
+        return shards;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static InternalTerms<?, ?> create(boolean longTerms, Terms.Order order, int requiredSize, long minDocCount,
+            int shardSize, long otherDocCount, List<? extends InternalTerms.Bucket<?>> buckets, long docCountError) {
+        if (longTerms) {
+            return new LongTerms("terms", order, requiredSize, minDocCount, Collections.emptyList(), null, DocValueFormat.RAW,
+                    shardSize, true, otherDocCount, (List<LongTerms.Bucket>) buckets, docCountError);
+        }
+        return new StringTerms("terms", order, requiredSize, minDocCount, Collections.emptyList(), null, DocValueFormat.RAW,
+                shardSize, true, otherDocCount, (List<StringTerms.Bucket>) buckets, docCountError);
+    }
+
+    /**
+     * The reduce of terms aggregations as it was before buckets were merged by primitive keys: buckets are grouped in
+     * a map by key and each group is reduced with {InternalTerms.Bucket#reduce(List, ReduceContext)}.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static InternalTerms<?, ?> referenceReduce(List<InternalAggregation> aggregations) {
+        InternalTerms reference = (InternalTerms) aggregations.get(0);
+        Terms.Order order = reference.order;
+        long sumDocCountError = 0;
+        long singleDocCountError = 0;
+        long otherDocCount = 0;
+        Map<Object, List<InternalTerms.Bucket>> buckets = new HashMap<>();
+        for (InternalAggregation aggregation : aggregations) {
+            InternalTerms terms = (InternalTerms) aggregation;
+            otherDocCount += terms.getSumOfOtherDocCounts();
+            final long previousDocCountError = terms.getDocCountError();
+            final List<InternalTerms.Bucket> termsBuckets = terms.getBucketsInternal();
+            final long thisAggDocCountError;
+            if (previousDocCountError == -1) {
+                thisAggDocCountError = -1;
+            } else if (termsBuckets.isEmpty() || termsBuckets.size() < terms.getShardSize() || InternalOrder.isTermOrder(order)) {
+                thisAggDocCountError = previousDocCountError;
+            } else if (InternalOrder.isCountDesc(order)) {
+                thisAggDocCountError = termsBuckets.get(termsBuckets.size() - 1).docCount + previousDocCountError;
+            } else {
+                thisAggDocCountError = -1;
+            }
+            if (aggregations.size() == 1) {
+                singleDocCountError = previousDocCountError;
+            }
+            if (sumDocCountError != -1) {
+                if (thisAggDocCountError == -1) {
+                    sumDocCountError = -1;
+                } else {
+                    sumDocCountError += thisAggDocCountError;
+                }
+            }
+            terms.setDocCountError(thisAggDocCountError);
+            for (InternalTerms.Bucket bucket : termsBuckets) {
+                final long previousBucketDocCountError = bucket.docCountError > 0 ? bucket.docCountError : 0;
+                bucket.docCountError = thisAggDocCountError == -1 ? -1 : thisAggDocCountError - previousBucketDocCountError;
+                buckets.computeIfAbsent(bucket.getKey(), k -> new ArrayList<>()).add(bucket);
+            }
+        }
+
+        final int size = Math.min(reference.requiredSize, buckets.size());
+        BucketPriorityQueue<InternalTerms.Bucket> ordered = new BucketPriorityQueue<>(size, order.comparator(null));
+        for (List<InternalTerms.Bucket> sameTermBuckets : buckets.values()) {
+            final InternalTerms.Bucket b = sameTermBuckets.get(0).reduce(sameTermBuckets, CONTEXT);
+            if (b.docCountError != -1) {
+                b.docCountError = sumDocCountError == -1 ? -1 : sumDocCountError - b.docCountError;
+            }
+            if (b.docCount >= reference.minDocCount) {
+                InternalTerms.Bucket removed = ordered.insertWithOverflow(b);
+                if (removed != null) {
+                    otherDocCount += removed.getDocCount();
+                }
+            }
+        }
+        InternalTerms.Bucket[] list = new InternalTerms.Bucket[ordered.size()];
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            list[i] = ordered.pop();
+        }
+        long docCountError;
+        if (sumDocCountError == -1) {
+            docCountError = -1;
+        } else {
+            docCountError = aggregations.size() == 1 ? singleDocCountError : sumDocCountError;
+        }
+        return reference.create(reference.getName(), Arrays.asList(list), docCountError, otherDocCount);
+    }
+}
@@ -0,0 +1,142 @@
+package org.codelibs.elasticsearch.search.aggregations.metrics.cardinality;
+
+import com.carrotsearch.hppc.BitMixer;
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.codelibs.elasticsearch.common.util.BigArrays;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HyperLogLogSketchesTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static final int[] COUNTS = { 0, 1, 10, 100, 1000, 10000, 100000 };
+
+    @Test
+    public void test_cardinality() {
+        for (int precision : new int[] { 4, 10, 14 }) {
+            try (HyperLogLogPlusPlus counts = new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, COUNTS.length);
+                    HyperLogLogSketches sketches = HyperLogLogSketches.offHeap(precision, COUNTS.length)) {
+                for (int i = 0; i < COUNTS.length; i++) {
+                    for (long value = 0; value < COUNTS[i]; value++) {
+                        counts.collect(i, BitMixer.mix64(value));
+                        sketches.collect(i, BitMixer.mix64(value));
+                    }
+                }
+                for (int i = 0; i < COUNTS.length; i++) {
+                    assertEquals(counts.cardinality(i), sketches.cardinality(i));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_merge() {
+        final int precision = 12;
+        try (HyperLogLogPlusPlus counts = new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 2);
+                HyperLogLogSketches hours = HyperLogLogSketches.onHeap(precision, 24);
+                HyperLogLogSketches day = HyperLogLogSketches.offHeap(precision, 2)) {
+            Random random = new Random(0);
+            for (int hour = 0; hour < hours.size(); hour++) {
+                // a few hours with small sketches that are merged with linear counting
+                final int count = hour % 6 == 0 ? 50 : random.nextInt(5000);
+                for (int i = 0; i < count; i++) {
+                    final long hash = BitMixer.mix64(random.nextInt(20000));
+                    counts.collect(hour % 2, hash);
+                    hours.collect(hour, hash);
+                }
+            }
+            day.merge(0, hours, new int[] { 0, 2, 4, 6, 8, 10, 12, 14, 16, 18, 20, 22 });
+            day.merge(1, hours, new int[] { 1, 3, 5, 7, 9, 11, 13, 15, 17, 19, 21, 23 });
+            assertEquals(counts.cardinality(0), day.cardinality(0));
+            assertEquals(counts.cardinality(1), day.cardinality(1));
+
+            HyperLogLogSketches copy = HyperLogLogSketches.onHeap(precision, 2);
+            copy.merge(day);
+            assertEquals(day.cardinality(0), copy.cardinality(0));
+            assertEquals(day.cardinality(1), copy.cardinality(1));
+        }
+        try {
+            HyperLogLogSketches.onHeap(12, 1).merge(0, HyperLogLogSketches.onHeap(14, 1), 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Cannot merge sketches of precision [14] into sketches of precision [12]", e.getMessage());
+        }
+    }
+
+    @Test
+    public void test_max() {
+        Random random = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            final long a = random.nextLong() & 0x7F7F7F7F7F7F7F7FL;
+            final long b = random.nextLong() & 0x7F7F7F7F7F7F7F7FL;
+            final long max = HyperLogLogSketches.max(a, b);
+            for (int shift = 0; shift < 64; shift += 8) {
+                assertEquals(Math.max((a >>> shift) & 0xFF, (b >>> shift) & 0xFF), (max >>> shift) & 0xFF);
+            }
+        }
+    }
+
+    @Test
+    public void test_serialization() throws IOException {
+        final int precision = 10;
+        try (HyperLogLogPlusPlus counts = new HyperLogLogPlusPlus(precision, BigArrays.NON_RECYCLING_INSTANCE, 2);
+                HyperLogLogSketches sketches = HyperLogLogSketches.onHeap(precision, 2)) {
+            for (long value = 0; value < 10000; value++) {
+                counts.collect(value < 100 ? 0 : 1, BitMixer.mix64(value));
+            }
+            for (int bucket = 0; bucket < 2; bucket++) {
+                BytesStreamOutput out = new BytesStreamOutput();
+                counts.writeTo(bucket, out);
+                sketches.readFrom(bucket, out.bytes().streamInput());
+                assertEquals(counts.cardinality(bucket), sketches.cardinality(bucket));
+
+                out = new BytesStreamOutput();
+                sketches.writeTo(bucket, out);
+                try (HyperLogLogPlusPlus read = HyperLogLogPlusPlus.readFrom(out.bytes().streamInput(),
+                        BigArrays.NON_RECYCLING_INSTANCE)) {
+                    assertEquals(counts.cardinality(bucket), read.cardinality(0));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_persistence() throws IOException {
+        final Path mapped = temporaryFolder.getRoot().toPath().resolve("mapped.hll");
+        final Path saved = temporaryFolder.getRoot().toPath().resolve("saved.hll");
+        long[] expected = new long[3];
+        try (HyperLogLogSketches sketches = HyperLogLogSketches.create(mapped, 8, 3)) {
+            for (int i = 0; i < 3; i++) {
+                for (long value = 0; value < COUNTS[i * 2 + 1]; value++) {
+                    sketches.collect(i, BitMixer.mix64(value));
+                }
+                expected[i] = sketches.cardinality(i);
+            }
+            sketches.force();
+            sketches.save(saved);
+        }
+        for (Path path : new Path[] { mapped, saved }) {
+            try (HyperLogLogSketches sketches = HyperLogLogSketches.open(path)) {
+                assertEquals(8, sketches.precision());
+                assertEquals(3, sketches.size());
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(expected[i], sketches.cardinality(i));
+                }
+            }
+        }
+        try {
+            HyperLogLogSketches.open(temporaryFolder.newFile().toPath());
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().endsWith("is not a file of sketches"));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.codelibs.elasticsearch.search.aggregations.metrics.percentiles.tdigest;
+
+import org.codelibs.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TDigestStateTest {
+    private static double[] values(int count) {
+        Random random = new Random(0);
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = random.nextGaussian() * 100;
+        }
+        return values;
+    }
+
+    @Test
+    public void test_bulkAdd() {
+        double[] values = values(100000);
+        TDigestState single = new TDigestState(100);
+        for (double value : values) {
+            single.add(value);
+        }
+        TDigestState bulk = new TDigestState(100);
+        bulk.add(values, 0, 1);
+        bulk.add(values, 1, values.length - 1);
+        assertEquals(single.size(), bulk.size());
+        assertEquals(single.centroidCount(), bulk.centroidCount());
+        for (double q : new double[] { 0, 0.001, 0.5, 0.99, 1 }) {
+            assertEquals(single.quantile(q), bulk.quantile(q), 0.0);
+        }
+        try {
+            bulk.add(new double[] { 1, Double.NaN });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("Cannot add NaN to a t-digest", e.getMessage());
+        }
+        assertEquals(values.length, bulk.size());
+    }
+
+    @Test
+    public void test_quantiles() {
+        double[] values = values(100000);
+        TDigestState state = new TDigestState(100);
+        assertTrue(Double.isNaN(state.quantiles(new double[] { 0.5 })[0]));
+        state.add(values);
+        double[] qs = { 0.99, 0, 0.5, 0.001, 1, 0.25, 0.75, 0.999 };
+        double[] quantiles = state.quantiles(qs);
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(state.quantile(qs[i]), quantiles[i], 0.0);
+        }
+        Arrays.sort(qs);
+        quantiles = state.quantiles(qs);
+        for (int i = 0; i < qs.length; i++) {
+            assertEquals(state.quantile(qs[i]), quantiles[i], 0.0);
+        }
+
+        Arrays.sort(values);
+        for (double q : new double[] { 0.01, 0.5, 0.99 }) {
+            double expected = values[(int) (q * (values.length - 1))];
+            assertEquals(expected, state.quantile(q), 1.0);
+        }
+    }
+
+    @Test
+    public void test_serialization() throws IOException {
+        TDigestState state = new TDigestState(200);
+        state.add(values(10000));
+        BytesStreamOutput out = new BytesStreamOutput();
+        TDigestState.write(state, out);
+        TDigestState read = TDigestState.read(out.bytes().streamInput());
+        assertEquals(200, read.compression(), 0.0);
+        assertEquals(state.size(), read.size());
+        assertEquals(state.centroidCount(), read.centroidCount());
+        for (double q = 0.05; q < 1; q += 0.05) {
+            assertEquals(state.quantile(q), read.quantile(q), 0.0001);
+        }
+
+        out = new BytesStreamOutput();
+        TDigestState.write(new TDigestState(100), out);
+        assertEquals(0, TDigestState.read(out.bytes().streamInput()).size());
+    }
+}
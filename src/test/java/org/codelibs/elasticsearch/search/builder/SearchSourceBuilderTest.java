@@ -0,0 +1,80 @@
+package org.codelibs.elasticsearch.search.builder;
+
+import org.codelibs.elasticsearch.index.query.BoolQueryBuilder;
+import org.codelibs.elasticsearch.index.query.QueryBuilders;
+import org.codelibs.elasticsearch.search.aggregations.AggregationBuilders;
+import org.codelibs.elasticsearch.search.fetch.subphase.highlight.HighlightBuilder;
+import org.codelibs.elasticsearch.search.sort.FieldSortBuilder;
+import org.codelibs.elasticsearch.search.sort.SortBuilders;
+import org.codelibs.elasticsearch.search.sort.SortOrder;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+public class SearchSourceBuilderTest {
+    @Test
+    public void test_deepCopy() {
+        SearchSourceBuilder source = new SearchSourceBuilder()
+                .query(QueryBuilders.boolQuery().must(QueryBuilders.matchQuery("field1", "text1")))
+                .postFilter(QueryBuilders.termQuery("field2", "term2"))
+                .aggregation(AggregationBuilders.terms("test").field("field1")
+                        .subAggregation(AggregationBuilders.max("max").field("field3")))
+                .sort(SortBuilders.fieldSort("field3").order(SortOrder.DESC)
+                        .setNestedFilter(QueryBuilders.termQuery("field4", "term4")))
+                .sort(SortBuilders.scoreSort())
+                .highlighter(new HighlightBuilder().field("field1"))
+                .fetchSource(new String[] { "field1" }, null)
+                .searchAfter(new Object[] { 1L, "a" })
+                .from(10)
+                .size(20);
+        SearchSourceBuilder copy = source.deepCopy();
+        assertEquals(source, copy);
+        assertEquals(source.toString(), copy.toString());
+        assertNotSame(source.query(), copy.query());
+        assertNotSame(source.aggregations(), copy.aggregations());
+        assertNotSame(source.sorts().get(0), copy.sorts().get(0));
+        assertNotSame(source.highlighter(), copy.highlighter());
+        assertSame(source.fetchSource(), copy.fetchSource());
+
+        ((BoolQueryBuilder) copy.query()).filter(QueryBuilders.existsQuery("field5"));
+        ((FieldSortBuilder) copy.sorts().get(0)).order(SortOrder.ASC);
+        copy.highlighter().field("field2");
+        assertEquals(0, ((BoolQueryBuilder) source.query()).filter().size());
+        assertEquals(SortOrder.DESC, source.sorts().get(0).order());
+        assertEquals(1, source.highlighter().fields().size());
+        assertNotEquals(source, copy);
+    }
+
+    @Test
+    public void test_deepCopyHighlighter() {
+        HighlightBuilder highlighter = new HighlightBuilder().preTags("<b>").postTags("</b>").fragmentSize(50)
+                .numOfFragments(2).highlighterType("fvh").highlightQuery(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.termQuery("field1", "text1")))
+                .order(HighlightBuilder.Order.SCORE).boundaryChars(new char[] { '.', ',' }).noMatchSize(10)
+                .requireFieldMatch(false).encoder("html").useExplicitFieldOrder(true)
+                .field(new HighlightBuilder.Field("field1").fragmentOffset(3).matchedFields("field1", "field1.plain")
+                        .preTags("<em>").postTags("</em>"));
+        highlighter.options(new HashMap<>(Collections.singletonMap("key", "value")));
+        HighlightBuilder copy = highlighter.deepCopy();
+        assertEquals(highlighter, copy);
+        assertEquals(highlighter.toString(), copy.toString());
+        assertNotSame(highlighter.highlightQuery(), copy.highlightQuery());
+        assertNotSame(highlighter.fields().get(0), copy.fields().get(0));
+
+        copy.preTags()[0] = "<i>";
+        copy.boundaryChars()[0] = ';';
+        copy.options().put("key2", "value2");
+        ((BoolQueryBuilder) copy.highlightQuery()).filter(QueryBuilders.existsQuery("field2"));
+        copy.fields().get(0).postTags("</i>");
+        copy.field("field2");
+        assertEquals("<b>", highlighter.preTags()[0]);
+        assertEquals('.', highlighter.boundaryChars()[0]);
+        assertEquals(1, highlighter.options().size());
+        assertEquals(0, ((BoolQueryBuilder) highlighter.highlightQuery()).filter().size());
+        assertEquals("</em>", highlighter.fields().get(0).postTags()[0]);
+        assertEquals(1, highlighter.fields().size());
+    }
+}